@@ -114,6 +114,19 @@ public class Admin {
             admin.purge(channel, days);
           }
         }
+      } else if (cmd.equals("--rollup")) {
+        if (argIndex < args.length) {
+          final String ch = args[argIndex++];
+          final String since;
+          if (argIndex < args.length) {
+            since = args[argIndex++];
+          } else {
+            since = null;
+          }
+          admin.rebuildRollups(ch, since, delay);
+        } else {
+          status = 2;
+        }
       } else if (cmd.equals("--repair")) {
         if (argIndex < args.length) {
           final String day = args[argIndex++];
@@ -176,7 +189,10 @@ public class Admin {
             + "                                  specified number of days where the channel\n"
             + "                                  may contain a wild card (%) anywhere\n"
             + "  --repair YYYY_MM_DD [channel]   repair all tables on given day\n"
-            + "                                  optionally, just repair the specified channel\n" +
+            + "                                  optionally, just repair the specified channel\n"
+            + "  --rollup channel [YYYY_MM_DD]   rebuild helicorder and RSAM rollups for the\n"
+            + "                                  specified channel which may contain a wild\n"
+            + "                                  card (%), optionally, just from the given day\n" +
             // " --deletewinston completely deletes all Winston databases\n" +
             "");
     if (status != 0) {
@@ -328,12 +344,16 @@ public class Admin {
   private void doDeleteChannel(final String ch) throws SQLException {
     winston.useRootDatabase();
     LOGGER.info("Deleting channel {}", ch);
-   String cmd = "DELETE FROM channels WHERE code='" + ch + "';";
-   LOGGER.info(cmd);
-    winston.getStatement().execute(cmd);
+    LOGGER.info("Dropping channel storage {}", winston.databasePrefix + "_" + ch);
+    winston.getLayout().deleteChannel(winston, ch);
+    try {
+      new Coverage(winston).delete(ch);
+      new DayStamps(winston).delete(ch);
+    } catch (final SQLException e) {
+      LOGGER.warn("Could not delete coverage of {}. ({})", ch, e.getLocalizedMessage());
+    }
 
-    LOGGER.info("Dropping channel database {}", winston.databasePrefix + "_" + ch);
-    cmd = "DROP DATABASE `" + winston.databasePrefix + "_" + ch + "`;";
+    String cmd = "DELETE FROM channels WHERE code='" + ch + "';";
     LOGGER.info(cmd);
     winston.getStatement().execute(cmd);
   }
@@ -428,6 +448,50 @@ public class Admin {
     }
   }
 
+  /**
+   * Rebuild the helicorder rollups of every day of the specified channels. Used to backfill
+   * rollups for data written before they existed or by an importer that does not maintain them.
+   *
+   * @param chx the channel expression
+   * @param since first day to rebuild, formatted YYYY_MM_DD, or null for all days
+   * @param delay the delay in milliseconds between channels
+   */
+  public void rebuildRollups(final String chx, final String since, final long delay) {
+    String ch = chx;
+    try {
+      final List<String> channelList = channels.getChannelCodes(chx);
+      if (channelList == null || channelList.size() == 0) {
+        LOGGER.info("rebuildRollups: no channels found ({})", chx);
+        return;
+      }
+
+      final HeliRollup rollup = new HeliRollup(winston);
+      for (int i = 0; i < channelList.size(); i++) {
+        ch = channelList.get(i);
+        if (i != 0 && delay != 0) {
+          Thread.sleep(delay);
+        }
+
+        final List<String> tables = input.getDayTables(ch);
+        if (tables == null) {
+          continue;
+        }
+        for (final String table : tables) {
+          final String date = table.substring(table.indexOf("$$") + 2);
+          if (since != null && date.compareTo(since) < 0) {
+            continue;
+          }
+          if (!winston.useDatabase(ch) || !rollup.rebuild(ch, date)) {
+            LOGGER.error("Could not rebuild helicorder rollups: {} {}", ch, date);
+          }
+        }
+        LOGGER.info("Rebuilt helicorder rollups: {}", ch);
+      }
+    } catch (final Exception e) {
+      LOGGER.error("Error during rebuildRollups({})", ch);
+    }
+  }
+
   /**
    * Repair specified channel for specified day
    * If channel unspecified, repair all
@@ -0,0 +1,276 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-channel state kept by the importers: each channel's time span, its recent helicorder rows,
+ * and its sid. The state is shared by every WinstonDatabase connected to the same Winston, so
+ * several InputEW instances writing through different connections see the same spans and rows.
+ *
+ * Time spans are immutable arrays replaced by compare-and-set, so concurrent updates are merged
+ * without locking. Helicorder rows are kept in one accumulator per channel; writers of a
+ * channel synchronize on its accumulator, so writers of different channels never contend.
+ *
+ * Spans extended in memory but not yet written to the database are marked pending. An importer
+ * periodically takes the pending spans and writes them in a single statement, rather than
+ * updating the channels table after every insert. Coverage of written tracebufs is held the same
+ * way, merged in memory so that a flush writes one interval per stretch of contiguous data.
+ *
+ * @author Tom Parker
+ */
+public class ChannelState {
+  private static final ConcurrentMap<String, ChannelState> STATES =
+      new ConcurrentHashMap<String, ChannelState>();
+
+  private final ConcurrentMap<String, double[]> timeSpans;
+  private final ConcurrentMap<String, HeliAccumulator> helicorderRows;
+  private final ConcurrentMap<String, Integer> sids;
+  private final ConcurrentMap<String, Boolean> pendingSpans;
+  private final Map<String, IntervalSet> pendingCoverage;
+
+  ChannelState() {
+    timeSpans = new ConcurrentHashMap<String, double[]>();
+    pendingSpans = new ConcurrentHashMap<String, Boolean>();
+    helicorderRows = new ConcurrentHashMap<String, HeliAccumulator>();
+    sids = new ConcurrentHashMap<String, Integer>();
+    pendingCoverage = new LinkedHashMap<String, IntervalSet>();
+  }
+
+  /**
+   * Return the state shared by all connections to a Winston.
+   *
+   * @param winston the Winston
+   * @return shared state
+   */
+  public static ChannelState getInstance(final WinstonDatabase winston) {
+    final String key = winston.dbURL + "/" + winston.databasePrefix;
+    ChannelState state = STATES.get(key);
+    if (state == null) {
+      state = new ChannelState();
+      final ChannelState existing = STATES.putIfAbsent(key, state);
+      if (existing != null) {
+        state = existing;
+      }
+    }
+    return state;
+  }
+
+  /**
+   * @param channel channel
+   * @return a copy of the cached time span, or null if none is cached
+   */
+  public double[] getTimeSpan(final String channel) {
+    final double[] span = timeSpans.get(channel);
+    return span == null ? null : span.clone();
+  }
+
+  /**
+   * Cache a time span read from the database, unless one is already cached.
+   *
+   * @param channel channel
+   * @param span start and end time
+   * @return a copy of the cached time span
+   */
+  public double[] loadTimeSpan(final String channel, final double[] span) {
+    final double[] existing = timeSpans.putIfAbsent(channel, span.clone());
+    return existing == null ? span.clone() : existing.clone();
+  }
+
+  /**
+   * Extend a channel's time span to include a given start and end time. NaN times are ignored.
+   *
+   * @param channel channel
+   * @param st start time
+   * @param et end time
+   * @return a copy of the extended time span
+   */
+  public double[] extendTimeSpan(final String channel, final double st, final double et) {
+    while (true) {
+      final double[] span = timeSpans.get(channel);
+      if (span == null) {
+        final double[] created = new double[] {st, et};
+        if (timeSpans.putIfAbsent(channel, created) == null) {
+          return created.clone();
+        }
+        continue;
+      }
+
+      final double[] extended = new double[] {earliest(span[0], st), latest(span[1], et)};
+      if (timeSpans.replace(channel, span, extended)) {
+        return extended.clone();
+      }
+    }
+  }
+
+  /**
+   * Mark a channel's time span as changed in memory but not yet written to the database.
+   *
+   * @param channel channel
+   */
+  public void markPending(final String channel) {
+    pendingSpans.put(channel, Boolean.TRUE);
+  }
+
+  /**
+   * @param channel channel
+   * @return a copy of the cached time span if it has not yet been written, otherwise null
+   */
+  public double[] getPendingTimeSpan(final String channel) {
+    if (!pendingSpans.containsKey(channel)) {
+      return null;
+    }
+    return getTimeSpan(channel);
+  }
+
+  /**
+   * Take the time spans waiting to be written. A span extended while the returned spans are
+   * being written is marked pending again, so no extension is lost. Callers that fail to write
+   * the spans should mark them pending again.
+   *
+   * @return pending time spans by channel
+   */
+  public Map<String, double[]> takePendingTimeSpans() {
+    final Map<String, double[]> spans = new LinkedHashMap<String, double[]>();
+    for (final String channel : pendingSpans.keySet()) {
+      if (pendingSpans.remove(channel) != null) {
+        final double[] span = timeSpans.get(channel);
+        if (span != null) {
+          spans.put(channel, span.clone());
+        }
+      }
+    }
+    return spans;
+  }
+
+  /**
+   * @return number of channels whose time spans are waiting to be written
+   */
+  public int getPendingCount() {
+    return pendingSpans.size();
+  }
+
+  /**
+   * Hold coverage of written tracebufs until it is flushed.
+   *
+   * @param channel channel
+   * @param covered intervals of the tracebufs. Not changed.
+   */
+  void addPendingCoverage(final String channel, final IntervalSet covered) {
+    synchronized (pendingCoverage) {
+      IntervalSet pending = pendingCoverage.get(channel);
+      if (pending == null) {
+        pending = new IntervalSet(Coverage.TOLERANCE);
+        pendingCoverage.put(channel, pending);
+      }
+      pending.addAll(covered);
+    }
+  }
+
+  /**
+   * Take the coverage waiting to be written. Callers that fail to write it should add it again.
+   *
+   * @return pending coverage by channel
+   */
+  Map<String, IntervalSet> takePendingCoverage() {
+    synchronized (pendingCoverage) {
+      final Map<String, IntervalSet> taken = new LinkedHashMap<String, IntervalSet>(pendingCoverage);
+      pendingCoverage.clear();
+      return taken;
+    }
+  }
+
+  /**
+   * Move a channel's start time, for instance after old tables are purged.
+   *
+   * @param channel channel
+   * @param st new start time
+   */
+  public void setStartTime(final String channel, final double st) {
+    while (true) {
+      final double[] span = timeSpans.get(channel);
+      if (span == null || timeSpans.replace(channel, span, new double[] {st, span[1]})) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Move the start time of every cached span forward to at least a given time, for instance after
+   * days shared by every channel are purged.
+   *
+   * @param st earliest start time
+   */
+  public void clampStartTimes(final double st) {
+    for (final String channel : timeSpans.keySet()) {
+      while (true) {
+        final double[] span = timeSpans.get(channel);
+        if (span == null || !(span[0] < st)
+            || timeSpans.replace(channel, span, new double[] {st, span[1]})) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Forget a channel's time span.
+   *
+   * @param channel channel
+   */
+  public void invalidate(final String channel) {
+    timeSpans.remove(channel);
+  }
+
+  /**
+   * Return the recent helicorder rows of a channel. Callers must synchronize on the returned
+   * accumulator while reading or changing it.
+   *
+   * @param channel channel
+   * @param capacity number of seconds held by a new accumulator
+   * @return rows
+   */
+  public HeliAccumulator getHelicorderRows(final String channel, final int capacity) {
+    HeliAccumulator rows = helicorderRows.get(channel);
+    if (rows == null) {
+      rows = new HeliAccumulator(capacity);
+      final HeliAccumulator existing = helicorderRows.putIfAbsent(channel, rows);
+      if (existing != null) {
+        rows = existing;
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * @param channel channel
+   * @return cached sid, or null if none is cached
+   */
+  public Integer getSid(final String channel) {
+    return sids.get(channel);
+  }
+
+  /**
+   * @param channel channel
+   * @param sid sid read from the database
+   */
+  public void putSid(final String channel, final int sid) {
+    sids.put(channel, sid);
+  }
+
+  private static double earliest(final double a, final double b) {
+    if (Double.isNaN(a)) {
+      return b;
+    }
+    return Double.isNaN(b) ? a : Math.min(a, b);
+  }
+
+  private static double latest(final double a, final double b) {
+    if (Double.isNaN(a)) {
+      return b;
+    }
+    return Double.isNaN(b) ? a : Math.max(a, b);
+  }
+}
@@ -333,8 +333,10 @@ public class Channels {
     try {
       String result = null;
       winston.useRootDatabase();
-      final ResultSet rs =
-          winston.getStatement().executeQuery("SELECT code FROM channels WHERE sid=" + sid);
+      final PreparedStatement ps =
+          winston.getPreparedStatement("SELECT code FROM channels WHERE sid=?");
+      ps.setInt(1, sid);
+      final ResultSet rs = ps.executeQuery();
       if (rs.next())
         result = rs.getString(1);
       rs.close();
@@ -358,8 +360,10 @@ public class Channels {
     try {
       boolean result = false;
       winston.useRootDatabase();
-      final ResultSet rs =
-          winston.getStatement().executeQuery("SELECT sid FROM channels WHERE code='" + code + "'");
+      final PreparedStatement ps =
+          winston.getPreparedStatement("SELECT sid FROM channels WHERE code=?");
+      ps.setString(1, code);
+      final ResultSet rs = ps.executeQuery();
       result = rs.next();
       rs.close();
       return result;
@@ -389,11 +393,15 @@ public class Channels {
       return false;
     try {
       winston.useRootDatabase();
-      winston.getStatement()
-          .execute("CREATE DATABASE `" + winston.databasePrefix + "_" + code + "`");
+      winston.getLayout().createChannel(winston, code);
       winston.getStatement()
           .execute("INSERT INTO channels (code, st, et) VALUES ('" + code + "', 1E300, -1E300)");
-      winston.getStatement().execute("USE `" + winston.databasePrefix + "_" + code + "`");
+      try {
+        new Coverage(winston).created(code);
+      } catch (final SQLException e) {
+        LOGGER.warn("Could not start coverage of {}. ({})", code, e.getLocalizedMessage());
+      }
+      winston.useChannel(code);
     } catch (final Exception e) {
       LOGGER.error("Could not create channel.  Are permissions set properly?");
     }
@@ -0,0 +1,187 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pooled compressors and per-thread scratch buffers for the tracebuf codecs, so the only
+ * allocation left on the hot paths is the result itself.
+ *
+ * Deflaters and Inflaters hold native memory until they are ended, so they are borrowed from
+ * small shared pools and must be released after use. A released compressor the pool has no room
+ * for is ended at once, which bounds the native memory held however many threads come and go.
+ *
+ * Scratch buffers come in power-of-two size classes and grow to the next class when a larger
+ * buffer is needed. Buffers larger than the largest pooled class are allocated for each use and
+ * not kept.
+ *
+ * Counters record how often each pool had to allocate and how often it was reused.
+ *
+ * @author Tom Parker
+ */
+public final class CodecBuffers {
+  private static final int MIN_BUFFER = 4 * 1024;
+  private static final int MAX_POOLED_BUFFER = 1024 * 1024;
+  private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+  private static final AtomicLong DEFLATERS_CREATED = new AtomicLong();
+  private static final AtomicLong INFLATERS_CREATED = new AtomicLong();
+  private static final AtomicLong BUFFERS_ALLOCATED = new AtomicLong();
+  private static final AtomicLong BUFFER_BYTES_ALLOCATED = new AtomicLong();
+  private static final AtomicLong REUSES = new AtomicLong();
+
+  private static final BlockingQueue<Deflater> DEFLATERS =
+      new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+  private static final BlockingQueue<Inflater> INFLATERS =
+      new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+
+  private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>();
+
+  private CodecBuffers() {}
+
+  /**
+   * Borrow a Deflater. It must be handed back with release.
+   *
+   * @return a reset Deflater set to BEST_SPEED
+   */
+  static Deflater deflater() {
+    final Deflater deflater = DEFLATERS.poll();
+    if (deflater == null) {
+      DEFLATERS_CREATED.incrementAndGet();
+      return new Deflater(Deflater.BEST_SPEED);
+    }
+    deflater.reset();
+    REUSES.incrementAndGet();
+    return deflater;
+  }
+
+  /**
+   * Return a Deflater to the pool, or end it if the pool is full.
+   *
+   * @param deflater Deflater from deflater()
+   */
+  static void release(final Deflater deflater) {
+    if (!DEFLATERS.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Borrow an Inflater. It must be handed back with release.
+   *
+   * @return a reset Inflater
+   */
+  static Inflater inflater() {
+    final Inflater inflater = INFLATERS.poll();
+    if (inflater == null) {
+      INFLATERS_CREATED.incrementAndGet();
+      return new Inflater();
+    }
+    inflater.reset();
+    REUSES.incrementAndGet();
+    return inflater;
+  }
+
+  /**
+   * Return an Inflater to the pool, or end it if the pool is full.
+   *
+   * @param inflater Inflater from inflater()
+   */
+  static void release(final Inflater inflater) {
+    if (!INFLATERS.offer(inflater)) {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Return this thread's scratch buffer. The contents are undefined, and the buffer must not be
+   * kept or handed to another thread.
+   *
+   * @param size minimum length
+   * @return a buffer of at least size bytes
+   */
+  static byte[] scratch(final int size) {
+    final byte[] buffer = SCRATCH.get();
+    if (buffer != null && buffer.length >= size) {
+      REUSES.incrementAndGet();
+      return buffer;
+    }
+
+    final byte[] allocated = new byte[sizeClass(size)];
+    BUFFERS_ALLOCATED.incrementAndGet();
+    BUFFER_BYTES_ALLOCATED.addAndGet(allocated.length);
+    if (allocated.length <= MAX_POOLED_BUFFER) {
+      SCRATCH.set(allocated);
+    }
+    return allocated;
+  }
+
+  /**
+   * Replace a full scratch buffer with one of the next size class.
+   *
+   * @param buffer current buffer
+   * @param used bytes of buffer to keep
+   * @return a larger buffer starting with the kept bytes
+   */
+  static byte[] grow(final byte[] buffer, final int used) {
+    final byte[] larger = scratch(buffer.length * 2);
+    System.arraycopy(buffer, 0, larger, 0, used);
+    return larger;
+  }
+
+  private static int sizeClass(final int size) {
+    if (size <= MIN_BUFFER) {
+      return MIN_BUFFER;
+    }
+    final int size2 = Integer.highestOneBit(size - 1) << 1;
+    return size2 > 0 ? size2 : size;
+  }
+
+  /**
+   * @return number of Deflaters created
+   */
+  public static long getDeflatersCreated() {
+    return DEFLATERS_CREATED.get();
+  }
+
+  /**
+   * @return number of Inflaters created
+   */
+  public static long getInflatersCreated() {
+    return INFLATERS_CREATED.get();
+  }
+
+  /**
+   * @return number of scratch buffers allocated
+   */
+  public static long getBuffersAllocated() {
+    return BUFFERS_ALLOCATED.get();
+  }
+
+  /**
+   * @return total size of scratch buffers allocated, in bytes
+   */
+  public static long getBufferBytesAllocated() {
+    return BUFFER_BYTES_ALLOCATED.get();
+  }
+
+  /**
+   * @return number of Deflater, Inflater, and scratch buffer requests served from the pools
+   */
+  public static long getReuses() {
+    return REUSES.get();
+  }
+
+  /**
+   * @return one-line summary of the counters
+   */
+  public static String getStatus() {
+    return String.format(
+        "Codec pools: %d deflaters, %d inflaters, %d buffers (%.1fkB) allocated, %d reuses",
+        getDeflatersCreated(), getInflatersCreated(), getBuffersAllocated(),
+        getBufferBytesAllocated() / 1024.0, getReuses());
+  }
+}
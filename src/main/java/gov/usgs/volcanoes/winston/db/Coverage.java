@@ -0,0 +1,354 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The data coverage of each channel, kept in the root database as one row for each stretch of
+ * contiguous tracebufs. InputEW merges the tracebufs it writes into the table, so listing the gaps
+ * in a span, or how complete it is, reads one row per gap rather than one per tracebuf.
+ *
+ * Every writer keeps the table current: InputEW and Input merge the tracebufs they insert, and
+ * purging clips it. A channel's coverage is only trusted once it has been built: a channel created
+ * after this table existed is built from the start, older channels are built from their wave
+ * tables with {@link #build(String)}. Readers of a channel that has not been built get null and
+ * should fall back to the wave tables.
+ *
+ * Merging reads the rows next to an interval, then replaces them, so it holds a named lock for the
+ * channel while it does. Writers of the same channel on other connections wait for it.
+ *
+ * @author Tom Parker
+ */
+public class Coverage {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Coverage.class);
+
+  /** tracebufs separated by no more than this, in seconds, are contiguous */
+  public static final double TOLERANCE = 0.01;
+
+  /** longest wait for another writer's merge, in seconds */
+  private static final int LOCK_TIMEOUT = 30;
+
+  private final WinstonDatabase winston;
+  private final String coverageTable;
+  private final String builtTable;
+
+  /**
+   * Constructor.
+   *
+   * @param winston the database
+   */
+  public Coverage(final WinstonDatabase winston) {
+    this.winston = winston;
+    coverageTable = "`" + winston.databasePrefix + "_ROOT`.coverage";
+    builtTable = "`" + winston.databasePrefix + "_ROOT`.coveredchannels";
+  }
+
+  /**
+   * Create the coverage tables if they do not exist.
+   *
+   * @param winston the database
+   * @throws SQLException if the tables cannot be created
+   */
+  public static void createTables(final WinstonDatabase winston) throws SQLException {
+    final Coverage coverage = new Coverage(winston);
+    winston.getStatement()
+        .execute("CREATE TABLE IF NOT EXISTS " + coverage.coverageTable
+            + " (sid INT NOT NULL, st DOUBLE NOT NULL, et DOUBLE NOT NULL, PRIMARY KEY (sid, st)) "
+            + winston.tableEngine);
+    winston.getStatement().execute("CREATE TABLE IF NOT EXISTS " + coverage.builtTable
+        + " (sid INT PRIMARY KEY, built DATETIME) " + winston.tableEngine);
+  }
+
+  /**
+   * Find the gaps in a channel's data.
+   *
+   * @param code channel
+   * @param t1 start time
+   * @param t2 end time
+   * @return start and end time of each gap, or null if the channel's coverage is not known
+   */
+  public List<double[]> getGaps(final String code, final double t1, final double t2) {
+    final IntervalSet covered = getCovered(code, t1, t2);
+    return covered == null ? null : covered.gaps(t1, t2);
+  }
+
+  /**
+   * Find the fraction of a span holding data.
+   *
+   * @param code channel
+   * @param t1 start time
+   * @param t2 end time
+   * @return fraction between 0 and 1, or NaN if the channel's coverage is not known
+   */
+  public double getCompleteness(final String code, final double t1, final double t2) {
+    if (t2 <= t1) {
+      return Double.NaN;
+    }
+
+    final IntervalSet covered = getCovered(code, t1, t2);
+    return covered == null ? Double.NaN : covered.covered(t1, t2) / (t2 - t1);
+  }
+
+  /**
+   * @param code channel
+   * @return true if the channel's coverage has been built
+   */
+  public boolean isBuilt(final String code) {
+    final int sid = StorageLayout.getSid(winston, code);
+    if (sid < 0) {
+      return false;
+    }
+
+    try {
+      final PreparedStatement ps =
+          winston.getPreparedStatement("SELECT 1 FROM " + builtTable + " WHERE sid=?");
+      ps.setInt(1, sid);
+      final ResultSet rs = ps.executeQuery();
+      final boolean built = rs.next();
+      rs.close();
+      return built;
+    } catch (final SQLException e) {
+      LOGGER.debug("Cannot read coverage of {}. ({})", code, e.getLocalizedMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Build a channel's coverage from its wave tables. Rows are merged with any already present, so
+   * a channel may be built while it is being imported.
+   *
+   * @param code channel
+   * @return false if the channel could not be read
+   */
+  public boolean build(final String code) {
+    final int sid = StorageLayout.getSid(winston, code);
+    if (sid < 0 || !winston.useChannel(code)) {
+      return false;
+    }
+
+    final StorageLayout layout = winston.getLayout();
+    final List<String> days = layout.getDays(winston, code);
+    if (days == null) {
+      return false;
+    }
+
+    try {
+      final IntervalSet covered = new IntervalSet(TOLERANCE);
+      for (final String date : days) {
+        final PreparedStatement ps = winston.getPreparedStatement(
+            "SELECT st, et FROM " + layout.waveTable(winston, code, date) + " WHERE "
+                + layout.dayFilter(winston, code, date) + "1=1 ORDER BY st ASC");
+        final ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+          covered.add(rs.getDouble(1), rs.getDouble(2));
+        }
+        rs.close();
+      }
+
+      add(sid, covered);
+      markBuilt(sid);
+      LOGGER.info("Built coverage of {}: {} days, {} intervals", code, days.size(),
+          covered.size());
+      return true;
+    } catch (final SQLException e) {
+      LOGGER.error("Could not build coverage of {}. ({})", code, e.getLocalizedMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Merge intervals into a channel's coverage.
+   *
+   * @param code channel
+   * @param intervals intervals holding data
+   * @throws SQLException if the coverage cannot be written
+   */
+  void add(final String code, final IntervalSet intervals) throws SQLException {
+    final int sid = StorageLayout.getSid(winston, code);
+    if (sid < 0) {
+      return;
+    }
+    add(sid, intervals);
+  }
+
+  /**
+   * Mark a new channel's coverage as built. A channel with no data is fully described by no rows.
+   *
+   * @param code channel
+   * @throws SQLException if the channel cannot be marked
+   */
+  void created(final String code) throws SQLException {
+    final int sid = StorageLayout.getSid(winston, code);
+    if (sid >= 0) {
+      winston.getStatement().execute("DELETE FROM " + coverageTable + " WHERE sid=" + sid);
+      markBuilt(sid);
+    }
+  }
+
+  /**
+   * Forget a channel's coverage, before the channel is removed.
+   *
+   * @param code channel
+   * @throws SQLException if the rows cannot be removed
+   */
+  void delete(final String code) throws SQLException {
+    final int sid = StorageLayout.getSid(winston, code);
+    if (sid >= 0) {
+      winston.getStatement().execute("DELETE FROM " + coverageTable + " WHERE sid=" + sid);
+      winston.getStatement().execute("DELETE FROM " + builtTable + " WHERE sid=" + sid);
+    }
+  }
+
+  /**
+   * Drop coverage before a time, after old days are purged.
+   *
+   * @param code channel, or null for every channel
+   * @param t earliest time still stored
+   * @throws SQLException if the rows cannot be changed
+   */
+  void clip(final String code, final double t) throws SQLException {
+    String where = "";
+    if (code != null) {
+      final int sid = StorageLayout.getSid(winston, code);
+      if (sid < 0) {
+        return;
+      }
+      where = "sid=" + sid + " AND ";
+    }
+
+    winston.getStatement().execute("DELETE FROM " + coverageTable + " WHERE " + where + "et<=" + t);
+    winston.getStatement()
+        .execute("UPDATE " + coverageTable + " SET st=" + t + " WHERE " + where + "st<" + t);
+  }
+
+  private IntervalSet getCovered(final String code, final double t1, final double t2) {
+    if (!isBuilt(code)) {
+      return null;
+    }
+
+    final int sid = StorageLayout.getSid(winston, code);
+    final IntervalSet covered = new IntervalSet(TOLERANCE);
+    try {
+      // rows are disjoint, so only the last one starting before t1 can reach into the span
+      PreparedStatement ps = winston.getPreparedStatement("SELECT st, et FROM " + coverageTable
+          + " WHERE sid=? AND st<? ORDER BY st DESC LIMIT 1");
+      ps.setInt(1, sid);
+      ps.setDouble(2, t1);
+      ResultSet rs = ps.executeQuery();
+      while (rs.next()) {
+        covered.add(rs.getDouble(1), rs.getDouble(2));
+      }
+      rs.close();
+
+      ps = winston.getPreparedStatement(
+          "SELECT st, et FROM " + coverageTable + " WHERE sid=? AND st>=? AND st<=? ORDER BY st");
+      ps.setInt(1, sid);
+      ps.setDouble(2, t1);
+      ps.setDouble(3, t2);
+      rs = ps.executeQuery();
+      while (rs.next()) {
+        covered.add(rs.getDouble(1), rs.getDouble(2));
+      }
+      rs.close();
+    } catch (final SQLException e) {
+      LOGGER.error("Cannot read coverage of {}. ({})", code, e.getLocalizedMessage());
+      return null;
+    }
+    return covered;
+  }
+
+  private void add(final int sid, final IntervalSet intervals) throws SQLException {
+    final String lock = winston.databasePrefix + "_coverage_" + sid;
+    PreparedStatement ps = winston.getPreparedStatement("SELECT GET_LOCK(?, ?)");
+    ps.setString(1, lock);
+    ps.setInt(2, LOCK_TIMEOUT);
+    ResultSet rs = ps.executeQuery();
+    final boolean locked = rs.next() && rs.getInt(1) == 1;
+    rs.close();
+    if (!locked) {
+      throw new SQLException("Timed out waiting for coverage lock " + lock);
+    }
+
+    try {
+      for (int i = 0; i < intervals.size(); i++) {
+        merge(sid, intervals.getStart(i), intervals.getEnd(i));
+      }
+    } finally {
+      ps = winston.getPreparedStatement("SELECT RELEASE_LOCK(?)");
+      ps.setString(1, lock);
+      rs = ps.executeQuery();
+      rs.close();
+    }
+  }
+
+  /**
+   * Merge one interval with the rows it overlaps or nearly touches.
+   */
+  private void merge(final int sid, final double st, final double et) throws SQLException {
+    double mergedSt = st;
+    double mergedEt = et;
+    int found = 0;
+
+    PreparedStatement ps = winston.getPreparedStatement("SELECT st, et FROM " + coverageTable
+        + " WHERE sid=? AND st<? ORDER BY st DESC LIMIT 1");
+    ps.setInt(1, sid);
+    ps.setDouble(2, st - TOLERANCE);
+    ResultSet rs = ps.executeQuery();
+    if (rs.next() && rs.getDouble(2) >= st - TOLERANCE) {
+      mergedSt = rs.getDouble(1);
+      mergedEt = Math.max(mergedEt, rs.getDouble(2));
+      found++;
+    }
+    rs.close();
+
+    ps = winston.getPreparedStatement(
+        "SELECT st, et FROM " + coverageTable + " WHERE sid=? AND st>=? AND st<=?");
+    ps.setInt(1, sid);
+    ps.setDouble(2, st - TOLERANCE);
+    ps.setDouble(3, et + TOLERANCE);
+    rs = ps.executeQuery();
+    while (rs.next()) {
+      mergedSt = Math.min(mergedSt, rs.getDouble(1));
+      mergedEt = Math.max(mergedEt, rs.getDouble(2));
+      found++;
+    }
+    rs.close();
+
+    if (found == 1 && mergedSt < st) {
+      // the common case, a channel's latest row growing as tracebufs arrive
+      ps = winston.getPreparedStatement(
+          "UPDATE " + coverageTable + " SET et=GREATEST(et, ?) WHERE sid=? AND st=?");
+      ps.setDouble(1, mergedEt);
+      ps.setInt(2, sid);
+      ps.setDouble(3, mergedSt);
+      ps.executeUpdate();
+      return;
+    }
+
+    if (found > 0) {
+      ps = winston.getPreparedStatement(
+          "DELETE FROM " + coverageTable + " WHERE sid=? AND st>=? AND st<=?");
+      ps.setInt(1, sid);
+      ps.setDouble(2, mergedSt);
+      ps.setDouble(3, et + TOLERANCE);
+      ps.executeUpdate();
+    }
+
+    ps = winston.getPreparedStatement("INSERT INTO " + coverageTable
+        + " (sid, st, et) VALUES (?,?,?) ON DUPLICATE KEY UPDATE et=GREATEST(et, VALUES(et))");
+    ps.setInt(1, sid);
+    ps.setDouble(2, mergedSt);
+    ps.setDouble(3, mergedEt);
+    ps.executeUpdate();
+  }
+
+  private void markBuilt(final int sid) throws SQLException {
+    winston.getStatement()
+        .execute("REPLACE INTO " + builtTable + " (sid, built) VALUES (" + sid + ", NOW())");
+  }
+}
@@ -1,7 +1,6 @@
 package gov.usgs.volcanoes.winston.db;
 
 import java.io.IOException;
-import java.sql.Blob;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -9,6 +8,7 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
@@ -16,7 +16,6 @@ import java.util.TimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import gov.usgs.volcanoes.core.Zip;
 import gov.usgs.volcanoes.core.data.HelicorderData;
 import gov.usgs.volcanoes.core.data.RSAMData;
 import gov.usgs.volcanoes.core.data.Scnl;
@@ -39,8 +38,12 @@ public class Data {
   private static final double EPSILON = 0.01;
 
   private static final int ONE_DAY = 60 * 60 * 24;
+
+  /** The largest LIMIT MySQL accepts. */
+  private static final String NO_LIMIT = "18446744073709551615";
   private final WinstonDatabase winston;
   private final Channels channels;
+  private final DayTableCatalog tableCatalog;
   private final DateFormat dateFormat;
   private String vdxName;
 
@@ -54,6 +57,7 @@ public class Data {
     this.winston = winston;
     vdxName = "";
     channels = new Channels(winston);
+    tableCatalog = winston.getDayTableCatalog();
     dateFormat = new SimpleDateFormat("yyyy_MM_dd");
     dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
   }
@@ -94,11 +98,30 @@ public class Data {
     if (!winston.checkConnect())
       return new double[] {0,0};
     try {
-      ResultSet rs = winston.getStatement().executeQuery("SELECT st, et FROM `"
-          + winston.databasePrefix + "_ROOT`.channels WHERE code='" + code + "'");
+      final PreparedStatement ps = winston.getPreparedStatement(
+          "SELECT st, et FROM `" + winston.databasePrefix + "_ROOT`.channels WHERE code=?");
+      ps.setString(1, code);
+      ResultSet rs = ps.executeQuery();
       rs.next();
       double st = rs.getDouble(1);
       double et = rs.getDouble(2);
+
+      // an importer in this process may hold a newer span not yet written
+      final double[] pending = ChannelState.getInstance(winston).getPendingTimeSpan(code);
+      if (pending != null) {
+        st = Double.isNaN(pending[0]) ? st : Math.min(st, pending[0]);
+        et = Double.isNaN(pending[1]) ? et : Math.max(et, pending[1]);
+      }
+
+      // archived days may already have been purged from the database, but are no more exempt
+      // from the lookback than the database is
+      final TraceBufArchive archive = winston.getArchive();
+      if (archive != null) {
+        final double archiveStart = archive.getStartTime(code);
+        if (archiveStart < st) {
+          st = archiveStart;
+        }
+      }
       st = applyLookback(st);
       double[] d = null;
 
@@ -150,10 +173,102 @@ public class Data {
     return result;
   }
 
+  /**
+   * Get the dates of the day tables covering times t1 & t2
+   *
+   * @param t1 start of timespan
+   * @param t2 end of timespan
+   * @return dates formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT, in order
+   */
+  private List<String> tableDates(final double t1, final double t2) {
+    final List<String> dates = new ArrayList<String>();
+    final String endDate = dateFormat.format(J2kSec.asDate(t2));
+    double ct = t1;
+    boolean done = false;
+    while (!done) {
+      final String date = dateFormat.format(J2kSec.asDate(ct));
+      if (date.equals(endDate))
+        done = true;
+      ct += ONE_DAY;
+      dates.add(date);
+    }
+    return dates;
+  }
+
+  /**
+   * Look the wave tables of some days up again after a read from them failed. Only these tables
+   * are looked up; the rest of the channel's catalog is kept. Shared layouts keep their own list
+   * of days.
+   *
+   * @param code channel
+   * @param dates dates formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   */
+  private void refreshWaveTables(final String code, final List<String> dates) {
+    if (winston.getLayout().isShared()) {
+      return;
+    }
+    for (final String date : dates) {
+      tableCatalog.refresh(winston, code, DayTableCatalog.waveTable(code, date));
+    }
+  }
+
+  /**
+   * A read of a single day table.
+   */
+  private interface DayRead<T> {
+    T read(Data data, int day) throws UtilException, SQLException;
+  }
+
+  /**
+   * Read a number of days, in parallel if the WinstonDatabase has a ParallelReader. Each day is
+   * read through a Data on the connection it runs on; the channel database is selected first.
+   *
+   * @param code channel
+   * @param count number of days
+   * @param reader reads one day
+   * @return results, in day order
+   */
+  private <T> List<T> readDays(final String code, final int count, final DayRead<T> reader)
+      throws UtilException, SQLException {
+    final ParallelReader parallelReader = winston.getParallelReader();
+    if (parallelReader == null || count < 2) {
+      final List<T> days = new ArrayList<T>(count);
+      for (int day = 0; day < count; day++) {
+        days.add(reader.read(this, day));
+      }
+      return days;
+    }
+
+    final List<ParallelReader.Task<T>> tasks = new ArrayList<ParallelReader.Task<T>>(count);
+    for (int i = 0; i < count; i++) {
+      final int day = i;
+      tasks.add(new ParallelReader.Task<T>() {
+        public T run(final WinstonDatabase w) throws UtilException {
+          Data data = Data.this;
+          if (w != winston) {
+            data = new Data(w);
+            data.setVdxName(vdxName);
+          }
+          if (!w.checkConnect() || !w.useChannel(code)) {
+            throw new UtilException("Could not read " + code + ".");
+          }
+          try {
+            return reader.read(data, day);
+          } catch (final SQLException e) {
+            throw new UtilException(e.getMessage());
+          }
+        }
+      });
+    }
+    return parallelReader.run(winston, tasks);
+  }
+
   /**
    * Finds data gaps in a given channel between two times. Returns null
    * on a Winston error. Returns a single item list with the given time span
-   * if the channel doesn't exist or if no data exist in the interval.
+   * if the channel doesn't exist or if no data exist in the interval. Gaps
+   * are read from the channel's coverage once it has been built, otherwise
+   * from the day tables.
    *
    * @param code
    * @param t1
@@ -171,12 +286,17 @@ public class Data {
 
     String code = DbUtils.scnlAsWinstonCode(scnl);
     final List<double[]> gaps = new ArrayList<double[]>();
-    if (!winston.useDatabase(code)) {
+    if (!winston.useChannel(code)) {
       // database didn't exist so the whole thing must be a gap
       gaps.add(new double[] {t1, t2});
       return gaps;
     }
 
+    final List<double[]> covered = new Coverage(winston).getGaps(code, t1, t2);
+    if (covered != null) {
+      return covered;
+    }
+
     try {
       final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy_MM_dd");
       dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
@@ -187,16 +307,25 @@ public class Data {
       for (final String day : days) {
         final double tst = J2kSec.parse(WinstonDatabase.WINSTON_TABLE_DATE_FORMAT, day);
         final double tet = tst + ONE_DAY;
-        final String table = code + "$$" + day;
-        if (!winston.tableExists(code, table))
-          continue;
         if (tet < t1)
           continue;
         if (tst > t2)
           continue;
+        final TraceBufIndex index = winston.getTraceBufIndex();
+        if (index != null) {
+          bufs.addAll(index.getBufTimes(winston, code, day, t1, t2));
+          continue;
+        }
+
+        final StorageLayout layout = winston.getLayout();
+        if (!layout.dayExists(winston, code, day))
+          continue;
 
-        final ResultSet rs = winston.getStatement()
-            .executeQuery("SELECT st, et FROM `" + table + "` ORDER BY st ASC");
+        final PreparedStatement ps = winston.getPreparedStatement(
+            "SELECT st, et FROM " + layout.waveTable(winston, code, day) + " WHERE "
+                + layout.dayFilter(winston, code, day) + "st<=? ORDER BY st ASC");
+        ps.setDouble(1, t2);
+        final ResultSet rs = ps.executeQuery();
         while (rs.next()) {
           final double start = rs.getDouble(1);
           final double end = rs.getDouble(2);
@@ -251,7 +380,14 @@ public class Data {
     return null;
   }
 
-
+  /**
+   * Finds data gaps in a given channel during a time span, read from the
+   * channel's coverage once it has been built, otherwise from the day tables.
+   *
+   * @param code channel
+   * @param timeSpan time span
+   * @return gaps, or the whole time span if the channel doesn't exist
+   */
   public List<TimeSpan> findGaps(String code, TimeSpan timeSpan) {
     final List<TimeSpan> gaps = new ArrayList<TimeSpan>();
     timeSpan = new TimeSpan(applyLookback(timeSpan.startTime), timeSpan.endTime);
@@ -266,7 +402,7 @@ public class Data {
       return gaps;
     }
 
-    if (!winston.useDatabase(code)) {
+    if (!winston.useChannel(code)) {
       // database didn't exist so the whole thing must be a gap
       LOGGER.info("didn't find channel {}", code);
       gaps.add(timeSpan);
@@ -279,12 +415,20 @@ public class Data {
 
     double startJ2k = J2kSec.fromEpoch(timeSpan.startTime);
     double endJ2k = J2kSec.fromEpoch(timeSpan.endTime);
+
+    final List<double[]> covered = new Coverage(winston).getGaps(code, startJ2k, endJ2k);
+    if (covered != null) {
+      for (final double[] gap : covered) {
+        gaps.add(new TimeSpan(J2kSec.asEpoch(gap[0]), J2kSec.asEpoch(gap[1])));
+      }
+      return gaps;
+    }
+
     double last = startJ2k;
     for (final String day : days) {
       List<double[]> bufs;
       try {
-        String table = code + "$$" + day;
-        bufs = getBufTimes(code, table);
+        bufs = getBufTimes(code, day);
       } catch (SQLException e) {
         LOGGER.error("Unable to read day table {}:{}", code, day);
         bufs = new ArrayList<double[]>();
@@ -310,15 +454,22 @@ public class Data {
     return gaps;
   }
 
-  private List<double[]> getBufTimes(String code, String table) throws SQLException {
+  private List<double[]> getBufTimes(String code, String date) throws SQLException {
+    final TraceBufIndex index = winston.getTraceBufIndex();
+    if (index != null) {
+      return index.getBufTimes(winston, code, date, -Double.MAX_VALUE, Double.MAX_VALUE);
+    }
+
     final List<double[]> bufs = new ArrayList<double[]>(2 * ONE_DAY);
-    if (!winston.tableExists(code, table)) {
+    final StorageLayout layout = winston.getLayout();
+    if (!layout.dayExists(winston, code, date)) {
       return bufs;
     }
 
-    String sql = String.format("SELECT st, et FROM `%s` ORDER BY st ASC", table);
+    String sql = "SELECT st, et FROM " + layout.waveTable(winston, code, date) + " WHERE "
+        + layout.dayFilter(winston, code, date) + "1=1 ORDER BY st ASC";
 
-    final ResultSet rs = winston.getStatement().executeQuery(sql);
+    final ResultSet rs = winston.getPreparedStatement(sql).executeQuery();
     while (rs.next()) {
       final double start = rs.getDouble(1);
       final double end = rs.getDouble(2);
@@ -351,16 +502,6 @@ public class Data {
     return getWave(code, t1, t2, maxrows);
   }
 
-  /**
-   * Yield tracebuf from a ResultSet as an array of buytes
-   */
-  private byte[] getTraceBufBytes(final ResultSet rs) throws SQLException, IOException {
-    final Blob b = rs.getBlob("tracebuf");
-    byte[] bs = b.getBytes(1, (int) b.length());
-    bs = Zip.decompress(bs, 512);
-    return bs;
-  }
-
   /**
    * Modified 2006-08-14 to not check for consistent sample rates. That duty
    * is passed to TraceBuf.traceBufsToWave(). This should fix the HVO bug
@@ -373,98 +514,367 @@ public class Data {
    * @return trace buf data or null if no data
    * @throws UtilException
    */
-  public List<byte[]> getTraceBufBytes(final String code, double t1, final double t2,
+  public List<byte[]> getTraceBufBytes(final String code, final double t1, final double t2,
       final int maxrows) throws UtilException {
 
+    if (maxrows == 0) {
+      final List<byte[]> recent = getRecentTraceBufBytes(code, t1, t2);
+      if (recent != null) {
+        return recent;
+      }
+    }
+
+    if (maxrows == 0 && winston.getParallelReader() != null) {
+      final List<byte[]> bufs = getTraceBufBytesByDay(code, t1, t2);
+      if (bufs != null) {
+        return bufs;
+      }
+    }
+
+    final TraceBufCursor cursor = getTraceBufCursor(code, t1, t2, maxrows);
+    if (cursor == null) {
+      return null;
+    }
+
+    try {
+      final ArrayList<byte[]> bufs = new ArrayList<byte[]>((int) Math.ceil(t2 - t1) + 1);
+      while (cursor.next()) {
+        bufs.add(cursor.getBytes());
+      }
+      return bufs;
+    } catch (final SQLException e) {
+      // a table may have been dropped since the catalog was read
+      refreshWaveTables(code, tableDates(applyLookback(t1) - ONE_DAY, t2));
+      LOGGER.debug("Could not get TraceBuf bytes for {}, {}->{}", code, t1, t2);
+    } catch (final IOException e) {
+      LOGGER.debug("Could not get TraceBuf bytes for {}, {}->{}", code, t1, t2);
+    } finally {
+      cursor.close();
+    }
+    return null;
+  }
+
+  /**
+   * Read the tracebufs of each day table in parallel.
+   *
+   * @return tracebufs, or null if the span lies within a single day or cannot be read this way
+   */
+  private List<byte[]> getTraceBufBytesByDay(final String code, double t1, final double t2)
+      throws UtilException {
     t1 = applyLookback(t1);
-    if (t1 >= t2) {
+    if (t1 >= t2 || winston.isSingleQueryRetrieval()) {
       return null;
     }
 
-    int numSamplesCounter = 0;
-    if (!winston.checkConnect() || !winston.useDatabase(code))
+    final List<String> dates = tableDates(t1, t2);
+    if (dates.size() < 2 || !winston.checkConnect() || !winston.useChannel(code)) {
       return null;
+    }
+
+    final double start = t1;
+    final List<List<byte[]>> days;
     try {
-      double ct = t1;
+      days = readDays(code, dates.size(), new DayRead<List<byte[]>>() {
+        public List<byte[]> read(Data data, int day) {
+          return data.getTraceBufDay(code, start, t2, dates.get(day), day == 0);
+        }
+      });
+    } catch (final SQLException e) {
+      LOGGER.debug("Could not get TraceBuf bytes for {}, {}->{}", code, t1, t2);
+      return null;
+    }
 
-      final ArrayList<byte[]> bufs = new ArrayList<byte[]>((int) Math.ceil(t2 - t1) + 1);
-      final String endDate = dateFormat.format(J2kSec.asDate(t2));
-      boolean done = false;
-      ResultSet rs = null;
-
-      // MySQL only uses one key for optimization so selecting tracebufs
-      // that lie between st and et is prohibitively slow. By selecting
-      // the latest 1 tracebuf where the st is less than the desired time
-      // we can quickly find the tracebuf that may overlap into the
-      // desired interval. Unfortunately, this causes a problem for the
-      // edge case of selecting data right at the UTC day boundary. To
-      // fix this the query must be run against the day of the st of the
-      // desired interval plus the day before.
-      final String[] initialDates = new String[] {dateFormat.format(J2kSec.asDate(t1 - ONE_DAY)),
-          dateFormat.format(J2kSec.asDate(t1))};
-
-      for (final String date : initialDates) {
-        final String sql = "SELECT st, et, sr, datatype, tracebuf FROM `" + code + "$$" + date
-            + "` WHERE st<? ORDER BY st DESC LIMIT 1";
-        final PreparedStatement ps = winston.getPreparedStatement(sql);
-        try {
-          ps.setDouble(1, t1);
-          rs = ps.executeQuery();
-          if (rs.next()) {
-            if (t1 >= rs.getDouble(1) && t1 <= rs.getDouble(2)) {
-              final byte[] buf = getTraceBufBytes(rs);
-              numSamplesCounter += getNumSamples(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3));
-              if (maxrows > 0 && numSamplesCounter > maxrows) {
-                throw new UtilException("Max rows (" + maxrows + " rows) "
-                    + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "")
-                    + "exceeded.");
-              }
-              bufs.add(buf);
-            }
+    final ArrayList<byte[]> bufs = new ArrayList<byte[]>((int) Math.ceil(t2 - t1) + 1);
+    for (final List<byte[]> day : days) {
+      if (day == null) {
+        return null;
+      }
+      bufs.addAll(day);
+    }
+    return bufs;
+  }
+
+  /**
+   * Read the tracebufs of a single day table.
+   *
+   * @param first if true also find the tracebuf overlapping t1
+   * @return tracebufs, or null on error
+   */
+  private List<byte[]> getTraceBufDay(final String code, final double t1, final double t2,
+      final String date, final boolean first) {
+    final List<String> queries = new ArrayList<String>();
+    final List<double[]> parameters = new ArrayList<double[]>();
+    addTraceBufQueries(code, t1, t2, Collections.singletonList(date), first, false, queries,
+        parameters);
+
+    final List<byte[]> bufs = new ArrayList<byte[]>();
+    if (queries.isEmpty()) {
+      return bufs;
+    }
+
+    final TraceBufCursor cursor =
+        new TraceBufCursor(winston.getConnection(), queries, parameters, t1, 0, vdxName);
+    try {
+      while (cursor.next()) {
+        bufs.add(cursor.getBytes());
+      }
+      return bufs;
+    } catch (final SQLException e) {
+      // a table may have been dropped since the catalog was read
+      refreshWaveTables(code, Collections.singletonList(date));
+      LOGGER.debug("Could not get TraceBuf bytes for {} on {}", code, date);
+    } catch (final UtilException e) {
+      LOGGER.debug("Could not get TraceBuf bytes for {} on {}", code, date);
+    } catch (final IOException e) {
+      LOGGER.debug("Could not get TraceBuf bytes for {} on {}", code, date);
+    } finally {
+      cursor.close();
+    }
+    return null;
+  }
+
+  /**
+   * Open a cursor over the tracebufs for timespan t1..t2 for channel w/ code. Tracebufs are
+   * streamed from the database as the cursor advances; the cursor must be closed before the
+   * WinstonDatabase is used for anything else.
+   *
+   * @param code channel
+   * @param t1 start time
+   * @param t2 end time
+   * @param maxrows cap on number of samples returned
+   * @return cursor, or null if the channel cannot be read
+   * @throws UtilException
+   */
+  public TraceBufCursor getTraceBufCursor(final String code, double t1, final double t2,
+      final int maxrows) throws UtilException {
+    t1 = applyLookback(t1);
+    if (t1 >= t2) {
+      return null;
+    }
+
+    if (!winston.checkConnect() || !winston.useChannel(code))
+      return null;
+
+    final List<String> queries = new ArrayList<String>();
+    final List<double[]> parameters = new ArrayList<double[]>();
+
+    final boolean union = winston.isSingleQueryRetrieval();
+    addTraceBufQueries(code, t1, t2, tableDates(t1, t2), true, union, queries, parameters);
+
+    if (union && queries.size() > 1) {
+      // each query is ordered by itself, so the union as a whole needs no sort, which would copy
+      // every BLOB into a temporary table
+      final StringBuilder sql = new StringBuilder();
+      int length = 0;
+      for (int i = 0; i < queries.size(); i++) {
+        if (i > 0) {
+          sql.append(" UNION ALL ");
+        }
+        sql.append('(').append(queries.get(i)).append(')');
+        length += parameters.get(i).length;
+      }
+
+      final double[] params = new double[length];
+      int index = 0;
+      for (final double[] p : parameters) {
+        System.arraycopy(p, 0, params, index, p.length);
+        index += p.length;
+      }
+
+      queries.clear();
+      queries.add(sql.toString());
+      parameters.clear();
+      parameters.add(params);
+    }
+
+    return new TraceBufCursor(winston.getConnection(), queries, parameters, t1, maxrows, vdxName);
+  }
+
+  /**
+   * Add the queries selecting tracebufs for timespan t1..t2 from some day tables.
+   *
+   * @param dates day tables to read
+   * @param first if true also find the tracebuf overlapping t1
+   * @param union if true the queries will be joined in a UNION. MySQL ignores ORDER BY inside a
+   *          UNION unless it is paired with a LIMIT, so every ordered query is given one.
+   */
+  private void addTraceBufQueries(final String code, final double t1, final double t2,
+      final List<String> dates, final boolean first, final boolean union,
+      final List<String> queries, final List<double[]> parameters) {
+    // MySQL only uses one key for optimization so selecting tracebufs
+    // that lie between st and et is prohibitively slow. By selecting
+    // the latest 1 tracebuf where the st is less than the desired time
+    // we can quickly find the tracebuf that may overlap into the
+    // desired interval. Unfortunately, this causes a problem for the
+    // edge case of selecting data right at the UTC day boundary. To
+    // fix this the query must be run against the day of the st of the
+    // desired interval plus the day before.
+    final String[] initialDates = new String[] {dateFormat.format(J2kSec.asDate(t1 - ONE_DAY)),
+        dateFormat.format(J2kSec.asDate(t1))};
+
+    final StorageLayout layout = winston.getLayout();
+    boolean indexed = false;
+    final TraceBufIndex index = winston.getTraceBufIndex();
+    if (first && index != null) {
+      // with an index the overlapping tracebuf is found in memory and read by its key
+      try {
+        boolean found = false;
+        for (int i = initialDates.length - 1; !found && i >= 0; i--) {
+          final String date = initialDates[i];
+          final double st = index.lowerStart(winston, code, date, t1);
+          if (Double.isNaN(st)) {
+            continue;
           }
-          rs.close();
-        } catch (final SQLException e) {
-          LOGGER.debug("No table found for {}, {}->{}", date, t1, t2);
+          queries.add("SELECT st, et, sr, datatype, tracebuf FROM "
+              + layout.waveTable(winston, code, date) + " WHERE "
+              + layout.dayFilter(winston, code, date) + "st=?");
+          parameters.add(new double[] {st});
+          found = true;
         }
+        indexed = true;
+      } catch (final SQLException e) {
+        LOGGER.warn("Could not index {}, searching day tables. ({})", code,
+            e.getLocalizedMessage());
+      }
+    }
+
+    for (int i = 0; first && !indexed && i < initialDates.length; i++) {
+      final String date = initialDates[i];
+      if (!layout.dayExists(winston, code, date)) {
+        continue;
+      }
+      queries.add("SELECT st, et, sr, datatype, tracebuf FROM "
+          + layout.waveTable(winston, code, date) + " WHERE "
+          + layout.dayFilter(winston, code, date) + "st<? ORDER BY st DESC LIMIT 1");
+      parameters.add(new double[] {t1});
+    }
+
+    // got the first tracebuf, now lets get the rest.
+    for (final String date : dates) {
+      if (!layout.dayExists(winston, code, date)) {
+        continue;
+      }
+      queries.add("SELECT st, et, sr, datatype, tracebuf FROM "
+          + layout.waveTable(winston, code, date) + " WHERE "
+          + layout.dayFilter(winston, code, date) + "st>=? AND st<=? ORDER BY st ASC"
+          + (union ? " LIMIT " + NO_LIMIT : ""));
+      parameters.add(new double[] {t1, t2});
+    }
+  }
+
+  /**
+   * Return recent tracebufs from the WinstonDatabase's hot cache.
+   *
+   * @param code channel
+   * @param t1 start time
+   * @param t2 end time
+   * @return decompressed tracebufs, or null if the span is not held in memory
+   */
+  public List<byte[]> getRecentTraceBufBytes(final String code, double t1, final double t2) {
+    final HotTraceBufCache hotCache = winston.getHotCache();
+    if (hotCache == null) {
+      return null;
+    }
+
+    t1 = applyLookback(t1);
+    if (t1 >= t2) {
+      return null;
+    }
+
+    return hotCache.getTraceBufBytes(winston, code, t1, t2);
+  }
+
+  /**
+   * Open a cursor over one page of tracebufs, selected by start time. Used to walk a long
+   * request a few tracebufs at a time. Unlike getTraceBufCursor no attempt is made to find a
+   * tracebuf overlapping the start of the page.
+   *
+   * @param code channel
+   * @param t1 start of the request. Tracebufs ending before t1 are skipped.
+   * @param from earliest start time in the page
+   * @param fromInclusive if false tracebufs starting at from are excluded
+   * @param through latest start time in the page
+   * @param limit maximum number of tracebufs in the page
+   * @return cursor, or null if the channel cannot be read
+   */
+  public TraceBufCursor getTraceBufPage(final String code, final double t1, final double from,
+      final boolean fromInclusive, final double through, final int limit) {
+    if (from > through) {
+      return null;
+    }
+
+    if (!winston.checkConnect() || !winston.useChannel(code))
+      return null;
+
+    final List<String> queries = new ArrayList<String>();
+    final List<double[]> parameters = new ArrayList<double[]>();
+
+    final StorageLayout layout = winston.getLayout();
+    final String endDate = dateFormat.format(J2kSec.asDate(through));
+    double ct = from;
+    boolean done = false;
+    while (!done) {
+      final String date = dateFormat.format(J2kSec.asDate(ct));
+      if (date.equals(endDate))
+        done = true;
+      ct += ONE_DAY;
+
+      if (!layout.dayExists(winston, code, date)) {
+        continue;
       }
+      queries.add("SELECT st, et, sr, datatype, tracebuf FROM "
+          + layout.waveTable(winston, code, date) + " WHERE "
+          + layout.dayFilter(winston, code, date) + "st" + (fromInclusive ? ">=" : ">")
+          + "? AND st<=? ORDER BY st ASC LIMIT " + limit);
+      parameters.add(new double[] {from, through});
+    }
 
-      // got the first tracebuf, now lets get the rest.
+    return new TraceBufCursor(winston.getConnection(), queries, parameters, t1, 0, vdxName);
+  }
+
+  /**
+   * Count the tracebufs starting in a time range.
+   *
+   * @param code channel
+   * @param from earliest start time
+   * @param through latest start time
+   * @return number of tracebufs, or -1 if the channel cannot be read
+   */
+  public long countTraceBufs(final String code, final double from, final double through) {
+    if (!winston.checkConnect() || !winston.useChannel(code))
+      return -1;
+
+    final StorageLayout layout = winston.getLayout();
+    final String endDate = dateFormat.format(J2kSec.asDate(through));
+    long count = 0;
+    double ct = from;
+    boolean done = false;
+    try {
       while (!done) {
         final String date = dateFormat.format(J2kSec.asDate(ct));
         if (date.equals(endDate))
           done = true;
+        ct += ONE_DAY;
 
-        final String sql = "SELECT st, et, sr, datatype, tracebuf FROM `" + code + "$$" + date
-            + "` WHERE st>=" + t1 + " AND st<=" + t2 + " ORDER BY st ASC";
-
-        try {
-          rs = winston.getStatement().executeQuery(sql);
-        } catch (final SQLException e) {
-          // table not found
-          LOGGER.debug("No table found for {}$${})", code, date);
-          ct += ONE_DAY;
+        if (!layout.dayExists(winston, code, date)) {
           continue;
         }
-        while (rs.next()) {
-
-          final byte[] buf = getTraceBufBytes(rs);
-          numSamplesCounter += getNumSamples(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3));
-          if (maxrows > 0 && numSamplesCounter > maxrows)
-            throw new UtilException("Max rows (" + maxrows + " rows) "
-                + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "") + "exceeded.");
-          bufs.add(buf);
+        final PreparedStatement ps = winston.getPreparedStatement("SELECT COUNT(*) FROM "
+            + layout.waveTable(winston, code, date) + " WHERE "
+            + layout.dayFilter(winston, code, date) + "st>=? AND st<=?");
+        ps.setDouble(1, from);
+        ps.setDouble(2, through);
+        final ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+          count += rs.getLong(1);
         }
         rs.close();
-        ct += ONE_DAY;
       }
-      return bufs;
     } catch (final SQLException e) {
-      LOGGER.debug("Could not get TraceBuf bytes for {}, {}->{}", code, t1, t2);
-    } catch (final IOException e) {
-      LOGGER.debug("Could not get TraceBuf bytes for {}, {}->{}", code, t1, t2);
+      LOGGER.debug("Could not count tracebufs for {}. ({})", code, e.getMessage());
+      return -1;
     }
-    return null;
-
+    return count;
   }
 
   /**
@@ -488,18 +898,39 @@ public class Data {
 
   public List<TraceBuf> getTraceBufs(final String code, final double t1, final double t2,
       final int maxrows) throws UtilException {
-    final List<byte[]> rawBufs = getTraceBufBytes(code, t1, t2, maxrows);
-    if (rawBufs == null || rawBufs.size() == 0)
+    if (maxrows == 0) {
+      final List<byte[]> recent = getRecentTraceBufBytes(code, t1, t2);
+      if (recent != null) {
+        try {
+          final List<TraceBuf> traceBufs = new ArrayList<TraceBuf>(recent.size());
+          for (final byte[] bytes : recent)
+            traceBufs.add(new TraceBuf(bytes));
+
+          return traceBufs.size() == 0 ? null : traceBufs;
+        } catch (final IOException e) {
+          LOGGER.error("Could not get TraceBufs for {}, {}->{}", code, t1, t2);
+          return null;
+        }
+      }
+    }
+
+    final TraceBufCursor cursor = getTraceBufCursor(code, t1, t2, maxrows);
+    if (cursor == null)
       return null;
 
     try {
-      final List<TraceBuf> traceBufs = new ArrayList<TraceBuf>(rawBufs.size());
-      for (final byte[] buf : rawBufs)
-        traceBufs.add(new TraceBuf(buf));
+      final List<TraceBuf> traceBufs = new ArrayList<TraceBuf>();
+      while (cursor.next())
+        traceBufs.add(new TraceBuf(cursor.getBytes()));
 
-      return traceBufs;
+      return traceBufs.size() == 0 ? null : traceBufs;
+    } catch (final SQLException e) {
+      refreshWaveTables(code, tableDates(applyLookback(t1) - ONE_DAY, t2));
+      LOGGER.error("Could not get TraceBufs for {}, {}->{}", code, t1, t2);
     } catch (final IOException e) {
       LOGGER.error("Could not get TraceBufs for {}, {}->{}", code, t1, t2);
+    } finally {
+      cursor.close();
     }
     return null;
   }
@@ -518,7 +949,32 @@ public class Data {
    */
   public Wave getWave(final String code, final double t1, final double t2, final int maxrows)
       throws UtilException {
-    if (!winston.checkConnect() || !winston.useDatabase(code))
+    if (!winston.checkConnect() || !winston.useChannel(code))
+      return null;
+
+    final WaveBlockCache waveCache = winston.getWaveCache();
+    if (waveCache != null && maxrows == 0) {
+      // blocks may hold data from before the lookback, so trim the request as the database would
+      final double start = applyLookback(t1);
+      return start >= t2 ? null : waveCache.getWave(this, winston, code, start, t2);
+    }
+
+    return getWaveUncached(code, t1, t2, maxrows);
+  }
+
+  /**
+   * Return wave data for timespan t1..t2 for channel w/ code, bypassing the wave cache.
+   *
+   * @param code channel
+   * @param t1 start time
+   * @param t2 end time
+   * @param maxrows cap on number of samples returned
+   * @return wave, or null if no data
+   * @throws UtilException
+   */
+  Wave getWaveUncached(final String code, final double t1, final double t2, final int maxrows)
+      throws UtilException {
+    if (!winston.checkConnect() || !winston.useChannel(code))
       return null;
 
     final List<TraceBuf> bufs = getTraceBufs(code, t1, t2, maxrows);
@@ -533,72 +989,52 @@ public class Data {
 
   public HelicorderData getHelicorderData(final Scnl scnl, double t1, final double t2,
       final int maxrows) throws UtilException {
+    return getHelicorderData(scnl, t1, t2, maxrows, 0);
+  }
+
+  /**
+   * Return helicorder data for timespan t1..t2, read from the coarsest helicorder rollup that
+   * still has at least one row per output point. Days without rollups are read at full
+   * resolution.
+   *
+   * @param scnl channel
+   * @param t1 start time
+   * @param t2 end time
+   * @param maxrows cap on number of rows returned
+   * @param resolution seconds per output point, or 0 for full resolution
+   * @return helicorder data
+   * @throws UtilException
+   */
+  public HelicorderData getHelicorderData(final Scnl scnl, double t1, final double t2,
+      final int maxrows, final double resolution) throws UtilException {
 
     t1 = applyLookback(t1);
     if (t1 >= t2) {
       return null;
     }
 
-    String code = DbUtils.scnlAsWinstonCode(scnl);
+    final String code = DbUtils.scnlAsWinstonCode(scnl);
 
-    if (!winston.checkConnect() || !winston.useDatabase(code))
+    if (!winston.checkConnect() || !winston.useChannel(code))
       return null;
     try {
-      double ct = t1;
       // this 'fixes' problems when a start time of 0000 UTC is asked for
       // and that data are actually stored in the previous day. Some
       // issues remain.
-      final String endDate = dateFormat.format(J2kSec.asDate(t2));
-      boolean done = false;
-      final ArrayList<double[]> list = new ArrayList<double[]>((int) (t2 - t1) + 2);
-      while (!done) {
-        final String date = dateFormat.format(J2kSec.asDate(ct));
-        if (date.equals(endDate))
-          done = true;
-        ct += ONE_DAY;
-        final String table = code + "$$H" + date;
-        ResultSet rs = null;
-        String sql = "SELECT j2ksec, smin, smax, rcnt FROM `" + table
-            + "` WHERE j2ksec>=? AND j2ksec<=? ORDER BY j2ksec ASC";
-
-        if (maxrows != 0) {
-          sql += " LIMIT " + (maxrows + 1);
-
-          // Check the row count for the query before running the entire thing. Can save significant
-          // time
-          // for sufficiently large queries that exceed the maxrows parameter
-          final PreparedStatement s = winston.getPreparedStatement(
-              "SELECT COUNT(*) FROM (SELECT 1 " + sql.substring(sql.indexOf("FROM")) + ") as T");
-          try {
-            s.setDouble(1, t1);
-            s.setDouble(2, t2);
-            rs = s.executeQuery();
-          } catch (final Exception e) {
-            // table not found
-            continue;
-          }
-          if (rs.next() && rs.getInt(1) > maxrows)
-            throw new UtilException("Max rows (" + maxrows + " rows) "
-                + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "") + "exceeded.");
-        }
-
-        final PreparedStatement select = winston.getPreparedStatement(sql);
-        try {
-          select.setDouble(1, t1);
-          select.setDouble(2, t2);
-          rs = select.executeQuery();
-        } catch (final Exception e) {
-          // table not found
-          continue;
-        }
+      final List<String> dates = tableDates(t1, t2);
+      final int level = HeliRollup.levelFor(resolution);
+      final double start = t1;
+      final List<List<double[]>> days = readDays(code, dates.size(),
+          new DayRead<List<double[]>>() {
+            public List<double[]> read(Data data, int day) throws UtilException, SQLException {
+              return data.getHelicorderDay(code, dates.get(day), start, t2, maxrows, level);
+            }
+          });
 
-        while (rs.next()) {
-          final double[] d = new double[] {rs.getDouble(1), rs.getDouble(2), rs.getDouble(3)}; // ,
-                                                                                               // rs.getInt(4)
-          // };
-          list.add(d);
-        }
-        rs.close();
+      final ArrayList<double[]> list =
+          new ArrayList<double[]>((int) ((t2 - t1) / level) + 2);
+      for (final List<double[]> day : days) {
+        list.addAll(day);
       }
       return new HelicorderData(list);
     } catch (final SQLException e) {
@@ -607,6 +1043,68 @@ public class Data {
     return null;
   }
 
+  private List<double[]> getHelicorderDay(final String code, final String date, final double t1,
+      final double t2, final int maxrows, final int level) throws SQLException, UtilException {
+    final List<double[]> list = new ArrayList<double[]>();
+    final StorageLayout layout = winston.getLayout();
+    if (!layout.dayExists(winston, code, date)) {
+      return list;
+    }
+
+    String from = layout.heliTable(winston, code, date) + " WHERE "
+        + layout.dayFilter(winston, code, date);
+    double start = t1;
+    if (level > 1 && layout.hasRollups() && tableCatalog.tableExists(winston, code,
+        DayTableCatalog.rollupTable(code, level, date))) {
+      from = "`" + DayTableCatalog.rollupTable(code, level, date) + "` WHERE ";
+      start = Math.floor(t1 / level) * level;
+    }
+
+    ResultSet rs = null;
+    String sql = "SELECT j2ksec, smin, smax, rcnt FROM " + from
+        + "j2ksec>=? AND j2ksec<=? ORDER BY j2ksec ASC";
+
+    if (maxrows != 0) {
+      sql += " LIMIT " + (maxrows + 1);
+
+      // Check the row count for the query before running the entire thing. Can save significant
+      // time
+      // for sufficiently large queries that exceed the maxrows parameter
+      final PreparedStatement s = winston.getPreparedStatement(
+          "SELECT COUNT(*) FROM (SELECT 1 " + sql.substring(sql.indexOf("FROM")) + ") as T");
+      try {
+        s.setDouble(1, start);
+        s.setDouble(2, t2);
+        rs = s.executeQuery();
+      } catch (final Exception e) {
+        // table not found
+        return list;
+      }
+      if (rs.next() && rs.getInt(1) > maxrows)
+        throw new UtilException("Max rows (" + maxrows + " rows) "
+            + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "") + "exceeded.");
+    }
+
+    final PreparedStatement select = winston.getPreparedStatement(sql);
+    try {
+      select.setDouble(1, start);
+      select.setDouble(2, t2);
+      rs = select.executeQuery();
+    } catch (final Exception e) {
+      // table not found
+      return list;
+    }
+
+    while (rs.next()) {
+      final double[] d = new double[] {rs.getDouble(1), rs.getDouble(2), rs.getDouble(3)}; // ,
+                                                                                           // rs.getInt(4)
+      // };
+      list.add(d);
+    }
+    rs.close();
+    return list;
+  }
+
   public RSAMData getRSAMData(final Scnl scnl, double t1, final double t2,
       final int maxrows, final DownsamplingType ds, final int dsInt) throws UtilException {
 
@@ -615,97 +1113,138 @@ public class Data {
       return null;
     }
 
-    if (!winston.checkConnect() || !winston.useDatabase(DbUtils.scnlAsWinstonCode(scnl)))
+    final String code = DbUtils.scnlAsWinstonCode(scnl);
+    if (!winston.checkConnect() || !winston.useChannel(code))
       return null;
 
     try {
-      double ct = t1;
       // this 'fixes' problems when a start time of 0000 UTC is asked for
       // and that data are actually stored in the previous day. Some
       // issues remain.
-      final String endDate = dateFormat.format(J2kSec.asDate(t2));
-      boolean done = false;
-      int numSamplesCounter = 0;
-      final ArrayList<double[]> list = new ArrayList<double[]>((int) (t2 - t1) + 2);
-      while (!done) {
-        final String date = dateFormat.format(J2kSec.asDate(ct));
-        if (date.equals(endDate))
-          done = true;
-        ct += ONE_DAY;
-        final String table = DbUtils.scnlAsWinstonCode(scnl) + "$$H" + date;
-        ResultSet rs = null;
-        String sql = "SELECT j2ksec, rsam" + " FROM `" + table + "` WHERE j2ksec>=" + t1
-            + " AND j2ksec<=" + t2 + " AND rcnt>0" + " ORDER BY j2ksec";
-        try {
-          sql = getDownsamplingSQL(sql, t1, ds, dsInt);
-        } catch (final UtilException e) {
-          throw new UtilException("Can't downsample dataset: " + e.getMessage());
-        }
-        if (maxrows != 0) {
-          sql += " LIMIT " + (maxrows + 1);
-
-          // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
-          // exceed that number prior to running the full query. This can save a decent amount of
-          // time
-          // for large queries. Note that this only applies for non-downsampled queries. This is
-          // done for
-          // two reasons: 1) If the user is downsampling, they already know they're dealing with a
-          // lot of data
-          // and 2) the way MySQL handles the multiple nested queries that would result makes it
-          // slower than
-          // just doing the full query to begin with.
-          if (ds.equals(DownsamplingType.NONE)) {
-            try {
-              rs = winston.getStatement().executeQuery("SELECT COUNT(*) FROM (SELECT 1 "
-                  + sql.substring(sql.indexOf("FROM")) + ") as T");
-            } catch (final SQLException e) {
-              // table not found
-              continue;
-            }
-            if (rs.next() && rs.getInt(1) > maxrows) {
-              throw new UtilException("Max rows (" + maxrows + " rows) "
-                  + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "")
-                  + "exceeded.");
-            }
-          }
-        }
+      final List<String> dates = tableDates(t1, t2);
 
-        try {
-          rs = winston.getStatement().executeQuery(sql);
-        } catch (final Exception e) {
-          // table not found
-          continue;
-        }
+      // a mean over whole rollup buckets can be read from the rollup
+      int meanLevel = 1;
+      if (ds.equals(DownsamplingType.MEAN) && dsInt > 1) {
+        meanLevel = HeliRollup.levelDividing(dsInt, t1);
+      }
+      final int level = meanLevel;
+      final double start = t1;
+      final List<List<double[]>> days = readDays(code, dates.size(),
+          new DayRead<List<double[]>>() {
+            public List<double[]> read(Data data, int day) throws UtilException, SQLException {
+              return data.getRSAMDay(code, dates.get(day), start, t2, maxrows, ds, dsInt, level);
+            }
+          });
 
-        // Check for the amount of data returned in a downsampled query. Non-downsampled queries are
-        // checked above.
+      int numSamplesCounter = 0;
+      final ArrayList<double[]> list = new ArrayList<double[]>((int) (t2 - t1) + 2);
+      for (final List<double[]> day : days) {
+        // Check for the amount of data returned in a downsampled query. Non-downsampled queries
+        // are checked as they are read.
         if (!ds.equals(DownsamplingType.NONE) && maxrows != 0) {
-          numSamplesCounter += getResultSetSize(rs);
+          numSamplesCounter += day.size();
           if (numSamplesCounter > maxrows) {
             throw new UtilException("Max rows (" + maxrows + " rows) "
                 + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "") + "exceeded.");
           }
         }
-        while (rs.next()) {
-          final double[] d = new double[] {rs.getDouble(1), rs.getDouble(2)};
-          list.add(d);
-        }
-        rs.close();
+        list.addAll(day);
       }
       return new RSAMData(list);
     } catch (final SQLException e) {
-      LOGGER.error("Could not get RSAM for {}, {}->{}", DbUtils.scnlAsWinstonCode(scnl), t1, t2);
+      LOGGER.error("Could not get RSAM for {}, {}->{}", code, t1, t2);
     }
     return null;
   }
 
+  private List<double[]> getRSAMDay(final String code, final String date, final double t1,
+      final double t2, final int maxrows, final DownsamplingType ds, final int dsInt,
+      final int level) throws SQLException, UtilException {
+    final List<double[]> list = new ArrayList<double[]>();
+    final StorageLayout layout = winston.getLayout();
+    if (!layout.dayExists(winston, code, date)) {
+      return list;
+    }
+
+    ResultSet rs = null;
+    String sql;
+    // times bound in the WHERE clause, preceded by the start of the first period when averaging
+    double[] params = new double[] {t1, t2};
+    final String rollup = DayTableCatalog.rollupTable(code, level, date);
+    if (level > 1 && layout.hasRollups() && tableCatalog.tableExists(winston, code, rollup)) {
+      sql = getRollupMeanSQL(rollup, layout.heliTable(winston, code, date),
+          layout.dayFilter(winston, code, date), dsInt);
+      // whole buckets from the rollup, the seconds after the last one from the one-second table
+      final double tail = Math.floor((t2 + 1) / level) * level;
+      params = new double[] {t1, t1, tail, t1, tail, t2};
+    } else {
+      sql = "SELECT j2ksec, rsam FROM " + layout.heliTable(winston, code, date) + " WHERE "
+          + layout.dayFilter(winston, code, date) + "j2ksec>=? AND j2ksec<=? AND rcnt>0"
+          + " ORDER BY j2ksec";
+      try {
+        sql = getDownsamplingSQL(sql, ds, dsInt);
+      } catch (final UtilException e) {
+        throw new UtilException("Can't downsample dataset: " + e.getMessage());
+      }
+      if (ds.equals(DownsamplingType.MEAN)) {
+        params = new double[] {t1, t1, t2};
+      }
+    }
+    if (maxrows != 0) {
+      sql += " LIMIT " + (maxrows + 1);
+
+      // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
+      // exceed that number prior to running the full query. This can save a decent amount of
+      // time
+      // for large queries. Note that this only applies for non-downsampled queries. This is
+      // done for
+      // two reasons: 1) If the user is downsampling, they already know they're dealing with a
+      // lot of data
+      // and 2) the way MySQL handles the multiple nested queries that would result makes it
+      // slower than
+      // just doing the full query to begin with.
+      if (ds.equals(DownsamplingType.NONE)) {
+        try {
+          final PreparedStatement ps = winston.getPreparedStatement(
+              "SELECT COUNT(*) FROM (SELECT 1 " + sql.substring(sql.indexOf("FROM")) + ") as T");
+          setDoubles(ps, params);
+          rs = ps.executeQuery();
+        } catch (final SQLException e) {
+          // table not found
+          return list;
+        }
+        if (rs.next() && rs.getInt(1) > maxrows) {
+          throw new UtilException("Max rows (" + maxrows + " rows) "
+              + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "")
+              + "exceeded.");
+        }
+      }
+    }
+
+    try {
+      final PreparedStatement ps = winston.getPreparedStatement(sql);
+      setDoubles(ps, params);
+      rs = ps.executeQuery();
+    } catch (final Exception e) {
+      // table not found
+      return list;
+    }
+
+    while (rs.next()) {
+      final double[] d = new double[] {rs.getDouble(1), rs.getDouble(2)};
+      list.add(d);
+    }
+    rs.close();
+    return list;
+  }
+
   /**
-   * Version of SQLDataSource.getDownsamplingSQL which doesn't use prepared statements, so as it's
-   * not supported by
-   * Winston.
+   * Version of SQLDataSource.getDownsamplingSQL. A MEAN query takes the start of the first period
+   * as an extra parameter ahead of those in sql.
    */
-  private static String getDownsamplingSQL(final String sql, final double startTime,
-      final DownsamplingType ds, final int dsInt) throws UtilException {
+  private static String getDownsamplingSQL(final String sql, final DownsamplingType ds,
+      final int dsInt) throws UtilException {
     if (!ds.equals(DownsamplingType.NONE) && dsInt <= 1)
       throw new UtilException("Downsampling interval should be more than 1");
     if (ds.equals(DownsamplingType.NONE))
@@ -723,7 +1262,7 @@ public class Data {
       for (final String column : columns) {
         sb.append("AVG(").append(column.trim()).append("), ");
       }
-      sb.append("((j2ksec-").append(startTime).append(") DIV ").append(dsInt).append(") intNum ");
+      sb.append("((j2ksec-?) DIV ").append(dsInt).append(") intNum ");
       sb.append(sql_from_where_clause);
       sb.append(" GROUP BY intNum");
 
@@ -732,6 +1271,29 @@ public class Data {
       throw new UtilException("Unknown downsampling type: " + ds);
   }
 
+  /**
+   * Average RSAM over periods of dsInt seconds from a helicorder rollup, giving the same rows as
+   * the MEAN query on the one-second table. The start time must fall on a bucket and dsInt must be
+   * a multiple of the rollup level. Buckets before the tail time are read from the rollup and the
+   * seconds from it to the end time from the one-second table. Takes the start time twice and the
+   * tail time for the rollup, then the start, tail, and end time for the one-second table.
+   */
+  private static String getRollupMeanSQL(final String rollup, final String heliTable,
+      final String dayFilter, final int dsInt) {
+    return "SELECT SUM(ts) / SUM(n), SUM(rs) / SUM(n), intNum FROM ("
+        + "SELECT tsum ts, rsam * nrows rs, nrows n, ((j2ksec-?) DIV " + dsInt + ") intNum "
+        + "FROM `" + rollup + "` WHERE j2ksec>=? AND j2ksec<? UNION ALL "
+        + "SELECT j2ksec, rsam, 1, ((j2ksec-?) DIV " + dsInt + ") FROM " + heliTable + " WHERE "
+        + dayFilter + "j2ksec>=? AND j2ksec<=? AND rcnt>0) u GROUP BY intNum ORDER BY intNum";
+  }
+
+  private static void setDoubles(final PreparedStatement ps, final double[] params)
+      throws SQLException {
+    for (int i = 0; i < params.length; i++) {
+      ps.setDouble(i + 1, params[i]);
+    }
+  }
+
   public void setVdxName(final String name) {
     this.vdxName = name;
   }
@@ -753,7 +1315,14 @@ public class Data {
     return size;
   }
 
-  private double applyLookback(double time) {
+  /**
+   * Move a time forward to the start of the data kept in the database, so callers querying
+   * the same span in several steps all filter on the same start time.
+   *
+   * @param time J2kSec
+   * @return the later of time and the start of the lookback window
+   */
+  public double applyLookback(double time) {
     double lookback = J2kSec.now() - winston.maxDays * Time.DAY_IN_S;
     return Math.max(time, lookback);
   }
@@ -0,0 +1,130 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * A count of the tracebufs written to each channel-day, kept in the root database by InputEW and
+ * Input as they insert. A reader holding the tracebuf times of a day compares the count with the
+ * one it saw when it read the day, with a single primary key lookup, to learn whether the day has
+ * changed since without reading the wave table.
+ *
+ * Counting starts when this table is created, so a count is not the number of rows in a day;
+ * readers compare how much it has grown.
+ *
+ * @author Tom Parker
+ */
+public class DayStamps {
+  private final WinstonDatabase winston;
+  private final String table;
+
+  /**
+   * Constructor.
+   *
+   * @param winston the database
+   */
+  public DayStamps(final WinstonDatabase winston) {
+    this.winston = winston;
+    table = "`" + winston.databasePrefix + "_ROOT`.daystamps";
+  }
+
+  /**
+   * Create the table if it does not exist.
+   *
+   * @param winston the database
+   * @throws SQLException if the table cannot be created
+   */
+  public static void createTables(final WinstonDatabase winston) throws SQLException {
+    winston.getStatement()
+        .execute("CREATE TABLE IF NOT EXISTS " + new DayStamps(winston).table
+            + " (sid INT NOT NULL, date CHAR(10) NOT NULL, written BIGINT NOT NULL, "
+            + "PRIMARY KEY (sid, date)) " + winston.tableEngine);
+  }
+
+  /**
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return tracebufs counted for the day, 0 if none have been
+   * @throws SQLException if the count cannot be read
+   */
+  public long get(final String code, final String date) throws SQLException {
+    final int sid = StorageLayout.getSid(winston, code);
+    if (sid < 0) {
+      return 0;
+    }
+
+    final PreparedStatement ps =
+        winston.getPreparedStatement("SELECT written FROM " + table + " WHERE sid=? AND date=?");
+    if (ps == null) {
+      throw new SQLException("Cannot prepare statement");
+    }
+    ps.setInt(1, sid);
+    ps.setString(2, date);
+    final ResultSet rs = ps.executeQuery();
+    final long written = rs.next() ? rs.getLong(1) : 0;
+    rs.close();
+    return written;
+  }
+
+  /**
+   * Count tracebufs written.
+   *
+   * @param code channel
+   * @param written number of tracebufs written, by date
+   * @throws SQLException if the counts cannot be written
+   */
+  void add(final String code, final Map<String, Integer> written) throws SQLException {
+    final int sid = StorageLayout.getSid(winston, code);
+    if (sid < 0) {
+      return;
+    }
+
+    final PreparedStatement ps = winston.getPreparedStatement("INSERT INTO " + table
+        + " (sid, date, written) VALUES (?,?,?) "
+        + "ON DUPLICATE KEY UPDATE written=written+VALUES(written)");
+    if (ps == null) {
+      throw new SQLException("Cannot prepare statement");
+    }
+    for (final Map.Entry<String, Integer> entry : written.entrySet()) {
+      ps.setInt(1, sid);
+      ps.setString(2, entry.getKey());
+      ps.setLong(3, entry.getValue());
+      ps.executeUpdate();
+    }
+  }
+
+  /**
+   * Forget days before a date, after they are purged.
+   *
+   * @param code channel, or null for every channel
+   * @param date first date still stored
+   * @throws SQLException if the rows cannot be removed
+   */
+  void clip(final String code, final String date) throws SQLException {
+    String where = "";
+    if (code != null) {
+      final int sid = StorageLayout.getSid(winston, code);
+      if (sid < 0) {
+        return;
+      }
+      where = "sid=" + sid + " AND ";
+    }
+    winston.getStatement()
+        .execute("DELETE FROM " + table + " WHERE " + where + "date<'" + date + "'");
+  }
+
+  /**
+   * Forget a channel, before it is removed.
+   *
+   * @param code channel
+   * @throws SQLException if the rows cannot be removed
+   */
+  void delete(final String code) throws SQLException {
+    final int sid = StorageLayout.getSid(winston, code);
+    if (sid >= 0) {
+      winston.getStatement().execute("DELETE FROM " + table + " WHERE sid=" + sid);
+    }
+  }
+}
@@ -0,0 +1,313 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.time.CurrentTime;
+
+/**
+ * A catalog of the tables present in each channel database. The catalog is shared by every
+ * WinstonDatabase connected to the same Winston, so the wave and helicorder day tables of a
+ * channel are listed from information_schema once rather than probed for on every request.
+ *
+ * A lookup that misses will look that one table up again, but no more often than
+ * RELOAD_INTERVAL_MS, so tables created by another process are picked up shortly after they
+ * appear without listing every table of the channel again. Code that creates or drops tables should keep the catalog current with
+ * {@link #tableCreated(String, String)}, {@link #tableDropped(String, String)} and
+ * {@link #invalidate(String)}. A caller that must not trust a miss can look up a single table
+ * with {@link #refresh(WinstonDatabase, String, String)}.
+ *
+ * @author Tom Parker
+ */
+public class DayTableCatalog {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DayTableCatalog.class);
+
+  /** minimum time between lookups of a single missing table, in milliseconds */
+  public static final long RELOAD_INTERVAL_MS = 5000;
+
+  private static final ConcurrentMap<String, DayTableCatalog> CATALOGS =
+      new ConcurrentHashMap<String, DayTableCatalog>();
+
+  private final String databasePrefix;
+  private final ConcurrentMap<String, TableList> databases;
+  private volatile long reloadInterval = RELOAD_INTERVAL_MS;
+
+  /**
+   * The tables found in a single channel database.
+   */
+  private static class TableList {
+    private final Set<String> tables;
+    private final long loadTime;
+
+    /** when each table found missing since the list was loaded was last looked up */
+    private final ConcurrentMap<String, Long> misses;
+
+    private TableList(final Set<String> tables, final long loadTime) {
+      this.tables = tables;
+      this.loadTime = loadTime;
+      misses = new ConcurrentHashMap<String, Long>();
+    }
+  }
+
+  private DayTableCatalog(final String databasePrefix) {
+    this.databasePrefix = databasePrefix;
+    databases = new ConcurrentHashMap<String, TableList>();
+  }
+
+  /**
+   * Return the catalog shared by all connections to a Winston.
+   *
+   * @param winston the Winston
+   * @return shared catalog
+   */
+  public static DayTableCatalog getInstance(final WinstonDatabase winston) {
+    final String key = winston.dbURL + "/" + winston.databasePrefix;
+    DayTableCatalog catalog = CATALOGS.get(key);
+    if (catalog == null) {
+      catalog = new DayTableCatalog(winston.databasePrefix);
+      final DayTableCatalog existing = CATALOGS.putIfAbsent(key, catalog);
+      if (existing != null) {
+        catalog = existing;
+      }
+    }
+    return catalog;
+  }
+
+  /**
+   * Name of a wave day table.
+   *
+   * @param code channel code
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return table name
+   */
+  public static String waveTable(final String code, final String date) {
+    return code + "$$" + date;
+  }
+
+  /**
+   * Name of a helicorder day table.
+   *
+   * @param code channel code
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return table name
+   */
+  public static String heliTable(final String code, final String date) {
+    return code + "$$H" + date;
+  }
+
+  /**
+   * Name of a helicorder rollup table.
+   *
+   * @param code channel code
+   * @param level rollup period, in seconds
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return table name
+   */
+  public static String rollupTable(final String code, final int level, final String date) {
+    return code + "$$H" + level + "_" + date;
+  }
+
+  /**
+   * Check for a wave day table.
+   *
+   * @param winston connection used if the catalog must be loaded
+   * @param code channel code
+   * @param date table date
+   * @return true if the table exists
+   */
+  public boolean waveTableExists(final WinstonDatabase winston, final String code,
+      final String date) {
+    return tableExists(winston, code, waveTable(code, date));
+  }
+
+  /**
+   * Check for a helicorder day table.
+   *
+   * @param winston connection used if the catalog must be loaded
+   * @param code channel code
+   * @param date table date
+   * @return true if the table exists
+   */
+  public boolean heliTableExists(final WinstonDatabase winston, final String code,
+      final String date) {
+    return tableExists(winston, code, heliTable(code, date));
+  }
+
+  /**
+   * Check for a table in a channel database.
+   *
+   * @param winston connection used if the catalog must be loaded
+   * @param db channel database, without prefix
+   * @param table table name
+   * @return true if the table exists
+   */
+  public boolean tableExists(final WinstonDatabase winston, final String db, final String table) {
+    TableList list = databases.get(db);
+    if (list == null) {
+      list = load(winston, db);
+    }
+
+    if (list.tables.contains(table)) {
+      return true;
+    }
+
+    final Long missed = list.misses.get(table);
+    final long checked = missed == null ? list.loadTime : missed;
+    if (CurrentTime.getInstance().now() - checked > reloadInterval) {
+      return refresh(winston, db, table);
+    }
+
+    return false;
+  }
+
+  /**
+   * Change how long a missing table is trusted before it is looked up again.
+   *
+   * @param reloadInterval interval in milliseconds
+   */
+  void setReloadInterval(final long reloadInterval) {
+    this.reloadInterval = reloadInterval;
+  }
+
+  /**
+   * Return the tables in a channel database, sorted by name.
+   *
+   * @param winston connection used if the catalog must be loaded
+   * @param db channel database, without prefix
+   * @return sorted list of table names
+   */
+  public List<String> getTables(final WinstonDatabase winston, final String db) {
+    TableList list = databases.get(db);
+    if (list == null) {
+      list = load(winston, db);
+    }
+
+    final List<String> tables = new ArrayList<String>(list.tables);
+    Collections.sort(tables);
+    return tables;
+  }
+
+  /**
+   * Record a newly created table.
+   *
+   * @param db channel database, without prefix
+   * @param table table name
+   */
+  public void tableCreated(final String db, final String table) {
+    final TableList list = databases.get(db);
+    if (list != null) {
+      list.tables.add(table);
+      list.misses.remove(table);
+    }
+  }
+
+  /**
+   * Record a dropped table.
+   *
+   * @param db channel database, without prefix
+   * @param table table name
+   */
+  public void tableDropped(final String db, final String table) {
+    final TableList list = databases.get(db);
+    if (list != null) {
+      list.tables.remove(table);
+    }
+  }
+
+  /**
+   * Look a single table up in the database, for instance before creating it, and record whether
+   * it exists. The rest of the channel's catalog is kept.
+   *
+   * @param winston connection used for the lookup
+   * @param db channel database, without prefix
+   * @param table table name
+   * @return true if the table exists
+   */
+  public boolean refresh(final WinstonDatabase winston, final String db, final String table) {
+    final TableList list = databases.get(db);
+    if (list == null) {
+      return load(winston, db).tables.contains(table);
+    }
+
+    final PreparedStatement ps = winston.getPreparedStatement(
+        "SELECT 1 FROM information_schema.TABLES WHERE TABLE_SCHEMA=? AND TABLE_NAME=?");
+    if (ps == null) {
+      return false;
+    }
+
+    final boolean exists;
+    try {
+      ps.setString(1, databasePrefix + "_" + db);
+      ps.setString(2, table);
+      final ResultSet rs = ps.executeQuery();
+      exists = rs.next();
+      rs.close();
+    } catch (final SQLException e) {
+      LOGGER.error("Could not look up {} in {}. ({})", table, db, e.getLocalizedMessage());
+      return false;
+    }
+
+    if (exists) {
+      list.tables.add(table);
+      list.misses.remove(table);
+    } else {
+      list.tables.remove(table);
+      list.misses.put(table, CurrentTime.getInstance().now());
+    }
+    return exists;
+  }
+
+  /**
+   * Forget everything known about a channel database. It will be reloaded on next use.
+   *
+   * @param db channel database, without prefix
+   */
+  public void invalidate(final String db) {
+    databases.remove(db);
+  }
+
+  /**
+   * Forget everything known about all channel databases.
+   */
+  public void invalidateAll() {
+    databases.clear();
+  }
+
+  private TableList load(final WinstonDatabase winston, final String db) {
+    final Set<String> tables =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final TableList list = new TableList(tables, CurrentTime.getInstance().now());
+
+    final PreparedStatement ps = winston.getPreparedStatement(
+        "SELECT TABLE_NAME FROM information_schema.TABLES WHERE TABLE_SCHEMA=?");
+    if (ps == null) {
+      return list;
+    }
+
+    try {
+      ps.setString(1, databasePrefix + "_" + db);
+      final ResultSet rs = ps.executeQuery();
+      while (rs.next()) {
+        tables.add(rs.getString(1));
+      }
+      rs.close();
+      LOGGER.debug("Loaded {} tables for {}", tables.size(), db);
+    } catch (final SQLException e) {
+      LOGGER.error("Could not list tables for {}. ({})", db, e.getLocalizedMessage());
+      return list;
+    }
+
+    databases.put(db, list);
+    return list;
+  }
+}
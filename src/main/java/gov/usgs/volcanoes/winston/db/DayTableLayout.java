@@ -0,0 +1,131 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The original Winston layout: a database for each channel holding a wave table and a
+ * helicorder table for each day, named code$$date and code$$Hdate. Tables are found through the
+ * shared DayTableCatalog.
+ *
+ * @author Tom Parker
+ */
+class DayTableLayout extends StorageLayout {
+
+  DayTableLayout() {
+    super("day");
+  }
+
+  @Override
+  public void createTables(final WinstonDatabase winston) {}
+
+  @Override
+  public boolean useChannel(final WinstonDatabase winston, final String code) {
+    return winston.useDatabase(code);
+  }
+
+  @Override
+  public void createChannel(final WinstonDatabase winston, final String code)
+      throws SQLException {
+    winston.getStatement()
+        .execute("CREATE DATABASE `" + winston.databasePrefix + "_" + code + "`");
+  }
+
+  @Override
+  public void deleteChannel(final WinstonDatabase winston, final String code)
+      throws SQLException {
+    winston.getStatement().execute("DROP DATABASE `" + winston.databasePrefix + "_" + code + "`");
+    winston.getDayTableCatalog().invalidate(code);
+  }
+
+  @Override
+  public void createDay(final WinstonDatabase winston, final String code, final String date)
+      throws SQLException {
+    final String waveTable = DayTableCatalog.waveTable(code, date);
+    final String heliTable = DayTableCatalog.heliTable(code, date);
+
+    winston.getStatement().execute("CREATE TABLE IF NOT EXISTS `" + waveTable
+        + "` (st DOUBLE PRIMARY KEY, et DOUBLE, sr DOUBLE, datatype CHAR(3), tracebuf BLOB) "
+        + winston.tableEngine);
+    winston.getStatement().execute("CREATE TABLE IF NOT EXISTS `" + heliTable
+        + "` (j2ksec DOUBLE PRIMARY KEY, smin INT, smax INT, rcnt INT, rsam DOUBLE) "
+        + winston.tableEngine);
+
+    final DayTableCatalog catalog = winston.getDayTableCatalog();
+    catalog.tableCreated(code, waveTable);
+    catalog.tableCreated(code, heliTable);
+    new HeliRollup(winston).createTables(code, date);
+  }
+
+  @Override
+  public void dropDay(final WinstonDatabase winston, final String code, final String date)
+      throws SQLException {
+    final DayTableCatalog catalog = winston.getDayTableCatalog();
+    final String waveTable = DayTableCatalog.waveTable(code, date);
+    final String heliTable = DayTableCatalog.heliTable(code, date);
+
+    catalog.tableDropped(code, waveTable);
+    winston.getStatement().execute("DROP TABLE `" + waveTable + "`");
+    catalog.tableDropped(code, heliTable);
+    winston.getStatement().execute("DROP TABLE `" + heliTable + "`");
+    new HeliRollup(winston).dropTables(code, date);
+  }
+
+  @Override
+  public boolean dayExists(final WinstonDatabase winston, final String code, final String date) {
+    return winston.getDayTableCatalog().waveTableExists(winston, code, date);
+  }
+
+  @Override
+  public List<String> getDays(final WinstonDatabase winston, final String code) {
+    final String prefix = code + "$$";
+    final List<String> days = new ArrayList<String>();
+    for (final String table : winston.getDayTableCatalog().getTables(winston, code)) {
+      if (!table.startsWith(prefix)) {
+        continue;
+      }
+      final String day = table.substring(prefix.length());
+      if (day.length() == 10 && day.charAt(4) == '_' && day.charAt(7) == '_'
+          && Character.isDigit(day.charAt(0)) && Character.isDigit(day.charAt(9))) {
+        days.add(day);
+      }
+    }
+    return days;
+  }
+
+  @Override
+  public boolean isShared() {
+    return false;
+  }
+
+  @Override
+  public boolean hasRollups() {
+    return true;
+  }
+
+  @Override
+  public String waveTable(final WinstonDatabase winston, final String code, final String date) {
+    return "`" + DayTableCatalog.waveTable(code, date) + "`";
+  }
+
+  @Override
+  public String heliTable(final WinstonDatabase winston, final String code, final String date) {
+    return "`" + DayTableCatalog.heliTable(code, date) + "`";
+  }
+
+  @Override
+  public String dayFilter(final WinstonDatabase winston, final String code, final String date) {
+    return "";
+  }
+
+  @Override
+  public String keyColumns() {
+    return "";
+  }
+
+  @Override
+  public String keyValues(final WinstonDatabase winston, final String code, final String date) {
+    return "";
+  }
+}
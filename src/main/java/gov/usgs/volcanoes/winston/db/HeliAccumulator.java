@@ -0,0 +1,246 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.util.Arrays;
+
+/**
+ * The recent one-second helicorder rows of a channel, kept in a fixed-size ring indexed by
+ * second. Each row is stored across parallel primitive arrays, so accumulating samples and looking
+ * back for the RSAM mean allocate nothing.
+ *
+ * A second is kept in slot (second mod capacity). Claiming a slot for a new second discards the
+ * row previously held there, so the ring always holds the most recently claimed row for each
+ * slot. Rows are written to the database after every batch of tracebufs, so a discarded row is
+ * reloaded from the database if it is needed again.
+ *
+ * This class is not thread safe; callers sharing an accumulator must synchronize on it.
+ *
+ * @author Tom Parker
+ */
+public class HeliAccumulator {
+  private static final long EMPTY = Long.MIN_VALUE;
+
+  private long[] seconds;
+  private int[] smin;
+  private int[] smax;
+  private int[] rcnt;
+  private double[] rsam;
+  private double[] mean;
+  private double[] mu;
+  private double[] weightedRsam;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity number of seconds held
+   */
+  public HeliAccumulator(final int capacity) {
+    allocate(Math.max(1, capacity));
+  }
+
+  /**
+   * @return number of seconds held
+   */
+  public int capacity() {
+    return seconds.length;
+  }
+
+  /**
+   * Grow the ring to hold at least a given number of seconds, keeping the rows it holds.
+   *
+   * @param capacity number of seconds to hold
+   */
+  public void ensureCapacity(final int capacity) {
+    if (capacity <= seconds.length) {
+      return;
+    }
+
+    final long[] oldSeconds = seconds;
+    final int[] oldSmin = smin;
+    final int[] oldSmax = smax;
+    final int[] oldRcnt = rcnt;
+    final double[] oldRsam = rsam;
+    final double[] oldMean = mean;
+    final double[] oldMu = mu;
+    final double[] oldWeightedRsam = weightedRsam;
+
+    allocate(capacity);
+    for (int i = 0; i < oldSeconds.length; i++) {
+      if (oldSeconds[i] == EMPTY) {
+        continue;
+      }
+      final int slot = index(oldSeconds[i]);
+      if (seconds[slot] != EMPTY && seconds[slot] > oldSeconds[i]) {
+        continue;
+      }
+      seconds[slot] = oldSeconds[i];
+      smin[slot] = oldSmin[i];
+      smax[slot] = oldSmax[i];
+      rcnt[slot] = oldRcnt[i];
+      rsam[slot] = oldRsam[i];
+      mean[slot] = oldMean[i];
+      mu[slot] = oldMu[i];
+      weightedRsam[slot] = oldWeightedRsam[i];
+    }
+  }
+
+  /**
+   * Find the slot holding a second.
+   *
+   * @param second j2ksec, truncated to the second
+   * @return slot, or -1 if the second is not held
+   */
+  public int find(final long second) {
+    final int slot = index(second);
+    return seconds[slot] == second ? slot : -1;
+  }
+
+  /**
+   * Claim the slot for a second and reset it to an empty row.
+   *
+   * @param second j2ksec, truncated to the second
+   * @return slot
+   */
+  public int claim(final long second) {
+    final int slot = index(second);
+    seconds[slot] = second;
+    smin[slot] = Integer.MAX_VALUE;
+    smax[slot] = Integer.MIN_VALUE;
+    rcnt[slot] = 0;
+    rsam[slot] = 0;
+    mean[slot] = 0;
+    mu[slot] = 0;
+    weightedRsam[slot] = 0;
+    return slot;
+  }
+
+  /**
+   * Claim the slot for a second and fill it with a row read from the database.
+   *
+   * @param second j2ksec, truncated to the second
+   * @param min minimum sample
+   * @param max maximum sample
+   * @param count sample count
+   * @param rsamValue RSAM
+   * @return slot
+   */
+  public int claim(final long second, final int min, final int max, final int count,
+      final double rsamValue) {
+    final int slot = claim(second);
+    smin[slot] = min;
+    smax[slot] = max;
+    rcnt[slot] = count;
+    rsam[slot] = rsamValue;
+    return slot;
+  }
+
+  /**
+   * Add a sample to a row.
+   *
+   * @param slot slot returned by find or claim
+   * @param sample the sample
+   * @param computeRsam if true, update the sample count and the RSAM values
+   */
+  public void add(final int slot, final int sample, final boolean computeRsam) {
+    if (sample < smin[slot]) {
+      smin[slot] = sample;
+    }
+    if (sample > smax[slot]) {
+      smax[slot] = sample;
+    }
+    if (computeRsam) {
+      final int n = rcnt[slot];
+      final int n1 = n + 1;
+      rsam[slot] = (rsam[slot] * n + Math.abs(sample)) / n1;
+      mean[slot] = (mean[slot] * n + sample) / n1;
+      weightedRsam[slot] = (weightedRsam[slot] * n + Math.abs(sample - mu[slot])) / n1;
+      rcnt[slot] = n1;
+    }
+  }
+
+  /**
+   * Compute the mean of the samples in the rows from (second - delta - duration) up to, but not
+   * including, (second - delta). Rows not held are skipped.
+   *
+   * @param second j2ksec, truncated to the second
+   * @param delta seconds between the end of the window and the second
+   * @param duration length of the window, in seconds
+   * @return mean, or 0 if the window holds no samples
+   */
+  public double mean(final long second, final int delta, final int duration) {
+    double sampleSum = 0;
+    long sampleCount = 0;
+    for (long s = second - delta - duration; s < second - delta; s++) {
+      final int slot = find(s);
+      if (slot >= 0) {
+        sampleSum += mean[slot] * rcnt[slot];
+        sampleCount += rcnt[slot];
+      }
+    }
+    return sampleCount == 0 ? 0 : sampleSum / sampleCount;
+  }
+
+  /**
+   * @param slot slot
+   * @param value DC offset removed from samples when computing the weighted RSAM
+   */
+  public void setMu(final int slot, final double value) {
+    mu[slot] = value;
+  }
+
+  /**
+   * @param slot slot
+   * @return minimum sample
+   */
+  public int getMin(final int slot) {
+    return smin[slot];
+  }
+
+  /**
+   * @param slot slot
+   * @return maximum sample
+   */
+  public int getMax(final int slot) {
+    return smax[slot];
+  }
+
+  /**
+   * @param slot slot
+   * @return sample count
+   */
+  public int getCount(final int slot) {
+    return rcnt[slot];
+  }
+
+  /**
+   * @param slot slot
+   * @return RSAM
+   */
+  public double getRsam(final int slot) {
+    return rsam[slot];
+  }
+
+  /**
+   * @param slot slot
+   * @return RSAM with the DC offset removed
+   */
+  public double getWeightedRsam(final int slot) {
+    return weightedRsam[slot];
+  }
+
+  private int index(final long second) {
+    final int slot = (int) (second % seconds.length);
+    return slot < 0 ? slot + seconds.length : slot;
+  }
+
+  private void allocate(final int capacity) {
+    seconds = new long[capacity];
+    Arrays.fill(seconds, EMPTY);
+    smin = new int[capacity];
+    smax = new int[capacity];
+    rcnt = new int[capacity];
+    rsam = new double[capacity];
+    mean = new double[capacity];
+    mu = new double[capacity];
+    weightedRsam = new double[capacity];
+  }
+}
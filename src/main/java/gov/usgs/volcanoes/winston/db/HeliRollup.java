@@ -0,0 +1,221 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.time.J2kSec;
+
+/**
+ * Maintains coarser copies of the one-second helicorder tables. Each level holds one row per
+ * LEVEL seconds with the minimum, maximum, and sample count of the one-second rows it covers and
+ * the mean of their RSAM, so long helicorder and RSAM requests can read a few rows per output
+ * point rather than one row per second. RSAM averaged over periods that are a multiple of a level,
+ * and start on one of its buckets, is read from that level.
+ *
+ * Each level is built from the level below it. A level holds the number of one-second rows with
+ * data in each bucket, and the sum of their times, so means of RSAM and of time can be carried up
+ * exactly. Rollup tables are only written if they
+ * exist; a day without them is read from the one-second table.
+ *
+ * @author Tom Parker
+ */
+public class HeliRollup {
+  private static final Logger LOGGER = LoggerFactory.getLogger(HeliRollup.class);
+
+  /** rollup periods, in seconds, finest first. Each divides the next and a day evenly. */
+  public static final int[] LEVELS = {10, 60, 600, 3600};
+
+  private static final int ONE_DAY = 60 * 60 * 24;
+
+  private final WinstonDatabase winston;
+  private final DayTableCatalog catalog;
+  private final DateFormat dateFormat;
+
+  /**
+   * Constructor.
+   *
+   * @param winston the database
+   */
+  public HeliRollup(final WinstonDatabase winston) {
+    this.winston = winston;
+    catalog = winston.getDayTableCatalog();
+    dateFormat = new SimpleDateFormat(WinstonDatabase.WINSTON_TABLE_DATE_FORMAT);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+  }
+
+  /**
+   * Choose the coarsest level with at least one row per output point.
+   *
+   * @param resolution seconds per output point, or 0 for full resolution
+   * @return rollup period, or 1 for the one-second table
+   */
+  public static int levelFor(final double resolution) {
+    int level = 1;
+    for (final int l : LEVELS) {
+      if (l <= resolution) {
+        level = l;
+      }
+    }
+    return level;
+  }
+
+  /**
+   * Choose the coarsest level whose buckets can be combined into periods of a given length
+   * starting at a given time.
+   *
+   * @param period length of an output period, in seconds
+   * @param start start of the first period
+   * @return rollup period, or 1 for the one-second table
+   */
+  public static int levelDividing(final int period, final double start) {
+    int level = 1;
+    for (final int l : LEVELS) {
+      if (period % l == 0 && start % l == 0) {
+        level = l;
+      }
+    }
+    return level;
+  }
+
+  /**
+   * Create the rollup tables for a day. The caller must have selected the channel database.
+   *
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return true if the tables exist
+   */
+  public boolean createTables(final String code, final String date) {
+    try {
+      for (final int level : LEVELS) {
+        final String table = DayTableCatalog.rollupTable(code, level, date);
+        winston.getStatement()
+            .execute("CREATE TABLE IF NOT EXISTS `" + table + "` (j2ksec DOUBLE PRIMARY KEY, "
+                + "smin INT, smax INT, rcnt INT, rsam DOUBLE, nrows INT, tsum DOUBLE) "
+                + winston.tableEngine);
+        catalog.tableCreated(code, table);
+      }
+      return true;
+    } catch (final SQLException e) {
+      LOGGER.error("Could not create helicorder rollup tables: '{}${}'. ({})", code, date,
+          e.getLocalizedMessage());
+    }
+    return false;
+  }
+
+  /**
+   * Drop the rollup tables for a day. The caller must have selected the channel database.
+   *
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   */
+  public void dropTables(final String code, final String date) {
+    for (final int level : LEVELS) {
+      final String table = DayTableCatalog.rollupTable(code, level, date);
+      try {
+        catalog.tableDropped(code, table);
+        winston.getStatement().execute("DROP TABLE IF EXISTS `" + table + "`");
+      } catch (final SQLException e) {
+        LOGGER.error("Could not drop helicorder rollup table: {}. ({})", table,
+            e.getLocalizedMessage());
+      }
+    }
+  }
+
+  /**
+   * Recompute the rollup rows covering a span of one-second rows. The caller must have selected
+   * the channel database.
+   *
+   * @param code channel
+   * @param t1 first one-second row changed
+   * @param t2 last one-second row changed
+   * @return true unless a rollup could not be written
+   */
+  public boolean update(final String code, final double t1, final double t2) {
+    double ct = t1;
+    final String endDate = dateFormat.format(J2kSec.asDate(t2));
+    boolean done = false;
+    boolean success = true;
+    while (!done) {
+      final String date = dateFormat.format(J2kSec.asDate(ct));
+      if (date.equals(endDate))
+        done = true;
+      ct += ONE_DAY;
+
+      success &= updateDay(code, date, t1, t2);
+    }
+    return success;
+  }
+
+  /**
+   * Rebuild every rollup row for a day, recreating the rollup tables so they have the current
+   * columns. The caller must have selected the channel database.
+   *
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return true if successful
+   */
+  public boolean rebuild(final String code, final String date) {
+    if (!catalog.heliTableExists(winston, code, date)) {
+      return false;
+    }
+    dropTables(code, date);
+    if (!createTables(code, date)) {
+      return false;
+    }
+
+    final double dayStart;
+    try {
+      dayStart = J2kSec.fromDate(dateFormat.parse(date));
+    } catch (final ParseException e) {
+      LOGGER.error("Cannot parse helicorder table date: {}", date);
+      return false;
+    }
+    return updateDay(code, date, dayStart, dayStart + ONE_DAY - 1);
+  }
+
+  private boolean updateDay(final String code, final String date, final double t1,
+      final double t2) {
+    String source = DayTableCatalog.heliTable(code, date);
+    String aggregate = "MIN(smin), MAX(smax), SUM(rcnt), AVG(rsam), COUNT(*), SUM(j2ksec)";
+    String filter = " AND rcnt>0";
+
+    for (final int level : LEVELS) {
+      final String table = DayTableCatalog.rollupTable(code, level, date);
+      if (!catalog.tableExists(winston, code, table)) {
+        return true;
+      }
+
+      final double start = Math.floor(t1 / level) * level;
+      final double end = (Math.floor(t2 / level) + 1) * level;
+      final String sql = "INSERT INTO `" + table
+          + "` (j2ksec, smin, smax, rcnt, rsam, nrows, tsum) SELECT FLOOR(j2ksec / " + level
+          + ") * " + level + " AS b, " + aggregate + " FROM `" + source + "` WHERE j2ksec>=? "
+          + "AND j2ksec<?" + filter + " GROUP BY b "
+          + "ON DUPLICATE KEY UPDATE smin=VALUES(smin), smax=VALUES(smax), rcnt=VALUES(rcnt), "
+          + "rsam=VALUES(rsam), nrows=VALUES(nrows), tsum=VALUES(tsum)";
+
+      try {
+        final PreparedStatement ps = winston.getPreparedStatement(sql);
+        ps.setDouble(1, start);
+        ps.setDouble(2, end);
+        ps.executeUpdate();
+      } catch (final SQLException e) {
+        LOGGER.warn("Could not write helicorder rollup: {}. ({})", table, e.getMessage());
+        return false;
+      }
+
+      source = table;
+      aggregate = "MIN(smin), MAX(smax), SUM(rcnt), SUM(rsam * nrows) / SUM(nrows), SUM(nrows), "
+          + "SUM(tsum)";
+      filter = "";
+    }
+    return true;
+  }
+}
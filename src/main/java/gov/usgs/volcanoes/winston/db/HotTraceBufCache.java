@@ -0,0 +1,289 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.time.J2kSec;
+import gov.usgs.volcanoes.core.util.UtilException;
+
+/**
+ * An in-memory copy of the most recent tracebufs for each channel. Each channel keeps the last
+ * few minutes of tracebufs, still compressed, in a ring that is topped up from the day tables
+ * when it is used, at most once per refresh interval. Requests that lie entirely within a ring
+ * are answered without reading the day tables again, and requests between top-ups without
+ * touching the database at all, so they may miss tracebufs written during the interval.
+ *
+ * Memory use is capped across all channels. When the cap is reached the rings of the least
+ * recently used channels are dropped.
+ *
+ * Rings are topped up by start time. A tracebuf inserted late, behind the newest tracebuf in a
+ * ring, is noticed by counting the rows the ring should hold, an index range count, and the ring
+ * is then reloaded.
+ *
+ * @author Tom Parker
+ */
+public class HotTraceBufCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(HotTraceBufCache.class);
+
+  /** allow for clocks that run a little ahead of ours */
+  private static final double CLOCK_SLOP = 60 * 60;
+
+  private final long capacity;
+  private final double window;
+  private final double refreshInterval;
+  private final AtomicLong size;
+  private final LinkedHashMap<String, Ring> rings;
+
+  /**
+   * A compressed tracebuf.
+   */
+  private static class Entry {
+    private final double startTime;
+    private final double endTime;
+    private final byte[] bytes;
+
+    private Entry(final double startTime, final double endTime, final byte[] bytes) {
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * The recent tracebufs of a single channel, in start time order.
+   */
+  private static class Ring {
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    private long bytes;
+    private boolean dropped;
+    private double refreshed = -Double.MAX_VALUE;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity maximum size of all cached tracebufs, in bytes
+   * @param window length of time to keep, in seconds
+   * @param refreshInterval shortest time between top-ups of a ring, in seconds
+   */
+  public HotTraceBufCache(final long capacity, final double window,
+      final double refreshInterval) {
+    this.capacity = capacity;
+    this.window = window;
+    this.refreshInterval = refreshInterval;
+    size = new AtomicLong();
+    rings = new LinkedHashMap<String, Ring>(16, 0.75f, true);
+  }
+
+  /**
+   * Return recent tracebufs from memory.
+   *
+   * @param winston connection used to top up the ring
+   * @param code channel
+   * @param t1 start time
+   * @param t2 end time
+   * @return decompressed tracebufs, or null if the span is not held in memory
+   */
+  public List<byte[]> getTraceBufBytes(final WinstonDatabase winston, final String code,
+      final double t1, final double t2) {
+    final double now = J2kSec.now();
+    if (t1 < now - window) {
+      return null;
+    }
+
+    Ring ring;
+    synchronized (rings) {
+      ring = rings.get(code);
+      if (ring == null) {
+        ring = new Ring();
+        rings.put(code, ring);
+      }
+    }
+
+    List<byte[]> bufs = null;
+    synchronized (ring) {
+      if (ring.dropped) {
+        return null;
+      }
+
+      if (now - ring.refreshed >= refreshInterval) {
+        if (!refresh(winston, code, ring, now)) {
+          return null;
+        }
+        ring.refreshed = now;
+      }
+
+      if (!ring.entries.isEmpty() && t1 >= ring.entries.peekFirst().startTime) {
+        bufs = new ArrayList<byte[]>();
+        try {
+          for (final Entry entry : ring.entries) {
+            if (entry.endTime < t1) {
+              continue;
+            }
+            if (entry.startTime > t2) {
+              break;
+            }
+            bufs.add(TraceBufCodec.decode(entry.bytes));
+          }
+        } catch (final IOException e) {
+          LOGGER.debug("Could not decompress cached tracebuf for {}. ({})", code, e.getMessage());
+          bufs = null;
+        }
+      }
+    }
+
+    trim(ring);
+    return bufs;
+  }
+
+  /**
+   * @return size of all cached tracebufs, in bytes
+   */
+  public long size() {
+    return size.get();
+  }
+
+  /**
+   * Forget a channel.
+   *
+   * @param code channel
+   */
+  public void invalidate(final String code) {
+    final Ring ring;
+    synchronized (rings) {
+      ring = rings.remove(code);
+    }
+    if (ring != null) {
+      drop(ring);
+    }
+  }
+
+  /**
+   * Read tracebufs newer than the newest in the ring, age out the oldest, and reload the ring if
+   * a tracebuf was inserted behind the newest.
+   */
+  private boolean refresh(final WinstonDatabase winston, final String code, final Ring ring,
+      final double now) {
+    final boolean empty = ring.entries.isEmpty();
+    final double from = empty ? now - window : ring.entries.peekLast().startTime;
+    if (!read(winston, code, ring, from, empty, now)) {
+      return false;
+    }
+
+    final double oldest = now - window;
+    long removed = 0;
+    while (!ring.entries.isEmpty() && ring.entries.peekFirst().endTime < oldest) {
+      removed += ring.entries.removeFirst().bytes.length;
+    }
+    ring.bytes -= removed;
+    size.addAndGet(-removed);
+
+    if (ring.entries.isEmpty()) {
+      return true;
+    }
+
+    final double first = ring.entries.peekFirst().startTime;
+    final long rows = new Data(winston).countTraceBufs(code, first, now + CLOCK_SLOP);
+    if (rows < 0) {
+      return false;
+    }
+    if (rows != ring.entries.size()) {
+      LOGGER.debug("Reloading cached tracebufs for {}: {} rows, {} cached", code, rows,
+          ring.entries.size());
+      size.addAndGet(-ring.bytes);
+      ring.bytes = 0;
+      ring.entries.clear();
+      return read(winston, code, ring, first, true, now);
+    }
+    return true;
+  }
+
+  /**
+   * Append tracebufs starting from a time to the ring.
+   */
+  private boolean read(final WinstonDatabase winston, final String code, final Ring ring,
+      final double from, final boolean fromInclusive, final double now) {
+    final TraceBufCursor cursor = new Data(winston).getTraceBufPage(code, from, from,
+        fromInclusive, now + CLOCK_SLOP, Integer.MAX_VALUE);
+    if (cursor == null) {
+      return false;
+    }
+
+    cursor.setDecompress(false);
+    long added = 0;
+    try {
+      while (cursor.next()) {
+        final byte[] bytes = cursor.getCompressedBytes();
+        ring.entries.addLast(new Entry(cursor.getStartTime(), cursor.getEndTime(), bytes));
+        added += bytes.length;
+      }
+    } catch (final SQLException e) {
+      LOGGER.debug("Could not refresh cached tracebufs for {}. ({})", code, e.getMessage());
+      return false;
+    } catch (final UtilException e) {
+      LOGGER.debug("Could not refresh cached tracebufs for {}. ({})", code, e.getMessage());
+      return false;
+    } catch (final IOException e) {
+      LOGGER.debug("Could not refresh cached tracebufs for {}. ({})", code, e.getMessage());
+      return false;
+    } finally {
+      cursor.close();
+      ring.bytes += added;
+      size.addAndGet(added);
+    }
+    return true;
+  }
+
+  /**
+   * Drop the rings of the least recently used channels until the cache fits. If the current
+   * channel is the only one left, its oldest tracebufs are dropped instead.
+   */
+  private void trim(final Ring current) {
+    while (size.get() > capacity) {
+      Ring victim = null;
+      synchronized (rings) {
+        final Iterator<Ring> it = rings.values().iterator();
+        while (it.hasNext()) {
+          final Ring ring = it.next();
+          if (ring != current) {
+            victim = ring;
+            it.remove();
+            break;
+          }
+        }
+      }
+
+      if (victim != null) {
+        drop(victim);
+        continue;
+      }
+
+      synchronized (current) {
+        if (current.entries.isEmpty()) {
+          return;
+        }
+        final long removed = current.entries.removeFirst().bytes.length;
+        current.bytes -= removed;
+        size.addAndGet(-removed);
+      }
+    }
+  }
+
+  private void drop(final Ring ring) {
+    synchronized (ring) {
+      ring.dropped = true;
+      size.addAndGet(-ring.bytes);
+      ring.bytes = 0;
+      ring.entries.clear();
+    }
+  }
+}
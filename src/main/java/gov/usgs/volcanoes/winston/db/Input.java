@@ -12,6 +12,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeMap;
 
@@ -77,6 +79,10 @@ public class Input {
   private static final Logger LOGGER = LoggerFactory.getLogger(Input.class);
   private final HashMap<String, ChannelInputOptimizer> channelOptimizers;
   private final HashSet<String> checkTableCache;
+  private final Map<String, IntervalSet> pendingCoverage;
+  private final Map<String, Map<String, Integer>> pendingWritten;
+  private final Map<String, double[]> pendingRollups;
+  private final Set<String> pendingSpans;
 
   private ChannelInputOptimizer currentLock;
   private final Data data;
@@ -140,6 +146,10 @@ public class Input {
     data = new Data(w);
     channelOptimizers = new HashMap<String, ChannelInputOptimizer>();
     checkTableCache = new HashSet<String>();
+    pendingCoverage = new HashMap<String, IntervalSet>();
+    pendingWritten = new HashMap<String, Map<String, Integer>>();
+    pendingRollups = new HashMap<String, double[]>();
+    pendingSpans = new HashSet<String>();
     dateFormat = new SimpleDateFormat("yyyy_MM_dd");
     dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
   }
@@ -206,6 +216,8 @@ public class Input {
       winston.getStatement()
           .execute("CREATE TABLE `" + code + "$$H" + date + "` (" + "j2ksec DOUBLE PRIMARY KEY, "
               + "smin INT, " + "smax INT, " + "rcnt INT, " + "rsam DOUBLE) " + winston.tableEngine);
+      winston.getDayTableCatalog().tableCreated(code, code + "$$" + date);
+      winston.getDayTableCatalog().tableCreated(code, code + "$$H" + date);
 
       purgeTables(code, maxDays);
       return true;
@@ -224,6 +236,8 @@ public class Input {
       winston.getStatement()
           .execute("CREATE TABLE `" + code + "$$H" + date + "` (" + "j2ksec DOUBLE PRIMARY KEY, "
               + "smin INT, " + "smax INT, " + "rcnt INT, " + "rsam DOUBLE) " + winston.tableEngine);
+      winston.getDayTableCatalog().tableCreated(code, code + "$$" + date);
+      winston.getDayTableCatalog().tableCreated(code, code + "$$H" + date);
       // purgeTables(code, maxDays);
       return true;
     } catch (final Exception ex) {
@@ -267,6 +281,12 @@ public class Input {
    * @return result
    */
   public InputResult inputTraceBuf(final TraceBuf tb) {
+    final InputResult result = writeTraceBuf(tb);
+    flush();
+    return result;
+  }
+
+  private InputResult writeTraceBuf(final TraceBuf tb) {
     InputResult result = InputResult.ERROR;
     try {
       final String code = tb.toWinstonString();
@@ -310,14 +330,13 @@ public class Input {
       final byte[] stripped = Arrays.trimToCapacity(tb.bytes, tb.bytes.length - 1);
       final byte[] compressed = Zip.compress(stripped);
       insert.setBytes(5, compressed);
-      insert.executeUpdate();
+      final boolean inserted = insert.executeUpdate() > 0;
 
       opt.t1 = Math.min(opt.t1, tb.getStartTimeJ2K());
       opt.t2 = Math.max(opt.t2, tb.getEndTimeJ2K());
-
-      if (!writeLocks) {
-        setTimeSpan(code, opt.t1, opt.t2);
-        // setTimeSpan(code, opt.t1, opt.t2);
+      pendingSpans.add(code);
+      if (inserted) {
+        written(code, date, ts, tb.getEndTimeJ2K());
       }
 
       /// ----- now insert/update helicorder/rsam data
@@ -374,6 +393,8 @@ public class Input {
                 + heliList[i][4] + " WHERE j2ksec=" + j2k);
         opt.putData(j2k, heliList[i]);
       }
+
+      changedHeli(code, fst, cet);
       result = createdTable ? InputResult.SUCCESS_CREATED_TABLE : InputResult.SUCCESS;
     } catch (final Exception e) {
       LOGGER.error("Could not insert TraceBuf: {}. ({})", tb, e.getLocalizedMessage());
@@ -395,6 +416,31 @@ public class Input {
    * @param tb the TraceBuf
    */
   public boolean inputTraceBuf(final TraceBuf tb, final boolean fillHeli) {
+    final boolean result = writeTraceBuf(tb, fillHeli);
+    flush();
+    return result;
+  }
+
+  /**
+   * Inputs several TraceBufs into the Winston database. The channel time spans, coverage, day
+   * stamps, and helicorder rollups are updated once for the lot rather than once per TraceBuf.
+   *
+   * @param tbs the TraceBufs
+   * @param fillHeli if true, read helicorder rows not cached before updating them
+   * @return the number of TraceBufs written
+   */
+  public int inputTraceBufs(final List<TraceBuf> tbs, final boolean fillHeli) {
+    int count = 0;
+    for (final TraceBuf tb : tbs) {
+      if (writeTraceBuf(tb, fillHeli)) {
+        count++;
+      }
+    }
+    flush();
+    return count;
+  }
+
+  private boolean writeTraceBuf(final TraceBuf tb, final boolean fillHeli) {
     try {
       final String code = tb.toWinstonString();
       ChannelInputOptimizer opt = channelOptimizers.get(code);
@@ -428,8 +474,9 @@ public class Input {
       final byte[] stripped = Arrays.trimToCapacity(tb.bytes, tb.bytes.length - 1);
       final byte[] compressed = Zip.compress(stripped);
       insert.setBytes(5, compressed);
+      boolean inserted = false;
       try {
-        insert.executeUpdate();
+        inserted = insert.executeUpdate() > 0;
       } catch (final SQLException ex) {
         if (ex.getMessage().startsWith("Duplicate entry")) {
           insert.close();
@@ -439,8 +486,9 @@ public class Input {
 
       opt.t1 = Math.min(opt.t1, tb.getStartTimeJ2K());
       opt.t2 = Math.max(opt.t2, tb.getEndTimeJ2K());
-      if (!writeLocks) {
-        setTimeSpan(code, opt.t1, opt.t2);
+      pendingSpans.add(code);
+      if (inserted) {
+        written(code, date, ts, tb.getEndTimeJ2K());
       }
 
       /// ----- now insert/update helicorder/rsam data
@@ -506,6 +554,8 @@ public class Input {
 
         opt.putData(j2k, heliList[i]);
       }
+
+      changedHeli(code, fst, cet);
       return true;
     } catch (final Exception e) {
       LOGGER.error("Could not insert TraceBuf: {}. ({})", tb, e.getLocalizedMessage());
@@ -562,9 +612,12 @@ public class Input {
           }
 
           checkTableCache.remove(table);
+          winston.getDayTableCatalog().tableDropped(channel, table);
+          winston.getDayTableCatalog().tableDropped(channel, ss[0] + "$$H" + ss[1]);
 
           winston.getStatement().execute("DROP TABLE `" + table + "`");
           winston.getStatement().execute("DROP TABLE `" + ss[0] + "$$H" + ss[1] + "`");
+          new HeliRollup(winston).dropTables(channel, ss[1]);
           deleted = true;
           LOGGER.info("Deleted table: {}", table);
         } catch (final Exception e) {
@@ -588,6 +641,15 @@ public class Input {
         break;
       }
     }
+    if (deleted) {
+      try {
+        final double t1 = J2kSec.fromDate(df.parse(df.format(then)));
+        new Coverage(winston).clip(channel, t1);
+        new DayStamps(winston).clip(channel, df.format(then));
+      } catch (final Exception e) {
+        LOGGER.error("Could not update coverage after dropping tables: {}", channel);
+      }
+    }
     if (deleted && !setTime) {
       // must have deleted all of the tables, just delete the channel entirely
       LOGGER.info("Permanently deleting channel: {}", channel);
@@ -612,6 +674,87 @@ public class Input {
     }
   }
 
+  /**
+   * Records a written tracebuf for its channel's coverage and day stamp.
+   */
+  private void written(final String code, final String date, final double st, final double et) {
+    IntervalSet covered = pendingCoverage.get(code);
+    if (covered == null) {
+      covered = new IntervalSet(Coverage.TOLERANCE);
+      pendingCoverage.put(code, covered);
+    }
+    covered.add(st, et);
+
+    Map<String, Integer> days = pendingWritten.get(code);
+    if (days == null) {
+      days = new HashMap<String, Integer>();
+      pendingWritten.put(code, days);
+    }
+    final Integer count = days.get(date);
+    days.put(date, count == null ? 1 : count + 1);
+  }
+
+  /**
+   * Records a span of one-second helicorder rows changed, for the rollups.
+   */
+  private void changedHeli(final String code, final double t1, final double t2) {
+    final double[] span = pendingRollups.get(code);
+    if (span == null) {
+      pendingRollups.put(code, new double[] {t1, t2});
+    } else {
+      span[0] = Math.min(span[0], t1);
+      span[1] = Math.max(span[1], t2);
+    }
+  }
+
+  /**
+   * Writes the channel time spans, coverage, day stamps, and helicorder rollups of the tracebufs
+   * written since the last flush. None of these tables are covered by the write locks, so while
+   * they are held everything is kept until {@link #unlockTables()}.
+   */
+  private void flush() {
+    if (writeLocks) {
+      return;
+    }
+
+    for (final String code : pendingSpans) {
+      final ChannelInputOptimizer opt = channelOptimizers.get(code);
+      setTimeSpan(code, opt.t1, opt.t2);
+    }
+    pendingSpans.clear();
+
+    final Coverage coverage = new Coverage(winston);
+    for (final Map.Entry<String, IntervalSet> entry : pendingCoverage.entrySet()) {
+      try {
+        coverage.add(entry.getKey(), entry.getValue());
+      } catch (final SQLException e) {
+        LOGGER.error("Could not update coverage of channel: {}. ({})", entry.getKey(),
+            e.getLocalizedMessage());
+      }
+    }
+    pendingCoverage.clear();
+
+    final DayStamps stamps = new DayStamps(winston);
+    for (final Map.Entry<String, Map<String, Integer>> entry : pendingWritten.entrySet()) {
+      try {
+        stamps.add(entry.getKey(), entry.getValue());
+      } catch (final SQLException e) {
+        LOGGER.error("Could not count tracebufs written to channel: {}. ({})", entry.getKey(),
+            e.getLocalizedMessage());
+      }
+    }
+    pendingWritten.clear();
+
+    final HeliRollup rollup = new HeliRollup(winston);
+    for (final Map.Entry<String, double[]> entry : pendingRollups.entrySet()) {
+      final String code = entry.getKey();
+      if (winston.useDatabase(code)) {
+        rollup.update(code, entry.getValue()[0], entry.getValue()[1]);
+      }
+    }
+    pendingRollups.clear();
+  }
+
   public void setTimeSpan(final String code, final double st, final double et) {
     if (!winston.checkConnect()) {
       return;
@@ -674,10 +817,10 @@ public class Input {
     }
     try {
       winston.getStatement().execute("UNLOCK TABLES");
-      setTimeSpan(currentLock.code, currentLock.t1, currentLock.t2);
       currentLock = null;
       writeLocks = false;
       locks.clear();
+      flush();
     } catch (final SQLException e) {
       LOGGER.error("Exception while unlocking tables. ({})", e.getLocalizedMessage());
     }
@@ -3,30 +3,25 @@ package gov.usgs.volcanoes.winston.db;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TimeZone;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Map.Entry;
-import java.util.zip.Deflater;
 
-import org.apache.commons.collections.map.LRUMap;
-import org.apache.commons.collections.set.MapBackedSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import gov.usgs.volcanoes.core.Zip;
 import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
 import gov.usgs.volcanoes.core.time.CurrentTime;
 import gov.usgs.volcanoes.core.time.J2kSec;
@@ -41,16 +36,6 @@ import gov.usgs.volcanoes.core.time.Time;
  */
 public class InputEW {
 
-  private static class HeliFields {
-    public static final int MEAN = 5;
-    public static final int MU = 6; // DC offset
-    public static final int RCNT = 3;
-    public static final int RSAM = 4;
-    public static final int SMAX = 2;
-    public static final int SMIN = 1;
-    public static final int WEIGHTED_RSAM = 7; // DC offset removed
-  }
-
   public static class InputResult {
     public enum Code {
       ERROR_CHANNEL, ERROR_DATABASE, ERROR_DUPLICATE, ERROR_HELICORDER, ERROR_INPUT, ERROR_NO_WINSTON, ERROR_NULL_TRACEBUF, ERROR_TIME_SPAN, ERROR_UNKNOWN, NO_CODE, SUCCESS, SUCCESS_CREATED_TABLE, SUCCESS_HELICORDER, SUCCESS_TIME_SPAN
@@ -66,27 +51,22 @@ public class InputEW {
     }
   }
 
-  private static Map<String, double[]> channelTimeSpans = Collections.synchronizedMap(new HashMap<String, double[]>());
-
-  /*
-   * These two static fields are for optimization purposes. They are static
-   * and synchronized so multiple instances of this class can modify them
-   * simultaneously.
-   */
-  private static Set<String> checkTableCache;
   private static final Logger LOGGER = LoggerFactory.getLogger(InputEW.class);
 
-  // TODO: make this synchronized too?
-  private final Map<String, SortedMap<Double, double[]>> channelHelicorderRows;
+  /** helicorder rows written by a single statement */
+  public static final int DEFAULT_HELI_BATCH_SIZE = 60;
 
-  private final Map<String, Integer> channelSid;
   private final DateFormat dateFormat;
 
   private boolean enableValarmView = false;
+  private boolean batchInsert = false;
+  private int heliBatchSize = DEFAULT_HELI_BATCH_SIZE;
+  private TraceBufCodec codec = TraceBufCodec.ZLIB;
+  private boolean deferTimeSpans = false;
 
   private int maxRows = 300;
-  private int numRowsToDelete = 60;
   private WinstonDatabase winston;
+  private ChannelState channelState;
 
   /**
    * Constructs a new Input2.
@@ -95,12 +75,6 @@ public class InputEW {
    */
   public InputEW(final WinstonDatabase w) {
     setWinston(w);
-    checkTableCache =
-        MapBackedSet.decorate(Collections.synchronizedMap(new LRUMap(w.cacheCap, true)));
-
-    channelTimeSpans = Collections.synchronizedMap(new HashMap<String, double[]>());
-    channelHelicorderRows = new HashMap<String, SortedMap<Double, double[]>>();
-    channelSid = new HashMap<String, Integer>();
     dateFormat = new SimpleDateFormat("yyyy_MM_dd");
     dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
   }
@@ -118,29 +92,21 @@ public class InputEW {
    */
   private boolean createDayTable(final String code, final String date) {
     try {
-      final double prevDayJ2k = J2kSec.fromDate(dateFormat.parse(date)) - (24 * 3600);
-      final String prevDate = dateFormat.format(J2kSec.asDate(prevDayJ2k));
-
-      final String waveTable = code + "$$" + date;
-      final String heliTable = code + "$$H" + date;
-      final String waveTableLast = code + "$$" + prevDate;
-      final String heliTableLast = code + "$$H" + prevDate;
-      final String waveTableall = code + "$$" + "past2days";
-      final String heliTableall = code + "$$H" + "past2days";
-
-      winston.getStatement()
-          .execute("CREATE TABLE `" + waveTable + "` (st DOUBLE PRIMARY KEY, et DOUBLE, sr DOUBLE, "
-              + "datatype CHAR(3), tracebuf BLOB) " + winston.tableEngine);
+      final StorageLayout layout = winston.getLayout();
+      layout.createDay(winston, code, date);
 
-      System.out
-          .println("CREATE TABLE `" + waveTable + "` (st DOUBLE PRIMARY KEY, et DOUBLE, sr DOUBLE, "
-              + "datatype CHAR(3), tracebuf BLOB) " + winston.tableEngine);
+      // the VAlarm views read the day tables directly
+      if (enableValarmView && !layout.isShared()) {
+        final double prevDayJ2k = J2kSec.fromDate(dateFormat.parse(date)) - (24 * 3600);
+        final String prevDate = dateFormat.format(J2kSec.asDate(prevDayJ2k));
 
-      winston.getStatement().execute(
-          "CREATE TABLE `" + heliTable + "` (j2ksec DOUBLE PRIMARY KEY, smin INT, smax INT, "
-              + "rcnt INT, rsam DOUBLE) " + winston.tableEngine);
+        final String waveTable = code + "$$" + date;
+        final String heliTable = code + "$$H" + date;
+        final String waveTableLast = code + "$$" + prevDate;
+        final String heliTableLast = code + "$$H" + prevDate;
+        final String waveTableall = code + "$$" + "past2days";
+        final String heliTableall = code + "$$H" + "past2days";
 
-      if (enableValarmView) {
         // if there is data from the previous day, we want to union it
         // into our
         // view, otherwise, setup views into current days data
@@ -148,13 +114,13 @@ public class InputEW {
 
         String sql =
             "CREATE or REPLACE VIEW `" + waveTableall + "` AS SELECT * FROM `" + waveTable + "`";
-        if (tableExists(waveTableLast)) {
+        if (tableExists(code, waveTableLast)) {
           sql += " UNION ALL select * from `" + waveTableLast + "`";
         }
         winston.getStatement().execute(sql);
 
         sql = "CREATE or REPLACE VIEW `" + heliTableall + "` AS SELECT * FROM `" + heliTable + "`";
-        if (tableExists(heliTableLast)) {
+        if (tableExists(code, heliTableLast)) {
           sql += " UNION ALL select * from `" + heliTableLast + "`";
         }
         winston.getStatement().execute(sql);
@@ -167,32 +133,6 @@ public class InputEW {
     return false;
   }
 
-  private List<String> getDayTables(final String code) {
-    final ArrayList<String> list = new ArrayList<String>(10);
-    try {
-      final ResultSet rs = winston.getStatement().executeQuery("SHOW TABLES");
-      while (rs.next()) {
-        list.add(rs.getString(1));
-      }
-      rs.close();
-
-      Collections.sort(list);
-
-      final ArrayList<String> dayList = new ArrayList<String>(list.size() / 2);
-      for (final String table : list) {
-        final String day = table.substring(table.indexOf("$$") + 2);
-        if (day.length() == 10 && day.charAt(4) == '_' && day.charAt(7) == '_'
-            && Character.isDigit(day.charAt(0)) && Character.isDigit(day.charAt(9))) {
-          dayList.add(table);
-        }
-      }
-      return dayList;
-    } catch (final Exception e) {
-      LOGGER.error("Could not get list of tables for channel: {}. ({})", code, e);
-    }
-    return null;
-  }
-
   private List<InputResult> getError(final InputResult.Code code) {
     final ArrayList<InputResult> list = new ArrayList<InputResult>(1);
     list.add(new InputEW.InputResult(code, null));
@@ -202,75 +142,71 @@ public class InputEW {
   /**
    * Gets a helicorder row. This function MUST be called before
    * updateHelicorderRow because it is responsible for creating the blank row
-   * if no existing data can be found.
+   * if no existing data can be found. The caller must hold the lock on rows.
    *
-   * @param table
+   * @param rows the channel's recent rows
+   * @param channel
    * @param j2ksec
-   * @return
+   * @param useDB if true, look for a row not held in rows in the database
+   * @return slot of the row in rows
    */
-  private double[] getHelicorderRow(final String channel, final double j2ksec,
-      final boolean useDB) {
-    SortedMap<Double, double[]> rows = channelHelicorderRows.get(channel);
-    if (rows == null) {
-      rows = new TreeMap<Double, double[]>();
-      channelHelicorderRows.put(channel, rows);
-    }
-    double[] d = rows.get(j2ksec);
-    if (d != null) {
-      return d;
+  private int getHelicorderRow(final HeliAccumulator rows, final String channel,
+      final long j2ksec, final boolean useDB) {
+    final int slot = rows.find(j2ksec);
+    if (slot >= 0) {
+      return slot;
     }
 
-    final String date = dateFormat.format(J2kSec.asDate(j2ksec));
-    final String table = channel + "$$H" + date;
-
     if (useDB) {
+      final String date = dateFormat.format(J2kSec.asDate(j2ksec));
+      final StorageLayout layout = winston.getLayout();
       try {
-        final ResultSet rs = winston.getStatement().executeQuery(
-            "SELECT j2ksec, smin, smax, rcnt, rsam FROM `" + table + "` WHERE j2ksec=" + j2ksec);
-        if (rs.next()) {
-          d = new double[] {rs.getDouble(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4),
-              rs.getDouble(5), 0, 0, 0};
+        final ResultSet rs = winston.getStatement()
+            .executeQuery("SELECT j2ksec, smin, smax, rcnt, rsam FROM "
+                + layout.heliTable(winston, channel, date) + " WHERE "
+                + layout.dayFilter(winston, channel, date) + "j2ksec=" + j2ksec);
+        try {
+          if (rs.next()) {
+            return rows.claim(j2ksec, rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getDouble(5));
+          }
+        } finally {
+          rs.close();
         }
-        rs.close();
       } catch (final Exception e) {
         LOGGER.warn("Could not get helicorder row: {}", e.getMessage());
       }
     }
 
-    if (d == null) {
-      d = new double[] {j2ksec, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0, 0, 0, 0};
-    }
+    return rows.claim(j2ksec);
+  }
 
-    rows.put(j2ksec, d);
-    if (rows.size() > maxRows) {
-      for (int i = 0; i < numRowsToDelete; i++) {
-        rows.remove(rows.firstKey());
-      }
-    }
-    return d;
+  /**
+   * Return the recent helicorder rows of a channel. Callers must synchronize on the returned
+   * accumulator.
+   *
+   * @param channel
+   * @return rows
+   */
+  private HeliAccumulator getHelicorderRows(final String channel) {
+    return channelState.getHelicorderRows(channel, maxRows);
   }
 
-  private PreparedStatement getInputStatement(final String table, final TraceBuf tb) {
+  private PreparedStatement getInputStatement(final String channel, final String date,
+      final TraceBuf tb) {
     if (tb == null) {
       LOGGER.error("null tb");
       return null;
     }
 
     final PreparedStatement insert =
-        winston.getPreparedStatement("INSERT INTO `" + table + "` VALUES (?,?,?,?,?);");
+        winston.getPreparedStatement(getInsertSql("INSERT", channel, date));
     if (insert == null) {
       LOGGER.error("Call to getPreparedStatement returned null.");
       return null;
     }
 
     try {
-      insert.setDouble(1, tb.getStartTimeJ2K());
-      insert.setDouble(2, tb.getEndTimeJ2K());
-      insert.setDouble(3, tb.samplingRate());
-      insert.setString(4, tb.dataType());
-      final byte[] compressed =
-          Zip.compress(tb.bytes, Deflater.BEST_SPEED, 0, tb.bytes.length - 1);
-      insert.setBytes(5, compressed);
+      setInputParameters(insert, tb);
     } catch (final SQLException e) {
       LOGGER.error("Could not create prepared statement: {}.({})", tb, e);
     }
@@ -278,43 +214,152 @@ public class InputEW {
     return insert;
   }
 
-  private double getRSAMMu(final String channel, final double j2ksec, int delta,
+  /**
+   * Build a statement inserting one tracebuf into a channel's day.
+   *
+   * @param verb INSERT or INSERT IGNORE
+   */
+  private String getInsertSql(final String verb, final String channel, final String date) {
+    final StorageLayout layout = winston.getLayout();
+    return verb + " INTO " + layout.waveTable(winston, channel, date) + " ("
+        + layout.keyColumns() + "st, et, sr, datatype, tracebuf) VALUES ("
+        + layout.keyValues(winston, channel, date) + "?,?,?,?,?)";
+  }
+
+  private void setInputParameters(final PreparedStatement insert, final TraceBuf tb)
+      throws SQLException {
+    insert.setDouble(1, tb.getStartTimeJ2K());
+    insert.setDouble(2, tb.getEndTimeJ2K());
+    insert.setDouble(3, tb.samplingRate());
+    insert.setString(4, tb.dataType());
+    final byte[] compressed = codec.encode(tb.bytes, tb.bytes.length - 1);
+    insert.setBytes(5, compressed);
+  }
+
+  /**
+   * Writes queued tracebufs with one batched statement per day. Tracebufs repeated within the
+   * batch are found in memory, and tracebufs already stored are found from the counts of the
+   * INSERT IGNORE; both are reported as duplicates.
+   *
+   * With rewriteBatchedStatements the driver sends a batch as one multi-row INSERT and reports
+   * SUCCESS_NO_INFO for each of its rows. Only tracebufs starting after the channel's time span,
+   * which cannot be stored already, are batched; the rest are rare and inserted one at a time so
+   * their counts are always known.
+   *
+   * @param batches pending results, keyed by date, each with a success code already set
+   * @param span the channel's time span, extended to include the tracebufs written
+   * @param modifiedHeliRows helicorder rows touched by the tracebufs written
+   * @param covered intervals of the tracebufs written
+   * @param written number of tracebufs written, by date
+   */
+  private void writeBatches(final String channel, final Map<String, List<InputResult>> batches,
+      final double[] span, final SortedSet<Double> modifiedHeliRows, final IntervalSet covered,
+      final Map<String, Integer> written, final boolean computeRsam, final int delta,
       final int duration) {
-    final SortedMap<Double, double[]> rows = channelHelicorderRows.get(channel);
-    if (rows == null) {
-      return Double.NaN;
-    }
-
-    delta = -delta;
-    double sampleSum = 0;
-    double sampleCount = 0;
-    for (int k = delta - duration; k < delta; k++) {
-      final double[] hr = rows.get(j2ksec + k);
-      if (hr != null) {
-        sampleSum += hr[HeliFields.MEAN] * hr[HeliFields.RCNT];
-        sampleCount += hr[HeliFields.RCNT];
+    // nothing stored starts after the channel's time span; an empty channel has none
+    final double end = Double.isNaN(span[1]) ? -Double.MAX_VALUE : span[1];
+    for (final Map.Entry<String, List<InputResult>> batch : batches.entrySet()) {
+      final String date = batch.getKey();
+      final List<InputResult> pending = batch.getValue();
+      try {
+        final Set<Double> startTimes = new HashSet<Double>();
+        final List<InputResult> inserts = new ArrayList<InputResult>(pending.size());
+        final List<InputResult> late = new ArrayList<InputResult>();
+        for (final InputResult result : pending) {
+          final double st = result.traceBuf.getStartTimeJ2K();
+          if (!startTimes.add(st)) {
+            result.code = InputResult.Code.ERROR_DUPLICATE;
+          } else if (st > end) {
+            inserts.add(result);
+          } else {
+            late.add(result);
+          }
+        }
+
+        final PreparedStatement insert =
+            winston.getPreparedStatement(getInsertSql("INSERT IGNORE", channel, date));
+        if (!inserts.isEmpty()) {
+          for (final InputResult result : inserts) {
+            setInputParameters(insert, result.traceBuf);
+            insert.addBatch();
+          }
+          final int[] counts = insert.executeBatch();
+          for (int i = 0; i < counts.length && i < inserts.size(); i++) {
+            setBatchedCode(inserts.get(i), counts[i]);
+          }
+        }
+
+        for (final InputResult result : late) {
+          setInputParameters(insert, result.traceBuf);
+          if (insert.executeUpdate() == 0) {
+            result.code = InputResult.Code.ERROR_DUPLICATE;
+          }
+        }
+      } catch (final SQLException ex) {
+        for (final InputResult result : pending) {
+          result.code = InputResult.Code.ERROR_DATABASE;
+        }
+        LOGGER.error("Could not insert trace bufs: {}", ex);
+        continue;
+      }
+
+      for (final InputResult result : pending) {
+        final TraceBuf tb = result.traceBuf;
+        span[0] = Math.min(span[0], tb.getStartTimeJ2K());
+        span[1] = Math.max(span[1], tb.getEndTimeJ2K());
+
+        if (result.code != InputResult.Code.ERROR_DUPLICATE) {
+          traceBufWritten(channel, date, tb, covered, written);
+        }
+        if (tb.samplingRate() > 2 && result.code != InputResult.Code.ERROR_DUPLICATE) {
+          updateHelicorderData(modifiedHeliRows, channel, date, tb, computeRsam, delta, duration,
+              true);
+        }
       }
     }
+  }
 
-    if (sampleCount != 0) {
-      return sampleSum / sampleCount;
-    } else {
-      return 0;
+  /**
+   * Adds a written tracebuf to the channel's coverage, to its day's count, and to the
+   * WinstonDatabase's interval index, if it has one.
+   */
+  private void traceBufWritten(final String channel, final String date, final TraceBuf tb,
+      final IntervalSet covered, final Map<String, Integer> written) {
+    covered.add(tb.getStartTimeJ2K(), tb.getEndTimeJ2K());
+    final Integer count = written.get(date);
+    written.put(date, count == null ? 1 : count + 1);
+    final TraceBufIndex index = winston.getTraceBufIndex();
+    if (index != null) {
+      index.added(channel, date, tb.getStartTimeJ2K(), tb.getEndTimeJ2K());
+    }
+  }
+
+  /**
+   * Sets the code of a batched tracebuf from its update count. A count of 0 means the server
+   * ignored a duplicate, which for a tracebuf past the channel's time span means another writer
+   * stored it first. SUCCESS_NO_INFO, from a rewritten batch, is taken as written, since batched
+   * tracebufs start after everything stored.
+   */
+  private static void setBatchedCode(final InputResult result, final int count) {
+    if (count == 0) {
+      result.code = InputResult.Code.ERROR_DUPLICATE;
+    } else if (count == Statement.EXECUTE_FAILED) {
+      result.code = InputResult.Code.ERROR_DATABASE;
     }
   }
 
   private int getSid(final String c) throws Exception {
     winston.useRootDatabase();
-    if (!channelSid.containsKey(c)) {
+    if (channelState.getSid(c) == null) {
       final ResultSet rs = winston.getStatement().executeQuery(
           "SELECT sid FROM `" + winston.databasePrefix + "_ROOT`.channels WHERE code='" + c + "'");
       if (rs.next()) {
         final int sid = rs.getInt(1);
-        channelSid.put(c, sid);
+        channelState.putSid(c, sid);
       }
     }
 
-    return channelSid.get(c);
+    return channelState.getSid(c);
   }
 
   /**
@@ -325,7 +370,7 @@ public class InputEW {
    * @return
    */
   private double[] getTimeSpan(final String channel) {
-    double[] d = channelTimeSpans.get(channel);
+    double[] d = channelState.getTimeSpan(channel);
     if (d != null) {
       return d;
     }
@@ -339,8 +384,7 @@ public class InputEW {
         d[1] = rs.getDouble(2);
       }
       rs.close();
-      channelTimeSpans.put(channel, d);
-      return d;
+      return channelState.loadTimeSpan(channel, d);
     } catch (final Exception e) {
       LOGGER.error("Could not get time span for channel: {}. ({})", channel, e);
     }
@@ -425,13 +469,16 @@ public class InputEW {
 
     final double stBefore = span[0];
 
-    if (!winston.useDatabase(channel)) {
+    if (!winston.useChannel(channel)) {
       return getError(InputResult.Code.ERROR_DATABASE);
     }
 
     final ArrayList<InputResult> results = new ArrayList<InputResult>(tbs.size() + 1);
 
     final SortedSet<Double> modifiedHeliRows = new TreeSet<Double>();
+    final Map<String, List<InputResult>> batches = new LinkedHashMap<String, List<InputResult>>();
+    final IntervalSet covered = new IntervalSet(Coverage.TOLERANCE);
+    final Map<String, Integer> written = new LinkedHashMap<String, Integer>();
 
     final Iterator<TraceBuf> it = tbs.iterator();
     while (it.hasNext()) {
@@ -451,19 +498,32 @@ public class InputEW {
       final double ts = tb.getStartTimeJ2K();
       final String date = dateFormat.format(J2kSec.asDate(ts));
       final String endDate = dateFormat.format(J2kSec.asDate(tb.getEndTimeJ2K() + 1));
-      final String table = channel + "$$" + date;
 
       try {
-        if (!tableExists(channel, date)) {
+        if (!dayTableExists(channel, date)) {
           createDayTable(channel, date);
           tableCreated = true;
         }
-        if (!tableExists(channel, endDate)) {
+        if (!dayTableExists(channel, endDate)) {
           createDayTable(channel, endDate);
           tableCreated = true;
         }
 
-        final PreparedStatement insert = getInputStatement(table, tb);
+        if (batchInsert) {
+          // written, and its code corrected, once every tracebuf has been queued
+          result.code = tableCreated ? InputResult.Code.SUCCESS_CREATED_TABLE
+              : InputResult.Code.SUCCESS;
+          List<InputResult> batch = batches.get(date);
+          if (batch == null) {
+            batch = new ArrayList<InputResult>();
+            batches.put(date, batch);
+          }
+          batch.add(result);
+          results.add(result);
+          continue;
+        }
+
+        final PreparedStatement insert = getInputStatement(channel, date, tb);
 
         try {
           insert.executeUpdate();
@@ -478,6 +538,9 @@ public class InputEW {
         span[0] = Math.min(span[0], tb.getStartTimeJ2K());
         span[1] = Math.max(span[1], tb.getEndTimeJ2K());
 
+        if (result.code != InputResult.Code.ERROR_DUPLICATE) {
+          traceBufWritten(channel, date, tb, covered, written);
+        }
         if (tb.samplingRate() > 2 && result.code != InputResult.Code.ERROR_DUPLICATE) {
           updateHelicorderData(modifiedHeliRows, channel, date, tb, computeRsam, delta, duration,
               true);
@@ -499,6 +562,18 @@ public class InputEW {
       tableCreated = false;
     }
 
+    writeBatches(channel, batches, span, modifiedHeliRows, covered, written, computeRsam, delta,
+        duration);
+
+    if (!written.isEmpty()) {
+      try {
+        new DayStamps(winston).add(channel, written);
+      } catch (final SQLException ex) {
+        LOGGER.error("Could not count tracebufs written to channel: {}. ({})", channel,
+            ex.getLocalizedMessage());
+      }
+    }
+
     final InputResult heliResult = new InputResult(InputResult.Code.SUCCESS_HELICORDER, null);
     final double failed = writeHelicorderData(channel, modifiedHeliRows);
     if (!Double.isNaN(failed)) {
@@ -510,17 +585,17 @@ public class InputEW {
 
     final InputResult spanResult = new InputResult(InputResult.Code.ERROR_TIME_SPAN, null);
     try {
-      if (span[0] == stBefore) {
-        setTimeSpan(channel, Double.NaN, span[1]);
-      } else {
-        setTimeSpan(channel, span[0], span[1]);
-      }
+      extendTimeSpan(channel, span[0] == stBefore ? Double.NaN : span[0], span[1]);
       spanResult.code = InputResult.Code.SUCCESS_TIME_SPAN;
     } catch (final SQLException ex) {
       LOGGER.error("Could not set time span for channel: {}. ({})", channel, ex);
     }
     results.add(spanResult);
 
+    if (covered.size() > 0) {
+      addCoverage(channel, covered);
+    }
+
     return results;
   }
 
@@ -533,11 +608,12 @@ public class InputEW {
       return;
     }
 
-    if (!winston.useDatabase(channel)) {
+    if (!winston.useChannel(channel)) {
       return;
     }
 
-    final List<String> list = getDayTables(channel);
+    final StorageLayout layout = winston.getLayout();
+    final List<String> list = layout.getDays(winston, channel);
     if (list == null) {
       return;
     }
@@ -550,28 +626,39 @@ public class InputEW {
 
     boolean deleted = false;
     boolean setTime = false;
-    for (final String table : list) {
-      final String ss[] = table.split("\\$\\$");
-
-      if (thenString.compareTo(ss[1]) > 0) {
+    for (final String date : list) {
+      if (thenString.compareTo(date) > 0) {
         try {
-          checkTableCache.remove(table);
-          winston.getStatement().execute("DROP TABLE `" + table + "`");
-          winston.getStatement().execute("DROP TABLE `" + ss[0] + "$$H" + ss[1] + "`");
-
+          layout.dropDay(winston, channel, date);
           deleted = true;
-          LOGGER.info("Deleted table: {}", table);
+          if (winston.getTraceBufIndex() != null) {
+            winston.getTraceBufIndex().invalidate(channel);
+          }
+          LOGGER.info("Deleted day: {}${}", channel, date);
         } catch (final Exception e) {
           LOGGER.error("Could not drop old table: {}.  Are permissions set properly?", channel);
         }
       } else {
         if (deleted) {
+          if (layout.isShared()) {
+            // the days were dropped for every channel, so nothing starts before this day
+            try {
+              final double t1 = J2kSec.fromDate(dateFormat.parse(date));
+              channelState.clampStartTimes(t1);
+              winston.getStatement().execute("UPDATE `" + winston.databasePrefix
+                  + "_ROOT`.channels SET st=GREATEST(st, " + t1 + ")");
+            } catch (final Exception e) {
+              LOGGER.error("Could not update spans after dropping days.");
+            }
+            break;
+          }
           try {
-            final String nextLowestTable = table;
             final ResultSet rs = winston.getStatement()
-                .executeQuery("SELECT MIN(st) FROM `" + nextLowestTable + "`");
+                .executeQuery("SELECT MIN(st) FROM " + layout.waveTable(winston, channel, date)
+                    + " WHERE " + layout.dayFilter(winston, channel, date) + "1=1");
             rs.next();
             final double t1 = rs.getDouble(1);
+            channelState.setStartTime(channel, t1);
             setTimeSpan(channel, t1, Double.NaN);
             rs.close();
             setTime = true;
@@ -582,7 +669,16 @@ public class InputEW {
         break;
       }
     }
-    if (deleted && !setTime) {
+    if (deleted) {
+      try {
+        final double t1 = J2kSec.fromDate(dateFormat.parse(thenString));
+        new Coverage(winston).clip(layout.isShared() ? null : channel, t1);
+        new DayStamps(winston).clip(layout.isShared() ? null : channel, thenString);
+      } catch (final Exception e) {
+        LOGGER.error("Could not update coverage after dropping days: {}", channel);
+      }
+    }
+    if (deleted && !setTime && !layout.isShared()) {
       // must have deleted all of the tables, just delete the channel
       // entirely
       LOGGER.info("Permanently deleting channel: " + channel);
@@ -602,7 +698,7 @@ public class InputEW {
 
     final String channel = tbs.get(0).toWinstonString();
 
-    if (!winston.useDatabase(channel)) {
+    if (!winston.useChannel(channel)) {
       return false;
     }
 
@@ -633,9 +729,55 @@ public class InputEW {
 
   }
 
+  /**
+   * Write the tracebufs of each day table with a single batched statement rather than one
+   * statement per tracebuf.
+   *
+   * @param batchInsert true to batch inserts
+   */
+  public void setBatchInsert(final boolean batchInsert) {
+    this.batchInsert = batchInsert;
+  }
+
+  /**
+   * Set the codec used to compress new tracebufs. Tracebufs already stored are read whichever
+   * codec wrote them.
+   *
+   * @param codec the codec
+   */
+  public void setCodec(final TraceBufCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * Defer time span updates. Extended spans are kept in memory until
+   * {@link #flushTimeSpans()} writes them, rather than updating the channels table after every
+   * insert.
+   *
+   * @param deferTimeSpans true to defer time span updates
+   */
+  public void setDeferTimeSpans(final boolean deferTimeSpans) {
+    this.deferTimeSpans = deferTimeSpans;
+  }
+
+  /**
+   * Set the largest number of helicorder rows written by a single statement.
+   *
+   * @param heliBatchSize rows per statement
+   */
+  public void setHeliBatchSize(final int heliBatchSize) {
+    this.heliBatchSize = Math.max(1, heliBatchSize);
+  }
+
+  /**
+   * Set the number of recent helicorder rows kept for each channel. Rows are kept in a ring, so
+   * the oldest row is replaced one at a time and nd is no longer used.
+   *
+   * @param mr rows kept
+   * @param nd ignored
+   */
   public void setRowParameters(final int mr, final int nd) {
     maxRows = mr;
-    numRowsToDelete = nd;
   }
 
   /**
@@ -652,23 +794,168 @@ public class InputEW {
    */
   private void setTimeSpan(final String channel, final double st, final double et)
       throws SQLException {
-    final double[] d = channelTimeSpans.get(channel);
     if (!Double.isNaN(st)) {
-      if (d != null) {
-        d[0] = st;
-      }
       winston.getStatement().execute("UPDATE `" + winston.databasePrefix + "_ROOT`.channels SET st="
           + st + " WHERE code='" + channel + "'");
     }
     if (!Double.isNaN(et)) {
-      if (d != null) {
-        d[1] = et;
-      }
       winston.getStatement().execute("UPDATE `" + winston.databasePrefix + "_ROOT`.channels SET et="
           + et + " WHERE code='" + channel + "'");
     }
   }
 
+  /**
+   * Extends the time span of a channel to include a given start and end time. The span is never
+   * narrowed, so concurrent writers of a channel cannot undo each other's updates.
+   *
+   * @param channel
+   *          the channel
+   * @param st
+   *          the start time, or NaN to leave it alone
+   * @param et
+   *          the end time, or NaN to leave it alone
+   */
+  private void extendTimeSpan(final String channel, final double st, final double et)
+      throws SQLException {
+    channelState.extendTimeSpan(channel, st, et);
+    if (deferTimeSpans) {
+      channelState.markPending(channel);
+      return;
+    }
+
+    final String root = "`" + winston.databasePrefix + "_ROOT`.channels";
+    if (!Double.isNaN(st)) {
+      final PreparedStatement ps =
+          winston.getPreparedStatement("UPDATE " + root + " SET st=LEAST(st, ?) WHERE code=?");
+      ps.setDouble(1, st);
+      ps.setString(2, channel);
+      ps.executeUpdate();
+    }
+    if (!Double.isNaN(et)) {
+      final PreparedStatement ps =
+          winston.getPreparedStatement("UPDATE " + root + " SET et=GREATEST(et, ?) WHERE code=?");
+      ps.setDouble(1, et);
+      ps.setString(2, channel);
+      ps.executeUpdate();
+    }
+  }
+
+  /**
+   * Merges the intervals of written tracebufs into a channel's coverage, or leaves them for
+   * {@link #flushCoverage()} if time span updates are deferred.
+   */
+  private void addCoverage(final String channel, final IntervalSet covered) {
+    if (deferTimeSpans) {
+      channelState.addPendingCoverage(channel, covered);
+      return;
+    }
+
+    try {
+      new Coverage(winston).add(channel, covered);
+    } catch (final SQLException ex) {
+      LOGGER.error("Could not update coverage of channel: {}. ({})", channel,
+          ex.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Write deferred coverage, for every channel of this Winston. Coverage of channels that could
+   * not be written stays pending and is written by the next call.
+   *
+   * @return number of channels written
+   * @throws SQLException if the coverage of a channel could not be written
+   */
+  public int flushCoverage() throws SQLException {
+    final Map<String, IntervalSet> pending = channelState.takePendingCoverage();
+    final Coverage coverage = new Coverage(winston);
+    int written = 0;
+    SQLException failure = null;
+    for (final Entry<String, IntervalSet> entry : pending.entrySet()) {
+      if (failure != null) {
+        channelState.addPendingCoverage(entry.getKey(), entry.getValue());
+        continue;
+      }
+      try {
+        coverage.add(entry.getKey(), entry.getValue());
+        written++;
+      } catch (final SQLException e) {
+        channelState.addPendingCoverage(entry.getKey(), entry.getValue());
+        failure = e;
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+    return written;
+  }
+
+  /**
+   * Write deferred time spans, for every channel of this Winston, with one statement. Spans are
+   * only ever extended, so spans written by other importers are not narrowed. If the write fails
+   * the spans stay pending and are written by the next call.
+   *
+   * @return number of channels written
+   * @throws SQLException if the spans could not be written
+   */
+  public int flushTimeSpans() throws SQLException {
+    final Map<String, double[]> spans = channelState.takePendingTimeSpans();
+    if (spans.isEmpty()) {
+      return 0;
+    }
+
+    final StringBuilder stCase = new StringBuilder();
+    final StringBuilder etCase = new StringBuilder();
+    final StringBuilder codes = new StringBuilder();
+    for (final Entry<String, double[]> entry : spans.entrySet()) {
+      final double[] span = entry.getValue();
+      if (!Double.isNaN(span[0])) {
+        stCase.append(" WHEN ? THEN LEAST(st, ?)");
+      }
+      if (!Double.isNaN(span[1])) {
+        etCase.append(" WHEN ? THEN GREATEST(et, ?)");
+      }
+      codes.append(codes.length() == 0 ? "?" : ",?");
+    }
+
+    // the statement varies with the channels written, so keep it out of the statement cache
+    PreparedStatement ps = null;
+    try {
+      ps = winston.getConnection().prepareStatement("UPDATE `" + winston.databasePrefix
+          + "_ROOT`.channels SET st=CASE code" + stCase + " ELSE st END, et=CASE code" + etCase
+          + " ELSE et END WHERE code IN (" + codes + ")");
+      int i = 1;
+      for (final Entry<String, double[]> entry : spans.entrySet()) {
+        final double st = entry.getValue()[0];
+        if (!Double.isNaN(st)) {
+          ps.setString(i++, entry.getKey());
+          ps.setDouble(i++, st);
+        }
+      }
+      for (final Entry<String, double[]> entry : spans.entrySet()) {
+        final double et = entry.getValue()[1];
+        if (!Double.isNaN(et)) {
+          ps.setString(i++, entry.getKey());
+          ps.setDouble(i++, et);
+        }
+      }
+      for (final String channel : spans.keySet()) {
+        ps.setString(i++, channel);
+      }
+      ps.executeUpdate();
+    } catch (final SQLException e) {
+      for (final String channel : spans.keySet()) {
+        channelState.markPending(channel);
+      }
+      throw e;
+    } finally {
+      if (ps != null) {
+        ps.close();
+      }
+    }
+    return spans.size();
+  }
+
   /**
    * Set the winston database for this inputter.
    *
@@ -677,38 +964,30 @@ public class InputEW {
    */
   public void setWinston(final WinstonDatabase db) {
     winston = db;
+    channelState = ChannelState.getInstance(db);
   }
 
   /*
-   * Checks if a table exists.
+   * Checks if a table exists. A miss looks the table up again, since another process may have
+   * created it since the shared table catalog was loaded.
    *
-   * @param code the code to check
+   * @param code the channel database to check
    *
-   * @param date the date to check
+   * @param table the table to check
    *
    * @return indicator of table existence
    */
-  private boolean tableExists(final String table) {
-
-    if (checkTableCache.contains(table)) {
+  private boolean tableExists(final String code, final String table) {
+    final DayTableCatalog catalog = winston.getDayTableCatalog();
+    if (catalog.tableExists(winston, code, table)) {
       return true;
     }
 
-    try {
-      final ResultSet rs = winston.getStatement().executeQuery("SHOW TABLES LIKE '" + table + "'");
-      final boolean result = rs.next();
-      if (result) {
-        checkTableCache.add(table);
-        rs.close();
-      }
-      return result;
-    } catch (final Exception e) {
-    }
-    return false;
+    return catalog.refresh(winston, code, table);
   }
 
   /**
-   * Checks if a table exists.
+   * Checks if a day table exists.
    *
    * @param code
    *          the code to check
@@ -716,57 +995,68 @@ public class InputEW {
    *          the date to check
    * @return indicator of table existence
    */
-  private boolean tableExists(final String code, final String date) {
-    return tableExists(code + "$$" + date);
+  private boolean dayTableExists(final String code, final String date) {
+    final StorageLayout layout = winston.getLayout();
+    if (layout.dayExists(winston, code, date)) {
+      return true;
+    }
+
+    // shared days are reloaded by the layout itself; a day of a channel database exists when its
+    // wave table does, so look that table up in case another process has just created it
+    return !layout.isShared() && winston.getDayTableCatalog().refresh(winston, code,
+        DayTableCatalog.waveTable(code, date));
   }
 
   /**
-   * Updates a helicorder row.
+   * Updates a helicorder row. Package-private so tests can drive it from several writers at once.
    *
    * @param channel
    * @param date
    * @param tb
    * @throws SQLException
    */
-  private void updateHelicorderData(final Set<Double> modifiedRows, final String channel,
+  void updateHelicorderData(final Set<Double> modifiedRows, final String channel,
       final String date, final TraceBuf tb, final boolean computeRsam, final int delta,
       final int duration, final boolean useDB) // throws SQLException
   {
-    // TODO: optimize/simplify
-    final double fst = Math.floor(tb.getStartTimeJ2K());
-    final double cet = Math.ceil(tb.getEndTimeJ2K());
-    final double[][] heliList = new double[((int) Math.round(cet - fst)) + 1][];
-    int j = 0;
-    for (int i = (int) Math.round(fst); i <= (int) Math.round(cet); i++) {
+    final HeliAccumulator rows = getHelicorderRows(channel);
+    synchronized (rows) {
+      updateHelicorderData(rows, modifiedRows, channel, tb, computeRsam, delta, duration, useDB);
+    }
+  }
+
+  private void updateHelicorderData(final HeliAccumulator rows, final Set<Double> modifiedRows,
+      final String channel, final TraceBuf tb, final boolean computeRsam, final int delta,
+      final int duration, final boolean useDB) {
+    final long fst = (long) Math.floor(tb.getStartTimeJ2K());
+    final long cet = (long) Math.ceil(tb.getEndTimeJ2K());
+
+    // every row of the tracebuf, and the look-back window, must fit in the ring at once
+    rows.ensureCapacity(Math.max(maxRows, (int) (cet - fst) + 1 + delta + duration));
+
+    for (long i = fst; i <= cet; i++) {
       modifiedRows.add((double) i);
-      heliList[j] = getHelicorderRow(channel, i, useDB);
+      final int slot = getHelicorderRow(rows, channel, i, useDB);
       if (computeRsam) {
-        final double mu = getRSAMMu(channel, i, delta, duration);
-        heliList[j][HeliFields.MU] = mu;
+        rows.setMu(slot, rows.mean(i, delta, duration));
       }
-      j++;
     }
+
     double st = tb.getStartTimeJ2K();
     final double dt = 1 / tb.samplingRate();
-
-    for (int i = 0; i < tb.numSamples(); i++) {
-      j = (int) (Math.floor(st) - fst);
-      final double[] d = heliList[j];
-      final int sample = tb.samples()[i];
-      d[HeliFields.SMIN] = Math.min(d[HeliFields.SMIN], sample);
-      d[HeliFields.SMAX] = Math.max(d[HeliFields.SMAX], sample);
-      if (computeRsam) {
-        // original RSAM
-        d[HeliFields.RSAM] =
-            (d[HeliFields.RSAM] * d[HeliFields.RCNT] + Math.abs(sample)) / (d[HeliFields.RCNT] + 1);
-        // average of samples
-        d[HeliFields.MEAN] =
-            (d[HeliFields.MEAN] * d[HeliFields.RCNT] + sample) / (d[HeliFields.RCNT] + 1);
-        d[HeliFields.WEIGHTED_RSAM] =
-            (d[HeliFields.WEIGHTED_RSAM] * d[HeliFields.RCNT] + Math.abs(sample - d[HeliFields.MU]))
-                / (d[HeliFields.RCNT] + 1);
-        d[HeliFields.RCNT]++;
+    final int[] samples = tb.samples();
+    final int numSamples = tb.numSamples();
+
+    // consecutive samples fall in the same row, so only look the slot up when the second changes
+    long second = fst;
+    int slot = rows.find(second);
+    for (int i = 0; i < numSamples; i++) {
+      final long s = (long) Math.floor(st);
+      if (s != second) {
+        second = s;
+        slot = rows.find(second);
       }
+      rows.add(slot, samples[i], computeRsam);
       st += dt;
     }
   }
@@ -782,27 +1072,95 @@ public class InputEW {
   private double writeHelicorderData(final String channel, final Set<Double> modifiedRows) // throws
   // SQLException
   {
-    for (final double j2k : modifiedRows) {
+    final List<Double> batch = new ArrayList<Double>(heliBatchSize);
+    String batchDate = null;
+    for (final double j2k : new TreeSet<Double>(modifiedRows)) {
       final String date = dateFormat.format(J2kSec.asDate(j2k));
-      final String table = channel + "$$H" + date;
-
-      final double[] row = getHelicorderRow(channel, j2k, false);
-      final String sql = String.format(
-          "INSERT INTO `%s` (j2ksec, smin, smax, rcnt, rsam) "
-              + "VALUES (%f,%d,%d,%d,%f) ON DUPLICATE KEY UPDATE "
-              + "smin=VALUES(smin), smax=VALUES(smax), rcnt=VALUES(rcnt), rsam=VALUES(rsam)",
-          table, j2k, (int) row[HeliFields.SMIN], (int) row[HeliFields.SMAX],
-          (int) row[HeliFields.RCNT], row[HeliFields.WEIGHTED_RSAM]);
-      try {
-        winston.getStatement().execute(sql);
-      } catch (final SQLException ex) {
-        LOGGER.warn("Could not write helicorder row: {}", ex.getMessage());
-        LOGGER.warn("SQL: {}", sql);
-        return j2k;
+
+      if (!date.equals(batchDate) || batch.size() == heliBatchSize) {
+        if (!writeHelicorderRows(channel, batchDate, batch)) {
+          return batch.get(0);
+        }
+        batch.clear();
+        batchDate = date;
+      }
+      batch.add(j2k);
+    }
+    if (!writeHelicorderRows(channel, batchDate, batch)) {
+      return batch.get(0);
+    }
+
+    if (!modifiedRows.isEmpty() && winston.getLayout().hasRollups()) {
+      double first = Double.MAX_VALUE;
+      double last = -Double.MAX_VALUE;
+      for (final double j2k : modifiedRows) {
+        first = Math.min(first, j2k);
+        last = Math.max(last, j2k);
       }
+      new HeliRollup(winston).update(channel, first, last);
     }
 
     return Double.NaN;
   }
 
+  /**
+   * Upserts helicorder rows of a single day with one multi-row statement sized to the rows. The
+   * statement for each size is prepared once and cached with the connection's other statements.
+   *
+   * @return false if the rows could not be written
+   */
+  private boolean writeHelicorderRows(final String channel, final String date,
+      final List<Double> j2ks) {
+    if (j2ks.isEmpty()) {
+      return true;
+    }
+
+    final StorageLayout layout = winston.getLayout();
+    final String table = layout.heliTable(winston, channel, date);
+
+    try {
+      final PreparedStatement ps =
+          winston.getPreparedStatement(getHeliUpsertSql(channel, date, j2ks.size()));
+      if (ps == null) {
+        return false;
+      }
+
+      int index = 1;
+      final HeliAccumulator rows = getHelicorderRows(channel);
+      synchronized (rows) {
+        for (final double j2k : j2ks) {
+          final int slot = getHelicorderRow(rows, channel, Math.round(j2k), false);
+          ps.setDouble(index++, j2k);
+          ps.setInt(index++, rows.getMin(slot));
+          ps.setInt(index++, rows.getMax(slot));
+          ps.setInt(index++, rows.getCount(slot));
+          ps.setDouble(index++, rows.getWeightedRsam(slot));
+        }
+      }
+      ps.executeUpdate();
+    } catch (final SQLException ex) {
+      LOGGER.warn("Could not write helicorder rows to {} starting at {}: {}", table, j2ks.get(0),
+          ex.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return statement upserting a number of helicorder rows of one day
+   */
+  private String getHeliUpsertSql(final String channel, final String date, final int count) {
+    final StorageLayout layout = winston.getLayout();
+    final String row = "(" + layout.keyValues(winston, channel, date) + "?,?,?,?,?)";
+    final StringBuilder sql = new StringBuilder();
+    sql.append("INSERT INTO ").append(layout.heliTable(winston, channel, date)).append(" (")
+        .append(layout.keyColumns()).append("j2ksec, smin, smax, rcnt, rsam) VALUES ");
+    for (int i = 0; i < count; i++) {
+      sql.append(i == 0 ? row : "," + row);
+    }
+    sql.append(" ON DUPLICATE KEY UPDATE ");
+    sql.append("smin=VALUES(smin), smax=VALUES(smax), rcnt=VALUES(rcnt), rsam=VALUES(rsam)");
+    return sql.toString();
+  }
+
 }
@@ -0,0 +1,157 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of disjoint time intervals kept in primitive arrays sorted by start time. Intervals closer
+ * than a tolerance are merged as they are added, so the set holds one interval for each stretch of
+ * contiguous data and its size grows with the number of gaps, not the number of tracebufs.
+ *
+ * This class is not thread safe.
+ *
+ * @author Tom Parker
+ */
+class IntervalSet {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final double tolerance;
+  private double[] starts;
+  private double[] ends;
+  private int size;
+
+  /**
+   * Constructor.
+   *
+   * @param tolerance intervals separated by no more than this are merged
+   */
+  IntervalSet(final double tolerance) {
+    this.tolerance = tolerance;
+    starts = new double[INITIAL_CAPACITY];
+    ends = new double[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Add an interval, merging it with any it overlaps or nearly touches.
+   *
+   * @param st start time
+   * @param et end time
+   */
+  void add(final double st, final double et) {
+    // ends are sorted too, since the intervals are disjoint
+    final int first = firstEndAtLeast(st - tolerance);
+    int last = first - 1;
+    while (last + 1 < size && starts[last + 1] <= et + tolerance) {
+      last++;
+    }
+
+    if (last < first) {
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        ends = Arrays.copyOf(ends, size * 2);
+      }
+      System.arraycopy(starts, first, starts, first + 1, size - first);
+      System.arraycopy(ends, first, ends, first + 1, size - first);
+      starts[first] = st;
+      ends[first] = et;
+      size++;
+      return;
+    }
+
+    starts[first] = Math.min(st, starts[first]);
+    ends[first] = Math.max(et, ends[last]);
+    final int removed = last - first;
+    if (removed > 0) {
+      System.arraycopy(starts, last + 1, starts, first + 1, size - last - 1);
+      System.arraycopy(ends, last + 1, ends, first + 1, size - last - 1);
+      size -= removed;
+    }
+  }
+
+  /**
+   * Add every interval of another set.
+   *
+   * @param other intervals to add
+   */
+  void addAll(final IntervalSet other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.starts[i], other.ends[i]);
+    }
+  }
+
+  /**
+   * @return number of intervals
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param index interval index
+   * @return start time of the interval
+   */
+  double getStart(final int index) {
+    return starts[index];
+  }
+
+  /**
+   * @param index interval index
+   * @return end time of the interval
+   */
+  double getEnd(final int index) {
+    return ends[index];
+  }
+
+  /**
+   * Find the parts of a time range not covered by the set.
+   *
+   * @param t1 start time
+   * @param t2 end time
+   * @return start and end time of each gap, in order
+   */
+  List<double[]> gaps(final double t1, final double t2) {
+    final List<double[]> gaps = new ArrayList<double[]>();
+    double last = t1;
+    for (int i = firstEndAtLeast(t1); i < size && starts[i] < t2; i++) {
+      if (starts[i] > last) {
+        gaps.add(new double[] {last, starts[i]});
+      }
+      last = Math.max(last, ends[i]);
+    }
+    if (last < t2) {
+      gaps.add(new double[] {last, t2});
+    }
+    return gaps;
+  }
+
+  /**
+   * @param t1 start time
+   * @param t2 end time
+   * @return number of seconds of the range covered by the set
+   */
+  double covered(final double t1, final double t2) {
+    double covered = 0;
+    for (int i = firstEndAtLeast(t1); i < size && starts[i] < t2; i++) {
+      covered += Math.min(t2, ends[i]) - Math.max(t1, starts[i]);
+    }
+    return covered;
+  }
+
+  /**
+   * @return index of the first interval ending at or after t, or size if there is none
+   */
+  private int firstEndAtLeast(final double t) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (ends[mid] < t) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,207 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compresses tracebufs using the LZ4 block format. LZ4 trades ratio for speed: matches are found
+ * with a single hash probe and decoding is little more than copying.
+ *
+ * Stored form: tag, uncompressed length as a 4-byte big-endian int, then one LZ4 block.
+ *
+ * @author Tom Parker
+ */
+class Lz4Codec extends TraceBufCodec {
+  private static final int HASH_BITS = 12;
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 65535;
+
+  /** matches may not start within this many bytes of the end of the input */
+  private static final int MF_LIMIT = 12;
+
+  /** the last bytes of the input are always literals */
+  private static final int LAST_LITERALS = 5;
+
+  private static final int HEADER = 5;
+
+  private static final ThreadLocal<HashTable> TABLE = new ThreadLocal<HashTable>() {
+    @Override
+    protected HashTable initialValue() {
+      return new HashTable();
+    }
+  };
+
+  /**
+   * Positions of recent 4-byte sequences, kept between calls. Each call stores positions above
+   * the base and then moves the base past them, so entries left by earlier calls read as empty
+   * and the table only needs clearing when the base would overflow.
+   */
+  private static class HashTable {
+    private final int[] positions = new int[1 << HASH_BITS];
+    private int base;
+  }
+
+  Lz4Codec() {
+    super("lz4");
+  }
+
+  @Override
+  public byte[] encode(final byte[] bytes, final int length) {
+    final byte[] out = CodecBuffers.scratch(HEADER + length + length / 255 + 16);
+    out[0] = LZ4_TAG;
+    out[1] = (byte) (length >>> 24);
+    out[2] = (byte) (length >>> 16);
+    out[3] = (byte) (length >>> 8);
+    out[4] = (byte) length;
+    int op = HEADER;
+
+    int anchor = 0;
+    if (length > MF_LIMIT) {
+      final HashTable hashTable = TABLE.get();
+      final int[] table = hashTable.positions;
+      if (hashTable.base > Integer.MAX_VALUE - length - 1) {
+        Arrays.fill(table, 0);
+        hashTable.base = 0;
+      }
+      final int base = hashTable.base;
+      hashTable.base += length + 1;
+
+      final int limit = length - MF_LIMIT;
+      final int matchLimit = length - LAST_LITERALS;
+      int ip = 0;
+      while (ip < limit) {
+        final int sequence = readInt(bytes, ip);
+        final int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+
+        // entries are positions plus base plus one, so zero and earlier calls' entries are empty
+        final int ref = table[hash] - base - 1;
+        table[hash] = base + ip + 1;
+        if (ref < 0 || ip - ref > MAX_OFFSET || readInt(bytes, ref) != sequence) {
+          ip++;
+          continue;
+        }
+
+        int matchLength = MIN_MATCH;
+        while (ip + matchLength < matchLimit && bytes[ref + matchLength] == bytes[ip + matchLength]) {
+          matchLength++;
+        }
+
+        op = writeSequence(out, op, bytes, anchor, ip - anchor, ip - ref, matchLength);
+        ip += matchLength;
+        anchor = ip;
+      }
+    }
+
+    op = writeSequence(out, op, bytes, anchor, length - anchor, 0, 0);
+    return Arrays.copyOf(out, op);
+  }
+
+  @Override
+  protected int decodedLengthBody(final byte[] stored) throws IOException {
+    final int length = ((stored[1] & 0xff) << 24) | ((stored[2] & 0xff) << 16)
+        | ((stored[3] & 0xff) << 8) | (stored[4] & 0xff);
+    if (length < 0) {
+      throw new IOException("Corrupt tracebuf.");
+    }
+    return length;
+  }
+
+  @Override
+  protected byte[] decodeBody(final byte[] stored) throws IOException {
+    final int length = decodedLengthBody(stored);
+
+    final byte[] out = new byte[length];
+    int ip = HEADER;
+    int op = 0;
+    while (true) {
+      final int token = stored[ip++] & 0xff;
+
+      int literals = token >>> 4;
+      if (literals == 15) {
+        int b;
+        do {
+          b = stored[ip++] & 0xff;
+          literals += b;
+        } while (b == 255);
+      }
+      System.arraycopy(stored, ip, out, op, literals);
+      ip += literals;
+      op += literals;
+
+      // the last sequence has no match
+      if (ip == stored.length) {
+        break;
+      }
+
+      final int offset = (stored[ip] & 0xff) | ((stored[ip + 1] & 0xff) << 8);
+      ip += 2;
+      int matchLength = token & 0x0f;
+      if (matchLength == 15) {
+        int b;
+        do {
+          b = stored[ip++] & 0xff;
+          matchLength += b;
+        } while (b == 255);
+      }
+      matchLength += MIN_MATCH;
+
+      int ref = op - offset;
+      if (offset == 0 || ref < 0) {
+        throw new IOException("Corrupt tracebuf.");
+      }
+
+      // matches may overlap their own output, so copy a byte at a time
+      final int end = op + matchLength;
+      while (op < end) {
+        out[op++] = out[ref++];
+      }
+    }
+
+    if (op != length) {
+      throw new IOException("Corrupt tracebuf.");
+    }
+    return out;
+  }
+
+  private static int writeSequence(final byte[] out, int op, final byte[] bytes,
+      final int literalStart, final int literals, final int offset, final int matchLength) {
+    final int tokenIndex = op++;
+    int token;
+    if (literals >= 15) {
+      token = 15 << 4;
+      op = writeLength(out, op, literals - 15);
+    } else {
+      token = literals << 4;
+    }
+    System.arraycopy(bytes, literalStart, out, op, literals);
+    op += literals;
+
+    if (matchLength > 0) {
+      out[op++] = (byte) offset;
+      out[op++] = (byte) (offset >>> 8);
+      final int extra = matchLength - MIN_MATCH;
+      if (extra >= 15) {
+        token |= 15;
+        op = writeLength(out, op, extra - 15);
+      } else {
+        token |= extra;
+      }
+    }
+    out[tokenIndex] = (byte) token;
+    return op;
+  }
+
+  private static int writeLength(final byte[] out, int op, int length) {
+    while (length >= 255) {
+      out[op++] = (byte) 255;
+      length -= 255;
+    }
+    out[op++] = (byte) length;
+    return op;
+  }
+
+  private static int readInt(final byte[] bytes, final int i) {
+    return ((bytes[i] & 0xff) << 24) | ((bytes[i + 1] & 0xff) << 16)
+        | ((bytes[i + 2] & 0xff) << 8) | (bytes[i + 3] & 0xff);
+  }
+}
@@ -2,6 +2,8 @@ package gov.usgs.volcanoes.winston.db;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -71,6 +73,8 @@ public class Merge {
       LOGGER.info("Begin merging.");
       String sql = "INSERT IGNORE INTO `" + code + "$$H" + date + "` VALUES (?,?,?,?,?)";
       final PreparedStatement insert = dest.getConnection().prepareStatement(sql);
+      int first = Integer.MAX_VALUE;
+      int last = Integer.MIN_VALUE;
       final CodeTimer readTimer = new CodeTimer();
       for (final Iterator<Integer> it = sourceTimes.iterator(); it.hasNext();) {
         final int d = it.next().intValue();
@@ -83,10 +87,13 @@ public class Merge {
           insert.setInt(4, srs.getInt(4));
           insert.setDouble(5, srs.getDouble(5));
           final CodeTimer writeTimer = new CodeTimer();
-          insert.execute();
+          if (insert.executeUpdate() > 0) {
+            first = Math.min(first, d);
+            last = Math.max(last, d);
+            total++;
+          }
           writeTimer.stopAndReport();
           write += writeTimer.getRunTimeMillis();
-          total++;
         }
       }
       insert.close();
@@ -94,6 +101,9 @@ public class Merge {
       read = readTimer.getRunTimeMillis() - write;
       LOGGER.info("Done merging, " + read + "ms reading, " + write + "ms writing.");
       LOGGER.info("Merged " + total + " helicorder rows.");
+      if (total > 0) {
+        new HeliRollup(dest).update(code, first, last);
+      }
     } catch (final Exception e) {
       LOGGER.error("Could not merge waves. {}", e);
     }
@@ -129,6 +139,7 @@ public class Merge {
       double write = 0;
       String sql = "INSERT IGNORE INTO `" + code + "$$" + date + "` VALUES (?,?,?,?,?)";
       final PreparedStatement insert = dest.getConnection().prepareStatement(sql);
+      final IntervalSet merged = new IntervalSet(Coverage.TOLERANCE);
       final CodeTimer readTimer = new CodeTimer();
       for (final Iterator<Double> it = sourceTimes.iterator(); it.hasNext();) {
         final double d = it.next().doubleValue();
@@ -141,10 +152,12 @@ public class Merge {
           insert.setString(4, srs.getString(4));
           insert.setBlob(5, srs.getBlob(5));
           final CodeTimer writeTimer = new CodeTimer();
-          insert.execute();
+          if (insert.executeUpdate() > 0) {
+            merged.add(srs.getDouble(1), srs.getDouble(2));
+            total++;
+          }
           writeTimer.stopAndReport();
           write += writeTimer.getRunTimeMillis();
-          total++;
         }
       }
       insert.close();
@@ -152,11 +165,33 @@ public class Merge {
       read = readTimer.getRunTimeMillis() - write;
       LOGGER.info("Done merging, " + read + "ms reading, " + write + "ms writing.");
       LOGGER.info("Merged " + total + " wave rows.");
+      if (total > 0) {
+        recordWaves(code, date, merged, total);
+      }
     } catch (final Exception e) {
       LOGGER.error("Could not merge waves. {}", e);
     }
   }
 
+  /**
+   * Record merged wave rows the way the importers record the rows they write: merge them into the
+   * channel's coverage and count them in the day's stamp, so servers reading the channel through a
+   * trace buffer index load the day again.
+   */
+  private void recordWaves(final String code, final String date, final IntervalSet merged,
+      final int total) {
+    try {
+      new Coverage(dest).add(code, merged);
+      new DayStamps(dest).add(code, Collections.singletonMap(date, total));
+    } catch (final SQLException e) {
+      LOGGER.error("Could not record merged rows of channel: {}. ({})", code,
+          e.getLocalizedMessage());
+    }
+    if (dest.getTraceBufIndex() != null) {
+      dest.getTraceBufIndex().invalidate(code);
+    }
+  }
+
   public void fullMerge(final String code, final String date) {
     mergeWaves(code, date);
     mergeHelicorders(code, date);
@@ -0,0 +1,161 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.util.UtilException;
+
+/**
+ * Splits a read into independent tasks, typically one per day table, and runs them on several
+ * connections at once. Results are returned in task order.
+ *
+ * The calling thread works through the tasks on its own connection. Helpers are added only while
+ * idle connections can be borrowed without waiting, and never more than the per-request limit, so
+ * a large request cannot starve the pool and a busy pool degrades to a sequential read.
+ *
+ * @author Tom Parker
+ */
+public class ParallelReader {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ParallelReader.class);
+
+  /**
+   * A source of extra connections.
+   */
+  public interface ConnectionSource {
+    /**
+     * Borrow a connection without waiting.
+     *
+     * @return a connection, or null if none is available
+     */
+    WinstonDatabase tryBorrow();
+
+    /**
+     * Return a borrowed connection.
+     *
+     * @param winston the connection
+     */
+    void release(WinstonDatabase winston);
+  }
+
+  /**
+   * A unit of work run against a single connection.
+   *
+   * @param <T> result type
+   */
+  public interface Task<T> {
+    /**
+     * Run the task.
+     *
+     * @param winston connection to use
+     * @return result
+     * @throws UtilException when things go wrong
+     */
+    T run(WinstonDatabase winston) throws UtilException;
+  }
+
+  private final ExecutorService executor;
+  private final ConnectionSource source;
+  private final int limit;
+
+  /**
+   * Constructor.
+   *
+   * @param executor runs helpers
+   * @param source source of helper connections
+   * @param limit maximum number of connections used by one request, including the caller's
+   */
+  public ParallelReader(final ExecutorService executor, final ConnectionSource source,
+      final int limit) {
+    this.executor = executor;
+    this.source = source;
+    this.limit = limit;
+  }
+
+  /**
+   * @return maximum number of connections used by one request
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Run tasks, in parallel where possible.
+   *
+   * @param winston the caller's connection
+   * @param tasks tasks to run
+   * @return results, in task order
+   * @throws UtilException if any task fails
+   */
+  public <T> List<T> run(final WinstonDatabase winston, final List<Task<T>> tasks)
+      throws UtilException {
+    final Object[] results = new Object[tasks.size()];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicReference<UtilException> error = new AtomicReference<UtilException>();
+
+    final List<Future<?>> helpers = new ArrayList<Future<?>>();
+    final int helperCount = Math.min(limit, tasks.size()) - 1;
+    for (int i = 0; i < helperCount; i++) {
+      helpers.add(executor.submit(new Runnable() {
+        public void run() {
+          final WinstonDatabase helper = source.tryBorrow();
+          if (helper == null) {
+            return;
+          }
+          try {
+            work(helper, tasks, results, next, error);
+          } finally {
+            source.release(helper);
+          }
+        }
+      }));
+    }
+
+    work(winston, tasks, results, next, error);
+
+    for (final Future<?> helper : helpers) {
+      // helpers that have not started have nothing left to do
+      if (helper.cancel(false)) {
+        continue;
+      }
+      try {
+        helper.get();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new UtilException("Interrupted while reading.");
+      } catch (final ExecutionException e) {
+        LOGGER.error("Parallel read failed. ({})", e.getMessage());
+        error.compareAndSet(null, new UtilException(e.getMessage()));
+      }
+    }
+
+    if (error.get() != null) {
+      throw error.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    final List<T> list = (List<T>) Arrays.asList(results);
+    return list;
+  }
+
+  private static <T> void work(final WinstonDatabase winston, final List<Task<T>> tasks,
+      final Object[] results, final AtomicInteger next,
+      final AtomicReference<UtilException> error) {
+    int index;
+    while (error.get() == null && (index = next.getAndIncrement()) < tasks.size()) {
+      try {
+        results[index] = tasks.get(index).run(winston);
+      } catch (final UtilException e) {
+        error.compareAndSet(null, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.time.CurrentTime;
+
+/**
+ * Every channel in one wave table and one helicorder table in the root database. Rows are keyed
+ * by sid and start time and the tables are range-partitioned by day, one partition per day named
+ * pyyyy_MM_dd, so old days are purged with DROP PARTITION and the number of tables stays fixed.
+ *
+ * MySQL will only partition on an integer expression of columns in every unique key, so each row
+ * also holds its day number, counted from 1970-01-01, and the day is the last column of the
+ * primary key. Queries name the day as well as the sid, which restricts them to one partition.
+ *
+ * Partitions are added in day order. A day older than the newest partition is split out of the
+ * partition that currently covers it with REORGANIZE PARTITION. The partitions of each Winston are
+ * listed from information_schema once and shared by every connection.
+ *
+ * The tables are always InnoDB, whatever winston.tableEngine says. MySQL 5.7 deprecated
+ * partitioned MyISAM tables and MySQL 8.0 will not create them.
+ *
+ * @author Tom Parker
+ */
+class PartitionedLayout extends StorageLayout {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedLayout.class);
+
+  /** minimum time between reloads of the partition list, in milliseconds */
+  private static final long RELOAD_INTERVAL_MS = DayTableCatalog.RELOAD_INTERVAL_MS;
+
+  private static final String WAVE = "wave";
+  private static final String HELI = "heli";
+
+  /** the only engine MySQL still partitions natively */
+  static final String ENGINE = " ENGINE = InnoDB";
+
+  private static final ConcurrentMap<String, Partitions> PARTITIONS =
+      new ConcurrentHashMap<String, Partitions>();
+
+  /**
+   * The day partitions of a single Winston.
+   */
+  private static class Partitions {
+    private final NavigableSet<Integer> days = new ConcurrentSkipListSet<Integer>();
+    private volatile long loadTime = Long.MIN_VALUE;
+  }
+
+  PartitionedLayout() {
+    super("partitioned");
+  }
+
+  @Override
+  public void createTables(final WinstonDatabase winston) throws SQLException {
+    if (!winston.tableEngine.isEmpty() && !winston.tableEngine.equalsIgnoreCase(ENGINE)) {
+      LOGGER.warn("Ignoring{} for partitioned tables, which are always InnoDB.",
+          winston.tableEngine);
+    }
+
+    // the first partition holds nothing; it exists because a partitioned table needs one
+    winston.getStatement()
+        .execute("CREATE TABLE IF NOT EXISTS " + table(winston, WAVE)
+            + " (sid INT NOT NULL, day INT NOT NULL, st DOUBLE NOT NULL, et DOUBLE, sr DOUBLE,"
+            + " datatype CHAR(3), tracebuf BLOB, PRIMARY KEY (sid, st, day))" + ENGINE
+            + " PARTITION BY RANGE (day) (PARTITION p0 VALUES LESS THAN (0))");
+    winston.getStatement()
+        .execute("CREATE TABLE IF NOT EXISTS " + table(winston, HELI)
+            + " (sid INT NOT NULL, day INT NOT NULL, j2ksec DOUBLE NOT NULL, smin INT, smax INT,"
+            + " rcnt INT, rsam DOUBLE, PRIMARY KEY (sid, j2ksec, day))" + ENGINE
+            + " PARTITION BY RANGE (day) (PARTITION p0 VALUES LESS THAN (0))");
+  }
+
+  @Override
+  public boolean useChannel(final WinstonDatabase winston, final String code) {
+    return winston.useRootDatabase() && getSid(winston, code) >= 0;
+  }
+
+  @Override
+  public void createChannel(final WinstonDatabase winston, final String code) {}
+
+  @Override
+  public void deleteChannel(final WinstonDatabase winston, final String code)
+      throws SQLException {
+    final int sid = getSid(winston, code);
+    if (sid < 0) {
+      return;
+    }
+    winston.getStatement().execute("DELETE FROM " + table(winston, WAVE) + " WHERE sid=" + sid);
+    winston.getStatement().execute("DELETE FROM " + table(winston, HELI) + " WHERE sid=" + sid);
+  }
+
+  @Override
+  public void createDay(final WinstonDatabase winston, final String code, final String date)
+      throws SQLException {
+    final int day = dayNumber(date);
+    final Partitions partitions = getPartitions(winston);
+    synchronized (partitions) {
+      if (partitions.days.contains(day)) {
+        return;
+      }
+      load(winston, partitions);
+      if (partitions.days.contains(day)) {
+        return;
+      }
+
+      final Integer next = partitions.days.higher(day);
+      try {
+        for (final String name : new String[] {WAVE, HELI}) {
+          if (next == null) {
+            winston.getStatement().execute("ALTER TABLE " + table(winston, name)
+                + " ADD PARTITION (" + partition(day) + ")");
+          } else {
+            winston.getStatement()
+                .execute("ALTER TABLE " + table(winston, name) + " REORGANIZE PARTITION "
+                    + partitionName(next) + " INTO (" + partition(day) + ", " + partition(next)
+                    + ")");
+          }
+        }
+      } catch (final SQLException e) {
+        // another importer may have added the partition first
+        load(winston, partitions);
+        if (!partitions.days.contains(day)) {
+          throw e;
+        }
+        return;
+      }
+      partitions.days.add(day);
+      LOGGER.info("Created partition {}", partitionName(day));
+    }
+  }
+
+  @Override
+  public void dropDay(final WinstonDatabase winston, final String code, final String date)
+      throws SQLException {
+    final int day = dayNumber(date);
+    final Partitions partitions = getPartitions(winston);
+    synchronized (partitions) {
+      partitions.days.remove(day);
+      for (final String name : new String[] {WAVE, HELI}) {
+        winston.getStatement().execute(
+            "ALTER TABLE " + table(winston, name) + " DROP PARTITION " + partitionName(day));
+      }
+    }
+  }
+
+  @Override
+  public boolean dayExists(final WinstonDatabase winston, final String code, final String date) {
+    final int day = dayNumber(date);
+    final Partitions partitions = getPartitions(winston);
+    if (partitions.days.contains(day)) {
+      return true;
+    }
+
+    if (CurrentTime.getInstance().now() - partitions.loadTime > RELOAD_INTERVAL_MS) {
+      synchronized (partitions) {
+        load(winston, partitions);
+      }
+      return partitions.days.contains(day);
+    }
+    return false;
+  }
+
+  @Override
+  public List<String> getDays(final WinstonDatabase winston, final String code) {
+    final Partitions partitions = getPartitions(winston);
+    final List<String> dates = new ArrayList<String>(partitions.days.size());
+    for (final int day : partitions.days) {
+      dates.add(dayDate(day));
+    }
+    return dates;
+  }
+
+  @Override
+  public boolean isShared() {
+    return true;
+  }
+
+  @Override
+  public boolean hasRollups() {
+    return false;
+  }
+
+  @Override
+  public String waveTable(final WinstonDatabase winston, final String code, final String date) {
+    return table(winston, WAVE);
+  }
+
+  @Override
+  public String heliTable(final WinstonDatabase winston, final String code, final String date) {
+    return table(winston, HELI);
+  }
+
+  @Override
+  public String dayFilter(final WinstonDatabase winston, final String code, final String date) {
+    return "sid=" + getSid(winston, code) + " AND day=" + dayNumber(date) + " AND ";
+  }
+
+  @Override
+  public String keyColumns() {
+    return "sid, day, ";
+  }
+
+  @Override
+  public String keyValues(final WinstonDatabase winston, final String code, final String date) {
+    return getSid(winston, code) + ", " + dayNumber(date) + ", ";
+  }
+
+  private static String table(final WinstonDatabase winston, final String name) {
+    return "`" + winston.databasePrefix + "_ROOT`." + name;
+  }
+
+  private static String partitionName(final int day) {
+    return "p" + dayDate(day);
+  }
+
+  private static String partition(final int day) {
+    return "PARTITION " + partitionName(day) + " VALUES LESS THAN (" + (day + 1) + ")";
+  }
+
+  private static Partitions getPartitions(final WinstonDatabase winston) {
+    final String key = winston.dbURL + "/" + winston.databasePrefix;
+    Partitions partitions = PARTITIONS.get(key);
+    if (partitions == null) {
+      partitions = new Partitions();
+      final Partitions existing = PARTITIONS.putIfAbsent(key, partitions);
+      if (existing != null) {
+        partitions = existing;
+      }
+    }
+    if (partitions.loadTime == Long.MIN_VALUE) {
+      synchronized (partitions) {
+        if (partitions.loadTime == Long.MIN_VALUE) {
+          load(winston, partitions);
+        }
+      }
+    }
+    return partitions;
+  }
+
+  /**
+   * Reload the partition list. The caller must hold the lock on partitions.
+   */
+  private static void load(final WinstonDatabase winston, final Partitions partitions) {
+    partitions.loadTime = CurrentTime.getInstance().now();
+    final PreparedStatement ps = winston.getPreparedStatement(
+        "SELECT PARTITION_NAME FROM information_schema.PARTITIONS WHERE TABLE_SCHEMA=? "
+            + "AND TABLE_NAME=? AND PARTITION_NAME<>'p0'");
+    if (ps == null) {
+      return;
+    }
+
+    try {
+      ps.setString(1, winston.databasePrefix + "_ROOT");
+      ps.setString(2, WAVE);
+      final ResultSet rs = ps.executeQuery();
+      final List<Integer> days = new ArrayList<Integer>();
+      while (rs.next()) {
+        days.add(dayNumber(rs.getString(1).substring(1)));
+      }
+      rs.close();
+      partitions.days.retainAll(days);
+      partitions.days.addAll(days);
+    } catch (final SQLException e) {
+      LOGGER.error("Could not list partitions. ({})", e.getLocalizedMessage());
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * How wave and helicorder rows are laid out in the database.
+ *
+ * The original layout gives every channel its own database holding a wave and a helicorder table
+ * for each day. The partitioned layout keeps every channel in a single wave table and a single
+ * helicorder table in the root database, keyed by sid and range-partitioned by day, so the number
+ * of tables no longer grows with channels times days.
+ *
+ * Readers and writers build their SQL from the pieces returned here, so the same statement shape
+ * works with either layout:
+ *
+ * <pre>
+ * SELECT ... FROM [waveTable] WHERE [dayFilter]st&gt;=? ...
+ * INSERT INTO [waveTable] ([keyColumns]st, et, sr, datatype, tracebuf) VALUES ([keyValues]?,?,?,?,?)
+ * </pre>
+ *
+ * @author Tom Parker
+ */
+public abstract class StorageLayout {
+
+  /** one database per channel, two tables per day */
+  public static final StorageLayout DAY_TABLES = new DayTableLayout();
+
+  /** one wave and one helicorder table for all channels, partitioned by day */
+  public static final StorageLayout PARTITIONED = new PartitionedLayout();
+
+  private final String name;
+
+  protected StorageLayout(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return name used in configuration files
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Find a layout by name.
+   *
+   * @param name layout name, ignoring case
+   * @return layout, or null if there is no layout by that name
+   */
+  public static StorageLayout forName(final String name) {
+    for (final StorageLayout layout : new StorageLayout[] {DAY_TABLES, PARTITIONED}) {
+      if (layout.name.equalsIgnoreCase(name)) {
+        return layout;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Create any tables the layout keeps in the root database. The root database must be selected.
+   *
+   * @param winston the database
+   * @throws SQLException if the tables cannot be created
+   */
+  public abstract void createTables(WinstonDatabase winston) throws SQLException;
+
+  /**
+   * Select the database holding a channel's rows.
+   *
+   * @param winston the database
+   * @param code channel
+   * @return false if the channel has no storage
+   */
+  public abstract boolean useChannel(WinstonDatabase winston, String code);
+
+  /**
+   * Create storage for a new channel. The channel's row in the channels table already exists.
+   *
+   * @param winston the database
+   * @param code channel
+   * @throws SQLException if the storage cannot be created
+   */
+  public abstract void createChannel(WinstonDatabase winston, String code) throws SQLException;
+
+  /**
+   * Remove a channel's rows. Called before the channel's row in the channels table is removed.
+   *
+   * @param winston the database
+   * @param code channel
+   * @throws SQLException if the rows cannot be removed
+   */
+  public abstract void deleteChannel(WinstonDatabase winston, String code) throws SQLException;
+
+  /**
+   * Create storage for a day of a channel. Does nothing if it exists.
+   *
+   * @param winston the database
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @throws SQLException if the storage cannot be created
+   */
+  public abstract void createDay(WinstonDatabase winston, String code, String date)
+      throws SQLException;
+
+  /**
+   * Drop a day. In a layout whose days are shared this drops the day of every channel.
+   *
+   * @param winston the database
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @throws SQLException if the day cannot be dropped
+   */
+  public abstract void dropDay(WinstonDatabase winston, String code, String date)
+      throws SQLException;
+
+  /**
+   * @param winston connection used if the catalog must be loaded
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return true if the day has storage
+   */
+  public abstract boolean dayExists(WinstonDatabase winston, String code, String date);
+
+  /**
+   * @param winston the database
+   * @param code channel
+   * @return dates with storage, in order, or null if they cannot be listed
+   */
+  public abstract List<String> getDays(WinstonDatabase winston, String code);
+
+  /**
+   * @return true if a day's storage is shared by every channel
+   */
+  public abstract boolean isShared();
+
+  /**
+   * @return true if helicorder rollup tables are kept
+   */
+  public abstract boolean hasRollups();
+
+  /**
+   * @param winston the database
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return wave table holding the day, quoted
+   */
+  public abstract String waveTable(WinstonDatabase winston, String code, String date);
+
+  /**
+   * @param winston the database
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return helicorder table holding the day, quoted
+   */
+  public abstract String heliTable(WinstonDatabase winston, String code, String date);
+
+  /**
+   * Conditions selecting a channel's rows for a day from waveTable or heliTable.
+   *
+   * @param winston the database
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return conditions followed by " AND ", or an empty string if the table holds only the day
+   */
+  public abstract String dayFilter(WinstonDatabase winston, String code, String date);
+
+  /**
+   * @return columns preceding the stored columns of an insert, followed by ", ", or an empty
+   *         string
+   */
+  public abstract String keyColumns();
+
+  /**
+   * @param winston the database
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return values of keyColumns, followed by ", ", or an empty string
+   */
+  public abstract String keyValues(WinstonDatabase winston, String code, String date);
+
+  /**
+   * Number of a day, counted from 1970-01-01.
+   *
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return day number
+   */
+  public static int dayNumber(final String date) {
+    try {
+      return (int) (dateFormat().parse(date).getTime() / 86400000L);
+    } catch (final ParseException e) {
+      throw new IllegalArgumentException("Bad date: " + date);
+    }
+  }
+
+  /**
+   * @param day day number, counted from 1970-01-01
+   * @return date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   */
+  public static String dayDate(final int day) {
+    return dateFormat().format(new Date(day * 86400000L));
+  }
+
+  private static DateFormat dateFormat() {
+    final DateFormat format = new SimpleDateFormat(WinstonDatabase.WINSTON_TABLE_DATE_FORMAT);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format;
+  }
+
+  /**
+   * Look up a channel's sid, caching it in the shared channel state.
+   *
+   * @param winston the database
+   * @param code channel
+   * @return sid, or -1 if the channel does not exist
+   */
+  protected static int getSid(final WinstonDatabase winston, final String code) {
+    final ChannelState state = ChannelState.getInstance(winston);
+    final Integer cached = state.getSid(code);
+    if (cached != null) {
+      return cached;
+    }
+
+    try {
+      final PreparedStatement ps = winston.getPreparedStatement(
+          "SELECT sid FROM `" + winston.databasePrefix + "_ROOT`.channels WHERE code=?");
+      ps.setString(1, code);
+      final ResultSet rs = ps.executeQuery();
+      try {
+        if (rs.next()) {
+          final int sid = rs.getInt(1);
+          state.putSid(code, sid);
+          return sid;
+        }
+      } finally {
+        rs.close();
+      }
+    } catch (final SQLException e) {
+      // treated as a missing channel
+    }
+    return -1;
+  }
+}
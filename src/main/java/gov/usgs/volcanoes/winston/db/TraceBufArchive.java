@@ -0,0 +1,503 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.time.CurrentTime;
+import gov.usgs.volcanoes.core.time.J2kSec;
+
+/**
+ * Closed days of tracebufs, exported from the database into immutable files. Each archived day of
+ * a channel is a pair of files in a directory named by the channel code: yyyy_MM_dd.tb holds the
+ * decoded tracebufs back to back in start time order, and yyyy_MM_dd.tbi holds an index entry of
+ * start time, end time, offset and length for each of them. The index is written last, so a day
+ * is archived once its index exists.
+ *
+ * Because the tracebufs of a day are stored in the order they are served, the tracebufs of a
+ * request are one contiguous run of a data file, which the server can send to the client straight
+ * from the file without copying it through the heap.
+ *
+ * Beside each day, yyyy_MM_dd.tbc holds the day's {@link DayStamps} count when it was exported. A
+ * day whose count has since changed, because a tracebuf arrived late, is stale: it is not served
+ * from the archive while the database still holds it, and is exported again the next time main
+ * runs. A day that has been purged from the database has no count and is served from the archive.
+ *
+ * Run main to archive every closed day not yet archived, and to export stale days again. Days are
+ * not removed from the database; they age out with the usual purge.
+ *
+ * @author Tom Parker
+ */
+public class TraceBufArchive {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TraceBufArchive.class);
+
+  private static final String DATA_SUFFIX = ".tb";
+  private static final String INDEX_SUFFIX = ".tbi";
+  private static final String COUNT_SUFFIX = ".tbc";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** start time, end time, offset and length */
+  private static final int ENTRY_SIZE = 8 + 8 + 8 + 4;
+
+  private static final long MS_PER_DAY = 86400000L;
+
+  /**
+   * A run of tracebufs in one archived day.
+   */
+  public static class Region {
+    /** end of the day, j2ksec */
+    public final double dayEnd;
+
+    /** data file, or null if no tracebufs of the day were selected */
+    public final File file;
+
+    /** offset of the first tracebuf */
+    public final long position;
+
+    /** length of the run, in bytes */
+    public final long count;
+
+    /** first and last tracebuf of the run */
+    public final byte[] firstBuf;
+    public final byte[] lastBuf;
+
+    private Region(final double dayEnd, final File file, final long position, final long count,
+        final byte[] firstBuf, final byte[] lastBuf) {
+      this.dayEnd = dayEnd;
+      this.file = file;
+      this.position = position;
+      this.count = count;
+      this.firstBuf = firstBuf;
+      this.lastBuf = lastBuf;
+    }
+  }
+
+  private final File directory;
+
+  /** modification time of each channel's directory and the start time read from it */
+  private final ConcurrentHashMap<String, double[]> startTimes;
+
+  /**
+   * Constructor.
+   *
+   * @param directory archive directory, created if needed when a day is archived
+   */
+  public TraceBufArchive(final File directory) {
+    this.directory = directory;
+    startTimes = new ConcurrentHashMap<String, double[]>();
+  }
+
+  /**
+   * @return archive directory
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return true if the day is archived
+   */
+  public boolean hasDay(final String code, final String date) {
+    return indexFile(code, date).exists();
+  }
+
+  /**
+   * @param code channel
+   * @return archived dates, in order
+   */
+  public List<String> getDays(final String code) {
+    final String[] names = new File(directory, code).list(new FilenameFilter() {
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(INDEX_SUFFIX);
+      }
+    });
+    if (names == null) {
+      return Collections.emptyList();
+    }
+
+    final List<String> dates = new ArrayList<String>(names.length);
+    for (final String name : names) {
+      dates.add(name.substring(0, name.length() - INDEX_SUFFIX.length()));
+    }
+    Collections.sort(dates);
+    return dates;
+  }
+
+  /**
+   * @param winston the database
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return true if the day is archived and no tracebuf has been written to it since
+   * @throws SQLException if the day's count cannot be read
+   */
+  public boolean isCurrent(final WinstonDatabase winston, final String code, final String date)
+      throws SQLException {
+    if (!hasDay(code, date)) {
+      return false;
+    }
+    final long written = new DayStamps(winston).get(code, date);
+    return written == 0 || written == getArchivedCount(code, date);
+  }
+
+  /**
+   * The start time is read again only when files are added to or removed from the channel's
+   * directory.
+   *
+   * @param code channel
+   * @return start time of the first archived tracebuf, or NaN if the channel has none
+   */
+  public double getStartTime(final String code) {
+    final long modified = new File(directory, code).lastModified();
+    final double[] cached = startTimes.get(code);
+    if (cached != null && cached[0] == modified) {
+      return cached[1];
+    }
+
+    final double startTime = readStartTime(code);
+    startTimes.put(code, new double[] {modified, startTime});
+    return startTime;
+  }
+
+  private double readStartTime(final String code) {
+    for (final String date : getDays(code)) {
+      try {
+        final RandomAccessFile index = new RandomAccessFile(indexFile(code, date), "r");
+        try {
+          if (index.length() >= ENTRY_SIZE) {
+            return index.readDouble();
+          }
+        } finally {
+          index.close();
+        }
+      } catch (final IOException e) {
+        LOGGER.warn("Could not read archive index for {} {}. ({})", code, date, e.getMessage());
+      }
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Find the tracebufs overlapping t1..t2 in the run of archived days starting with the day
+   * holding t1. The run stops at the first day that is not archived, or is stale; the database
+   * holds the rest.
+   *
+   * @param winston the database, used to find stale days
+   * @param code channel
+   * @param t1 start time
+   * @param t2 end time
+   * @return a region for each archived day, in order, possibly empty
+   * @throws IOException if an archived day cannot be read
+   * @throws SQLException if a day's count cannot be read
+   */
+  public List<Region> getRegions(final WinstonDatabase winston, final String code,
+      final double t1, final double t2) throws IOException, SQLException {
+    final List<Region> regions = new ArrayList<Region>();
+    final int lastDay = day(t2);
+    for (int day = day(t1); day <= lastDay; day++) {
+      final String date = StorageLayout.dayDate(day);
+      if (!isCurrent(winston, code, date)) {
+        break;
+      }
+      regions.add(getRegion(code, date, dayStart(day + 1), t1, t2));
+    }
+    return regions;
+  }
+
+  /**
+   * Archive a day of a channel, replacing a stale copy. Does nothing if the day is archived and
+   * current.
+   *
+   * @param winston the database
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @return number of tracebufs archived
+   * @throws IOException if the files cannot be written
+   * @throws SQLException if the day cannot be read
+   */
+  public int archiveDay(final WinstonDatabase winston, final String code, final String date)
+      throws IOException, SQLException {
+    if (isCurrent(winston, code, date)) {
+      return 0;
+    }
+
+    final File dir = new File(directory, code);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create archive directory " + dir);
+    }
+    final File dataFile = dataFile(code, date);
+    final File indexFile = indexFile(code, date);
+    final File dataTemp = new File(dir, dataFile.getName() + TEMP_SUFFIX);
+    final File indexTemp = new File(dir, indexFile.getName() + TEMP_SUFFIX);
+    final File countFile = countFile(code, date);
+    final File countTemp = new File(dir, countFile.getName() + TEMP_SUFFIX);
+
+    if (!winston.useChannel(code)) {
+      throw new SQLException("Cannot select channel " + code);
+    }
+    // read ahead of the rows, so a row written in between leaves the copy stale, not incomplete
+    final long written = new DayStamps(winston).get(code, date);
+    final StorageLayout layout = winston.getLayout();
+    final PreparedStatement select = winston.getPreparedStatement(
+        "SELECT st, et, tracebuf FROM " + layout.waveTable(winston, code, date) + " WHERE "
+            + layout.dayFilter(winston, code, date) + "1=1 ORDER BY st ASC");
+
+    int count = 0;
+    final DataOutputStream data =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataTemp)));
+    final DataOutputStream index =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexTemp)));
+    try {
+      final ResultSet rs = select.executeQuery();
+      try {
+        long offset = 0;
+        while (rs.next()) {
+          final byte[] bytes = TraceBufCodec.decode(rs.getBytes(3));
+          data.write(bytes);
+          index.writeDouble(rs.getDouble(1));
+          index.writeDouble(rs.getDouble(2));
+          index.writeLong(offset);
+          index.writeInt(bytes.length);
+          offset += bytes.length;
+          count++;
+        }
+      } finally {
+        rs.close();
+      }
+    } finally {
+      data.close();
+      index.close();
+    }
+
+    final DataOutputStream countOut = new DataOutputStream(new FileOutputStream(countTemp));
+    try {
+      countOut.writeLong(written);
+    } finally {
+      countOut.close();
+    }
+
+    // a stale copy stops being served once its index is gone
+    if (indexFile.exists() && !indexFile.delete()) {
+      throw new IOException("Cannot remove stale archived day: " + indexFile);
+    }
+    dataFile.delete();
+    countFile.delete();
+    if (!dataTemp.renameTo(dataFile) || !countTemp.renameTo(countFile)
+        || !indexTemp.renameTo(indexFile)) {
+      dataTemp.delete();
+      indexTemp.delete();
+      countTemp.delete();
+      throw new IOException("Cannot move archived day into place: " + dataFile);
+    }
+    return count;
+  }
+
+  /**
+   * @return the day's count when it was exported, or 0 if it was not recorded
+   */
+  private long getArchivedCount(final String code, final String date) {
+    final File file = countFile(code, date);
+    if (!file.exists()) {
+      return 0;
+    }
+    try {
+      final DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        return in.readLong();
+      } finally {
+        in.close();
+      }
+    } catch (final IOException e) {
+      LOGGER.warn("Could not read archive count for {} {}. ({})", code, date, e.getMessage());
+      return -1;
+    }
+  }
+
+  private Region getRegion(final String code, final String date, final double dayEnd,
+      final double t1, final double t2) throws IOException {
+    final RandomAccessFile index = new RandomAccessFile(indexFile(code, date), "r");
+    try {
+      final int entries = (int) (index.length() / ENTRY_SIZE);
+
+      // first tracebuf starting at or after t1, then back up over any that end after t1
+      int first = search(index, entries, t1);
+      while (first > 0 && endTime(index, first - 1) >= t1) {
+        first--;
+      }
+
+      // last tracebuf starting at or before t2
+      final int last = search(index, entries, Math.nextUp(t2)) - 1;
+      if (first > last) {
+        return new Region(dayEnd, null, 0, 0, null, null);
+      }
+
+      final long position = offset(index, first);
+      final long end = offset(index, last) + length(index, last);
+      final RandomAccessFile data = new RandomAccessFile(dataFile(code, date), "r");
+      try {
+        return new Region(dayEnd, dataFile(code, date), position, end - position,
+            read(data, position, length(index, first)),
+            read(data, offset(index, last), length(index, last)));
+      } finally {
+        data.close();
+      }
+    } finally {
+      index.close();
+    }
+  }
+
+  /**
+   * @return index of the first entry starting at or after t
+   */
+  private static int search(final RandomAccessFile index, final int entries, final double t)
+      throws IOException {
+    int low = 0;
+    int high = entries;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      index.seek((long) mid * ENTRY_SIZE);
+      if (index.readDouble() < t) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static double endTime(final RandomAccessFile index, final int entry) throws IOException {
+    index.seek((long) entry * ENTRY_SIZE + 8);
+    return index.readDouble();
+  }
+
+  private static long offset(final RandomAccessFile index, final int entry) throws IOException {
+    index.seek((long) entry * ENTRY_SIZE + 16);
+    return index.readLong();
+  }
+
+  private static int length(final RandomAccessFile index, final int entry) throws IOException {
+    index.seek((long) entry * ENTRY_SIZE + 24);
+    return index.readInt();
+  }
+
+  private static byte[] read(final RandomAccessFile data, final long position, final int length)
+      throws IOException {
+    final byte[] bytes = new byte[length];
+    data.seek(position);
+    data.readFully(bytes);
+    return bytes;
+  }
+
+  private File dataFile(final String code, final String date) {
+    return new File(new File(directory, code), date + DATA_SUFFIX);
+  }
+
+  private File indexFile(final String code, final String date) {
+    return new File(new File(directory, code), date + INDEX_SUFFIX);
+  }
+
+  private File countFile(final String code, final String date) {
+    return new File(new File(directory, code), date + COUNT_SUFFIX);
+  }
+
+  /**
+   * @param t j2ksec
+   * @return number of the UTC day holding t, counted from 1970-01-01
+   */
+  private static int day(final double t) {
+    return (int) Math.floor(J2kSec.asDate(t).getTime() / (double) MS_PER_DAY);
+  }
+
+  /**
+   * @param day day number
+   * @return j2ksec of the start of the day
+   */
+  private static double dayStart(final int day) {
+    return J2kSec.fromDate(new Date(day * MS_PER_DAY));
+  }
+
+  /**
+   * Archive every closed day of some or all channels.
+   *
+   * @param args archive directory, then channel codes
+   */
+  public static void main(final String[] args) {
+    if (args.length < 1) {
+      System.out.println(
+          "Usage: java gov.usgs.volcanoes.winston.db.TraceBufArchive [directory] [code...]");
+      System.out.println();
+      System.out.println("Archives every day before today not already in [directory], and");
+      System.out.println("exports again days written to since. With no [code], every channel");
+      System.out.println("is archived. Database parameters must be in 'Winston.config'.");
+      System.exit(1);
+    }
+
+    final WinstonDatabase winston =
+        WinstonDatabase.processWinstonConfigFile(new ConfigFile("Winston.config"));
+    if (!winston.checkConnect()) {
+      System.err.println("Cannot connect to Winston.");
+      System.exit(1);
+    }
+
+    final TraceBufArchive archive = new TraceBufArchive(new File(args[0]));
+    final String today = StorageLayout.dayDate((int) (CurrentTime.getInstance().now() / MS_PER_DAY));
+    List<String> codes = Arrays.asList(args).subList(1, args.length);
+    if (codes.isEmpty()) {
+      codes = new ArrayList<String>();
+      try {
+        winston.useRootDatabase();
+        final ResultSet rs = winston.getStatement().executeQuery("SELECT code FROM channels");
+        while (rs.next()) {
+          codes.add(rs.getString(1));
+        }
+        rs.close();
+      } catch (final SQLException e) {
+        System.err.println("Cannot list channels.");
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
+
+    for (final String code : codes) {
+      final List<String> days = winston.getLayout().getDays(winston, code);
+      if (days == null) {
+        continue;
+      }
+      for (final String date : days) {
+        if (date.compareTo(today) >= 0) {
+          continue;
+        }
+        try {
+          if (archive.isCurrent(winston, code, date)) {
+            continue;
+          }
+          final int count = archive.archiveDay(winston, code, date);
+          System.out.println("Archived " + code + " " + date + ", " + count + " tracebufs.");
+        } catch (final Exception e) {
+          System.err.println("Could not archive " + code + " " + date + ": " + e.getMessage());
+        }
+      }
+    }
+    winston.close();
+  }
+}
@@ -0,0 +1,273 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses tracebufs for storage in the wave tables.
+ *
+ * Every stored tracebuf records how it was compressed. Rows written by older versions of Winston
+ * are plain zlib streams, which always begin with 0x78. Other codecs write a one-byte tag that can
+ * never begin a zlib stream followed by their own data, so rows written with any codec can be
+ * read back whatever codec is currently configured.
+ *
+ * There is no zstd codec. The Java bindings for zstd all need a native library, and the delta
+ * codec already beats zlib on integer samples without one. A new codec only needs an unused
+ * tag byte.
+ *
+ * @author Tom Parker
+ */
+public abstract class TraceBufCodec {
+
+  /** zlib, as written by all versions of Winston */
+  public static final TraceBufCodec ZLIB = new ZlibCodec();
+
+  /** first differences of integer samples, variable-length encoded */
+  public static final TraceBufCodec DELTA = new DeltaCodec();
+
+  /** fast byte-oriented compression using the LZ4 block format */
+  public static final TraceBufCodec LZ4 = new Lz4Codec();
+
+  /** tag byte of rows written with DELTA */
+  public static final byte DELTA_TAG = 0x01;
+
+  /** tag byte of rows written with LZ4 */
+  public static final byte LZ4_TAG = 0x02;
+
+  /** first byte of every zlib stream written by java.util.zip */
+  private static final int ZLIB_HEADER = 0x78;
+
+  private static final int TRACEBUF_HEADER = 64;
+  private static final int NSAMP = 4;
+  private static final int DATATYPE = 57;
+
+  private final String name;
+
+  protected TraceBufCodec(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return name used in configuration files
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Find a codec by name.
+   *
+   * @param name codec name, ignoring case
+   * @return codec, or null if there is no codec by that name
+   */
+  public static TraceBufCodec forName(final String name) {
+    for (final TraceBufCodec codec : new TraceBufCodec[] {ZLIB, DELTA, LZ4}) {
+      if (codec.name.equalsIgnoreCase(name)) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Compress the start of a tracebuf for storage.
+   *
+   * @param bytes tracebuf bytes
+   * @param length number of bytes to store
+   * @return stored form, including any tag
+   */
+  public abstract byte[] encode(byte[] bytes, int length);
+
+  /**
+   * Decompress a stored tracebuf, whichever codec wrote it.
+   *
+   * @param stored stored form
+   * @return tracebuf bytes
+   * @throws IOException if the stored form is corrupt
+   */
+  public static byte[] decode(final byte[] stored) throws IOException {
+    if (stored == null || stored.length == 0) {
+      throw new IOException("Empty tracebuf.");
+    }
+
+    final int tag = stored[0] & 0xff;
+    try {
+      if (tag == ZLIB_HEADER) {
+        return ZLIB.decodeBody(stored);
+      } else if (tag == DELTA_TAG) {
+        return DELTA.decodeBody(stored);
+      } else if (tag == LZ4_TAG) {
+        return LZ4.decodeBody(stored);
+      }
+    } catch (final IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt tracebuf.");
+    }
+    throw new IOException("Unknown tracebuf codec: " + tag);
+  }
+
+  /**
+   * Find the length of a stored tracebuf once decompressed, without decompressing all of it.
+   *
+   * @param stored stored form
+   * @return length of the tracebuf, in bytes
+   * @throws IOException if the stored form is corrupt
+   */
+  public static int decodedLength(final byte[] stored) throws IOException {
+    if (stored == null || stored.length == 0) {
+      throw new IOException("Empty tracebuf.");
+    }
+
+    final int tag = stored[0] & 0xff;
+    try {
+      if (tag == ZLIB_HEADER) {
+        return ZLIB.decodedLengthBody(stored);
+      } else if (tag == DELTA_TAG) {
+        return DELTA.decodedLengthBody(stored);
+      } else if (tag == LZ4_TAG) {
+        return LZ4.decodedLengthBody(stored);
+      }
+    } catch (final IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt tracebuf.");
+    }
+    throw new IOException("Unknown tracebuf codec: " + tag);
+  }
+
+  /**
+   * Find the decompressed length of a stored tracebuf known to be written by this codec. Codecs
+   * that do not record the length decompress the whole tracebuf.
+   *
+   * @param stored stored form, including any tag
+   * @return length of the tracebuf, in bytes
+   * @throws IOException if the stored form is corrupt
+   */
+  protected int decodedLengthBody(final byte[] stored) throws IOException {
+    return decodeBody(stored).length;
+  }
+
+  /**
+   * Decompress a stored tracebuf known to be written by this codec.
+   *
+   * @param stored stored form, including any tag
+   * @return tracebuf bytes
+   * @throws IOException if the stored form is corrupt
+   */
+  protected abstract byte[] decodeBody(byte[] stored) throws IOException;
+
+  private static class ZlibCodec extends TraceBufCodec {
+    ZlibCodec() {
+      super("zlib");
+    }
+
+    @Override
+    public byte[] encode(final byte[] bytes, final int length) {
+      final Deflater deflater = CodecBuffers.deflater();
+      try {
+        deflater.setInput(bytes, 0, length);
+        deflater.finish();
+
+        // room for incompressible input, so one pass is usually enough
+        byte[] buffer = CodecBuffers.scratch(length + (length >>> 12) + (length >>> 14) + 64);
+        int used = 0;
+        while (!deflater.finished()) {
+          if (used == buffer.length) {
+            buffer = CodecBuffers.grow(buffer, used);
+          }
+          used += deflater.deflate(buffer, used, buffer.length - used);
+        }
+        return Arrays.copyOf(buffer, used);
+      } finally {
+        CodecBuffers.release(deflater);
+      }
+    }
+
+    @Override
+    protected byte[] decodeBody(final byte[] stored) throws IOException {
+      final Inflater inflater = CodecBuffers.inflater();
+      inflater.setInput(stored);
+
+      // tracebufs rarely compress by more than four to one
+      byte[] buffer = CodecBuffers.scratch(stored.length * 4);
+      int used = 0;
+      try {
+        while (!inflater.finished()) {
+          if (used == buffer.length) {
+            buffer = CodecBuffers.grow(buffer, used);
+          }
+          final int count = inflater.inflate(buffer, used, buffer.length - used);
+          if (count == 0 && !inflater.finished()
+              && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("Corrupt tracebuf.");
+          }
+          used += count;
+        }
+      } catch (final DataFormatException e) {
+        throw new IOException("Corrupt tracebuf. (" + e.getMessage() + ")");
+      } finally {
+        CodecBuffers.release(inflater);
+      }
+      return Arrays.copyOf(buffer, used);
+    }
+
+    /**
+     * zlib streams do not record their length. Tracebufs are stored as a header followed by their
+     * samples, so only the header is inflated and the length is worked out from the sample count
+     * and data type it gives.
+     */
+    @Override
+    protected int decodedLengthBody(final byte[] stored) throws IOException {
+      final byte[] header = new byte[TRACEBUF_HEADER];
+      final Inflater inflater = CodecBuffers.inflater();
+      inflater.setInput(stored);
+      int used = 0;
+      try {
+        while (used < header.length && !inflater.finished()) {
+          final int count = inflater.inflate(header, used, header.length - used);
+          if (count == 0 && !inflater.finished()
+              && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("Corrupt tracebuf.");
+          }
+          used += count;
+        }
+      } catch (final DataFormatException e) {
+        throw new IOException("Corrupt tracebuf. (" + e.getMessage() + ")");
+      } finally {
+        CodecBuffers.release(inflater);
+      }
+
+      if (used < header.length) {
+        return used;
+      }
+
+      final boolean bigEndian;
+      final byte order = header[DATATYPE];
+      if (order == 's' || order == 't') {
+        bigEndian = true;
+      } else if (order == 'i' || order == 'f') {
+        bigEndian = false;
+      } else {
+        return decodeBody(stored).length;
+      }
+
+      final byte size = header[DATATYPE + 1];
+      if (size != '2' && size != '4' && size != '8') {
+        return decodeBody(stored).length;
+      }
+
+      final int nsamp;
+      if (bigEndian) {
+        nsamp = (header[NSAMP] << 24) | ((header[NSAMP + 1] & 0xff) << 16)
+            | ((header[NSAMP + 2] & 0xff) << 8) | (header[NSAMP + 3] & 0xff);
+      } else {
+        nsamp = (header[NSAMP + 3] << 24) | ((header[NSAMP + 2] & 0xff) << 16)
+            | ((header[NSAMP + 1] & 0xff) << 8) | (header[NSAMP] & 0xff);
+      }
+      if (nsamp < 0) {
+        throw new IOException("Corrupt tracebuf.");
+      }
+      return TRACEBUF_HEADER + nsamp * (size - '0');
+    }
+  }
+}
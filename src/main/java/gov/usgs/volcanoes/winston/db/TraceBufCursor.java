@@ -0,0 +1,229 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.util.UtilException;
+
+/**
+ * A forward-only cursor over the tracebufs of a single channel. Rows are streamed from the
+ * database one at a time, so memory use does not grow with the length of the request.
+ *
+ * <p>
+ * A cursor may run several queries, one after another, over the same connection. MySQL will not
+ * run another statement on a connection while a streaming result is open, so the cursor must be
+ * closed before its WinstonDatabase is used again.
+ *
+ * @author Tom Parker
+ */
+public class TraceBufCursor implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TraceBufCursor.class);
+
+  private final Connection connection;
+  private final List<String> queries;
+  private final List<double[]> parameters;
+  private final double t1;
+  private final int maxrows;
+  private final String vdxName;
+
+  private int queryIndex;
+  private PreparedStatement statement;
+  private ResultSet resultSet;
+
+  private int numSamplesCounter;
+  private double startTime;
+  private double endTime;
+  private double samplingRate;
+  private String dataType;
+  private byte[] compressedBytes;
+  private byte[] bytes;
+  private boolean decompress = true;
+  private boolean closed;
+
+  /**
+   * Constructor. Queries are run in order, each returning st, et, sr, datatype, and tracebuf
+   * columns in ascending time order.
+   *
+   * @param connection database connection
+   * @param queries tracebuf queries
+   * @param parameters parameters for each query
+   * @param t1 start of request. Earlier tracebufs are skipped unless they overlap t1.
+   * @param maxrows cap on the number of samples returned, or 0 for no cap
+   * @param vdxName data source name used in error messages
+   */
+  TraceBufCursor(final Connection connection, final List<String> queries,
+      final List<double[]> parameters, final double t1, final int maxrows, final String vdxName) {
+    this.connection = connection;
+    this.queries = queries;
+    this.parameters = parameters;
+    this.t1 = t1;
+    this.maxrows = maxrows;
+    this.vdxName = vdxName;
+  }
+
+  /**
+   * Advance to the next tracebuf.
+   *
+   * @return true if a tracebuf is available, false when the cursor is exhausted
+   * @throws UtilException when the sample cap is exceeded
+   * @throws SQLException when the database fails
+   * @throws IOException when a tracebuf cannot be decompressed
+   */
+  public boolean next() throws UtilException, SQLException, IOException {
+    if (closed) {
+      return false;
+    }
+
+    try {
+      while (resultSet != null || openNextQuery()) {
+        if (!resultSet.next()) {
+          closeQuery();
+          continue;
+        }
+
+        final double st = resultSet.getDouble(1);
+        final double et = resultSet.getDouble(2);
+
+        // a tracebuf from before t1 is only wanted if it overlaps t1
+        if (st < t1 && et < t1) {
+          continue;
+        }
+
+        final double sr = resultSet.getDouble(3);
+        numSamplesCounter += (int) (sr * (et - st));
+        if (maxrows > 0 && numSamplesCounter > maxrows) {
+          throw new UtilException("Max rows (" + maxrows + " rows) "
+              + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "") + "exceeded.");
+        }
+
+        startTime = st;
+        endTime = et;
+        samplingRate = sr;
+        dataType = resultSet.getString(4);
+        compressedBytes = resultSet.getBytes(5);
+        bytes = decompress ? TraceBufCodec.decode(compressedBytes) : null;
+        return true;
+      }
+    } catch (final UtilException e) {
+      close();
+      throw e;
+    } catch (final SQLException e) {
+      close();
+      throw e;
+    } catch (final IOException e) {
+      close();
+      throw e;
+    }
+
+    close();
+    return false;
+  }
+
+  /**
+   * @return the current tracebuf, decompressed, or null if decompression is turned off
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the current tracebuf as stored in the database
+   */
+  public byte[] getCompressedBytes() {
+    return compressedBytes;
+  }
+
+  /**
+   * Callers that keep tracebufs compressed can skip decompressing them.
+   *
+   * @param decompress if false, getBytes() will return null
+   */
+  public void setDecompress(final boolean decompress) {
+    this.decompress = decompress;
+  }
+
+  /**
+   * @return start time of the current tracebuf, J2kSec
+   */
+  public double getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * @return end time of the current tracebuf, J2kSec
+   */
+  public double getEndTime() {
+    return endTime;
+  }
+
+  /**
+   * @return sampling rate of the current tracebuf
+   */
+  public double getSamplingRate() {
+    return samplingRate;
+  }
+
+  /**
+   * @return data type of the current tracebuf
+   */
+  public String getDataType() {
+    return dataType;
+  }
+
+  /**
+   * Release any open result. Safe to call more than once.
+   */
+  public void close() {
+    closed = true;
+    closeQuery();
+  }
+
+  private boolean openNextQuery() throws SQLException {
+    if (queryIndex >= queries.size()) {
+      return false;
+    }
+
+    statement = connection.prepareStatement(queries.get(queryIndex), ResultSet.TYPE_FORWARD_ONLY,
+        ResultSet.CONCUR_READ_ONLY);
+
+    // MySQL Connector/J streams rows one at a time only with this fetch size
+    statement.setFetchSize(Integer.MIN_VALUE);
+
+    final double[] params = parameters.get(queryIndex);
+    for (int i = 0; i < params.length; i++) {
+      statement.setDouble(i + 1, params[i]);
+    }
+    queryIndex++;
+
+    resultSet = statement.executeQuery();
+    return true;
+  }
+
+  private void closeQuery() {
+    if (resultSet != null) {
+      try {
+        resultSet.close();
+      } catch (final SQLException e) {
+        LOGGER.debug("Could not close tracebuf result set. ({})", e.getMessage());
+      }
+      resultSet = null;
+    }
+
+    if (statement != null) {
+      try {
+        statement.close();
+      } catch (final SQLException e) {
+        LOGGER.debug("Could not close tracebuf statement. ({})", e.getMessage());
+      }
+      statement = null;
+    }
+  }
+}
@@ -0,0 +1,284 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded LRU index of the start and end times of tracebufs, one TraceBufIntervals for
+ * each channel-day. A day is loaded from its st and et columns the first time it is asked for.
+ * With it, the tracebuf overlapping the start of a request is found in memory and read by its
+ * primary key, and gaps are found without reading the wave table at all.
+ *
+ * Rows inserted through this process are added as they are written. Rows inserted by another
+ * process, usually an ImportEW feeding the database a WWS reads, are noticed when a day is asked
+ * for by comparing the {@link DayStamps} count of the day with the one seen when it was read. A
+ * day that has grown is topped up with the rows past its latest start time, and reloaded if that
+ * does not account for every new row, so late rows are seen on any day, open or closed.
+ *
+ * @author Tom Parker
+ */
+public class TraceBufIndex {
+  private final long capacity;
+  private final LinkedHashMap<String, Day> days;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private long size;
+
+  /**
+   * The intervals of one day and the difference between their number and the day's count when
+   * they were read. The difference stays the same while every new row is held.
+   */
+  private static class Day {
+    private final TraceBufIntervals intervals;
+    private final long offset;
+    private final long memorySize;
+
+    private Day(final TraceBufIntervals intervals, final long written) {
+      this.intervals = intervals;
+      offset = intervals.size() - written;
+      memorySize = intervals.memorySize();
+    }
+
+    private boolean isCurrent(final long written) {
+      return intervals.size() == written + offset;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity maximum size of the index, in bytes
+   */
+  public TraceBufIndex(final long capacity) {
+    this.capacity = capacity;
+    days = new LinkedHashMap<String, Day>(16, 0.75f, true);
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+  }
+
+  /**
+   * Find the latest tracebuf starting before a time.
+   *
+   * @param winston the database, with the channel selected
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @param t time
+   * @return start time of the tracebuf, or NaN if the day has none before t
+   * @throws SQLException if the day cannot be read
+   */
+  public double lowerStart(final WinstonDatabase winston, final String code, final String date,
+      final double t) throws SQLException {
+    final Day day = getDay(winston, code, date);
+    if (day == null) {
+      return Double.NaN;
+    }
+
+    synchronized (day) {
+      return day.intervals.lowerStart(t);
+    }
+  }
+
+  /**
+   * Find the tracebufs of a day reaching into a time range.
+   *
+   * @param winston the database, with the channel selected
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @param t1 start time
+   * @param t2 end time
+   * @return start and end time of each tracebuf, by start time
+   * @throws SQLException if the day cannot be read
+   */
+  public List<double[]> getBufTimes(final WinstonDatabase winston, final String code,
+      final String date, final double t1, final double t2) throws SQLException {
+    final Day day = getDay(winston, code, date);
+    if (day == null) {
+      return new ArrayList<double[]>();
+    }
+
+    synchronized (day) {
+      return day.intervals.between(t1, t2);
+    }
+  }
+
+  /**
+   * Record a tracebuf written to the database. Days not yet loaded are left alone.
+   *
+   * @param code channel
+   * @param date date formatted as WinstonDatabase.WINSTON_TABLE_DATE_FORMAT
+   * @param st start time
+   * @param et end time
+   */
+  public void added(final String code, final String date, final double st, final double et) {
+    final Day day;
+    synchronized (days) {
+      day = days.get(code + "/" + date);
+    }
+    if (day == null) {
+      return;
+    }
+
+    synchronized (day) {
+      day.intervals.add(st, et);
+    }
+  }
+
+  /**
+   * Forget the days of a channel, after its rows were purged or removed.
+   *
+   * @param code channel
+   */
+  public void invalidate(final String code) {
+    final String prefix = code + "/";
+    synchronized (days) {
+      final Iterator<Map.Entry<String, Day>> it = days.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<String, Day> entry = it.next();
+        if (entry.getKey().startsWith(prefix)) {
+          size -= entry.getValue().memorySize;
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return number of days served from the index
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of days loaded or reloaded
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return approximate size of the index, in bytes
+   */
+  public long size() {
+    synchronized (days) {
+      return size;
+    }
+  }
+
+  private Day getDay(final WinstonDatabase winston, final String code, final String date)
+      throws SQLException {
+    final StorageLayout layout = winston.getLayout();
+    if (!layout.dayExists(winston, code, date)) {
+      return null;
+    }
+
+    final String key = code + "/" + date;
+    Day day;
+    synchronized (days) {
+      day = days.get(key);
+    }
+
+    // read ahead of the rows, so a row written in between makes a day look changed, not current
+    final long written = new DayStamps(winston).get(code, date);
+    if (day != null && (isCurrent(day, written)
+        || (refresh(winston, code, date, day) && isCurrent(day, written)))) {
+      hits.incrementAndGet();
+      return day;
+    }
+
+    misses.incrementAndGet();
+    day = load(winston, code, date, written);
+    put(key, day);
+    return day;
+  }
+
+  private static boolean isCurrent(final Day day, final long written) {
+    synchronized (day) {
+      return day.isCurrent(written);
+    }
+  }
+
+  private Day load(final WinstonDatabase winston, final String code, final String date,
+      final long written) throws SQLException {
+    final StorageLayout layout = winston.getLayout();
+    final PreparedStatement ps = winston.getPreparedStatement(
+        "SELECT st, et FROM " + layout.waveTable(winston, code, date) + " WHERE "
+            + layout.dayFilter(winston, code, date) + "1=1 ORDER BY st ASC");
+    if (ps == null) {
+      throw new SQLException("Cannot prepare statement");
+    }
+
+    final TraceBufIntervals intervals = new TraceBufIntervals();
+    final ResultSet rs = ps.executeQuery();
+    while (rs.next()) {
+      intervals.add(rs.getDouble(1), rs.getDouble(2));
+    }
+    rs.close();
+
+    return new Day(intervals, written);
+  }
+
+  /**
+   * Add the rows past a day's latest start time, which is where new rows almost always are.
+   *
+   * @return true if any rows were added
+   */
+  private boolean refresh(final WinstonDatabase winston, final String code, final String date,
+      final Day day) throws SQLException {
+    final double last;
+    synchronized (day) {
+      last = day.intervals.lastStart();
+    }
+
+    final StorageLayout layout = winston.getLayout();
+    final PreparedStatement ps = winston.getPreparedStatement(
+        "SELECT st, et FROM " + layout.waveTable(winston, code, date) + " WHERE "
+            + layout.dayFilter(winston, code, date) + "st>? ORDER BY st ASC");
+    if (ps == null) {
+      throw new SQLException("Cannot prepare statement");
+    }
+    ps.setDouble(1, Double.isNaN(last) ? -Double.MAX_VALUE : last);
+
+    final List<double[]> rows = new ArrayList<double[]>();
+    final ResultSet rs = ps.executeQuery();
+    while (rs.next()) {
+      rows.add(new double[] {rs.getDouble(1), rs.getDouble(2)});
+    }
+    rs.close();
+
+    boolean added = false;
+    synchronized (day) {
+      for (final double[] row : rows) {
+        added |= day.intervals.add(row[0], row[1]);
+      }
+    }
+    return added;
+  }
+
+  private void put(final String key, final Day day) {
+    synchronized (days) {
+      final Day old = days.put(key, day);
+      if (old != null) {
+        size -= old.memorySize;
+      }
+      size += day.memorySize;
+
+      final Iterator<Day> it = days.values().iterator();
+      while (size > capacity && it.hasNext()) {
+        final Day victim = it.next();
+        if (victim == day) {
+          continue;
+        }
+        size -= victim.memorySize;
+        it.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The start and end times of the tracebufs of one channel-day, kept in primitive arrays sorted by
+ * start time. Start times are unique, as they are in a wave table's primary key.
+ *
+ * This class is not thread safe.
+ *
+ * @author Tom Parker
+ */
+class TraceBufIntervals {
+  /** bytes used by each interval */
+  static final int INTERVAL_SIZE = 16;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private double[] starts;
+  private double[] ends;
+  private int size;
+
+  /**
+   * Constructor.
+   */
+  TraceBufIntervals() {
+    starts = new double[INITIAL_CAPACITY];
+    ends = new double[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Add an interval. An interval with the start time of one already held is ignored.
+   *
+   * @param st start time
+   * @param et end time
+   * @return false if the start time was already held
+   */
+  boolean add(final double st, final double et) {
+    int index;
+    if (size == 0 || st > starts[size - 1]) {
+      // tracebufs almost always arrive in order
+      index = size;
+    } else {
+      index = ceiling(st);
+      if (index < size && starts[index] == st) {
+        return false;
+      }
+    }
+
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, size * 2);
+      ends = Arrays.copyOf(ends, size * 2);
+    }
+    System.arraycopy(starts, index, starts, index + 1, size - index);
+    System.arraycopy(ends, index, ends, index + 1, size - index);
+    starts[index] = st;
+    ends[index] = et;
+    size++;
+    return true;
+  }
+
+  /**
+   * @return number of intervals
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return bytes used by the arrays
+   */
+  long memorySize() {
+    return (long) starts.length * INTERVAL_SIZE;
+  }
+
+  /**
+   * @return latest start time, or NaN if there are no intervals
+   */
+  double lastStart() {
+    return size == 0 ? Double.NaN : starts[size - 1];
+  }
+
+  /**
+   * @param t time
+   * @return latest start time before t, or NaN if there is none
+   */
+  double lowerStart(final double t) {
+    final int index = ceiling(t) - 1;
+    return index < 0 ? Double.NaN : starts[index];
+  }
+
+  /**
+   * Find the intervals reaching into a time range.
+   *
+   * @param t1 start time
+   * @param t2 end time
+   * @return start and end time of each interval with et &gt;= t1 and st &lt;= t2, by start time
+   */
+  List<double[]> between(final double t1, final double t2) {
+    final List<double[]> intervals = new ArrayList<double[]>();
+    int index = ceiling(t1);
+    // intervals starting before t1 may still reach into the range
+    while (index > 0 && ends[index - 1] >= t1) {
+      index--;
+    }
+    for (; index < size && starts[index] <= t2; index++) {
+      if (ends[index] >= t1) {
+        intervals.add(new double[] {starts[index], ends[index]});
+      }
+    }
+    return intervals;
+  }
+
+  /**
+   * @return index of the first start time &gt;= t, or size if there is none
+   */
+  private int ceiling(final double t) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (starts[mid] < t) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
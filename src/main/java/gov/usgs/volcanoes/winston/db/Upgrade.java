@@ -1,6 +1,9 @@
 package gov.usgs.volcanoes.winston.db;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
 
@@ -210,10 +213,108 @@ public class Upgrade {
       return ugr.description;
   }
 
+  /**
+   * Copy every channel from day tables into the partitioned layout. Channels are copied one day at
+   * a time and rows already copied are skipped, so an interrupted migration can be run again.
+   * Importers and servers must be stopped while the migration runs and configured with
+   * winston.layout=partitioned afterwards.
+   *
+   * @param dropDayTables if true, drop each channel database once it has been copied
+   */
+  public void migrateToPartitions(final boolean dropDayTables) {
+    if (!winston.checkConnect()) {
+      System.err.println("Cannot connect to Winston.");
+      return;
+    }
+
+    final StorageLayout from = StorageLayout.DAY_TABLES;
+    final StorageLayout to = StorageLayout.PARTITIONED;
+    try {
+      winston.useRootDatabase();
+      to.createTables(winston);
+
+      final List<String> codes = new ArrayList<String>();
+      final ResultSet rs = winston.getStatement().executeQuery("SELECT code FROM channels");
+      while (rs.next()) {
+        codes.add(rs.getString(1));
+      }
+      rs.close();
+
+      final DayTableCatalog catalog = winston.getDayTableCatalog();
+      for (final String code : codes) {
+        final String database = "`" + winston.databasePrefix + "_" + code + "`.";
+        final List<String> dates = from.getDays(winston, code);
+        System.out.println("Copying " + code + ", " + dates.size() + " days...");
+        for (final String date : dates) {
+          to.createDay(winston, code, date);
+          winston.getStatement()
+              .execute("INSERT IGNORE INTO " + to.waveTable(winston, code, date) + " ("
+                  + to.keyColumns() + "st, et, sr, datatype, tracebuf) SELECT "
+                  + to.keyValues(winston, code, date) + "st, et, sr, datatype, tracebuf FROM "
+                  + database + from.waveTable(winston, code, date));
+          if (catalog.heliTableExists(winston, code, date)) {
+            winston.getStatement()
+                .execute("INSERT IGNORE INTO " + to.heliTable(winston, code, date) + " ("
+                    + to.keyColumns() + "j2ksec, smin, smax, rcnt, rsam) SELECT "
+                    + to.keyValues(winston, code, date) + "j2ksec, smin, smax, rcnt, rsam FROM "
+                    + database + from.heliTable(winston, code, date));
+          }
+        }
+        if (dropDayTables) {
+          System.out.println("Dropping " + code + " day tables...");
+          from.deleteChannel(winston, code);
+        }
+      }
+      System.out.println("Migration successful. Set winston.layout=partitioned before restarting.");
+    } catch (final SQLException e) {
+      System.err.println("There was an exception during migration.");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Build the coverage of every channel from its wave tables, so gaps are read from the coverage
+   * table. Importers may keep running while coverage is built.
+   */
+  public void buildCoverage() {
+    if (!winston.checkConnect()) {
+      System.err.println("Cannot connect to Winston.");
+      return;
+    }
+
+    try {
+      winston.useRootDatabase();
+      Coverage.createTables(winston);
+
+      final List<String> codes = new ArrayList<String>();
+      final ResultSet rs = winston.getStatement().executeQuery("SELECT code FROM channels");
+      while (rs.next()) {
+        codes.add(rs.getString(1));
+      }
+      rs.close();
+
+      final Coverage coverage = new Coverage(winston);
+      for (final String code : codes) {
+        System.out.println("Building coverage of " + code + "...");
+        if (!coverage.build(code)) {
+          System.err.println("Could not build coverage of " + code + ".");
+        }
+      }
+      System.out.println("Coverage built.");
+    } catch (final SQLException e) {
+      System.err.println("There was an exception while building coverage.");
+      e.printStackTrace();
+    }
+  }
+
   public static void main(final String[] args) {
     final Upgrade ug = new Upgrade();
     if (args.length == 1 && args[0].equals("--upgrade")) {
       ug.doUpgrade();
+    } else if (args.length > 0 && args[0].equals("--partition")) {
+      ug.migrateToPartitions(args.length == 2 && args[1].equals("--drop"));
+    } else if (args.length == 1 && args[0].equals("--coverage")) {
+      ug.buildCoverage();
     } else {
       final String currentSchemaVersion = ug.getCurrentVersion();
       System.out.println("Current Winston schema version: " + currentSchemaVersion);
@@ -223,6 +324,9 @@ public class Upgrade {
       System.out.println(upDescription);
       System.out.println();
       System.out.println("Run with '--upgrade' option to perform an upgrade.");
+      System.out.println("Run with '--partition' to copy day tables to the partitioned layout,");
+      System.out.println("adding '--drop' to drop each channel's day tables once copied.");
+      System.out.println("Run with '--coverage' to build the coverage used to list gaps.");
     }
   }
 
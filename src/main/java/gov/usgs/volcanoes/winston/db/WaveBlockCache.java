@@ -0,0 +1,306 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.time.J2kSec;
+import gov.usgs.volcanoes.core.util.UtilException;
+
+/**
+ * A size-bounded LRU cache of decoded waves. Waves are cached in fixed blocks of BLOCK_SIZE
+ * seconds, aligned on J2kSec, so overlapping requests from many clients share the work of
+ * decompressing and joining tracebufs.
+ *
+ * Before a cached block is used, the tracebufs starting in it, and in the block before it, are
+ * counted and their start times summed. The block before is included because its last tracebuf
+ * may spill into this one. A block whose stamp has changed, because tracebufs arrived late or
+ * because it was still filling when cached, is decoded again. Tracebufs longer than a block are
+ * not expected. Stamps are taken from the database's TraceBufIndex when it has one, so a request
+ * served entirely from cached blocks reads no more than the day stamps; without one they are
+ * counted by the database.
+ *
+ * Neighbouring blocks that need decoding are read together, with one read of the wave tables, and
+ * the result is cut into blocks.
+ *
+ * Callers apply the database's lookback before asking for a wave.
+ *
+ * @author Tom Parker
+ */
+public class WaveBlockCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WaveBlockCache.class);
+
+  /** length of a block, in seconds. Divides a day evenly. */
+  public static final int BLOCK_SIZE = 600;
+
+  private static final int ONE_DAY = 60 * 60 * 24;
+
+  /** charged for a block with no data */
+  private static final int EMPTY_BLOCK_SIZE = 64;
+
+  /** stamp of a block with no tracebufs starting in it */
+  private static final double[] EMPTY_STAMP = new double[] {0, 0};
+
+  private final long capacity;
+  private final LinkedHashMap<String, Block> blocks;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private long size;
+
+  /**
+   * A decoded block and the stamps of the tracebufs it was decoded from, those starting in it and
+   * those starting in the block before.
+   */
+  private static class Block {
+    private final Wave wave;
+    private final double[] stamp;
+    private final double[] previousStamp;
+    private final long memorySize;
+
+    private Block(final Wave wave, final double[] stamp, final double[] previousStamp) {
+      this.wave = wave;
+      this.stamp = stamp;
+      this.previousStamp = previousStamp;
+      memorySize = wave == null ? EMPTY_BLOCK_SIZE : wave.getMemorySize();
+    }
+
+    private boolean isCurrent(final double[] stamp, final double[] previousStamp) {
+      return Arrays.equals(this.stamp, stamp) && Arrays.equals(this.previousStamp, previousStamp);
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity maximum size of cached waves, in bytes
+   */
+  public WaveBlockCache(final long capacity) {
+    this.capacity = capacity;
+    blocks = new LinkedHashMap<String, Block>(16, 0.75f, true);
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+  }
+
+  /**
+   * Assemble a wave from cached blocks, decoding any that are missing or stale.
+   *
+   * @param data used to read blocks and stamps
+   * @param winston the database
+   * @param code channel
+   * @param t1 start time
+   * @param t2 end time
+   * @return wave, or null if there are no data
+   * @throws UtilException when things go wrong
+   */
+  public Wave getWave(final Data data, final WinstonDatabase winston, final String code,
+      final double t1, final double t2) throws UtilException {
+    final long firstBlock = (long) Math.floor(t1 / BLOCK_SIZE);
+    final long lastBlock = (long) Math.floor(t2 / BLOCK_SIZE);
+
+    final Map<Long, double[]> stamps = getStamps(winston, code, firstBlock - 1, lastBlock);
+    if (stamps == null) {
+      return data.getWaveUncached(code, t1, t2, 0);
+    }
+
+    final List<Wave> waves = new ArrayList<Wave>();
+    long missing = -1;
+    for (long index = firstBlock; index <= lastBlock; index++) {
+      final String key = code + "/" + index;
+      final double[] stamp = getStamp(stamps, index);
+      final double[] previousStamp = getStamp(stamps, index - 1);
+
+      Block block;
+      synchronized (blocks) {
+        block = blocks.get(key);
+      }
+
+      if (block != null && block.isCurrent(stamp, previousStamp)) {
+        hits.incrementAndGet();
+        if (missing >= 0) {
+          decode(data, code, missing, index - 1, stamps, waves);
+          missing = -1;
+        }
+        if (block.wave != null) {
+          waves.add(block.wave);
+        }
+      } else {
+        misses.incrementAndGet();
+        if (missing < 0) {
+          missing = index;
+        }
+      }
+    }
+    if (missing >= 0) {
+      decode(data, code, missing, lastBlock, stamps, waves);
+    }
+
+    if (waves.size() == 0) {
+      return null;
+    }
+
+    final Wave wave = Wave.join(waves);
+    return wave.subset(Math.max(t1, wave.getStartTime()), Math.min(t2, wave.getEndTime()));
+  }
+
+  /**
+   * @return number of blocks served from the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of blocks decoded
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return size of cached waves, in bytes
+   */
+  public long size() {
+    synchronized (blocks) {
+      return size;
+    }
+  }
+
+  private void put(final String key, final Block block) {
+    synchronized (blocks) {
+      final Block old = blocks.put(key, block);
+      if (old != null) {
+        size -= old.memorySize;
+      }
+      size += block.memorySize;
+
+      final Iterator<Block> it = blocks.values().iterator();
+      while (size > capacity && it.hasNext()) {
+        final Block victim = it.next();
+        if (victim == block) {
+          continue;
+        }
+        size -= victim.memorySize;
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Decode a run of blocks with one read, cache them, and add their waves to a list.
+   */
+  private void decode(final Data data, final String code, final long firstBlock,
+      final long lastBlock, final Map<Long, double[]> stamps, final List<Wave> waves)
+      throws UtilException {
+    // a tracebuf starting in an earlier block may still reach into the first one
+    final Wave run = data.getWaveUncached(code, firstBlock * BLOCK_SIZE,
+        (lastBlock + 1) * BLOCK_SIZE, 0);
+
+    for (long index = firstBlock; index <= lastBlock; index++) {
+      final double start = index * BLOCK_SIZE;
+      final double[] stamp = getStamp(stamps, index);
+      final double[] previousStamp = getStamp(stamps, index - 1);
+
+      Wave wave = null;
+      // a block that no tracebuf starts in, or spills into, lies in a gap of the run
+      final boolean empty = stamp == EMPTY_STAMP && previousStamp == EMPTY_STAMP;
+      if (run != null && !empty && run.getStartTime() < start + BLOCK_SIZE
+          && run.getEndTime() > start) {
+        wave = run.subset(Math.max(start, run.getStartTime()),
+            Math.min(start + BLOCK_SIZE, run.getEndTime()));
+      }
+
+      final Block block = new Block(wave, stamp, previousStamp);
+      put(code + "/" + index, block);
+      if (block.wave != null) {
+        waves.add(block.wave);
+      }
+    }
+  }
+
+  private static double[] getStamp(final Map<Long, double[]> stamps, final long index) {
+    final double[] stamp = stamps.get(index);
+    return stamp == null ? EMPTY_STAMP : stamp;
+  }
+
+  /**
+   * Count the tracebufs starting in each block and sum their start times.
+   */
+  private Map<Long, double[]> getStamps(final WinstonDatabase winston, final String code,
+      final long firstBlock, final long lastBlock) {
+    final StorageLayout layout = winston.getLayout();
+    final TraceBufIndex index = winston.getTraceBufIndex();
+    final DateFormat dateFormat = new SimpleDateFormat("yyyy_MM_dd");
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    final double t1 = firstBlock * BLOCK_SIZE;
+    final double t2 = (lastBlock + 1) * BLOCK_SIZE;
+    final Map<Long, double[]> stamps = new HashMap<Long, double[]>();
+
+    try {
+      final String endDate = dateFormat.format(J2kSec.asDate(t2 - 1));
+      double ct = t1;
+      boolean done = false;
+      while (!done) {
+        final String date = dateFormat.format(J2kSec.asDate(ct));
+        if (date.equals(endDate))
+          done = true;
+        ct += ONE_DAY;
+
+        if (index != null) {
+          for (final double[] buf : index.getBufTimes(winston, code, date, t1, t2)) {
+            if (buf[0] >= t1 && buf[0] < t2) {
+              final long block = (long) Math.floor(buf[0] / BLOCK_SIZE);
+              final double[] stamp = stamps.get(block);
+              if (stamp == null) {
+                stamps.put(block, new double[] {1, buf[0]});
+              } else {
+                stamp[0]++;
+                stamp[1] += buf[0];
+              }
+            }
+          }
+          continue;
+        }
+
+        if (!layout.dayExists(winston, code, date)) {
+          continue;
+        }
+
+        final PreparedStatement ps = winston.getPreparedStatement(
+            "SELECT FLOOR(st / " + BLOCK_SIZE + "), COUNT(*), SUM(st) FROM "
+                + layout.waveTable(winston, code, date) + " WHERE "
+                + layout.dayFilter(winston, code, date) + "st>=? AND st<? GROUP BY 1");
+        if (ps == null) {
+          return null;
+        }
+        ps.setDouble(1, t1);
+        ps.setDouble(2, t2);
+        final ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+          stamps.put(rs.getLong(1), new double[] {rs.getLong(2), rs.getDouble(3)});
+        }
+        rs.close();
+      }
+    } catch (final SQLException e) {
+      LOGGER.error("Could not check wave blocks for {}. ({})", code, e.getLocalizedMessage());
+      return null;
+    }
+
+    return stamps;
+  }
+}
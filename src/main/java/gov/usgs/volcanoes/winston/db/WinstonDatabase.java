@@ -52,6 +52,14 @@ public class WinstonDatabase {
   public final long maxDays;
 
   private final PreparedStatementCache preparedStatements;
+  private final DayTableCatalog dayTableCatalog;
+  private boolean singleQueryRetrieval;
+  private HotTraceBufCache hotCache;
+  private WaveBlockCache waveCache;
+  private TraceBufIndex traceBufIndex;
+  private TraceBufArchive archive;
+  private ParallelReader parallelReader;
+  private StorageLayout layout = StorageLayout.DAY_TABLES;
 
   public WinstonDatabase(final String dbDriver, final String dbURL, final String databasePrefix) {
     this(dbDriver, dbURL, databasePrefix, DEFAULT_CACHE_CAPACITY);
@@ -82,6 +90,7 @@ public class WinstonDatabase {
     this.maxDays = maxDays;
 
     preparedStatements = new PreparedStatementCache(this.cacheCap, true);
+    dayTableCatalog = DayTableCatalog.getInstance(this);
     connect();
   }
 
@@ -243,6 +252,10 @@ public class WinstonDatabase {
 
       getStatement().execute("CREATE TABLE supp_data_xref ( sdid INT NOT NULL, cid INT NOT NULL, "
           + "UNIQUE KEY (sdid,cid) ) " + tableEngine);
+
+      layout.createTables(this);
+      Coverage.createTables(this);
+      DayStamps.createTables(this);
     } catch (final Exception e) {
       LOGGER.error("Could not create tables in WWS database.  Are permissions set properly? ({})",
           e);
@@ -291,6 +304,10 @@ public class WinstonDatabase {
         getStatement().execute("USE `" + databasePrefix + "_ROOT`");
         LOGGER.info("Created new Winston database: {}", databasePrefix);
         createTables();
+      } else {
+        layout.createTables(this);
+        Coverage.createTables(this);
+        DayStamps.createTables(this);
       }
       return true;
     } catch (final Exception e) {
@@ -299,17 +316,152 @@ public class WinstonDatabase {
     return false;
   }
 
+  /**
+   * Select the database holding a channel's rows.
+   *
+   * @param code channel
+   * @return false if the channel has no storage
+   */
+  public boolean useChannel(final String code) {
+    if (!checkConnect())
+      return false;
+
+    return layout.useChannel(this, code);
+  }
+
   public boolean tableExists(final String db, final String table) {
-    try {
-      final ResultSet rs = getStatement().executeQuery(
-          String.format("SELECT COUNT(*) FROM `%s_%s`.%s", databasePrefix, db, table));
-      final boolean result = rs.next();
-      rs.close();
-      return result;
-    } catch (final SQLException e) {
-      LOGGER.info("SQLException: {}", e.getMessage());
-    }
-    return false;
+    if (!checkConnect())
+      return false;
+
+    return dayTableCatalog.tableExists(this, db, table);
+  }
+
+  /**
+   * Return the catalog of tables shared by all connections to this Winston.
+   *
+   * @return the table catalog
+   */
+  public DayTableCatalog getDayTableCatalog() {
+    return dayTableCatalog;
+  }
+
+  /**
+   * Should multi-day tracebuf requests be filled with a single statement?
+   *
+   * @return true if tracebufs are retrieved with a single statement
+   */
+  public boolean isSingleQueryRetrieval() {
+    return singleQueryRetrieval;
+  }
+
+  /**
+   * Fill multi-day tracebuf requests with a single UNION ALL statement rather than one statement
+   * per day table.
+   *
+   * @param singleQueryRetrieval if true, use a single statement
+   */
+  public void setSingleQueryRetrieval(final boolean singleQueryRetrieval) {
+    this.singleQueryRetrieval = singleQueryRetrieval;
+  }
+
+  /**
+   * @return how wave and helicorder rows are laid out
+   */
+  public StorageLayout getLayout() {
+    return layout;
+  }
+
+  /**
+   * Choose how wave and helicorder rows are laid out. Every program using a Winston must agree on
+   * its layout; Upgrade moves an existing Winston from day tables to the partitioned layout.
+   *
+   * @param layout the layout
+   */
+  public void setLayout(final StorageLayout layout) {
+    this.layout = layout;
+  }
+
+  /**
+   * @return in-memory copy of recent tracebufs, or null if there is none
+   */
+  public HotTraceBufCache getHotCache() {
+    return hotCache;
+  }
+
+  /**
+   * Answer requests for recent tracebufs from memory. The cache may be shared by several
+   * connections.
+   *
+   * @param hotCache the cache, or null to always read the day tables
+   */
+  public void setHotCache(final HotTraceBufCache hotCache) {
+    this.hotCache = hotCache;
+  }
+
+  /**
+   * @return cache of decoded waves, or null if there is none
+   */
+  public WaveBlockCache getWaveCache() {
+    return waveCache;
+  }
+
+  /**
+   * Assemble waves from cached blocks. The cache may be shared by several connections.
+   *
+   * @param waveCache the cache, or null to decode every request
+   */
+  public void setWaveCache(final WaveBlockCache waveCache) {
+    this.waveCache = waveCache;
+  }
+
+  /**
+   * @return index of tracebuf start and end times, or null if there is none
+   */
+  public TraceBufIndex getTraceBufIndex() {
+    return traceBufIndex;
+  }
+
+  /**
+   * Find overlapping tracebufs and gaps from an index held in memory. The index may be shared by
+   * several connections.
+   *
+   * @param traceBufIndex the index, or null to always read the day tables
+   */
+  public void setTraceBufIndex(final TraceBufIndex traceBufIndex) {
+    this.traceBufIndex = traceBufIndex;
+  }
+
+  /**
+   * @return archive of closed days, or null if there is none
+   */
+  public TraceBufArchive getArchive() {
+    return archive;
+  }
+
+  /**
+   * Serve archived days of raw tracebuf requests from files rather than the database. The
+   * archive may be shared by several connections.
+   *
+   * @param archive the archive, or null to always read the database
+   */
+  public void setArchive(final TraceBufArchive archive) {
+    this.archive = archive;
+  }
+
+  /**
+   * @return reader used to spread long reads over several connections, or null if there is none
+   */
+  public ParallelReader getParallelReader() {
+    return parallelReader;
+  }
+
+  /**
+   * Read long spans one day table per connection.
+   *
+   * @param parallelReader the reader, or null to read every day on this connection
+   */
+  public void setParallelReader(final ParallelReader parallelReader) {
+    this.parallelReader = parallelReader;
   }
 
   public PreparedStatement getPreparedStatement(final String sql) {
@@ -328,6 +480,23 @@ public class WinstonDatabase {
     return null;
   }
 
+  /**
+   * Ask the MySQL driver to prepare statements on the server. The server then parses each
+   * statement once and returns results in the binary protocol. Options already present in the URL
+   * are left alone.
+   *
+   * @param dbURL JDBC URL
+   * @param cacheCap number of prepared statements cached per connection
+   * @return URL with server-side prepared statements enabled
+   */
+  public static String serverPrepStmtsURL(final String dbURL, final int cacheCap) {
+    if (dbURL == null || dbURL.contains("useServerPrepStmts")) {
+      return dbURL;
+    }
+    return dbURL + (dbURL.indexOf('?') < 0 ? "?" : "&")
+        + "useServerPrepStmts=true&cachePrepStmts=true&prepStmtCacheSize=" + cacheCap;
+  }
+
   public static WinstonDatabase processWinstonConfigFile() {
     return processWinstonConfigFile(new ConfigFile(DEFAULT_CONFIG_FILENAME));
   }
@@ -339,7 +508,26 @@ public class WinstonDatabase {
     final String tableEngine = cf.getString("winston.tableEngine");
     final int cacheCap =
         StringUtils.stringToInt(cf.getString("winston.statementCacheCap"), DEFAULT_CACHE_CAPACITY);
+    String url = dbURL;
+    if (StringUtils.stringToBoolean(cf.getString("winston.serverPrepStmts"), false)) {
+      url = serverPrepStmtsURL(dbURL, cacheCap);
+    }
+
+    final WinstonDatabase winston =
+        new WinstonDatabase(dbDriver, url, databasePrefix, tableEngine, cacheCap);
+    winston.setSingleQueryRetrieval(
+        StringUtils.stringToBoolean(cf.getString("winston.singleQueryRetrieval"), false));
+
+    final String layoutName = cf.getString("winston.layout");
+    if (layoutName != null) {
+      final StorageLayout layout = StorageLayout.forName(layoutName);
+      if (layout == null) {
+        LOGGER.error("Unknown layout: {}, using {}.", layoutName, winston.getLayout().getName());
+      } else {
+        winston.setLayout(layout);
+      }
+    }
 
-    return new WinstonDatabase(dbDriver, dbURL, databasePrefix, tableEngine, cacheCap);
+    return winston;
   }
 }
@@ -84,8 +84,8 @@ public class WaveServerCollector extends Thread {
         for (final Object o : tbs) {
           final TraceBuf tb = (TraceBuf) o;
           tb.createBytes();
-          input.inputTraceBuf(tb, false);
         }
+        input.inputTraceBufs(tbs, false);
       }
       final long te = System.currentTimeMillis();
       System.out.println("Chunk: " + ((double) (te - ts) / 1000) + "s");
@@ -161,8 +161,8 @@ public class WaveServerCollector extends Thread {
         for (final Object o : tbs) {
           final TraceBuf tb = (TraceBuf) o;
           tb.createBytes();
-          input.inputTraceBuf(tb, false);
         }
+        input.inputTraceBufs(tbs, false);
       }
 
       final long te = System.currentTimeMillis();
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -11,6 +12,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +23,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Level;
 import org.slf4j.Logger;
@@ -50,7 +53,10 @@ import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.winston.Version;
 import gov.usgs.volcanoes.winston.db.Admin;
 import gov.usgs.volcanoes.winston.db.Channels;
+import gov.usgs.volcanoes.winston.db.CodecBuffers;
 import gov.usgs.volcanoes.winston.db.InputEW;
+import gov.usgs.volcanoes.winston.db.StorageLayout;
+import gov.usgs.volcanoes.winston.db.TraceBufCodec;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 
 /**
@@ -80,6 +86,16 @@ public class ImportEW extends Thread {
   public static final int DEFAULT_MAX_BACKLOG = 100;
   public static final String DEFAULT_LOG_LEVEL = "FINE";
   public static final boolean DEFAULT_ENABLE_VALARM_VIEW = false;
+  public static final boolean DEFAULT_BATCH_INSERT = false;
+  public static final int DEFAULT_WRITER_THREADS = 1;
+  public static final String DEFAULT_CODEC = "zlib";
+  public static final int DEFAULT_SPOOL_SEGMENT_SIZE = 64;
+  public static final int DEFAULT_SPOOL_RETRY_INTERVAL = 5;
+  public static final int DEFAULT_SPOOL_RETRIES = 3;
+  public static final int DEFAULT_SPOOL_SYNC_INTERVAL = 10;
+  public static final double DEFAULT_MAX_STRETCH = 8;
+  public static final String DEFAULT_LAYOUT = "day";
+  public static final double DEFAULT_TIME_SPAN_FLUSH_INTERVAL = 1;
 
   public static final double DEFAULT_TIME_THRESHOLD = 1.0;
   public static final int DEFAULT_BACKLOG_THRESHOLD = 1;
@@ -130,12 +146,20 @@ public class ImportEW extends Thread {
   protected ConfigFile config;
 
   private WinstonDatabase winston;
-  private Channels channels;
-  private InputEW input;
+  private final List<Writer> writers;
 
   protected ImportGeneric importGeneric;
   private final Set<String> existingChannels;
   private final Map<String, ConcurrentLinkedQueue<TraceBuf>> channelTraceBufs;
+  private TraceBufSpool spool;
+  private SpoolReader spoolReader;
+  private SpoolSyncer spoolSyncer;
+  private final List<TraceBuf> unsyncedAcks;
+  private final Map<TraceBuf, TraceBufSpool.Record> spooledTraceBufs;
+  private int spoolRetryInterval;
+  private int spoolRetries;
+  private double maxStretch;
+  private double timeSpanFlushInterval;
 
   protected String logFile;
   protected int logNumFiles;
@@ -149,13 +173,12 @@ public class ImportEW extends Thread {
   private final Map<String, Double> attemptedRepair;
   private int repairRetryInterval;
 
-  protected final CodeTimer inputTimer;
-  protected int totalTraceBufsWritten = 0;
+  protected final AtomicInteger totalTraceBufsWritten;
   protected int totalTraceBufs;
   protected int totalTraceBufsDropped;
   protected int totalTraceBufsAccepted;
   protected int totalTraceBufsRejected;
-  protected int totalTraceBufsFailed;
+  protected final AtomicInteger totalTraceBufsFailed;
   protected final Map<String, ChannelStatus> channelStatus;
   protected final Date importStartTime;
   protected final DateFormat dateFormat;
@@ -163,6 +186,10 @@ public class ImportEW extends Thread {
 
   protected int dropTableDelay = 10000;
   protected boolean enableValarmView;
+  protected boolean batchInsert;
+  protected int heliBatchSize;
+  protected int writerThreads;
+  protected TraceBufCodec codec;
 
   protected Options defaultOptions;
   protected final Map<String, Options> channelOptions;
@@ -205,15 +232,20 @@ public class ImportEW extends Thread {
     winstonDateFormat = new SimpleDateFormat("yyyy_MM_dd");
     winstonDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
     channelOptions = new HashMap<String, Options>();
-    channelStatus = new HashMap<String, ChannelStatus>();
+    channelStatus = new ConcurrentHashMap<String, ChannelStatus>();
 
-    inputTimer = new CodeTimer("inputTimer", false);
+    totalTraceBufsWritten = new AtomicInteger();
+    totalTraceBufsFailed = new AtomicInteger();
+    writers = new ArrayList<Writer>();
     channelTraceBufs =
         new ConcurrentHashMap<String, ConcurrentLinkedQueue<TraceBuf>>(200, 0.75f, 1);
     fixer = Executors.newSingleThreadExecutor();
     underRepair = Collections.synchronizedSet(new HashSet<String>());
     attemptedRepair = Collections.synchronizedMap(new HashMap<String, Double>());
     existingChannels = Collections.synchronizedSet(new HashSet<String>());
+    spooledTraceBufs =
+        Collections.synchronizedMap(new IdentityHashMap<TraceBuf, TraceBufSpool.Record>());
+    unsyncedAcks = new ArrayList<TraceBuf>();
   }
 
   /**
@@ -224,10 +256,35 @@ public class ImportEW extends Thread {
    */
   public void handleOutOfMemoryError(final OutOfMemoryError e) {
     channelTraceBufs.clear();
+    requeueSpooled();
     LOGGER.warn("Handled OutOfMemoryError, TraceBuf queues cleared.");
     e.printStackTrace();
   }
 
+  /**
+   * Move the spooled tracebufs dropped from the queues to the end of the spool, so they are
+   * written later and their segments can still be deleted. A tracebuf that cannot be moved stays
+   * outstanding and is read again on restart.
+   */
+  private void requeueSpooled() {
+    if (spool == null) {
+      return;
+    }
+
+    final List<TraceBufSpool.Record> records;
+    synchronized (spooledTraceBufs) {
+      records = new ArrayList<TraceBufSpool.Record>(spooledTraceBufs.values());
+      spooledTraceBufs.clear();
+    }
+    for (final TraceBufSpool.Record record : records) {
+      try {
+        spool.requeue(record);
+      } catch (final IOException e) {
+        LOGGER.error("Could not requeue spooled TraceBuf: {}", e.getMessage());
+      }
+    }
+  }
+
   /**
    * Logs a severe message and exits uncleanly.
    */
@@ -295,6 +352,58 @@ public class ImportEW extends Thread {
     enableValarmView = StringUtils.stringToBoolean(config.getString("import.enableValarmView"),
         DEFAULT_ENABLE_VALARM_VIEW);
 
+    batchInsert =
+        StringUtils.stringToBoolean(config.getString("import.batchInsert"), DEFAULT_BATCH_INSERT);
+    LOGGER.info("config: import.batchInsert=" + batchInsert);
+
+    heliBatchSize = StringUtils.stringToInt(config.getString("import.heliBatchSize"),
+        InputEW.DEFAULT_HELI_BATCH_SIZE);
+    LOGGER.info("config: import.heliBatchSize=" + heliBatchSize);
+
+    writerThreads = Math.max(1, StringUtils
+        .stringToInt(config.getString("import.writerThreads"), DEFAULT_WRITER_THREADS));
+    LOGGER.info("config: import.writerThreads=" + writerThreads);
+
+    final String codecName = StringUtils.stringToString(config.getString("import.codec"),
+        DEFAULT_CODEC);
+    codec = TraceBufCodec.forName(codecName);
+    if (codec == null) {
+      LOGGER.warn("Unknown codec: {}, using {}.", codecName, DEFAULT_CODEC);
+      codec = TraceBufCodec.forName(DEFAULT_CODEC);
+    }
+    LOGGER.info("config: import.codec=" + codec.getName());
+
+    maxStretch = Math.max(1, StringUtils.stringToDouble(config.getString("import.maxStretch"),
+        DEFAULT_MAX_STRETCH));
+    LOGGER.info("config: import.maxStretch=" + maxStretch);
+
+    timeSpanFlushInterval = StringUtils.stringToDouble(
+        config.getString("import.timeSpanFlushInterval"), DEFAULT_TIME_SPAN_FLUSH_INTERVAL);
+    LOGGER.info("config: import.timeSpanFlushInterval=" + timeSpanFlushInterval);
+
+    final String spoolDirectory = config.getString("import.spool");
+    if (spoolDirectory != null) {
+      LOGGER.info("config: import.spool=" + spoolDirectory);
+      final int spoolSegmentSize = StringUtils.stringToInt(
+          config.getString("import.spoolSegmentSize"), DEFAULT_SPOOL_SEGMENT_SIZE);
+      LOGGER.info("config: import.spoolSegmentSize=" + spoolSegmentSize);
+      spoolRetryInterval = StringUtils.stringToInt(config.getString("import.spoolRetryInterval"),
+          DEFAULT_SPOOL_RETRY_INTERVAL);
+      LOGGER.info("config: import.spoolRetryInterval=" + spoolRetryInterval);
+      spoolRetries = StringUtils.stringToInt(config.getString("import.spoolRetries"),
+          DEFAULT_SPOOL_RETRIES);
+      LOGGER.info("config: import.spoolRetries=" + spoolRetries);
+      try {
+        spool = new TraceBufSpool(new File(spoolDirectory), spoolSegmentSize * 1024 * 1024);
+      } catch (final IOException e) {
+        fatalError("Cannot open spool: " + e.getMessage());
+      }
+      final int spoolSyncInterval = StringUtils.stringToInt(
+          config.getString("import.spoolSyncInterval"), DEFAULT_SPOOL_SYNC_INTERVAL);
+      LOGGER.info("config: import.spoolSyncInterval=" + spoolSyncInterval);
+      spoolReader = new SpoolReader();
+      spoolSyncer = new SpoolSyncer(spoolSyncInterval);
+    }
   }
 
   /**
@@ -324,19 +433,39 @@ public class ImportEW extends Thread {
         StringUtils.stringToInt(config.getString("winston.statementCacheCap"), 100);
     LOGGER.info("config: winston.statementCacheCap=" + winstonStatementCacheCap);
 
+    final String layoutName =
+        StringUtils.stringToString(config.getString("winston.layout"), DEFAULT_LAYOUT);
+    final StorageLayout layout = StorageLayout.forName(layoutName);
+    if (layout == null)
+      fatalError("Unknown winston.layout: " + layoutName);
+    LOGGER.info("config: winston.layout=" + layout.getName());
+
     winston = new WinstonDatabase(winstonDriver, winstonURL, winstonPrefix, winstonTableEngine,
         winstonStatementCacheCap);
+    winston.setLayout(layout);
     if (!winston.checkDatabase())
       fatalError("Winston database does not exist.");
     fixerWinston = new WinstonDatabase(winstonDriver, winstonURL, winstonPrefix, winstonTableEngine,
         winstonStatementCacheCap);
+    fixerWinston.setLayout(layout);
     fixerInput = new InputEW(fixerWinston);
     fixerInput.setEnableValarmView(enableValarmView);
+    fixerInput.setHeliBatchSize(heliBatchSize);
+    fixerInput.setCodec(codec);
     fixerAdmin = new Admin(fixerWinston);
 
-    channels = new Channels(winston);
-    input = new InputEW(winston);
-    input.setEnableValarmView(enableValarmView);
+    for (int i = 0; i < writerThreads; i++) {
+      final WinstonDatabase writerWinston = i == 0 ? winston : new WinstonDatabase(winstonDriver,
+          winstonURL, winstonPrefix, winstonTableEngine, winstonStatementCacheCap);
+      writerWinston.setLayout(layout);
+      final InputEW input = new InputEW(writerWinston);
+      input.setEnableValarmView(enableValarmView);
+      input.setBatchInsert(batchInsert);
+      input.setHeliBatchSize(heliBatchSize);
+      input.setCodec(codec);
+      input.setDeferTimeSpans(timeSpanFlushInterval > 0);
+      writers.add(new Writer(i, writerWinston, input));
+    }
 
     repairRetryInterval = DEFAULT_REPAIR_RETRY_INTERVAL;
   }
@@ -476,7 +605,9 @@ public class ImportEW extends Thread {
 
       if (accept) {
         totalTraceBufsAccepted++;
-        addTraceBufToQueue(tb);
+        if (spool == null || !spoolTraceBuf(tb)) {
+          addTraceBufToQueue(tb);
+        }
       } else {
         totalTraceBufsRejected++;
 
@@ -491,17 +622,59 @@ public class ImportEW extends Thread {
     }
   }
 
-  protected void addTraceBufToQueue(final TraceBuf tb) {
-    final String channel = tb.toWinstonString();
+  /**
+   * Write a tracebuf to the spool. The spool reader will queue it, and the spool syncer will
+   * acknowledge it once it is on disk.
+   *
+   * @param tb the tracebuf
+   * @return false if the tracebuf could not be spooled
+   */
+  private boolean spoolTraceBuf(final TraceBuf tb) {
+    try {
+      spool.append(tb.bytes);
+    } catch (final IOException e) {
+      LOGGER.error("Could not spool TraceBuf: {}", e.getMessage());
+      return false;
+    }
+    if (tb.sendAck) {
+      synchronized (unsyncedAcks) {
+        unsyncedAcks.add(tb);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Force the spool to disk, then acknowledge every tracebuf appended before the sync.
+   */
+  private void syncSpool() {
+    final List<TraceBuf> acks;
+    synchronized (unsyncedAcks) {
+      acks = new ArrayList<TraceBuf>(unsyncedAcks);
+      unsyncedAcks.clear();
+    }
+    spool.sync();
+    for (final TraceBuf tb : acks) {
+      importGeneric.sendAck(tb.seq);
+    }
+  }
+
+  private ConcurrentLinkedQueue<TraceBuf> getQueue(final String channel) {
     ConcurrentLinkedQueue<TraceBuf> q = channelTraceBufs.get(channel);
     if (q == null) {
       q = new ConcurrentLinkedQueue<TraceBuf>();
       channelTraceBufs.put(channel, q);
     }
+    return q;
+  }
 
+  protected void addTraceBufToQueue(final TraceBuf tb) {
+    final String channel = tb.toWinstonString();
+    final ConcurrentLinkedQueue<TraceBuf> q = getQueue(channel);
     final Options ip = getOptions(tb);
 
     q.add(tb);
+    writers.get(getWriterIndex(channel)).offered(q, ip);
     while (q.size() > ip.maxBacklog) {
       q.poll();
       // TODO: improve logging of dropped tracebufs
@@ -512,29 +685,38 @@ public class ImportEW extends Thread {
     }
   }
 
-  private void cycle(final boolean force) {
-    // CodeTimer ct0 = new CodeTimer("init");
+  /**
+   * Writes the channel queues held by a single writer. Channels are sharded to writers by hash so
+   * each channel is always written, in order, by the same writer.
+   *
+   * @param writer the writer
+   * @param force if true, write every channel whether or not its thresholds are exceeded
+   * @return earliest time, J2kSec, at which a channel left unwritten becomes due, or NaN
+   */
+  private double cycle(final Writer writer, final boolean force) {
+    double nextDeadline = Double.NaN;
     for (final Iterator<Entry<String, ConcurrentLinkedQueue<TraceBuf>>> iter =
         channelTraceBufs.entrySet().iterator(); iter.hasNext();) {
       Entry<String, ConcurrentLinkedQueue<TraceBuf>> entry = iter.next();
       String key = entry.getKey();
       ConcurrentLinkedQueue<TraceBuf> q = entry.getValue();
-      if (q.isEmpty())
+      final TraceBuf first = q.peek();
+      if (first == null || getWriterIndex(key) != writer.index)
         continue;
 
-      final Options ip = getOptions(q.peek());
+      final Options ip = getOptions(first);
 
-      if (force || ip.thresholdExceeded(q.peek().getStartTimeJ2K(), q.size())) {
-
-        importChannel(q);
+      if (force || ip.thresholdExceeded(first.getStartTimeJ2K(), q.size(), writer.stretch)) {
+        importChannel(writer, q);
         if (channelMetadata.containsKey(key))
-          importMetadata(key, channelMetadata.get(key));
+          importMetadata(writer, key, channelMetadata.get(key));
+      } else {
+        final double deadline = ip.getDeadline(first.getStartTimeJ2K(), writer.stretch);
+        if (Double.isNaN(nextDeadline) || deadline < nextDeadline)
+          nextDeadline = deadline;
       }
-
     }
-    // ct0.stop();
-    // if (ct0.getRunTimeMillis() > 1000)
-    // System.out.println("Long cycle: " + ct0);
+    return nextDeadline;
   }
 
   private Runnable getPurgeRunnable(final String code, final int maxDays) {
@@ -582,7 +764,11 @@ public class ImportEW extends Thread {
     };
   }
 
-  private void importChannel(final ConcurrentLinkedQueue<TraceBuf> q) {
+  private int getWriterIndex(final String channel) {
+    return (channel.hashCode() & Integer.MAX_VALUE) % writers.size();
+  }
+
+  private void importChannel(final Writer writer, final ConcurrentLinkedQueue<TraceBuf> q) {
     if (q.isEmpty() || underRepair.contains("channels")) {
       System.out.println("isempty: " + q.isEmpty());
       System.out.println("underRepair: " + underRepair.contains("channels"));
@@ -591,9 +777,9 @@ public class ImportEW extends Thread {
     final TraceBuf tb = q.peek();
     final String code = tb.toWinstonString();
 
-    if (!existingChannels.contains(code) && !channels.channelExists(code)) {
+    if (!existingChannels.contains(code) && !writer.channels.channelExists(code)) {
       LOGGER.info("Creating new channel '" + code + "' in Winston database.");
-      channels.createChannel(code);
+      writer.channels.createChannel(code);
     }
     existingChannels.add(code);
 
@@ -606,13 +792,42 @@ public class ImportEW extends Thread {
 
     }
 
-    inputTimer.start();
     // TODO: catch exceptions around here
     final Options ip = getOptions(tbs.get(0));
-    final List<InputEW.InputResult> results =
-        input.inputTraceBufs(tbs, ip.rsamEnable, ip.rsamDelta, ip.rsamDuration);
-    inputTimer.stop();
+    List<InputEW.InputResult> results = inputTraceBufs(writer, tbs, ip);
+    processResults(code, tb, ip, results);
+
+    // spooled tracebufs are kept until they are stored. Repairs for the failures have been
+    // submitted above, so a few retries give them a chance to finish before the tracebufs are
+    // set aside at the end of the spool, where they no longer hold up this writer's channels.
+    if (spool != null) {
+      List<TraceBuf> retry = releaseSettled(tbs, results);
+      for (int attempt = 0; !quit && !retry.isEmpty() && attempt < spoolRetries; attempt++) {
+        LOGGER.warn("Could not write {} spooled TraceBufs for {}, retrying in {}s.", retry.size(),
+            code, spoolRetryInterval);
+        try {
+          Thread.sleep(spoolRetryInterval * 1000L);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        results = inputTraceBufs(writer, retry, ip);
+        processResults(code, tb, ip, results);
+        retry = releaseSettled(retry, results);
+      }
+      if (!quit && !retry.isEmpty()) {
+        LOGGER.warn("Setting aside {} spooled TraceBufs for {} to retry later.", retry.size(),
+            code);
+        setAsideSpooled(retry);
+      }
+    }
+  }
 
+  /**
+   * Count the results of a write and submit repairs for the tables that failed.
+   */
+  private void processResults(final String code, final TraceBuf tb, final Options ip,
+      final List<InputEW.InputResult> results) {
     ChannelStatus status = channelStatus.get(code);
     if (status == null) {
       status = new ChannelStatus(code);
@@ -648,39 +863,41 @@ public class ImportEW extends Thread {
           case SUCCESS_CREATED_TABLE:
             LOGGER.info("Day table created: " + tb.toWinstonString() + " "
                 + winstonDateFormat.format(J2kSec.asDate(tb.getStartTimeJ2K())));
-            fixer.submit(getPurgeRunnable(code, ip.maxDays));
+            // days shared by every channel are purged by the default retention
+            fixer.submit(getPurgeRunnable(code,
+                winston.getLayout().isShared() ? defaultOptions.maxDays : ip.maxDays));
             attemptedRepair.remove(code);
-            totalTraceBufsWritten++;
+            totalTraceBufsWritten.incrementAndGet();
             LOGGER.debug("Insert: " + tb.toString());
             break;
           case SUCCESS:
             attemptedRepair.remove(code);
-            totalTraceBufsWritten++;
+            totalTraceBufsWritten.incrementAndGet();
             LOGGER.debug("Insert: " + tb.toString());
             break;
           case ERROR_DATABASE:
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             repair = true;
             LOGGER.warn("Database error: " + tb.toString());
             break;
           case ERROR_UNKNOWN:
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             repair = true;
             LOGGER.warn("Unknown insert error: " + tb.toString());
             break;
           case ERROR_CHANNEL:
           case ERROR_NULL_TRACEBUF:
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             // these errors should never occur
             LOGGER.warn("Bad channel/null TraceBuf.");
             break;
           case ERROR_DUPLICATE:
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             LOGGER.warn("Duplicate TraceBuf: " + tb.toString());
             break;
           case NO_CODE:
             // this should never occur
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             LOGGER.warn("No error/success code: " + tb.toString());
             break;
           case ERROR_HELICORDER:
@@ -704,7 +921,8 @@ public class ImportEW extends Thread {
         }
         if (repair) {
           final String dt = winstonDateFormat.format(J2kSec.asDate(tb.getStartTimeJ2K()));
-          final Runnable repairTask = getRepairRunnable(code, code + "$$" + dt);
+          final Runnable repairTask = winston.getLayout().isShared()
+              ? getRepairRunnable("ROOT", "wave") : getRepairRunnable(code, code + "$$" + dt);
           if (repairTask != null)
             fixer.submit(repairTask);
         }
@@ -720,24 +938,370 @@ public class ImportEW extends Thread {
       final InputEW.InputResult heliResult = results.get(results.size() - 2);
       if (heliResult.code == InputEW.InputResult.Code.ERROR_HELICORDER) {
         final String dt = winstonDateFormat.format(J2kSec.asDate(heliResult.failedHeliJ2K));
-        final String table = code + "$$H" + dt;
+        final boolean shared = winston.getLayout().isShared();
+        final String table = shared ? "heli" : code + "$$H" + dt;
         LOGGER.warn("Error writing helicorder data to table " + table + ".");
-        final Runnable repairTask = getRepairRunnable(code, table);
+        final Runnable repairTask = getRepairRunnable(shared ? "ROOT" : code, table);
         if (repairTask != null)
           fixer.submit(repairTask);
       }
     }
   }
 
-  private void importMetadata(final String channel, final Map<String, String> m) {
+  private List<InputEW.InputResult> inputTraceBufs(final Writer writer, final List<TraceBuf> tbs,
+      final Options ip) {
+    writer.inputTimer.start();
+    final List<InputEW.InputResult> results =
+        writer.input.inputTraceBufs(tbs, ip.rsamEnable, ip.rsamDelta, ip.rsamDuration);
+    writer.inputTimer.stop();
+    writer.inputs++;
+    return results;
+  }
+
+  /**
+   * Release the spooled tracebufs of a write that were stored, were already stored, or can never
+   * be stored.
+   *
+   * @param tbs tracebufs written
+   * @param results results of the write
+   * @return spooled tracebufs that may be stored by trying again
+   */
+  private List<TraceBuf> releaseSettled(final List<TraceBuf> tbs,
+      final List<InputEW.InputResult> results) {
+    final Set<TraceBuf> settled =
+        Collections.newSetFromMap(new IdentityHashMap<TraceBuf, Boolean>());
+    for (final InputEW.InputResult result : results) {
+      if (result.traceBuf == null) {
+        continue;
+      }
+      if (isStored(result.code)) {
+        settled.add(result.traceBuf);
+      } else if (isPermanent(result.code)) {
+        LOGGER.error("Discarding spooled TraceBuf that cannot be stored ({}): {}", result.code,
+            result.traceBuf);
+        settled.add(result.traceBuf);
+      }
+    }
+
+    final List<TraceBuf> retry = new ArrayList<TraceBuf>();
+    for (final TraceBuf t : tbs) {
+      if (settled.contains(t)) {
+        final TraceBufSpool.Record record = spooledTraceBufs.remove(t);
+        if (record != null)
+          spool.release(record);
+      } else if (spooledTraceBufs.containsKey(t)) {
+        retry.add(t);
+      }
+    }
+    return retry;
+  }
+
+  /**
+   * Move spooled tracebufs that could not be stored to the end of the spool, to be written again
+   * once everything spooled after them has been. A tracebuf that cannot be moved stays
+   * outstanding and is read again on restart.
+   */
+  private void setAsideSpooled(final List<TraceBuf> tbs) {
+    for (final TraceBuf t : tbs) {
+      final TraceBufSpool.Record record = spooledTraceBufs.remove(t);
+      if (record == null) {
+        continue;
+      }
+      try {
+        spool.requeue(record);
+      } catch (final IOException e) {
+        LOGGER.error("Could not set aside spooled TraceBuf: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return true if a tracebuf with this result is in the database
+   */
+  private static boolean isStored(final InputEW.InputResult.Code code) {
+    return code == InputEW.InputResult.Code.SUCCESS
+        || code == InputEW.InputResult.Code.SUCCESS_CREATED_TABLE
+        || code == InputEW.InputResult.Code.ERROR_DUPLICATE;
+  }
+
+  /**
+   * @return true if a tracebuf with this result would fail the same way if written again
+   */
+  private static boolean isPermanent(final InputEW.InputResult.Code code) {
+    return code == InputEW.InputResult.Code.ERROR_CHANNEL
+        || code == InputEW.InputResult.Code.ERROR_NULL_TRACEBUF
+        || code == InputEW.InputResult.Code.ERROR_INPUT
+        || code == InputEW.InputResult.Code.NO_CODE;
+  }
+
+  /**
+   * Syncs the spool to disk every few milliseconds, so that the tracebufs received in that time
+   * share one sync and are acknowledged together, rather than each paying for its own.
+   */
+  private class SpoolSyncer extends Thread {
+    private final long interval;
+
+    private SpoolSyncer(final long interval) {
+      setName("ImportEW spool syncer");
+      this.interval = interval;
+    }
+
+    @Override
+    public void run() {
+      while (!quit) {
+        try {
+          Thread.sleep(interval);
+          syncSpool();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (final Exception e) {
+          LOGGER.error("Spool syncer exception: {}", e.getLocalizedMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves tracebufs from the spool to the channel queues. A tracebuf whose channel queue is full
+   * is moved to the end of the spool, so one slow channel does not hold up the others.
+   */
+  private class SpoolReader extends Thread {
+    /** records set aside in a row before the reader slows down */
+    private static final int SET_ASIDE_BURST = 1000;
+
+    private int setAside;
+
+    private SpoolReader() {
+      setName("ImportEW spool reader");
+    }
+
+    @Override
+    public void run() {
+      while (!quit) {
+        try {
+          final TraceBufSpool.Record record = spool.poll();
+          if (record == null) {
+            Thread.sleep(10);
+            continue;
+          }
+
+          final TraceBuf tb;
+          try {
+            tb = new TraceBuf(record.getBytes());
+          } catch (final IOException e) {
+            LOGGER.warn("Discarding unreadable spooled TraceBuf: {}", e.getMessage());
+            spool.release(record);
+            continue;
+          }
+
+          final ConcurrentLinkedQueue<TraceBuf> q = getQueue(tb.toWinstonString());
+          final Options ip = getOptions(tb);
+          if (q.size() >= ip.maxBacklog && setAside(record)) {
+            continue;
+          }
+          while (q.size() >= ip.maxBacklog && !quit) {
+            Thread.sleep(10);
+          }
+          setAside = 0;
+          spooledTraceBufs.put(tb, record);
+          q.add(tb);
+          writers.get(getWriterIndex(tb.toWinstonString())).offered(q, ip);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (final OutOfMemoryError e) {
+          handleOutOfMemoryError(e);
+        } catch (final Throwable e) {
+          LOGGER.error("Spool reader exception: {}", e.getLocalizedMessage());
+          e.printStackTrace();
+          try {
+            Thread.sleep(1000);
+          } catch (final InterruptedException e1) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+      }
+    }
+
+    /**
+     * Move a record for a full channel to the end of the spool. Once only full channels are left
+     * in the spool the reader slows down rather than spin through it.
+     *
+     * @return false if the record could not be moved and must be queued here
+     */
+    private boolean setAside(final TraceBufSpool.Record record) throws InterruptedException {
+      try {
+        spool.requeue(record);
+      } catch (final IOException e) {
+        LOGGER.error("Could not set aside spooled TraceBuf: {}", e.getMessage());
+        return false;
+      }
+      if (++setAside > SET_ASIDE_BURST) {
+        Thread.sleep(10);
+      }
+      return true;
+    }
+  }
+
+  private void importMetadata(final Writer writer, final String channel,
+      final Map<String, String> m) {
 
     if (underRepair.contains("channelmetadata")) {
       System.out.println("underRepair: " + underRepair.contains("channelmetadata"));
     } else if (!m.isEmpty()) {
-      inputTimer.start();
+      writer.inputTimer.start();
       System.out.println("importing metadata " + channel);
-      input.inputMetadata(channel, m);
-      inputTimer.stop();
+      writer.input.inputMetadata(channel, m);
+      writer.inputTimer.stop();
+    }
+  }
+
+  /**
+   * Writes the channels sharded to it through its own database connection.
+   */
+  private class Writer extends Thread {
+    // longest sleep between checks of the channel deadlines, ms
+    private static final long MAX_WAIT = 1000;
+
+    // period over which writer load is measured, ms
+    private static final long LOAD_WINDOW = 1000;
+
+    // fraction of time spent writing above which thresholds are stretched
+    private static final double HIGH_LOAD = 0.8;
+
+    // fraction of time spent writing below which thresholds are relaxed
+    private static final double LOW_LOAD = 0.4;
+
+    private final int index;
+    private final Channels channels;
+    private final InputEW input;
+    private final CodeTimer inputTimer;
+    private volatile long inputs;
+
+    // thresholds are multiplied by this factor while the database is the bottleneck
+    private volatile double stretch = 1;
+    private boolean woken;
+
+    private Writer(final int index, final WinstonDatabase winston, final InputEW input) {
+      setName("ImportEW writer " + index);
+      this.index = index;
+      this.input = input;
+      channels = new Channels(winston);
+      inputTimer = new CodeTimer("inputTimer" + index, false);
+    }
+
+    /**
+     * Called after a tracebuf is queued for one of this writer's channels. Wakes the writer if the
+     * channel has reached its count threshold; time thresholds are tracked by the writer itself.
+     */
+    private void offered(final ConcurrentLinkedQueue<TraceBuf> q, final Options ip) {
+      final TraceBuf first = q.peek();
+      if (first != null && ip.thresholdExceeded(first.getStartTimeJ2K(), q.size(), stretch)) {
+        wake();
+      }
+    }
+
+    private synchronized void wake() {
+      woken = true;
+      notify();
+    }
+
+    /**
+     * Sleep until woken or until the next channel is due.
+     */
+    private synchronized void await(final double deadline) throws InterruptedException {
+      long wait = MAX_WAIT;
+      if (!Double.isNaN(deadline)) {
+        wait = Math.min(MAX_WAIT, (long) Math.ceil((deadline - J2kSec.now()) * 1000));
+      }
+      if (!woken && wait > 0) {
+        wait(wait);
+      }
+      woken = false;
+    }
+
+    /**
+     * Stretch the thresholds while writing takes most of the writer's time, so that under load
+     * the writer spends its time on fewer, larger batches, and shrink them again as load falls.
+     */
+    private void adjustStretch(final double writeMillis, final double elapsedMillis) {
+      final double busy = writeMillis / elapsedMillis;
+      if (busy > HIGH_LOAD) {
+        stretch = Math.min(maxStretch, stretch * 2);
+      } else if (busy < LOW_LOAD) {
+        stretch = Math.max(1, stretch / 2);
+      }
+    }
+
+    /**
+     * Write the time spans and coverage of channels imported since the last flush.
+     */
+    private void flushTimeSpans() {
+      try {
+        input.flushTimeSpans();
+      } catch (final SQLException e) {
+        LOGGER.error("Could not write channel time spans. ({})", e.getLocalizedMessage());
+      }
+      try {
+        input.flushCoverage();
+      } catch (final SQLException e) {
+        LOGGER.error("Could not write channel coverage. ({})", e.getLocalizedMessage());
+      }
+    }
+
+    @Override
+    public void run() {
+      long windowStart = System.currentTimeMillis();
+      double windowWriteMillis = inputTimer.getTotalTimeMillis();
+      long lastSpanFlush = windowStart;
+      while (!quit) {
+        try {
+          await(cycle(this, false));
+
+          final long now = System.currentTimeMillis();
+          if (timeSpanFlushInterval > 0 && now - lastSpanFlush >= timeSpanFlushInterval * 1000) {
+            flushTimeSpans();
+            lastSpanFlush = now;
+          }
+
+          if (now - windowStart >= LOAD_WINDOW) {
+            final double writeMillis = inputTimer.getTotalTimeMillis();
+            adjustStretch(writeMillis - windowWriteMillis, now - windowStart);
+            windowStart = now;
+            windowWriteMillis = writeMillis;
+          }
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        } catch (final OutOfMemoryError e) {
+          handleOutOfMemoryError(e);
+        } catch (final Throwable e) {
+          LOGGER.error("Writer {} loop exception: {}", index, e.getLocalizedMessage());
+          e.printStackTrace();
+        }
+      }
+      try {
+        cycle(this, true);
+        flushTimeSpans();
+      } catch (final Throwable e) {
+        LOGGER.error("Exception during final cycle: {}", e);
+      }
+    }
+
+    /**
+     * @return number of tracebufs waiting to be written
+     */
+    private int getQueueDepth() {
+      int depth = 0;
+      for (final Entry<String, ConcurrentLinkedQueue<TraceBuf>> entry : channelTraceBufs
+          .entrySet()) {
+        if (getWriterIndex(entry.getKey()) == index) {
+          depth += entry.getValue().size();
+        }
+      }
+      return depth;
     }
   }
 
@@ -759,22 +1323,22 @@ public class ImportEW extends Thread {
         }
       }
     }
-    while (!quit) {
+    if (spoolReader != null) {
+      spoolReader.start();
+      spoolSyncer.start();
+    }
+    for (final Writer writer : writers) {
+      writer.start();
+    }
+    for (final Writer writer : writers) {
       try {
-        cycle(true);
-        Thread.sleep(10); // avoid busy-waiting when importing few
-                          // channels
-      } catch (final OutOfMemoryError e) {
-        handleOutOfMemoryError(e);
-      } catch (final Throwable e) {
-        LOGGER.error("Main loop exception: {}", e.getLocalizedMessage());
-        e.printStackTrace();
+        writer.join();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
     }
-    try {
-      cycle(true);
-    } catch (final Throwable e) {
-      LOGGER.error("Exception during final cycle: {}", e);
+    if (spool != null) {
+      spool.close();
     }
   }
 
@@ -804,6 +1368,9 @@ public class ImportEW extends Thread {
 
     LOGGER.info("Quitting cleanly.");
     quit = true;
+    for (final Writer writer : writers) {
+      writer.wake();
+    }
   }
 
   public void printStatus() {
@@ -838,20 +1405,41 @@ public class ImportEW extends Thread {
 
     strings.add("---- TraceBufs");
     strings.add("Accepted: " + totalTraceBufsAccepted);
-    strings.add("Written:  " + totalTraceBufsWritten);
-    strings.add("Failed:   " + totalTraceBufsFailed);
+    strings.add("Written:  " + totalTraceBufsWritten.get());
+    strings.add("Failed:   " + totalTraceBufsFailed.get());
     strings.add("Rejected: " + totalTraceBufsRejected);
     strings.add("Dropped:  " + totalTraceBufsDropped);
-    final int pending = totalTraceBufsAccepted - totalTraceBufsWritten - totalTraceBufsFailed
+    final int pending = totalTraceBufsAccepted - totalTraceBufsWritten.get()
+        - totalTraceBufsFailed.get()
         - totalTraceBufsRejected - totalTraceBufsDropped;
     strings.add("Pending:  " + pending);
 
     // by each filter
     strings.add("---- Timing");
+    double inputTime = 0;
+    for (final Writer writer : writers) {
+      inputTime += writer.inputTimer.getTotalTimeMillis();
+    }
     strings.add(String.format("Total input time:        %s",
-        Time.secondsToString(inputTimer.getTotalTimeMillis() / 1000)));
+        Time.secondsToString(inputTime / 1000)));
     strings.add(String.format("Input time per TraceBuf: %.2fms",
-        inputTimer.getTotalTimeMillis() / totalTraceBufsWritten));
+        inputTime / totalTraceBufsWritten.get()));
+
+    strings.add("---- Writers");
+    for (final Writer writer : writers) {
+      final long inputs = writer.inputs;
+      strings.add(String.format(
+          "Writer %d: queued %d, input time per write %.2fms, threshold stretch %.0fx",
+          writer.index, writer.getQueueDepth(),
+          inputs == 0 ? 0 : writer.inputTimer.getTotalTimeMillis() / inputs, writer.stretch));
+    }
+    strings.add(CodecBuffers.getStatus());
+
+    if (spool != null) {
+      strings.add("---- Spool");
+      strings.add(String.format("Segments: %d, %.1fMB on disk, %d TraceBufs released",
+          spool.getSegmentCount(), spool.getSize() / 1024.0 / 1024.0, spool.getReleased()));
+    }
 
     for (final String s : strings)
       System.out.println(s);
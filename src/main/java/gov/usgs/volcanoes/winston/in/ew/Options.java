@@ -11,6 +11,9 @@ import gov.usgs.volcanoes.core.util.StringUtils;
  * @author Dan Cervelli
  */
 public class Options {
+  /** largest factor applied to the time threshold, so stretching at most doubles latency */
+  public static final double MAX_TIME_STRETCH = 2;
+
   public double timeThreshold;
   public int bufThreshold;
   public int maxBacklog;
@@ -36,18 +39,49 @@ public class Options {
   }
 
   public boolean thresholdExceeded(final double time, final int size) {
+    return thresholdExceeded(time, size, 1);
+  }
+
+  /**
+   * Check the thresholds, each stretched by a factor. The count threshold is never stretched
+   * past half of maxBacklog, so stretching cannot cause tracebufs to be dropped. The time
+   * threshold is never stretched by more than MAX_TIME_STRETCH, so data reaches the database
+   * late by a bounded amount.
+   *
+   * @param time start time of the oldest buffered tracebuf
+   * @param size number of buffered tracebufs
+   * @param stretch factor applied to the thresholds
+   * @return true if the buffered tracebufs should be written
+   */
+  public boolean thresholdExceeded(final double time, final int size, final double stretch) {
     if (timeThreshold != -1) {
       final double dt = J2kSec.now() - time;
-      if (dt > timeThreshold)
+      if (dt > stretchedTimeThreshold(stretch))
         return true;
     }
 
-    if (size > bufThreshold)
+    if (size > Math.min(bufThreshold * stretch, Math.max(bufThreshold, maxBacklog / 2)))
       return true;
 
     return false;
   }
 
+  /**
+   * @param time start time of the oldest buffered tracebuf
+   * @param stretch factor applied to the time threshold, up to MAX_TIME_STRETCH
+   * @return time at which the time threshold will be exceeded, or NaN if there is none
+   */
+  public double getDeadline(final double time, final double stretch) {
+    if (timeThreshold == -1)
+      return Double.NaN;
+
+    return time + stretchedTimeThreshold(stretch);
+  }
+
+  private double stretchedTimeThreshold(final double stretch) {
+    return timeThreshold * Math.min(stretch, MAX_TIME_STRETCH);
+  }
+
   @Override
   public String toString() {
     return String.format(
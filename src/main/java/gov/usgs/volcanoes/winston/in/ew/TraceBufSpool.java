@@ -0,0 +1,357 @@
+package gov.usgs.volcanoes.winston.in.ew;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only, on-disk queue of tracebufs. ImportEW writes each accepted tracebuf to the spool
+ * before acknowledging it, and a reader moves tracebufs from the spool to the channel queues as
+ * the writers have room for them. While the database is down the spool grows on disk rather than
+ * in the heap, and tracebufs still in the spool when ImportEW stops are read again when it
+ * restarts.
+ *
+ * The spool is a directory of memory-mapped segment files, written and read in order. Each record
+ * is a four-byte length followed by the tracebuf. The length is written last, so a record cut off
+ * by a crash reads as the end of its segment. Records are only durable once {@link #sync()} has
+ * returned, so a tracebuf must not be acknowledged before then. A sync covers every record
+ * appended before it, so callers should append a group of records and sync once.
+ *
+ * Each segment starts with the offset of its first record not yet released, updated as records
+ * are released, so a restart replays only the records that were still outstanding. A segment is
+ * deleted once every record in it has been read and released. Records released out of order after
+ * an outstanding one are read again after a restart, so a few tracebufs may be written twice; the
+ * database rejects the second copy as a duplicate.
+ *
+ * @author Tom Parker
+ */
+public class TraceBufSpool implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TraceBufSpool.class);
+
+  private static final String SUFFIX = ".spool";
+
+  /** offset of the first unreleased record */
+  private static final int HEADER_SIZE = 4;
+
+  /**
+   * A tracebuf read from the spool. Release it once it has been written.
+   */
+  public static final class Record {
+    private final byte[] bytes;
+    private final Segment segment;
+    private final int offset;
+    private boolean released;
+
+    private Record(final byte[] bytes, final Segment segment, final int offset) {
+      this.bytes = bytes;
+      this.segment = segment;
+      this.offset = offset;
+    }
+
+    /**
+     * @return tracebuf bytes
+     */
+    public byte[] getBytes() {
+      return bytes;
+    }
+  }
+
+  private static final class Segment {
+    private final long id;
+    private final File file;
+    private final int size;
+    private MappedByteBuffer buffer;
+    private int writePos;
+    private int readPos;
+    private final TreeSet<Integer> outstanding;
+    private boolean readDone;
+
+    private Segment(final long id, final File file, final int size) {
+      this.id = id;
+      this.file = file;
+      this.size = size;
+      writePos = HEADER_SIZE;
+      readPos = HEADER_SIZE;
+      outstanding = new TreeSet<Integer>();
+    }
+  }
+
+  private final File directory;
+  private final int segmentSize;
+  private final List<Segment> segments;
+  private Segment writeSegment;
+  private Segment readSegment;
+  private long released;
+  private boolean unsynced;
+
+  /**
+   * Open a spool, creating its directory if needed. Segments left by an earlier run will be read
+   * before anything appended now.
+   *
+   * @param directory spool directory
+   * @param segmentSize size of each segment file, in bytes
+   * @throws IOException if the spool cannot be opened
+   */
+  public TraceBufSpool(final File directory, final int segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    segments = new ArrayList<Segment>();
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create spool directory " + directory);
+    }
+
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    final List<Long> ids = new ArrayList<Long>();
+    for (final File file : files) {
+      final String name = file.getName();
+      try {
+        ids.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+      } catch (final NumberFormatException e) {
+        LOGGER.warn("Ignoring unexpected file in spool: {}", file);
+      }
+    }
+    Collections.sort(ids);
+
+    long nextId = 1;
+    for (final long id : ids) {
+      final File file = segmentFile(id);
+      final Segment segment = new Segment(id, file, (int) file.length());
+      segment.writePos = segment.size;
+      segment.readPos = Math.max(HEADER_SIZE, map(file, segment.size).getInt(0));
+      segments.add(segment);
+      nextId = id + 1;
+    }
+    if (!segments.isEmpty()) {
+      LOGGER.info("Replaying {} spool segments from {}.", segments.size(), directory);
+    }
+
+    writeSegment = openSegment(nextId, segmentSize);
+    readSegment = segments.get(0);
+  }
+
+  /**
+   * Add a tracebuf to the end of the spool.
+   *
+   * @param bytes tracebuf bytes
+   * @throws IOException if a new segment cannot be created
+   */
+  public synchronized void append(final byte[] bytes) throws IOException {
+    if (writeSegment.writePos + 4 + bytes.length > writeSegment.size) {
+      final Segment full = writeSegment;
+      writeSegment =
+          openSegment(full.id + 1, Math.max(segmentSize, HEADER_SIZE + 4 + bytes.length));
+      full.buffer.force();
+      if (full != readSegment) {
+        full.buffer = null;
+      }
+    }
+
+    final MappedByteBuffer buffer = writeSegment.buffer;
+    buffer.position(writeSegment.writePos + 4);
+    buffer.put(bytes);
+    buffer.putInt(writeSegment.writePos, bytes.length);
+    writeSegment.writePos += 4 + bytes.length;
+    unsynced = true;
+  }
+
+  /**
+   * Force appended records to disk. Call before acknowledging them. Does nothing if nothing has
+   * been appended since the last sync. Appends may continue while the sync runs; they are
+   * covered by the next one.
+   */
+  public void sync() {
+    final MappedByteBuffer buffer;
+    synchronized (this) {
+      if (!unsynced) {
+        return;
+      }
+      unsynced = false;
+      // a full segment is forced when the next one is opened, so only this one can be dirty
+      buffer = writeSegment.buffer;
+    }
+    buffer.force();
+  }
+
+  /**
+   * Move a record to the end of the spool, to be read again after everything appended before it.
+   * Used to set aside a record that cannot be handled yet without holding up the records behind
+   * it.
+   *
+   * @param record the record
+   * @throws IOException if the record cannot be appended; it is then left outstanding
+   */
+  public synchronized void requeue(final Record record) throws IOException {
+    if (record.released) {
+      return;
+    }
+    append(record.bytes);
+    sync();
+    release(record);
+  }
+
+  /**
+   * Take the oldest tracebuf not yet read.
+   *
+   * @return a record, or null if every tracebuf has been read
+   * @throws IOException if a segment cannot be read
+   */
+  public synchronized Record poll() throws IOException {
+    while (true) {
+      final Segment segment = readSegment;
+      if (segment.buffer == null) {
+        segment.buffer = map(segment.file, segment.size);
+      }
+
+      int length = 0;
+      if (segment.readPos + 4 <= segment.writePos) {
+        length = segment.buffer.getInt(segment.readPos);
+        if (length < 0 || segment.readPos + 4 + length > segment.size) {
+          LOGGER.warn("Corrupt spool record in {} at {}, skipping rest of segment.",
+              segment.file, segment.readPos);
+          length = 0;
+        }
+      }
+
+      if (length > 0) {
+        final byte[] bytes = new byte[length];
+        final int offset = segment.readPos;
+        segment.buffer.position(offset + 4);
+        segment.buffer.get(bytes);
+        segment.readPos += 4 + length;
+        segment.outstanding.add(offset);
+        return new Record(bytes, segment, offset);
+      }
+
+      if (segment == writeSegment) {
+        return null;
+      }
+
+      segment.readDone = true;
+      segment.buffer = null;
+      readSegment = segments.get(segments.indexOf(segment) + 1);
+      deleteIfDone(segment);
+    }
+  }
+
+  /**
+   * Release a record once its tracebuf has been written or rejected. Releasing a record twice has
+   * no effect.
+   *
+   * @param record the record
+   */
+  public synchronized void release(final Record record) {
+    if (record.released) {
+      return;
+    }
+    record.released = true;
+    released++;
+
+    final Segment segment = record.segment;
+    segment.outstanding.remove(record.offset);
+    if (deleteIfDone(segment)) {
+      return;
+    }
+
+    final int committed =
+        segment.outstanding.isEmpty() ? segment.readPos : segment.outstanding.first();
+    try {
+      if (segment.buffer == null) {
+        segment.buffer = map(segment.file, segment.size);
+      }
+      segment.buffer.putInt(0, committed);
+    } catch (final IOException e) {
+      LOGGER.warn("Could not record spool position in {}. ({})", segment.file, e.getMessage());
+    }
+  }
+
+  /**
+   * @return number of segment files in the spool
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * @return bytes used on disk
+   */
+  public synchronized long getSize() {
+    long size = 0;
+    for (final Segment segment : segments) {
+      size += segment.size;
+    }
+    return size;
+  }
+
+  /**
+   * @return number of records released since the spool was opened
+   */
+  public synchronized long getReleased() {
+    return released;
+  }
+
+  /**
+   * Flush the mapped segments. Records not yet released will be read again when the spool is next
+   * opened.
+   */
+  public synchronized void close() {
+    for (final Segment segment : segments) {
+      if (segment.buffer != null) {
+        segment.buffer.force();
+      }
+      segment.buffer = null;
+    }
+  }
+
+  /**
+   * @return true if the segment was deleted
+   */
+  private boolean deleteIfDone(final Segment segment) {
+    if (!segment.readDone || !segment.outstanding.isEmpty() || segment == writeSegment) {
+      return false;
+    }
+    segments.remove(segment);
+    segment.buffer = null;
+    if (!segment.file.delete()) {
+      LOGGER.warn("Could not delete spool segment {}.", segment.file);
+    }
+    return true;
+  }
+
+  private Segment openSegment(final long id, final int size) throws IOException {
+    final File file = segmentFile(id);
+    final Segment segment = new Segment(id, file, size);
+    segment.buffer = map(file, size);
+    segments.add(segment);
+    return segment;
+  }
+
+  private File segmentFile(final long id) {
+    return new File(directory, String.format("%016d%s", id, SUFFIX));
+  }
+
+  private static MappedByteBuffer map(final File file, final int size) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(size);
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      raf.close();
+    }
+  }
+}
@@ -25,7 +25,9 @@ import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.EventExecutorGroup;
 
 /**
  * Classifies requests by protocol and rejiggers the pipeline accordingly.
@@ -64,6 +66,7 @@ public class PortUnificationDecoder extends ByteToMessageDecoder {
 
   private final ConfigFile configFile;
   private final WinstonDatabasePool winstonDatabasePool;
+  private final EventExecutorGroup chunkExecutor;
 
 
   /**
@@ -71,11 +74,15 @@ public class PortUnificationDecoder extends ByteToMessageDecoder {
    * 
    * @param configFile config file
    * @param winstonDatabasePool database pool
+   * @param chunkExecutor threads that read chunked responses from the database, keeping blocking
+   *        reads off the event loop
    */
-  public PortUnificationDecoder(ConfigFile configFile, WinstonDatabasePool winstonDatabasePool) {
+  public PortUnificationDecoder(ConfigFile configFile, WinstonDatabasePool winstonDatabasePool,
+      EventExecutorGroup chunkExecutor) {
     super();
     this.configFile = configFile;
     this.winstonDatabasePool = winstonDatabasePool;
+    this.chunkExecutor = chunkExecutor;
   }
 
   @Override
@@ -119,6 +126,7 @@ public class PortUnificationDecoder extends ByteToMessageDecoder {
     pipeline.addLast(new StringDecoder(CharsetUtil.US_ASCII));
     pipeline.addLast(new StringEncoder(CharsetUtil.US_ASCII));
     pipeline.addLast(new ByteArrayEncoder());
+    pipeline.addLast(chunkExecutor, new ChunkedWriteHandler());
     pipeline.addLast(new WwsCommandStringDecoder());
     pipeline.addLast(new WwsCommandHandler(configFile, winstonDatabasePool));
     pipeline.remove(this);
@@ -33,6 +33,8 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.traffic.ChannelTrafficShapingHandler;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.Future;
 
 /**
@@ -142,6 +144,8 @@ public class WWS {
   private final InetAddress serverIp;
   private final int serverPort;
   private NioEventLoopGroup group;
+  private WinstonDatabasePool databasePool;
+  private EventExecutorGroup chunkExecutor;
   private final ConnectionStatistics connectionStatistics;
 
   /**
@@ -202,7 +206,23 @@ public class WWS {
       maxDays = WinstonDatabase.MAX_DAYS_UNLIMITED;
     
     winstonConfig.put("maxDays", "" + maxDays);
-    final WinstonDatabasePool databasePool = new WinstonDatabasePool(winstonConfig, poolConfig);
+    winstonConfig.put("hotCacheMB", "" + configFile.getLong("wws.hotCacheMB", 0));
+    winstonConfig.put("hotCacheMinutes", "" + configFile.getLong("wws.hotCacheMinutes",
+        WinstonDatabaseFactory.DEFAULT_HOT_CACHE_MINUTES));
+    winstonConfig.put("hotCacheRefreshSeconds", "" + configFile.getLong(
+        "wws.hotCacheRefreshSeconds", WinstonDatabaseFactory.DEFAULT_HOT_CACHE_REFRESH_SECONDS));
+    winstonConfig.put("waveCacheMB", "" + configFile.getLong("wws.waveCacheMB", 0));
+    winstonConfig.put("intervalIndexMB", "" + configFile.getLong("wws.intervalIndexMB", 0));
+    winstonConfig.put("parallelReads", "" + configFile.getInt("wws.parallelReads", 0));
+    final String archiveDirectory = configFile.getString("wws.archiveDirectory");
+    if (archiveDirectory != null) {
+      winstonConfig.put("archiveDirectory", archiveDirectory);
+      LOGGER.info("config: wws.archiveDirectory={}.", archiveDirectory);
+    }
+    databasePool = new WinstonDatabasePool(winstonConfig, poolConfig);
+
+    // each thread holds at most one connection while it reads a page of a chunked response
+    chunkExecutor = new DefaultEventExecutorGroup(dbConnections);
 
     final AttributeKey<ConnectionStatistics> connectionStatsKey =
         AttributeKey.valueOf("connectionStatistics");
@@ -221,7 +241,8 @@ public class WWS {
             connectionStatistics.mapChannel(remoteAddress, trafficCounter);
 
             ch.pipeline().addLast(trafficCounter);
-            ch.pipeline().addLast(new PortUnificationDecoder(configFile, databasePool));
+            ch.pipeline()
+                .addLast(new PortUnificationDecoder(configFile, databasePool, chunkExecutor));
 
             ch.attr(connectionStatsKey).set(connectionStatistics);
             ch.closeFuture().addListener(new ChannelFutureListener() {
@@ -256,9 +277,14 @@ public class WWS {
     final Future<?> ff = group.shutdownGracefully();
     try {
       ff.sync();
+      chunkExecutor.shutdownGracefully().sync();
     } catch (final InterruptedException ex) {
       Thread.currentThread().interrupt();
       throw new RuntimeException(ex);
+    } finally {
+      if (databasePool != null) {
+        databasePool.close();
+      }
     }
   }
 
@@ -5,11 +5,20 @@
 
 package gov.usgs.volcanoes.winston.server;
 
+import java.io.File;
+
 import org.apache.commons.pool2.BasePooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.winston.db.HotTraceBufCache;
+import gov.usgs.volcanoes.winston.db.StorageLayout;
+import gov.usgs.volcanoes.winston.db.TraceBufArchive;
+import gov.usgs.volcanoes.winston.db.TraceBufIndex;
+import gov.usgs.volcanoes.winston.db.WaveBlockCache;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 
 /**
@@ -19,6 +28,13 @@ import gov.usgs.volcanoes.winston.db.WinstonDatabase;
  *
  */
 public class WinstonDatabaseFactory extends BasePooledObjectFactory<WinstonDatabase> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WinstonDatabaseFactory.class);
+
+  /** length of time held by the hot cache, in minutes */
+  public static final long DEFAULT_HOT_CACHE_MINUTES = 10;
+
+  /** shortest time between top-ups of a channel in the hot cache, in seconds */
+  public static final long DEFAULT_HOT_CACHE_REFRESH_SECONDS = 1;
 
   final private String driver;
   final private String prefix;
@@ -26,6 +42,12 @@ public class WinstonDatabaseFactory extends BasePooledObjectFactory<WinstonDatab
   final private String tableEngine;
   final private String url;
   final private long maxDays;
+  final private boolean singleQueryRetrieval;
+  final private HotTraceBufCache hotCache;
+  final private WaveBlockCache waveCache;
+  final private TraceBufArchive archive;
+  final private TraceBufIndex traceBufIndex;
+  final private StorageLayout layout;
 
   /**
    * Constructor.
@@ -34,16 +56,67 @@ public class WinstonDatabaseFactory extends BasePooledObjectFactory<WinstonDatab
    */
   public WinstonDatabaseFactory(ConfigFile config) {
     driver = config.getString("driver");
-    url = config.getString("url");
     prefix = config.getString("prefix");
     tableEngine = config.getString("tableEngine");
     statementCacheCap = config.getInt("statementCacheCap");
+    if (config.getBoolean("serverPrepStmts", false)) {
+      url = WinstonDatabase.serverPrepStmtsURL(config.getString("url"), statementCacheCap);
+    } else {
+      url = config.getString("url");
+    }
     maxDays = config.getLong("maxDays");
+    singleQueryRetrieval = config.getBoolean("singleQueryRetrieval", false);
+
+    final long hotCacheMB = config.getLong("hotCacheMB", 0);
+    if (hotCacheMB > 0) {
+      hotCache = new HotTraceBufCache(hotCacheMB * 1024 * 1024,
+          config.getLong("hotCacheMinutes", DEFAULT_HOT_CACHE_MINUTES) * 60,
+          config.getLong("hotCacheRefreshSeconds", DEFAULT_HOT_CACHE_REFRESH_SECONDS));
+    } else {
+      hotCache = null;
+    }
+
+    final long waveCacheMB = config.getLong("waveCacheMB", 0);
+    waveCache = waveCacheMB > 0 ? new WaveBlockCache(waveCacheMB * 1024 * 1024) : null;
+
+    final long intervalIndexMB = config.getLong("intervalIndexMB", 0);
+    traceBufIndex =
+        intervalIndexMB > 0 ? new TraceBufIndex(intervalIndexMB * 1024 * 1024) : null;
+
+    final String archiveDirectory = config.getString("archiveDirectory");
+    archive = archiveDirectory == null ? null : new TraceBufArchive(new File(archiveDirectory));
+
+    final String layoutName = config.getString("layout");
+    final StorageLayout namedLayout = layoutName == null ? null : StorageLayout.forName(layoutName);
+    if (layoutName != null && namedLayout == null) {
+      LOGGER.error("Unknown layout: {}, using {}.", layoutName, StorageLayout.DAY_TABLES.getName());
+    }
+    layout = namedLayout == null ? StorageLayout.DAY_TABLES : namedLayout;
+  }
+
+  /**
+   * @return the wave cache shared by every connection, or null if there is none
+   */
+  public WaveBlockCache getWaveCache() {
+    return waveCache;
+  }
+
+  /**
+   * @return the archive of closed days, or null if there is none
+   */
+  public TraceBufArchive getArchive() {
+    return archive;
   }
 
   @Override
   public WinstonDatabase create() throws Exception {
     WinstonDatabase winston = new WinstonDatabase(driver, url, prefix, tableEngine, statementCacheCap, maxDays);
+    winston.setSingleQueryRetrieval(singleQueryRetrieval);
+    winston.setHotCache(hotCache);
+    winston.setWaveCache(waveCache);
+    winston.setArchive(archive);
+    winston.setTraceBufIndex(traceBufIndex);
+    winston.setLayout(layout);
     return winston;
   }
 
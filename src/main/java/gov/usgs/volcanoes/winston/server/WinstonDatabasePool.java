@@ -5,11 +5,21 @@
 
 package gov.usgs.volcanoes.winston.server;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
 import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.winston.db.ParallelReader;
+import gov.usgs.volcanoes.winston.db.TraceBufArchive;
+import gov.usgs.volcanoes.winston.db.WaveBlockCache;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 
 /**
@@ -18,7 +28,13 @@ import gov.usgs.volcanoes.winston.db.WinstonDatabase;
  * @author Tom Parker
  *
  */
-public final class WinstonDatabasePool extends GenericObjectPool<WinstonDatabase> {
+public final class WinstonDatabasePool extends GenericObjectPool<WinstonDatabase>
+    implements ParallelReader.ConnectionSource {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WinstonDatabasePool.class);
+
+  private final WinstonDatabaseFactory factory;
+  private final ExecutorService executor;
+  private final ParallelReader parallelReader;
 
   /**
    * Constructor.
@@ -26,7 +42,85 @@ public final class WinstonDatabasePool extends GenericObjectPool<WinstonDatabase
    * @param poolConfig pool config
    */
   public WinstonDatabasePool(ConfigFile configFile, GenericObjectPoolConfig poolConfig) {
-    super(new WinstonDatabaseFactory(configFile), poolConfig);
+    this(new WinstonDatabaseFactory(configFile), configFile, poolConfig);
+  }
+
+  private WinstonDatabasePool(WinstonDatabaseFactory factory, ConfigFile configFile,
+      GenericObjectPoolConfig poolConfig) {
+    super(factory, poolConfig);
+    this.factory = factory;
+
+    final int parallelReads = configFile.getInt("parallelReads", 0);
+    if (parallelReads > 1) {
+      executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+          // helpers must not keep the server alive once it is shut down
+          final Thread thread = new Thread(r, "parallelRead-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      parallelReader = new ParallelReader(executor, this, parallelReads);
+    } else {
+      executor = null;
+      parallelReader = null;
+    }
+  }
+
+  /**
+   * Close the pool and stop the parallel read helpers.
+   */
+  @Override
+  public void close() {
+    super.close();
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Borrow an idle connection for a parallel read, if there is one. A new connection is never
+   * opened for a helper, as connecting can take far longer than the read it would speed up.
+   *
+   * @return connection, or null if none is available without waiting
+   */
+  public WinstonDatabase tryBorrow() {
+    // borrowObject creates a connection when none is idle. Another thread may still take the
+    // last idle one first, in which case this borrow costs the same as any other.
+    if (getNumIdle() == 0) {
+      return null;
+    }
+    try {
+      return borrowObject(0);
+    } catch (Exception e) {
+      LOGGER.debug("No connection available for parallel read. ({})", e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Return a connection borrowed for a parallel read.
+   *
+   * @param winston connection
+   */
+  public void release(WinstonDatabase winston) {
+    returnObject(winston);
+  }
+
+  /**
+   * @return the wave cache shared by every connection, or null if there is none
+   */
+  public WaveBlockCache getWaveCache() {
+    return factory.getWaveCache();
+  }
+
+  /**
+   * @return the archive of closed days, or null if there is none
+   */
+  public TraceBufArchive getArchive() {
+    return factory.getArchive();
   }
 
   /**
@@ -43,10 +137,12 @@ public final class WinstonDatabasePool extends GenericObjectPool<WinstonDatabase
       if (!winston.checkConnect()) {
         throw new UtilException("Unable to connect to MySQL.");
       } else {
+        winston.setParallelReader(parallelReader);
         return consumer.execute(winston);
       }
     } finally {
       if (winston != null) {
+        winston.setParallelReader(null);
         returnObject(winston);
       }
     }
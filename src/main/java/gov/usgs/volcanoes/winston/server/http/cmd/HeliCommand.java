@@ -64,12 +64,16 @@ public final class HeliCommand extends HttpBaseCommand {
     final double startTime = settings.startTime;
     final double endTime = settings.endTime;
 
+    // each line of the plot spans timeChunk seconds across at most the plot width
+    final int width = StringUtils.stringToInt(params.get("w"), HttpConstants.HELI_WIDTH);
+    final double resolution = settings.timeChunk / width;
+
     HelicorderData heliData = null;
     try {
       heliData = databasePool.doCommand(new WinstonConsumer<HelicorderData>() {
 
         public HelicorderData execute(WinstonDatabase winston) throws UtilException {
-          return new Data(winston).getHelicorderData(scnl, startTime, endTime, 0);
+          return new Data(winston).getHelicorderData(scnl, startTime, endTime, 0, resolution);
         }
       });
     } catch (Exception e) {
@@ -6,6 +6,7 @@
 package gov.usgs.volcanoes.winston.server.wws;
 
 import gov.usgs.volcanoes.winston.server.WinstonDatabasePool;
+import gov.usgs.volcanoes.winston.server.wws.cmd.GapsCommand;
 import gov.usgs.volcanoes.winston.server.wws.cmd.GetChannelsCommand;
 import gov.usgs.volcanoes.winston.server.wws.cmd.GetMetadataCommand;
 import gov.usgs.volcanoes.winston.server.wws.cmd.GetScnCommand;
@@ -61,6 +62,9 @@ public enum WwsCommandFactory {
   
   /** get scnl samples */
   GETSCNL(GetScnlCommand.class),
+
+  /** gaps and completeness */
+  GAPS(GapsCommand.class),
   ;
 
   private Class<? extends WwsBaseCommand> clazz;
@@ -10,6 +10,7 @@ import gov.usgs.volcanoes.core.data.Scnl;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.Data;
+import gov.usgs.volcanoes.winston.db.TraceBufArchive;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
@@ -48,4 +49,8 @@ public abstract class EwDataRequest extends WwsBaseCommand {
     }
     return timeSpan;
   }
+
+  protected TraceBufArchive getArchive() {
+    return databasePool.getArchive();
+  }
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server.wws.cmd;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.time.J2kSec;
+import gov.usgs.volcanoes.core.time.Time;
+import gov.usgs.volcanoes.core.time.TimeSpan;
+import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.winston.db.Data;
+import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import gov.usgs.volcanoes.winston.server.MalformedCommandException;
+import gov.usgs.volcanoes.winston.server.WinstonConsumer;
+import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
+import gov.usgs.volcanoes.winston.server.wws.WwsCommandString;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Return the gaps in a channel's data and the fraction of the time span holding data. Gaps
+ * shorter than the minimum duration are not listed but do count against completeness.
+ * <cmd> = "GAPS" <sp> <id> <sp> <scnl> <sp> <time span> [ <sp> <minimum gap duration> ]
+ *
+ * The reply is a line of id, gap count and completeness, followed by a line of start and end
+ * time, in J2kSec, for each gap.
+ *
+ * @author Tom Parker
+ */
+public class GapsCommand extends WwsBaseCommand {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GapsCommand.class);
+
+  /**
+   * Constructor.
+   */
+  public GapsCommand() {
+    super();
+  }
+
+  public void doCommand(ChannelHandlerContext ctx, WwsCommandString cmd)
+      throws MalformedCommandException, UtilException {
+
+    final TimeSpan ts = cmd.getJ2kSecTimeSpan(true);
+    final double st = J2kSec.fromEpoch(ts.startTime);
+    final double et = J2kSec.fromEpoch(ts.endTime);
+    final double minGap = cmd.args.length > 6 ? cmd.getDouble(6) : 0;
+
+    final Scnl scnl = cmd.getScnl();
+    List<double[]> gaps;
+    try {
+      gaps = databasePool.doCommand(new WinstonConsumer<List<double[]>>() {
+        public List<double[]> execute(WinstonDatabase winston) throws UtilException {
+          return new Data(winston).findGaps(scnl, st, et);
+        }
+      });
+    } catch (Exception e) {
+      throw new UtilException(e.getMessage());
+    }
+
+    if (gaps == null) {
+      throw new UtilException("Unable to find gaps.");
+    }
+
+    double totalGap = 0;
+    int count = 0;
+    final StringBuilder lines = new StringBuilder(gaps.size() * 32);
+    for (final double[] gap : gaps) {
+      final double length = gap[1] - gap[0];
+      totalGap += length;
+      if (length >= minGap) {
+        lines.append(gap[0]).append(' ').append(gap[1]).append('\n');
+        count++;
+      }
+    }
+
+    final double completeness = et > st ? Math.max(0, 1 - totalGap / (et - st)) : 0;
+    LOGGER.debug("returning {} gaps", count);
+    ctx.writeAndFlush(String.format("%s %d %.6f%n", cmd.id, count, completeness) + lines);
+  }
+
+  @Override
+  protected String prettyRequest(WwsCommandString cmd) {
+    try {
+      TimeSpan timeSpan = cmd.getJ2kSecTimeSpan(true);
+      return String.format("%s %s %s %s +%s", cmd.command, cmd.id, cmd.getScnl(),
+          Time.toDateString(timeSpan.startTime), timeSpan.span());
+    } catch (MalformedCommandException e) {
+      return cmd.commandString;
+    }
+  }
+}
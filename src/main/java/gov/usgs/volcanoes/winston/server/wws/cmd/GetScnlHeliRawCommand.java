@@ -26,7 +26,10 @@ import io.netty.channel.ChannelHandlerContext;
 
 /**
  * Return Channel details.
- * <cmd> = "GETSCNLHELIRAW" <sp> <id> <scnl> <time span>
+ * <cmd> = "GETSCNLHELIRAW" <sp> <id> <scnl> <time span> <sp> <compress> [ <sp> <resolution> ]
+ *
+ * Rows are one second apart unless the client asks for a resolution, in seconds per row, in
+ * which case they may be read from the coarsest helicorder rollup fine enough for it.
  * 
  * @author Dan Cervelli
  * @author Tom Parker
@@ -51,13 +54,18 @@ public class GetScnlHeliRawCommand extends WwsBaseCommand {
       throw new MalformedCommandException();
     }
 
+    // older clients end with the compress flag; rollups are only read when asked for
+    final boolean hasResolution = cmd.args.length > 7;
+    final boolean compress = cmd.getInt(hasResolution ? 6 : -1) == 1;
+    final double resolution = hasResolution ? cmd.getDouble(7) : 0;
+
     HelicorderData heli;
     try {
       heli = databasePool.doCommand(new WinstonConsumer<HelicorderData>() {
         public HelicorderData execute(WinstonDatabase winston) throws UtilException {
           Data data = new Data(winston);
           try {
-            return data.getHelicorderData(cmd.getScnl(), st, et, 0);
+            return data.getHelicorderData(cmd.getScnl(), st, et, 0, resolution);
           } catch (MalformedCommandException e) {
             throw new UtilException(
                 String.format("Cannot find SCNL in command. (%s)", cmd.commandString));
@@ -72,7 +80,7 @@ public class GetScnlHeliRawCommand extends WwsBaseCommand {
     if (heli != null && heli.rows() > 0) {
       bb = (ByteBuffer) heli.toBinary().flip();
 
-      if (cmd.getInt(-1) == 1)
+      if (compress)
         bb = ByteBuffer.wrap(Zip.compress(bb.array()));
 
       LOGGER.debug("returning {} heli bytes", bb.limit());
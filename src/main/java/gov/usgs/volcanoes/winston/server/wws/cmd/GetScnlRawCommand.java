@@ -6,8 +6,10 @@
 package gov.usgs.volcanoes.winston.server.wws.cmd;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Iterator;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -22,11 +24,16 @@ import gov.usgs.volcanoes.core.time.TimeSpan;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.db.Data;
 import gov.usgs.volcanoes.winston.db.DbUtils;
+import gov.usgs.volcanoes.winston.db.TraceBufArchive;
+import gov.usgs.volcanoes.winston.db.TraceBufCodec;
+import gov.usgs.volcanoes.winston.db.TraceBufCursor;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsCommandString;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
 
 /**
  * Answers requests using the earthworm WSV GETSCNLRAW command.
@@ -61,7 +68,7 @@ public class GetScnlRawCommand extends EwDataRequest {
     return scnl.toString(" ");
   }
 
-  public void doCommand(ChannelHandlerContext ctx, WwsCommandString cmd)
+  public void doCommand(final ChannelHandlerContext ctx, WwsCommandString cmd)
       throws MalformedCommandException, UtilException {
 
     parseCommand(cmd);
@@ -81,6 +88,7 @@ public class GetScnlRawCommand extends EwDataRequest {
     }
 
     final double[] timeSpan = getTimeSpan(chanId);
+    final TraceBufArchive archive = getArchive();
 
     String hdrPreamble = id + " " + chanId + " " + chan;
     String errorString = null;
@@ -98,23 +106,82 @@ public class GetScnlRawCommand extends EwDataRequest {
       return;
     }
 
-    final List<byte[]> bufs;
+    // Read the tracebufs twice: once to learn the length of the response, which goes in the
+    // header, and again while writing them. The first pass leaves the tracebufs compressed and
+    // keeps only their start times, so the second sends exactly the tracebufs it counted.
+    // Archived days are sent straight from their files; the database is read from the end of
+    // the last archived day that has not been written to since it was archived.
+    final RawSummary raw;
     try {
-      bufs = databasePool.doCommand(new WinstonConsumer<List<byte[]>>() {
-        public List<byte[]> execute(WinstonDatabase winston) throws UtilException {
+      raw = databasePool.doCommand(new WinstonConsumer<RawSummary>() {
+        public RawSummary execute(WinstonDatabase winston) throws UtilException {
           double st = Math.max(startTime, timeSpan[0]);
           double et = Math.min(endTime, timeSpan[1]);
           if (et < endTime) {
             LOGGER.debug("Trimming end time: " + J2kSec.toDateString(endTime) + " -> " + J2kSec.toDateString(et) + "\n");
           }
-          return new Data(winston).getTraceBufBytes(code, st, et, 0);
+
+          final RawSummary raw = new RawSummary();
+          double dbStart = st;
+          if (archive != null) {
+            try {
+              for (TraceBufArchive.Region region : archive.getRegions(winston, code, st, et)) {
+                raw.add(region);
+                dbStart = region.dayEnd;
+              }
+            } catch (IOException e) {
+              throw new UtilException("Unable to read archive. (" + e.getMessage() + ")");
+            } catch (SQLException e) {
+              throw new UtilException("Unable to check archive. (" + e.getMessage() + ")");
+            }
+            if (dbStart > et) {
+              return raw;
+            }
+          }
+
+          final Data data = new Data(winston);
+          if (raw.regions.isEmpty()) {
+            final List<byte[]> recent = data.getRecentTraceBufBytes(code, st, et);
+            if (recent != null) {
+              raw.bufs = recent;
+              for (byte[] buf : recent) {
+                raw.add(buf);
+              }
+              return raw;
+            }
+          }
+
+          // the second pass filters on this same start time, or the lengths would disagree
+          raw.dbStart = data.applyLookback(dbStart);
+          final TraceBufCursor cursor = data.getTraceBufCursor(code, raw.dbStart, et, 0);
+          if (cursor == null) {
+            return raw;
+          }
+
+          cursor.setDecompress(false);
+          try {
+            while (cursor.next()) {
+              // tracebufs starting in an archived day have been sent from the archive
+              if (cursor.getStartTime() >= dbStart || raw.regions.isEmpty()) {
+                raw.addStored(cursor.getCompressedBytes(), cursor.getStartTime());
+              }
+            }
+            if (raw.lastStored != null) {
+              raw.lastBuf = TraceBufCodec.decode(raw.lastStored);
+            }
+          } catch (Exception e) {
+            throw new UtilException("Unable to read tracebufs. (" + e.getMessage() + ")");
+          } finally {
+            cursor.close();
+          }
+          return raw;
         }
       });
     } catch (Exception e) {
-      throw new UtilException("Unable to get chanId");
+      throw new UtilException("Unable to get tracebufs for " + scnl);
     }
 
-    if (bufs == null || bufs.size() == 0) {
+    if (raw == null || raw.firstBuf == null) {
       ctx.writeAndFlush(hdrPreamble + " FG s4\n");
       LOGGER.debug("Returning empty trace list");
       return;
@@ -123,28 +190,102 @@ public class GetScnlRawCommand extends EwDataRequest {
     final TraceBuf firstBuf;
     final TraceBuf lastBuf;
     try {
-      firstBuf = new TraceBuf(bufs.get(0));
-      lastBuf = new TraceBuf(bufs.get(bufs.size() - 1));
+      firstBuf = new TraceBuf(raw.firstBuf);
+      lastBuf = new TraceBuf(raw.lastBuf);
     } catch (IOException e) {
       throw new UtilException("Unable to get bufs.");
     }
 
-    int total = 0;
-    for (final byte[] buf : bufs) {
-      total += buf.length;
-    }
-
     String hdr = String.format("%s F %s %f %f %d", hdrPreamble, firstBuf.dataType(),
-        firstBuf.getStartTime(), lastBuf.getEndTime(), total);
+        firstBuf.getStartTime(), lastBuf.getEndTime(), raw.length);
     ctx.writeAndFlush(hdr + "\n");
     LOGGER.debug("Returning header: {}", hdr);
-    final ByteBuffer bb = ByteBuffer.allocate(total);
-    for (final Iterator<byte[]> it = bufs.iterator(); it.hasNext();) {
-      bb.put((byte[]) it.next());
+    LOGGER.debug("GETSCNLRAW returning {} bytes", raw.length);
+
+    for (TraceBufArchive.Region region : raw.regions) {
+      try {
+        ctx.write(new DefaultFileRegion(new RandomAccessFile(region.file, "r").getChannel(),
+            region.position, region.count)).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+      } catch (IOException e) {
+        LOGGER.error("Unable to open archive file {}. ({})", region.file, e.getMessage());
+        ctx.close();
+        return;
+      }
+    }
+
+    if (raw.bufs != null) {
+      for (byte[] buf : raw.bufs) {
+        ctx.write(buf);
+      }
+      ctx.flush();
+      return;
+    }
+
+    if (raw.dbLength == 0) {
+      ctx.flush();
+      return;
+    }
+
+    // the header promised a length; a short response must not leave the client waiting
+    ctx.writeAndFlush(new TraceBufChunkedInput(databasePool, code, raw.dbStart,
+        Arrays.copyOf(raw.startTimes, raw.rows), raw.dbLength))
+        .addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+  }
+
+  /**
+   * What the first pass learns about a response. Responses served from the hot cache carry
+   * their tracebufs along; archived days are carried as regions of their files.
+   */
+  private static class RawSummary {
+    private final List<TraceBufArchive.Region> regions = new ArrayList<TraceBufArchive.Region>();
+    private List<byte[]> bufs;
+    private byte[] firstBuf;
+    private byte[] lastBuf;
+    private byte[] lastStored;
+    private double dbStart;
+    private double[] startTimes = new double[TraceBufChunkedInput.PAGE_SIZE];
+    private int rows;
+    private long length;
+    private long dbLength;
+
+    private void add(TraceBufArchive.Region region) {
+      if (region.count == 0) {
+        return;
+      }
+      regions.add(region);
+      if (firstBuf == null) {
+        firstBuf = region.firstBuf;
+      }
+      lastBuf = region.lastBuf;
+      length += region.count;
+    }
+
+    private void add(byte[] buf) {
+      if (firstBuf == null) {
+        firstBuf = buf;
+      }
+      lastBuf = buf;
+      length += buf.length;
+    }
+
+    /**
+     * Count a tracebuf read from the database. Only the first is decompressed here; the caller
+     * decompresses the last once it is known.
+     */
+    private void addStored(byte[] stored, double startTime) throws IOException {
+      if (firstBuf == null) {
+        firstBuf = TraceBufCodec.decode(stored);
+      }
+      lastStored = stored;
+      if (rows == startTimes.length) {
+        startTimes = Arrays.copyOf(startTimes, rows * 2);
+      }
+      startTimes[rows++] = startTime;
+
+      final int bufLength = TraceBufCodec.decodedLength(stored);
+      length += bufLength;
+      dbLength += bufLength;
     }
-    bb.flip();
-    LOGGER.debug("GETSCNLRAW returning {} bytes", bb.capacity());
-    ctx.write(bb.array());
   }
 
   @Override
@@ -15,11 +15,10 @@ import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.db.Channels;
-import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import gov.usgs.volcanoes.winston.db.WaveBlockCache;
 import gov.usgs.volcanoes.winston.server.ConnectionStatistics;
 import gov.usgs.volcanoes.winston.server.GetChannelsConsumer;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
-import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
 import gov.usgs.volcanoes.winston.server.wws.WwsCommandString;
 import io.netty.channel.ChannelHandlerContext;
@@ -90,6 +89,14 @@ public class StatusCommand extends WwsBaseCommand {
     sb.append(String.format("Median data age: %s%n", d[(d.length - 1) / 2]));
     lines++;
 
+    final WaveBlockCache waveCache = databasePool.getWaveCache();
+    if (waveCache != null) {
+      sb.append(String.format("Wave cache hits: %d%n", waveCache.getHits()));
+      sb.append(String.format("Wave cache misses: %d%n", waveCache.getMisses()));
+      sb.append(String.format("Wave cache size: %d%n", waveCache.size()));
+      lines += 3;
+    }
+
     ctx.write("GC: " + lines + '\n');
     ctx.writeAndFlush(sb.toString());
   }
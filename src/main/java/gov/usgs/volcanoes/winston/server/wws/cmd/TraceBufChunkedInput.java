@@ -0,0 +1,169 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server.wws.cmd;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.winston.db.Data;
+import gov.usgs.volcanoes.winston.db.TraceBufCursor;
+import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import gov.usgs.volcanoes.winston.server.WinstonConsumer;
+import gov.usgs.volcanoes.winston.server.WinstonDatabasePool;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+/**
+ * Streams the tracebufs of a GETSCNLRAW response a page at a time. The length of the response
+ * has already been sent to the client, so exactly the tracebufs counted for it are sent, found
+ * again by their start times. Tracebufs written since then are skipped, and the response fails
+ * only if a counted tracebuf has gone or changed length. A database connection is held only
+ * while a page is read, and ChunkedWriteHandler asks for the next page only once the client has
+ * caught up, so apart from eight bytes per tracebuf for its start time memory use does not
+ * depend on the length of the request.
+ *
+ * <p>
+ * Pages are read by whichever thread runs ChunkedWriteHandler, which should not be an event
+ * loop.
+ *
+ * @author Tom Parker
+ */
+public class TraceBufChunkedInput implements ChunkedInput<ByteBuf> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TraceBufChunkedInput.class);
+
+  /** maximum number of tracebufs read for each chunk */
+  public static final int PAGE_SIZE = 64;
+
+  private final WinstonDatabasePool databasePool;
+  private final String code;
+  private final double t1;
+  private final double[] startTimes;
+  private final long length;
+
+  private double pageStart;
+  private boolean pageStartInclusive;
+  private int next;
+  private long written;
+  private boolean closed;
+
+  /**
+   * Constructor.
+   *
+   * @param databasePool pool used to read each page
+   * @param code channel code
+   * @param t1 start of the request
+   * @param startTimes start times of the tracebufs to send, in ascending order
+   * @param length total length of the tracebufs, in bytes
+   */
+  public TraceBufChunkedInput(WinstonDatabasePool databasePool, String code, double t1,
+      double[] startTimes, long length) {
+    this.databasePool = databasePool;
+    this.code = code;
+    this.t1 = t1;
+    this.startTimes = startTimes;
+    this.length = length;
+
+    pageStart = startTimes.length > 0 ? startTimes[0] : Double.NaN;
+    pageStartInclusive = true;
+  }
+
+  @Override
+  public boolean isEndOfInput() {
+    return closed || written >= length;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+  }
+
+  @Override
+  public ByteBuf readChunk(final ChannelHandlerContext ctx) throws Exception {
+    if (isEndOfInput()) {
+      return null;
+    }
+
+    final ByteBuf chunk = databasePool.doCommand(new WinstonConsumer<ByteBuf>() {
+      public ByteBuf execute(WinstonDatabase winston) throws UtilException {
+        final Data data = new Data(winston);
+        final ByteBuf chunk = ctx.alloc().buffer();
+        try {
+          // a page of newly written tracebufs adds nothing, so keep reading until one does
+          while (!chunk.isReadable() && next < startTimes.length) {
+            if (readPage(data, chunk) < PAGE_SIZE) {
+              break;
+            }
+          }
+        } catch (Exception e) {
+          chunk.release();
+          throw new UtilException("Unable to read tracebufs. (" + e.getMessage() + ")");
+        }
+        return chunk;
+      }
+    });
+
+    if (chunk == null || !chunk.isReadable()) {
+      if (chunk != null) {
+        chunk.release();
+      }
+      throw new IOException("Sent " + written + " of " + length + " bytes for " + code
+          + " before running out of tracebufs.");
+    }
+
+    written += chunk.readableBytes();
+    LOGGER.debug("Sending {} bytes for {}, {} of {} sent", chunk.readableBytes(), code, written,
+        length);
+    return chunk;
+  }
+
+  /**
+   * Append the counted tracebufs from the next page to a chunk.
+   *
+   * @return number of tracebufs read, counted or not
+   */
+  private int readPage(Data data, ByteBuf chunk) throws Exception {
+    final TraceBufCursor cursor = data.getTraceBufPage(code, t1, pageStart, pageStartInclusive,
+        startTimes[startTimes.length - 1], PAGE_SIZE);
+    if (cursor == null) {
+      return 0;
+    }
+
+    int count = 0;
+    try {
+      while (count < PAGE_SIZE && cursor.next()) {
+        count++;
+        final double st = cursor.getStartTime();
+        pageStart = st;
+        pageStartInclusive = false;
+
+        if (startTimes[next] < st) {
+          throw new UtilException("Tracebufs changed while being sent.");
+        }
+        if (startTimes[next] > st) {
+          // written since the length was sent
+          continue;
+        }
+
+        final byte[] bytes = cursor.getBytes();
+        if (written + chunk.readableBytes() + bytes.length > length) {
+          throw new UtilException("Tracebufs changed while being sent.");
+        }
+        chunk.writeBytes(bytes);
+        next++;
+        if (next == startTimes.length) {
+          break;
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    return count;
+  }
+}
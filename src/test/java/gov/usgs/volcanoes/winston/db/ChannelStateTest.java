@@ -0,0 +1,220 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+
+public class ChannelStateTest {
+
+  private static final int THREADS = 8;
+  private static final int UPDATES = 10000;
+  private static final double DELTA = 0;
+  private static final int HELI_SECONDS = 60;
+  private static final int SAMPLES = 10;
+  private static final int TRACEBUF_HEADER_SIZE = 64;
+  /** 2017-06-30 16:00:00 UTC, as seconds since 1970 */
+  private static final double EPOCH = 1498838400;
+
+  private ExecutorService executor;
+  private ChannelState state;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(THREADS);
+    state = new ChannelState();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void concurrent_extends_are_not_lost() throws Exception {
+    state.loadTimeSpan("STA$HHZ$NET", new double[] {0, 1});
+
+    runConcurrently(new Task() {
+      public void run(final int thread, final int update) {
+        final double t = thread * UPDATES + update;
+        state.extendTimeSpan("STA$HHZ$NET", -t, t);
+      }
+    });
+
+    final double last = THREADS * UPDATES - 1;
+    assertArrayEquals(new double[] {-last, last}, state.getTimeSpan("STA$HHZ$NET"), DELTA);
+  }
+
+  @Test
+  public void pending_spans_are_taken_once() {
+    state.extendTimeSpan("STA$HHZ$NET", 10, 20);
+    state.markPending("STA$HHZ$NET");
+    state.extendTimeSpan("STA$HHZ$NET", 5, 25);
+    state.markPending("STA$HHZ$NET");
+    assertEquals(1, state.getPendingCount());
+    assertArrayEquals(new double[] {5, 25}, state.getPendingTimeSpan("STA$HHZ$NET"), DELTA);
+
+    final Map<String, double[]> pending = state.takePendingTimeSpans();
+    assertEquals(1, pending.size());
+    assertArrayEquals(new double[] {5, 25}, pending.get("STA$HHZ$NET"), DELTA);
+    assertNull(state.getPendingTimeSpan("STA$HHZ$NET"));
+    assertTrue(state.takePendingTimeSpans().isEmpty());
+  }
+
+  @Test
+  public void load_does_not_replace_cached_span() {
+    state.loadTimeSpan("STA$HHZ$NET", new double[] {10, 20});
+    state.extendTimeSpan("STA$HHZ$NET", 5, 25);
+
+    final double[] span = state.loadTimeSpan("STA$HHZ$NET", new double[] {10, 20});
+    assertArrayEquals(new double[] {5, 25}, span, DELTA);
+  }
+
+  @Test
+  public void extend_ignores_nan() {
+    state.loadTimeSpan("STA$HHZ$NET", new double[] {Double.NaN, Double.NaN});
+    state.extendTimeSpan("STA$HHZ$NET", Double.NaN, 20);
+    state.extendTimeSpan("STA$HHZ$NET", 10, Double.NaN);
+
+    assertArrayEquals(new double[] {10, 20}, state.getTimeSpan("STA$HHZ$NET"), DELTA);
+  }
+
+  @Test
+  public void returned_spans_are_copies() {
+    state.loadTimeSpan("STA$HHZ$NET", new double[] {10, 20});
+    state.getTimeSpan("STA$HHZ$NET")[0] = 0;
+
+    assertArrayEquals(new double[] {10, 20}, state.getTimeSpan("STA$HHZ$NET"), DELTA);
+  }
+
+  @Test
+  public void start_time_can_move_forward() {
+    state.loadTimeSpan("STA$HHZ$NET", new double[] {10, 20});
+    state.setStartTime("STA$HHZ$NET", 15);
+
+    assertArrayEquals(new double[] {15, 20}, state.getTimeSpan("STA$HHZ$NET"), DELTA);
+  }
+
+  @Test
+  public void invalidate_forgets_span() {
+    state.loadTimeSpan("STA$HHZ$NET", new double[] {10, 20});
+    state.invalidate("STA$HHZ$NET");
+
+    assertNull(state.getTimeSpan("STA$HHZ$NET"));
+  }
+
+  @Test
+  public void concurrent_heli_updates_are_not_lost() throws Exception {
+    // one writer per thread, each on its own connection to the same Winston
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording();
+    final InputEW[] writers = new InputEW[THREADS];
+    final TraceBuf[][] traceBufs = new TraceBuf[THREADS][HELI_SECONDS];
+    for (int i = 0; i < THREADS; i++) {
+      writers[i] = new InputEW(recording.connect(null));
+      for (int s = 0; s < HELI_SECONDS; s++) {
+        traceBufs[i][s] = traceBuf(EPOCH + s + 0.5, SAMPLES);
+      }
+    }
+
+    runConcurrently(new Task() {
+      public void run(final int thread, final int update) {
+        writers[thread].updateHelicorderData(new HashSet<Double>(), "STA$HHZ$NET", null,
+            traceBufs[thread][update % HELI_SECONDS], true, 10, 60, false);
+      }
+    });
+
+    final HeliAccumulator rows =
+        ChannelState.getInstance(recording.connect(null)).getHelicorderRows("STA$HHZ$NET", 300);
+    final long first = (long) Math.floor(traceBufs[0][0].getStartTimeJ2K());
+    long total = 0;
+    synchronized (rows) {
+      for (long j2k = first; j2k <= first + HELI_SECONDS; j2k++) {
+        final int slot = rows.find(j2k);
+        if (slot >= 0) {
+          total += rows.getCount(slot);
+        }
+      }
+    }
+    assertEquals((long) THREADS * UPDATES * SAMPLES, total);
+  }
+
+  @Test
+  public void channels_have_separate_heli_rows() {
+    final HeliAccumulator rows = state.getHelicorderRows("STA$HHZ$NET", 60);
+    rows.claim(10);
+    assertSame(rows, state.getHelicorderRows("STA$HHZ$NET", 60));
+    assertEquals(-1, state.getHelicorderRows("STA$HHN$NET", 60).find(10));
+  }
+
+  private interface Task {
+    void run(int thread, int update);
+  }
+
+  /**
+   * Build a one-second TRACEBUF2 message of little-endian ints, with the trailing byte sent by
+   * Earthworm.
+   */
+  private static TraceBuf traceBuf(final double st, final int count) throws IOException {
+    final double rate = count;
+    final ByteBuffer buffer = ByteBuffer.allocate(TRACEBUF_HEADER_SIZE + count * 4 + 1);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(1);
+    buffer.putInt(count);
+    buffer.putDouble(st);
+    buffer.putDouble(st + (count - 1) / rate);
+    buffer.putDouble(rate);
+    buffer.put("STA".getBytes());
+    buffer.position(39);
+    buffer.put("NET".getBytes());
+    buffer.position(48);
+    buffer.put("HHZ".getBytes());
+    buffer.position(57);
+    buffer.put("i4".getBytes());
+    buffer.position(TRACEBUF_HEADER_SIZE);
+    for (int i = 0; i < count; i++) {
+      buffer.putInt(i);
+    }
+    return new TraceBuf(buffer.array());
+  }
+
+  private void runConcurrently(final Task task) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = 0; i < THREADS; i++) {
+      final int thread = i;
+      futures.add(executor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          start.await();
+          for (int update = 0; update < UPDATES; update++) {
+            task.run(thread, update);
+          }
+          return null;
+        }
+      }));
+    }
+    start.countDown();
+    for (final Future<Void> future : futures) {
+      future.get();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DayTableCatalogTest {
+
+  private static final String CODE = "SPCP$BHZ$AV$--";
+  private static final String LIST = "SELECT TABLE_NAME";
+  private static final String LOOKUP = "SELECT 1 FROM";
+
+  private RecordingDriver.Recording recording;
+  private WinstonDatabase winston;
+  private DayTableCatalog catalog;
+
+  @Before
+  public void setUp() {
+    recording = RecordingDriver.newRecording().result(LIST, DayTableCatalog.waveTable(CODE,
+        "2017_06_29"));
+    winston = recording.connect(null);
+    catalog = winston.getDayTableCatalog();
+  }
+
+  @Test
+  public void tables_are_listed_once() {
+    assertTrue(catalog.waveTableExists(winston, CODE, "2017_06_29"));
+    assertFalse(catalog.waveTableExists(winston, CODE, "2017_06_30"));
+    assertFalse(catalog.waveTableExists(winston, CODE, "2017_07_01"));
+
+    assertEquals(1, recording.find(LIST).size());
+  }
+
+  @Test
+  public void refresh_looks_up_only_the_missing_table() {
+    assertFalse(catalog.waveTableExists(winston, CODE, "2017_06_30"));
+
+    recording.result(LOOKUP, 1);
+    assertTrue(catalog.refresh(winston, CODE, DayTableCatalog.waveTable(CODE, "2017_06_30")));
+
+    assertEquals(1, recording.find(LIST).size());
+    assertEquals(1, recording.find(LOOKUP).size());
+    assertTrue(catalog.waveTableExists(winston, CODE, "2017_06_29"));
+    assertTrue(catalog.waveTableExists(winston, CODE, "2017_06_30"));
+  }
+
+  @Test
+  public void refresh_forgets_a_dropped_table() {
+    assertTrue(catalog.waveTableExists(winston, CODE, "2017_06_29"));
+
+    assertFalse(catalog.refresh(winston, CODE, DayTableCatalog.waveTable(CODE, "2017_06_29")));
+
+    assertFalse(catalog.waveTableExists(winston, CODE, "2017_06_29"));
+    assertEquals(1, recording.find(LIST).size());
+  }
+
+  @Test
+  public void stale_misses_look_up_only_the_missing_table() {
+    catalog.setReloadInterval(-1);
+    assertFalse(catalog.waveTableExists(winston, CODE, "2017_06_30"));
+
+    recording.result(LOOKUP, 1);
+    assertTrue(catalog.waveTableExists(winston, CODE, "2017_06_30"));
+
+    assertEquals(1, recording.find(LIST).size());
+    assertEquals(2, recording.find(LOOKUP).size());
+    assertTrue(catalog.waveTableExists(winston, CODE, "2017_06_29"));
+  }
+
+  @Test
+  public void misses_are_looked_up_once_per_interval() {
+    catalog.setReloadInterval(-1);
+    assertFalse(catalog.waveTableExists(winston, CODE, "2017_06_30"));
+
+    catalog.setReloadInterval(DayTableCatalog.RELOAD_INTERVAL_MS);
+    assertFalse(catalog.waveTableExists(winston, CODE, "2017_06_30"));
+    assertFalse(catalog.waveTableExists(winston, CODE, "2017_06_30"));
+
+    assertEquals(1, recording.find(LOOKUP).size());
+  }
+}
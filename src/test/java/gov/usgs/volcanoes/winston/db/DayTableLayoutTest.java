@@ -0,0 +1,64 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DayTableLayoutTest {
+
+  private static final StorageLayout LAYOUT = StorageLayout.DAY_TABLES;
+  private static final String CODE = "SPCP$BHZ$AV$--";
+
+  @Test
+  public void new_day_creates_its_tables_with_the_configured_engine() throws SQLException {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording();
+    LAYOUT.createDay(recording.connect("MyISAM"), CODE, "2017_06_30");
+
+    final List<String> created = recording.find("CREATE TABLE");
+    assertEquals(2 + HeliRollup.LEVELS.length, created.size());
+    assertEquals("CREATE TABLE IF NOT EXISTS `SPCP$BHZ$AV$--$$2017_06_30` (st DOUBLE PRIMARY KEY,"
+        + " et DOUBLE, sr DOUBLE, datatype CHAR(3), tracebuf BLOB)  ENGINE = MyISAM",
+        created.get(0));
+    assertEquals("CREATE TABLE IF NOT EXISTS `SPCP$BHZ$AV$--$$H2017_06_30` (j2ksec DOUBLE PRIMARY"
+        + " KEY, smin INT, smax INT, rcnt INT, rsam DOUBLE)  ENGINE = MyISAM", created.get(1));
+  }
+
+  @Test
+  public void dropped_day_drops_its_tables() throws SQLException {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording();
+    LAYOUT.dropDay(recording.connect(null), CODE, "2017_06_30");
+
+    final List<String> dropped = recording.find("DROP TABLE");
+    assertEquals(Arrays.asList("DROP TABLE `SPCP$BHZ$AV$--$$2017_06_30`",
+        "DROP TABLE `SPCP$BHZ$AV$--$$H2017_06_30`"), dropped.subList(0, 2));
+  }
+
+  @Test
+  public void days_are_found_from_table_names() {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording()
+        .result("information_schema.TABLES", "SPCP$BHZ$AV$--$$2017_06_30")
+        .result("information_schema.TABLES", "SPCP$BHZ$AV$--$$H2017_06_30")
+        .result("information_schema.TABLES", "SPCP$BHZ$AV$--$$H10_2017_06_30")
+        .result("information_schema.TABLES", "SPCP$BHZ$AV$--$$past");
+    final WinstonDatabase winston = recording.connect(null);
+
+    assertEquals(Arrays.asList("2017_06_30"), LAYOUT.getDays(winston, CODE));
+    assertTrue(LAYOUT.dayExists(winston, CODE, "2017_06_30"));
+  }
+
+  @Test
+  public void rows_are_not_keyed() {
+    final WinstonDatabase winston = RecordingDriver.newRecording().connect(null);
+
+    assertEquals("`SPCP$BHZ$AV$--$$2017_06_30`", LAYOUT.waveTable(winston, CODE, "2017_06_30"));
+    assertEquals("`SPCP$BHZ$AV$--$$H2017_06_30`", LAYOUT.heliTable(winston, CODE, "2017_06_30"));
+    assertEquals("", LAYOUT.dayFilter(winston, CODE, "2017_06_30"));
+    assertEquals("", LAYOUT.keyColumns());
+    assertEquals("", LAYOUT.keyValues(winston, CODE, "2017_06_30"));
+  }
+}
@@ -0,0 +1,153 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of folding one tracebuf into the recent helicorder rows of a channel, as InputEW does for
+ * every tracebuf it writes. The ring is compared with the TreeMap of double[] rows it replaced.
+ * Each tracebuf holds one second of samples starting half way through a second, so it touches
+ * two rows, and computes RSAM with the ImportEW default look-back.
+ *
+ * Run with the test classpath, e.g.
+ * java -cp target/test-classes:target/classes:... org.openjdk.jmh.Main HeliAccumulatorBenchmark
+ *
+ * @author Tom Parker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeliAccumulatorBenchmark {
+  private static final int MAX_ROWS = 300;
+  private static final int DELTA = 10;
+  private static final int DURATION = 60;
+
+  private static final int SMIN = 1;
+  private static final int SMAX = 2;
+  private static final int RCNT = 3;
+  private static final int RSAM = 4;
+  private static final int MEAN = 5;
+  private static final int MU = 6;
+  private static final int WEIGHTED_RSAM = 7;
+
+  @Param({"50", "100", "200"})
+  public int samplingRate;
+
+  private int[] samples;
+  private double startTime;
+  private HeliAccumulator ring;
+  private SortedMap<Double, double[]> map;
+
+  @Setup
+  public void setup() {
+    samples = new int[samplingRate];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = (int) (1000 * Math.sin(i / 10.0)) + 20;
+    }
+    startTime = 600000000.5;
+    ring = new HeliAccumulator(MAX_ROWS);
+    map = new TreeMap<Double, double[]>();
+  }
+
+  @Benchmark
+  public int ring() {
+    final double st = startTime;
+    startTime += 1;
+    final double et = st + (samples.length - 1) / (double) samplingRate;
+
+    final long fst = (long) Math.floor(st);
+    final long cet = (long) Math.ceil(et);
+    ring.ensureCapacity(Math.max(MAX_ROWS, (int) (cet - fst) + 1 + DELTA + DURATION));
+    for (long i = fst; i <= cet; i++) {
+      int slot = ring.find(i);
+      if (slot < 0) {
+        slot = ring.claim(i);
+      }
+      ring.setMu(slot, ring.mean(i, DELTA, DURATION));
+    }
+
+    double t = st;
+    final double dt = 1.0 / samplingRate;
+    long second = fst;
+    int slot = ring.find(second);
+    for (int i = 0; i < samples.length; i++) {
+      final long s = (long) Math.floor(t);
+      if (s != second) {
+        second = s;
+        slot = ring.find(second);
+      }
+      ring.add(slot, samples[i], true);
+      t += dt;
+    }
+    return ring.getCount(slot);
+  }
+
+  @Benchmark
+  public double treeMap() {
+    final double st = startTime;
+    startTime += 1;
+    final double et = st + (samples.length - 1) / (double) samplingRate;
+
+    final double fst = Math.floor(st);
+    final double cet = Math.ceil(et);
+    final double[][] heliList = new double[((int) Math.round(cet - fst)) + 1][];
+    int j = 0;
+    for (int i = (int) Math.round(fst); i <= (int) Math.round(cet); i++) {
+      double[] d = map.get((double) i);
+      if (d == null) {
+        d = new double[] {i, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0, 0, 0, 0};
+        map.put((double) i, d);
+        if (map.size() > MAX_ROWS) {
+          for (int k = 0; k < 60; k++) {
+            map.remove(map.firstKey());
+          }
+        }
+      }
+      heliList[j] = d;
+
+      double sampleSum = 0;
+      double sampleCount = 0;
+      for (int k = -DELTA - DURATION; k < -DELTA; k++) {
+        final double[] hr = map.get((double) i + k);
+        if (hr != null) {
+          sampleSum += hr[MEAN] * hr[RCNT];
+          sampleCount += hr[RCNT];
+        }
+      }
+      d[MU] = sampleCount == 0 ? 0 : sampleSum / sampleCount;
+      j++;
+    }
+
+    double t = st;
+    final double dt = 1.0 / samplingRate;
+    double[] d = null;
+    for (int i = 0; i < samples.length; i++) {
+      d = heliList[(int) (Math.floor(t) - fst)];
+      final int sample = samples[i];
+      d[SMIN] = Math.min(d[SMIN], sample);
+      d[SMAX] = Math.max(d[SMAX], sample);
+      d[RSAM] = (d[RSAM] * d[RCNT] + Math.abs(sample)) / (d[RCNT] + 1);
+      d[MEAN] = (d[MEAN] * d[RCNT] + sample) / (d[RCNT] + 1);
+      d[WEIGHTED_RSAM] = (d[WEIGHTED_RSAM] * d[RCNT] + Math.abs(sample - d[MU])) / (d[RCNT] + 1);
+      d[RCNT]++;
+      t += dt;
+    }
+    return d[RCNT];
+  }
+}
@@ -0,0 +1,85 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HeliAccumulatorTest {
+
+  private static final double DELTA = 1e-9;
+
+  @Test
+  public void samples_update_row() {
+    final HeliAccumulator rows = new HeliAccumulator(10);
+    final int slot = rows.claim(100);
+    rows.setMu(slot, 2);
+    for (final int sample : new int[] {-4, 6, 1}) {
+      rows.add(slot, sample, true);
+    }
+
+    assertEquals(-4, rows.getMin(slot));
+    assertEquals(6, rows.getMax(slot));
+    assertEquals(3, rows.getCount(slot));
+    assertEquals(11.0 / 3, rows.getRsam(slot), DELTA);
+    assertEquals((6.0 + 4 + 1) / 3, rows.getWeightedRsam(slot), DELTA);
+  }
+
+  @Test
+  public void count_is_only_kept_with_rsam() {
+    final HeliAccumulator rows = new HeliAccumulator(10);
+    final int slot = rows.claim(100);
+    rows.add(slot, 5, false);
+
+    assertEquals(5, rows.getMin(slot));
+    assertEquals(5, rows.getMax(slot));
+    assertEquals(0, rows.getCount(slot));
+  }
+
+  @Test
+  public void claim_replaces_older_second() {
+    final HeliAccumulator rows = new HeliAccumulator(10);
+    rows.add(rows.claim(100), 5, true);
+    final int slot = rows.claim(110);
+
+    assertEquals(-1, rows.find(100));
+    assertEquals(slot, rows.find(110));
+    assertEquals(0, rows.getCount(slot));
+  }
+
+  @Test
+  public void negative_seconds_are_held() {
+    final HeliAccumulator rows = new HeliAccumulator(10);
+    final int slot = rows.claim(-3);
+
+    assertEquals(slot, rows.find(-3));
+    assertEquals(-1, rows.find(7));
+  }
+
+  @Test
+  public void mean_covers_look_back_window() {
+    final HeliAccumulator rows = new HeliAccumulator(60);
+    for (long second = 0; second < 20; second++) {
+      final int slot = rows.claim(second);
+      rows.add(slot, (int) second, true);
+      rows.add(slot, (int) second, true);
+    }
+
+    // seconds 5 through 14
+    assertEquals(9.5, rows.mean(20, 5, 10), DELTA);
+    assertEquals(0, rows.mean(100, 5, 10), DELTA);
+  }
+
+  @Test
+  public void growing_keeps_rows() {
+    final HeliAccumulator rows = new HeliAccumulator(4);
+    for (long second = 10; second < 14; second++) {
+      rows.add(rows.claim(second), (int) second, true);
+    }
+    rows.ensureCapacity(100);
+
+    assertEquals(100, rows.capacity());
+    for (long second = 10; second < 14; second++) {
+      assertEquals(second, rows.getMax(rows.find(second)));
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.math.DownsamplingType;
+
+public class HeliRollupTest {
+
+  private static final String CODE = "STA$HHZ$NET";
+  private static final String DATE = "2000_01_01";
+  private static final String HELI = DayTableCatalog.heliTable(CODE, DATE);
+
+  /** a day with its one-second helicorder table and rollups at the given levels */
+  private static RecordingDriver.Recording recording(final int... levels) {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording()
+        .result("SELECT sid", 1)
+        .result("information_schema.TABLES", DayTableCatalog.waveTable(CODE, DATE))
+        .result("information_schema.TABLES", HELI);
+    for (final int level : levels) {
+      recording.result("information_schema.TABLES",
+          DayTableCatalog.rollupTable(CODE, level, DATE));
+    }
+    return recording;
+  }
+
+  private static List<String> getRSAM(final RecordingDriver.Recording recording, final double t1,
+      final double t2, final DownsamplingType ds, final int dsInt) throws Exception {
+    new Data(recording.connect(null)).getRSAMData(new Scnl("STA", "HHZ", "NET"), t1, t2, 0, ds,
+        dsInt);
+    return recording.find("rsam");
+  }
+
+  @Test
+  public void level_divides_period() {
+    assertEquals(600, HeliRollup.levelDividing(1200, 0));
+    assertEquals(60, HeliRollup.levelDividing(180, 0));
+    assertEquals(1, HeliRollup.levelDividing(7, 0));
+  }
+
+  @Test
+  public void level_starts_on_bucket() {
+    assertEquals(60, HeliRollup.levelDividing(3600, 120));
+    assertEquals(10, HeliRollup.levelDividing(3600, 130));
+    assertEquals(1, HeliRollup.levelDividing(3600, 131));
+    assertEquals(1, HeliRollup.levelDividing(3600, 130.5));
+  }
+
+  @Test
+  public void each_level_is_built_from_the_one_below() {
+    final RecordingDriver.Recording recording = recording(HeliRollup.LEVELS);
+    assertTrue(new HeliRollup(recording.connect(null)).update(CODE, 1234, 1300));
+
+    final List<String> inserts = recording.find("INSERT INTO");
+    assertEquals(HeliRollup.LEVELS.length, inserts.size());
+    String source = HELI;
+    for (int i = 0; i < HeliRollup.LEVELS.length; i++) {
+      final int level = HeliRollup.LEVELS[i];
+      final String table = DayTableCatalog.rollupTable(CODE, level, DATE);
+      final String insert = inserts.get(i);
+      assertTrue(insert.startsWith("INSERT INTO `" + table + "`"));
+      assertTrue(insert.contains("FROM `" + source + "`"));
+      assertTrue(insert.contains("FLOOR(j2ksec / " + level + ") * " + level + " AS b"));
+      source = table;
+    }
+  }
+
+  @Test
+  public void updates_cover_the_buckets_touched() {
+    final RecordingDriver.Recording recording = recording(HeliRollup.LEVELS);
+    new HeliRollup(recording.connect(null)).update(CODE, 1234, 1300);
+
+    final List<String> inserts = recording.find("INSERT INTO");
+    assertTrue(inserts.get(0).endsWith("[1230.0, 1310.0]"));
+    assertTrue(inserts.get(1).endsWith("[1200.0, 1320.0]"));
+    assertTrue(inserts.get(2).endsWith("[1200.0, 1800.0]"));
+    assertTrue(inserts.get(3).endsWith("[0.0, 3600.0]"));
+  }
+
+  @Test
+  public void every_level_keeps_min_and_max() {
+    final RecordingDriver.Recording recording = recording(HeliRollup.LEVELS);
+    new HeliRollup(recording.connect(null)).update(CODE, 1234, 1300);
+
+    for (final String insert : recording.find("INSERT INTO")) {
+      assertTrue(insert.contains("MIN(smin), MAX(smax), SUM(rcnt)"));
+      assertTrue(insert.contains("smin=VALUES(smin), smax=VALUES(smax), rcnt=VALUES(rcnt)"));
+    }
+  }
+
+  @Test
+  public void rsam_means_are_weighted_by_one_second_rows() {
+    final RecordingDriver.Recording recording = recording(HeliRollup.LEVELS);
+    new HeliRollup(recording.connect(null)).update(CODE, 1234, 1300);
+
+    // the first level averages the one-second rows with data, as the one-second MEAN query does
+    final List<String> inserts = recording.find("INSERT INTO");
+    assertTrue(inserts.get(0).contains("AVG(rsam), COUNT(*), SUM(j2ksec) FROM `" + HELI
+        + "` WHERE j2ksec>=? AND j2ksec<? AND rcnt>0 GROUP BY b"));
+
+    // later levels carry the mean up weighted by the rows behind it, so it stays the same mean
+    for (int i = 1; i < inserts.size(); i++) {
+      assertTrue(inserts.get(i).contains(
+          "SUM(rsam * nrows) / SUM(nrows), SUM(nrows), SUM(tsum) FROM"));
+      assertFalse(inserts.get(i).contains("rcnt>0"));
+    }
+  }
+
+  @Test
+  public void missing_levels_stop_the_update() {
+    final RecordingDriver.Recording recording = recording(10, 60);
+    assertTrue(new HeliRollup(recording.connect(null)).update(CODE, 1234, 1300));
+
+    final List<String> inserts = recording.find("INSERT INTO");
+    assertEquals(2, inserts.size());
+    assertTrue(inserts.get(1).startsWith(
+        "INSERT INTO `" + DayTableCatalog.rollupTable(CODE, 60, DATE) + "`"));
+  }
+
+  @Test
+  public void updates_across_midnight_write_both_days() {
+    final String nextDate = "2000_01_02";
+    final RecordingDriver.Recording recording = recording(10)
+        .result("information_schema.TABLES", DayTableCatalog.heliTable(CODE, nextDate))
+        .result("information_schema.TABLES", DayTableCatalog.rollupTable(CODE, 10, nextDate));
+
+    // 2000-01-01 23:59:55 to 2000-01-02 00:00:04
+    new HeliRollup(recording.connect(null)).update(CODE, 43195, 43204);
+
+    final List<String> inserts = recording.find("INSERT INTO");
+    assertEquals(2, inserts.size());
+    assertTrue(inserts.get(0).contains(DayTableCatalog.rollupTable(CODE, 10, DATE)));
+    assertTrue(inserts.get(1).contains(DayTableCatalog.rollupTable(CODE, 10, nextDate)));
+  }
+
+  @Test
+  public void rsam_means_read_whole_buckets_from_the_rollup() throws Exception {
+    final RecordingDriver.Recording recording = recording(HeliRollup.LEVELS);
+
+    // 600 second periods from 1200 to 2999.5: the rollup holds the buckets at 1200, 1800 and
+    // 2400, and the one-second table the seconds from 3000 on, of which there are none
+    final List<String> queries = getRSAM(recording, 1200, 2999.5, DownsamplingType.MEAN, 600);
+
+    assertEquals(1, queries.size());
+    final String sql = queries.get(0);
+    assertTrue(sql.startsWith("SELECT SUM(ts) / SUM(n), SUM(rs) / SUM(n), intNum FROM ("));
+    assertTrue(sql.contains("SELECT tsum ts, rsam * nrows rs, nrows n, ((j2ksec-?) DIV 600) intNum "
+        + "FROM `" + DayTableCatalog.rollupTable(CODE, 600, DATE)
+        + "` WHERE j2ksec>=? AND j2ksec<? UNION ALL "));
+    assertTrue(sql.contains("SELECT j2ksec, rsam, 1, ((j2ksec-?) DIV 600) FROM `" + HELI + "`"));
+    assertTrue(sql.contains("j2ksec>=? AND j2ksec<=? AND rcnt>0) u GROUP BY intNum"));
+    assertTrue(sql.endsWith("[1200.0, 1200.0, 3000.0, 1200.0, 3000.0, 2999.5]"));
+  }
+
+  @Test
+  public void rsam_tail_starts_after_the_last_whole_bucket() throws Exception {
+    // the bucket at 2400 ends at 2999, so it is whole only once the request reaches 2999
+    assertTrue(getRSAM(recording(HeliRollup.LEVELS), 1200, 2998, DownsamplingType.MEAN, 600)
+        .get(0).endsWith("[1200.0, 1200.0, 2400.0, 1200.0, 2400.0, 2998.0]"));
+    assertTrue(getRSAM(recording(HeliRollup.LEVELS), 1200, 2999, DownsamplingType.MEAN, 600)
+        .get(0).endsWith("[1200.0, 1200.0, 3000.0, 1200.0, 3000.0, 2999.0]"));
+    assertTrue(getRSAM(recording(HeliRollup.LEVELS), 1200, 3005, DownsamplingType.MEAN, 600)
+        .get(0).endsWith("[1200.0, 1200.0, 3000.0, 1200.0, 3000.0, 3005.0]"));
+  }
+
+  @Test
+  public void rsam_tail_uses_the_coarsest_dividing_level() throws Exception {
+    // 120 second periods are read from the 60 second rollup
+    final String sql =
+        getRSAM(recording(HeliRollup.LEVELS), 1200, 1500, DownsamplingType.MEAN, 120).get(0);
+    assertTrue(sql.contains("FROM `" + DayTableCatalog.rollupTable(CODE, 60, DATE) + "`"));
+    assertTrue(sql.endsWith("[1200.0, 1200.0, 1500.0, 1200.0, 1500.0, 1500.0]"));
+  }
+
+  @Test
+  public void unaligned_rsam_means_are_read_at_one_second() throws Exception {
+    final List<String> queries =
+        getRSAM(recording(HeliRollup.LEVELS), 1205, 2999, DownsamplingType.MEAN, 600);
+
+    assertEquals(1, queries.size());
+    final String sql = queries.get(0);
+    assertTrue(sql.startsWith("SELECT AVG(j2ksec), AVG(rsam), ((j2ksec-?) DIV 600) intNum "));
+    assertTrue(sql.contains("FROM `" + HELI + "` WHERE j2ksec>=? AND j2ksec<=? AND rcnt>0"));
+    assertFalse(sql.contains("UNION"));
+    assertTrue(sql.endsWith("[1205.0, 1205.0, 2999.0]"));
+  }
+
+  @Test
+  public void days_without_rollups_are_read_at_one_second() throws Exception {
+    final String sql = getRSAM(recording(), 1200, 2999, DownsamplingType.MEAN, 600).get(0);
+    assertTrue(sql.startsWith("SELECT AVG(j2ksec), AVG(rsam), ((j2ksec-?) DIV 600) intNum "));
+    assertFalse(sql.contains("UNION"));
+    assertTrue(sql.endsWith("[1200.0, 1200.0, 2999.0]"));
+  }
+}
@@ -0,0 +1,43 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.time.J2kSec;
+
+public class HotTraceBufCacheTest {
+
+  private static final String CODE = "SPCP$BHZ$AV$--";
+
+  @Test
+  public void requests_between_top_ups_do_not_read_the_database() {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording();
+    final WinstonDatabase winston = recording.connect(null);
+    final HotTraceBufCache cache = new HotTraceBufCache(1 << 20, 600, 60);
+    final double now = J2kSec.now();
+
+    cache.getTraceBufBytes(winston, CODE, now - 60, now);
+    final int statements = recording.sql.size();
+    assertTrue(statements > 0);
+
+    cache.getTraceBufBytes(winston, CODE, now - 60, now);
+    cache.getTraceBufBytes(winston, CODE, now - 30, now);
+    assertEquals(statements, recording.sql.size());
+  }
+
+  @Test
+  public void every_request_tops_up_without_an_interval() {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording();
+    final WinstonDatabase winston = recording.connect(null);
+    final HotTraceBufCache cache = new HotTraceBufCache(1 << 20, 600, 0);
+    final double now = J2kSec.now();
+
+    cache.getTraceBufBytes(winston, CODE, now - 60, now);
+    final int statements = recording.sql.size();
+
+    cache.getTraceBufBytes(winston, CODE, now - 60, now);
+    assertTrue(recording.sql.size() > statements);
+  }
+}
@@ -0,0 +1,128 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+import gov.usgs.volcanoes.winston.db.InputEW.InputResult;
+
+public class InputEWTest {
+
+  private static final int TRACEBUF_HEADER_SIZE = 64;
+
+  /** J2kSec of 2000-01-01 12:00:00 UTC, in seconds since the epoch */
+  private static final double J2K_EPOCH = 946728000;
+
+  private static final String CODE = "STA$HHZ$NET";
+  private static final String DAY_TABLE = CODE + "$$2000_01_01";
+
+  private static RecordingDriver.Recording recording() {
+    return RecordingDriver.newRecording()
+        .result("SELECT st, et FROM `W_ROOT`.channels", 100.0, 1000.0)
+        .result("SELECT sid", 1)
+        .result("information_schema.TABLES", DAY_TABLE)
+        .result("information_schema.TABLES", CODE + "$$H2000_01_01");
+  }
+
+  private static List<InputResult.Code> input(final RecordingDriver.Recording recording,
+      final double... startTimes) throws IOException {
+    final InputEW input = new InputEW(recording.connect(null));
+    input.setBatchInsert(true);
+
+    final List<TraceBuf> tbs = new ArrayList<TraceBuf>();
+    for (final double st : startTimes) {
+      tbs.add(traceBuf(st, 10));
+    }
+
+    final List<InputResult.Code> codes = new ArrayList<InputResult.Code>();
+    for (final InputResult result : input.inputTraceBufs(tbs, false, 0, 0)) {
+      if (result.traceBuf != null) {
+        codes.add(result.code);
+      }
+    }
+    return codes;
+  }
+
+  @Test
+  public void duplicates_are_found_from_the_batch_and_the_update_counts() throws IOException {
+    final RecordingDriver.Recording recording = recording()
+        .updates("[2001.0,", 0)
+        .updates("[500.0,", 0)
+        .updates("INSERT IGNORE", 1);
+
+    final List<InputResult.Code> codes = input(recording, 2000, 2001, 2000, 500, 600);
+
+    assertEquals(Arrays.asList(InputResult.Code.SUCCESS, InputResult.Code.ERROR_DUPLICATE,
+        InputResult.Code.ERROR_DUPLICATE, InputResult.Code.ERROR_DUPLICATE,
+        InputResult.Code.SUCCESS), codes);
+    assertTrue(recording.find("SELECT st FROM").isEmpty());
+    assertEquals(4, recording.find("INSERT IGNORE INTO `" + DAY_TABLE + "`").size());
+    assertEquals(1, recording.find("daystamps").size());
+    assertTrue(recording.find("daystamps").get(0).endsWith("[1, 2000_01_01, 2]"));
+  }
+
+  @Test
+  public void rewritten_batches_are_written() throws IOException {
+    final RecordingDriver.Recording recording = recording()
+        .updates("[500.0,", 0)
+        .updates("INSERT IGNORE", Statement.SUCCESS_NO_INFO);
+
+    final List<InputResult.Code> codes = input(recording, 2000, 2001, 500);
+
+    assertEquals(Arrays.asList(InputResult.Code.SUCCESS, InputResult.Code.SUCCESS,
+        InputResult.Code.ERROR_DUPLICATE), codes);
+    assertTrue(recording.find("daystamps").get(0).endsWith("[1, 2000_01_01, 2]"));
+  }
+
+  @Test
+  public void helicorder_rows_are_written_by_one_statement_of_their_size() throws IOException {
+    final RecordingDriver.Recording recording = recording().updates("INSERT IGNORE", 1);
+
+    input(recording, 2000, 2001, 2002);
+
+    final List<String> upserts = recording.find("ON DUPLICATE KEY UPDATE smin");
+    // seconds 2000 through 2003, the end of the last tracebuf rounded up
+    assertEquals(1, upserts.size());
+    assertTrue(upserts.get(0).contains(
+        "VALUES (?,?,?,?,?),(?,?,?,?,?),(?,?,?,?,?),(?,?,?,?,?) ON DUPLICATE"));
+    assertTrue(upserts.get(0).contains("[2000.0, 0, 9, "));
+  }
+
+  /**
+   * Build a one-second TRACEBUF2 message of little-endian ints, with the trailing byte sent by
+   * Earthworm.
+   */
+  private static TraceBuf traceBuf(final double j2k, final int count) throws IOException {
+    final double rate = count;
+    final double st = j2k + J2K_EPOCH;
+    final ByteBuffer buffer = ByteBuffer.allocate(TRACEBUF_HEADER_SIZE + count * 4 + 1);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(1);
+    buffer.putInt(count);
+    buffer.putDouble(st);
+    buffer.putDouble(st + (count - 1) / rate);
+    buffer.putDouble(rate);
+    buffer.put("STA".getBytes());
+    buffer.position(39);
+    buffer.put("NET".getBytes());
+    buffer.position(48);
+    buffer.put("HHZ".getBytes());
+    buffer.position(57);
+    buffer.put("i4".getBytes());
+    buffer.position(TRACEBUF_HEADER_SIZE);
+    for (int i = 0; i < count; i++) {
+      buffer.putInt(i);
+    }
+    return new TraceBuf(buffer.array());
+  }
+}
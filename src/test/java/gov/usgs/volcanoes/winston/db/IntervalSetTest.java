@@ -0,0 +1,56 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class IntervalSetTest {
+
+  @Test
+  public void contiguous_intervals_are_merged() {
+    final IntervalSet set = new IntervalSet(0.01);
+    for (int i = 0; i < 100; i++) {
+      set.add(i, i + 0.995);
+    }
+    assertEquals(1, set.size());
+    assertEquals(0, set.getStart(0), 0);
+    assertEquals(99.995, set.getEnd(0), 1e-9);
+  }
+
+  @Test
+  public void late_intervals_fill_gaps() {
+    final IntervalSet set = new IntervalSet(0.01);
+    set.add(0, 10);
+    set.add(20, 30);
+    set.add(40, 50);
+    assertEquals(3, set.size());
+
+    set.add(10, 20);
+    assertEquals(2, set.size());
+    assertEquals(30, set.getEnd(0), 0);
+
+    set.add(-5, 60);
+    assertEquals(1, set.size());
+    assertEquals(-5, set.getStart(0), 0);
+    assertEquals(60, set.getEnd(0), 0);
+  }
+
+  @Test
+  public void gaps_and_coverage_are_clipped_to_the_range() {
+    final IntervalSet set = new IntervalSet(0.01);
+    set.add(0, 10);
+    set.add(20, 30);
+
+    final List<double[]> gaps = set.gaps(5, 35);
+    assertEquals(2, gaps.size());
+    assertEquals(10, gaps.get(0)[0], 0);
+    assertEquals(20, gaps.get(0)[1], 0);
+    assertEquals(30, gaps.get(1)[0], 0);
+    assertEquals(35, gaps.get(1)[1], 0);
+
+    assertEquals(15, set.covered(5, 35), 0);
+    assertEquals(1, set.gaps(40, 50).size());
+  }
+}
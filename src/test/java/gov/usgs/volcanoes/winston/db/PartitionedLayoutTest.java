@@ -0,0 +1,98 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PartitionedLayoutTest {
+
+  private static final StorageLayout LAYOUT = StorageLayout.PARTITIONED;
+  private static final String CODE = "SPCP$BHZ$AV$--";
+
+  @Test
+  public void tables_are_innodb_whatever_the_configured_engine() throws SQLException {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording();
+    LAYOUT.createTables(recording.connect("MyISAM"));
+
+    final List<String> created = recording.find("CREATE TABLE");
+    assertEquals(2, created.size());
+    for (final String sql : created) {
+      assertTrue(sql, sql.contains(" ENGINE = InnoDB PARTITION BY RANGE (day)"));
+      assertFalse(sql, sql.contains("MyISAM"));
+    }
+    assertTrue(created.get(0).startsWith("CREATE TABLE IF NOT EXISTS `W_ROOT`.wave "));
+    assertTrue(created.get(1).startsWith("CREATE TABLE IF NOT EXISTS `W_ROOT`.heli "));
+  }
+
+  @Test
+  public void new_day_adds_a_partition() throws SQLException {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording();
+    LAYOUT.createDay(recording.connect(null), CODE, "2017_06_30");
+
+    assertEquals(Arrays.asList(
+        "ALTER TABLE `W_ROOT`.wave ADD PARTITION "
+            + "(PARTITION p2017_06_30 VALUES LESS THAN (17348))",
+        "ALTER TABLE `W_ROOT`.heli ADD PARTITION "
+            + "(PARTITION p2017_06_30 VALUES LESS THAN (17348))"),
+        recording.find("ALTER TABLE"));
+  }
+
+  @Test
+  public void earlier_day_is_split_from_the_next_partition() throws SQLException {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording()
+        .result("information_schema.PARTITIONS", "p2017_06_30");
+    LAYOUT.createDay(recording.connect(null), CODE, "2017_06_28");
+
+    assertEquals(Arrays.asList(
+        "ALTER TABLE `W_ROOT`.wave REORGANIZE PARTITION p2017_06_30 INTO "
+            + "(PARTITION p2017_06_28 VALUES LESS THAN (17346), "
+            + "PARTITION p2017_06_30 VALUES LESS THAN (17348))",
+        "ALTER TABLE `W_ROOT`.heli REORGANIZE PARTITION p2017_06_30 INTO "
+            + "(PARTITION p2017_06_28 VALUES LESS THAN (17346), "
+            + "PARTITION p2017_06_30 VALUES LESS THAN (17348))"),
+        recording.find("ALTER TABLE"));
+  }
+
+  @Test
+  public void existing_day_is_left_alone() throws SQLException {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording()
+        .result("information_schema.PARTITIONS", "p2017_06_30");
+    final WinstonDatabase winston = recording.connect(null);
+    LAYOUT.createDay(winston, CODE, "2017_06_30");
+
+    assertTrue(recording.find("ALTER TABLE").isEmpty());
+    assertTrue(LAYOUT.dayExists(winston, CODE, "2017_06_30"));
+    assertEquals(Arrays.asList("2017_06_30"), LAYOUT.getDays(winston, CODE));
+  }
+
+  @Test
+  public void dropped_day_drops_its_partition() throws SQLException {
+    final RecordingDriver.Recording recording = RecordingDriver.newRecording()
+        .result("information_schema.PARTITIONS", "p2017_06_30");
+    final WinstonDatabase winston = recording.connect(null);
+    LAYOUT.dropDay(winston, CODE, "2017_06_30");
+
+    assertEquals(Arrays.asList("ALTER TABLE `W_ROOT`.wave DROP PARTITION p2017_06_30",
+        "ALTER TABLE `W_ROOT`.heli DROP PARTITION p2017_06_30"), recording.find("ALTER TABLE"));
+    assertTrue(LAYOUT.getDays(winston, CODE).isEmpty());
+  }
+
+  @Test
+  public void rows_are_keyed_by_sid_and_day() {
+    final RecordingDriver.Recording recording =
+        RecordingDriver.newRecording().result("SELECT sid FROM", 7);
+    final WinstonDatabase winston = recording.connect(null);
+
+    assertEquals("`W_ROOT`.wave", LAYOUT.waveTable(winston, CODE, "2017_06_30"));
+    assertEquals("`W_ROOT`.heli", LAYOUT.heliTable(winston, CODE, "2017_06_30"));
+    assertEquals("sid=7 AND day=17347 AND ", LAYOUT.dayFilter(winston, CODE, "2017_06_30"));
+    assertEquals("sid, day, ", LAYOUT.keyColumns());
+    assertEquals("7, 17347, ", LAYOUT.keyValues(winston, CODE, "2017_06_30"));
+  }
+}
@@ -0,0 +1,160 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gov.usgs.volcanoes.core.time.J2kSec;
+
+/**
+ * Cost of the two queries behind most WWS requests, the channel time span and an hour of
+ * one-second RSAM, issued three ways against a live Winston with day tables:
+ * <ul>
+ * <li>statement: literals concatenated into the SQL, as the read paths did before</li>
+ * <li>prepared: bound parameters through the per-connection statement cache</li>
+ * <li>serverPrepared: the same, with winston.serverPrepStmts set</li>
+ * </ul>
+ *
+ * The database is given by system properties: winston.driver (default com.mysql.jdbc.Driver),
+ * winston.url, winston.prefix (default W) and winston.channel, a channel code with data.
+ *
+ * Without winston.url the queries go to a RecordingDriver that answers them in memory. That
+ * measures only the client side, building and binding each statement and reading its rows, and
+ * says nothing about the round trips to MySQL that prepared statements are meant to save;
+ * serverPrepared is then the same as prepared.
+ *
+ * Run with the test classpath, e.g.
+ * java -Dwinston.url=jdbc:mysql://localhost/?user=winston '-Dwinston.channel=SPCP$BHZ$AV$--'
+ * -cp target/test-classes:target/classes:... org.openjdk.jmh.Main ReadPathBenchmark
+ *
+ * @author Tom Parker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadPathBenchmark {
+  private static final int CACHE_CAPACITY = 100;
+  private static final String RECORDED_CHANNEL = "STA$HHZ$NET";
+
+  @Param({"statement", "prepared", "serverPrepared"})
+  public String mode;
+
+  private RecordingDriver.Recording recording;
+  private WinstonDatabase winston;
+  private String code;
+  private String heliTable;
+  private double t1;
+  private double t2;
+
+  @Setup
+  public void setup() throws SQLException {
+    final String url = System.getProperty("winston.url");
+    if (url == null) {
+      code = RECORDED_CHANNEL;
+      recording = RecordingDriver.newRecording().result("SELECT st, et", 0.0, 3600.0);
+      for (int i = 0; i < 3600; i++) {
+        recording.result("SELECT j2ksec, rsam", (double) i, 100.0);
+      }
+      winston = recording.connect(null);
+    } else {
+      code = System.getProperty("winston.channel");
+      if (code == null) {
+        throw new IllegalStateException("Set winston.channel.");
+      }
+
+      final int cacheCap = CACHE_CAPACITY;
+      winston = new WinstonDatabase(System.getProperty("winston.driver", "com.mysql.jdbc.Driver"),
+          "serverPrepared".equals(mode) ? WinstonDatabase.serverPrepStmtsURL(url, cacheCap) : url,
+          System.getProperty("winston.prefix", "W"), cacheCap);
+    }
+    if (!winston.checkConnect()) {
+      throw new IllegalStateException("Cannot connect to " + url);
+    }
+
+    t2 = timeSpan()[1];
+    t1 = t2 - 60 * 60;
+    final SimpleDateFormat dateFormat =
+        new SimpleDateFormat(WinstonDatabase.WINSTON_TABLE_DATE_FORMAT);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    heliTable = DayTableCatalog.heliTable(code, dateFormat.format(J2kSec.asDate(t2)));
+    winston.useDatabase(code);
+  }
+
+  /** the recording keeps every statement, which would otherwise fill the heap */
+  @TearDown(Level.Iteration)
+  public void forget() {
+    if (recording != null) {
+      recording.sql.clear();
+    }
+  }
+
+  @TearDown
+  public void close() {
+    winston.close();
+  }
+
+  @Benchmark
+  public double[] timeSpan() throws SQLException {
+    final String table = "`" + winston.databasePrefix + "_ROOT`.channels";
+    final ResultSet rs;
+    if ("statement".equals(mode)) {
+      rs = winston.getStatement()
+          .executeQuery("SELECT st, et FROM " + table + " WHERE code='" + code + "'");
+    } else {
+      final PreparedStatement ps =
+          winston.getPreparedStatement("SELECT st, et FROM " + table + " WHERE code=?");
+      ps.setString(1, code);
+      rs = ps.executeQuery();
+    }
+    try {
+      rs.next();
+      return new double[] {rs.getDouble(1), rs.getDouble(2)};
+    } finally {
+      rs.close();
+    }
+  }
+
+  @Benchmark
+  public double rsam() throws SQLException {
+    final ResultSet rs;
+    if ("statement".equals(mode)) {
+      rs = winston.getStatement().executeQuery("SELECT j2ksec, rsam FROM `" + heliTable
+          + "` WHERE j2ksec>=" + t1 + " AND j2ksec<=" + t2 + " AND rcnt>0 ORDER BY j2ksec");
+    } else {
+      final PreparedStatement ps = winston.getPreparedStatement("SELECT j2ksec, rsam FROM `"
+          + heliTable + "` WHERE j2ksec>=? AND j2ksec<=? AND rcnt>0 ORDER BY j2ksec");
+      ps.setDouble(1, t1);
+      ps.setDouble(2, t2);
+      rs = ps.executeQuery();
+    }
+    try {
+      double sum = 0;
+      while (rs.next()) {
+        sum += rs.getDouble(2);
+      }
+      return sum;
+    } finally {
+      rs.close();
+    }
+  }
+}
@@ -0,0 +1,282 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver that runs nothing. It records every statement it is given, batched statements one
+ * by one, and answers queries with canned rows and updates with canned counts, so the SQL a class
+ * generates can be checked without a database. Each recording has its own URL, so caches keyed by
+ * URL are never shared between tests.
+ *
+ * @author Tom Parker
+ */
+public class RecordingDriver implements Driver {
+  private static final String URL_PREFIX = "jdbc:recording:";
+  private static final AtomicInteger NEXT = new AtomicInteger();
+  private static final Map<String, Recording> RECORDINGS =
+      new ConcurrentHashMap<String, Recording>();
+
+  static {
+    try {
+      DriverManager.registerDriver(new RecordingDriver());
+    } catch (final SQLException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * The statements run on one URL, and the rows returned by its queries.
+   */
+  public static class Recording {
+    /** statements run, in order; prepared statements are followed by their parameters */
+    public final List<String> sql = new ArrayList<String>();
+
+    private final String url = URL_PREFIX + NEXT.incrementAndGet();
+    private final Map<String, List<Object[]>> results =
+        new LinkedHashMap<String, List<Object[]>>();
+    private final Map<String, Integer> updateCounts = new LinkedHashMap<String, Integer>();
+
+    /**
+     * Answer queries containing some text with a row.
+     *
+     * @param fragment text of the query
+     * @param row column values
+     * @return this recording
+     */
+    public Recording result(final String fragment, final Object... row) {
+      List<Object[]> rows = results.get(fragment);
+      if (rows == null) {
+        rows = new ArrayList<Object[]>();
+        results.put(fragment, rows);
+      }
+      rows.add(row);
+      return this;
+    }
+
+    /**
+     * Report an update count for statements containing some text. Other statements report 0.
+     *
+     * @param fragment text of the statement, including its parameters
+     * @param count rows changed
+     * @return this recording
+     */
+    public Recording updates(final String fragment, final int count) {
+      updateCounts.put(fragment, count);
+      return this;
+    }
+
+    /**
+     * Connect to this recording.
+     *
+     * @param tableEngine value of winston.tableEngine, or null
+     * @return a database whose statements are recorded
+     */
+    public WinstonDatabase connect(final String tableEngine) {
+      RECORDINGS.put(url, this);
+      return new WinstonDatabase(RecordingDriver.class.getName(), url, "W", tableEngine, 10,
+          WinstonDatabase.MAX_DAYS_UNLIMITED);
+    }
+
+    /**
+     * @param fragment text to look for
+     * @return statements run containing the text
+     */
+    public List<String> find(final String fragment) {
+      final List<String> found = new ArrayList<String>();
+      for (final String s : sql) {
+        if (s.contains(fragment)) {
+          found.add(s);
+        }
+      }
+      return found;
+    }
+
+    private synchronized ResultSet query(final String statement) {
+      sql.add(statement);
+      for (final Map.Entry<String, List<Object[]>> entry : results.entrySet()) {
+        if (statement.contains(entry.getKey())) {
+          return resultSet(entry.getValue());
+        }
+      }
+      return resultSet(new ArrayList<Object[]>());
+    }
+
+    private synchronized int update(final String statement) {
+      sql.add(statement);
+      for (final Map.Entry<String, Integer> entry : updateCounts.entrySet()) {
+        if (statement.contains(entry.getKey())) {
+          return entry.getValue();
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * @return a new, empty recording
+   */
+  public static Recording newRecording() {
+    return new Recording();
+  }
+
+  @Override
+  public Connection connect(final String url, final Properties info) {
+    final Recording recording = RECORDINGS.get(url);
+    if (recording == null) {
+      return null;
+    }
+    return proxy(Connection.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("createStatement")) {
+          return statement(recording);
+        } else if (method.getName().equals("prepareStatement")) {
+          return preparedStatement(recording, (String) args[0]);
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  @Override
+  public boolean acceptsURL(final String url) {
+    return url.startsWith(URL_PREFIX);
+  }
+
+  @Override
+  public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties info) {
+    return new DriverPropertyInfo[0];
+  }
+
+  @Override
+  public int getMajorVersion() {
+    return 1;
+  }
+
+  @Override
+  public int getMinorVersion() {
+    return 0;
+  }
+
+  @Override
+  public boolean jdbcCompliant() {
+    return false;
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  private static Statement statement(final Recording recording) {
+    return proxy(Statement.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("executeQuery")) {
+          return recording.query((String) args[0]);
+        } else if (method.getName().startsWith("execute") && args != null
+            && args[0] instanceof String) {
+          final int count = recording.update((String) args[0]);
+          if (method.getReturnType() == int.class) {
+            return count;
+          }
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  private static PreparedStatement preparedStatement(final Recording recording,
+      final String sql) {
+    final Map<Integer, Object> params = new TreeMap<Integer, Object>();
+    final List<String> batch = new ArrayList<String>();
+    return proxy(PreparedStatement.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        if (name.startsWith("set") && args.length == 2 && args[0] instanceof Integer) {
+          params.put((Integer) args[0], args[1]);
+        } else if (name.equals("addBatch") && args == null) {
+          batch.add(sql + " " + params.values());
+        } else if (name.equals("executeBatch")) {
+          final int[] counts = new int[batch.size()];
+          for (int i = 0; i < counts.length; i++) {
+            counts[i] = recording.update(batch.get(i));
+          }
+          batch.clear();
+          return counts;
+        } else if (name.equals("executeQuery")) {
+          return recording.query(sql + " " + params.values());
+        } else if (name.startsWith("execute")) {
+          final int count = recording.update(sql + " " + params.values());
+          if (method.getReturnType() == int.class) {
+            return count;
+          }
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  private static ResultSet resultSet(final List<Object[]> rows) {
+    return proxy(ResultSet.class, new InvocationHandler() {
+      private int row = -1;
+
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        if (name.equals("next")) {
+          return ++row < rows.size();
+        } else if (name.startsWith("get") && args != null && args[0] instanceof Integer) {
+          final Object value = rows.get(row)[(Integer) args[0] - 1];
+          if (name.equals("getString")) {
+            return String.valueOf(value);
+          } else if (name.equals("getInt")) {
+            return ((Number) value).intValue();
+          } else if (name.equals("getLong")) {
+            return ((Number) value).longValue();
+          } else if (name.equals("getDouble")) {
+            return ((Number) value).doubleValue();
+          }
+          return value;
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(RecordingDriver.class.getClassLoader(),
+        new Class<?>[] {type}, handler));
+  }
+
+  private static Object defaultValue(final Method method) {
+    final Class<?> type = method.getReturnType();
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == double.class) {
+      return 0.0;
+    }
+    return null;
+  }
+}
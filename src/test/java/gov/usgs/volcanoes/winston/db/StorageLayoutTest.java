@@ -0,0 +1,31 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class StorageLayoutTest {
+
+  @Test
+  public void days_are_counted_from_epoch() {
+    assertEquals(0, StorageLayout.dayNumber("1970_01_01"));
+    assertEquals(10957, StorageLayout.dayNumber("2000_01_01"));
+    assertEquals("2000_01_01", StorageLayout.dayDate(10957));
+  }
+
+  @Test
+  public void day_numbers_round_trip() {
+    for (int day = 16000; day < 17000; day++) {
+      assertEquals(day, StorageLayout.dayNumber(StorageLayout.dayDate(day)));
+    }
+  }
+
+  @Test
+  public void layouts_are_found_by_name() {
+    assertSame(StorageLayout.DAY_TABLES, StorageLayout.forName("day"));
+    assertSame(StorageLayout.PARTITIONED, StorageLayout.forName("Partitioned"));
+    assertNull(StorageLayout.forName("columnar"));
+  }
+}
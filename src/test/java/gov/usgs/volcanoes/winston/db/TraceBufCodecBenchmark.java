@@ -0,0 +1,157 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Speed and compression ratio of each tracebuf codec on real data: the ten minutes of SPCP BHZ
+ * in the SAC file at the top of the project, cut into tracebufs as Earthworm would send them.
+ * One operation encodes or decodes every tracebuf of the file. The compression ratio is printed
+ * when each trial ends.
+ *
+ * Run from the project directory with the test classpath, e.g.
+ * java -cp target/test-classes:target/classes:... org.openjdk.jmh.Main TraceBufCodecBenchmark
+ *
+ * @author Tom Parker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBufCodecBenchmark {
+  /** data bundled with the project */
+  public static final String SAC_FILE = "SPCP_BHZ_AV_--_20170630160000-20170630161000.sac";
+
+  private static final int SAC_HEADER_SIZE = 632;
+  private static final int TRACEBUF_HEADER_SIZE = 64;
+
+  @Param({"zlib", "delta", "lz4"})
+  public String codecName;
+
+  @Param({"i4", "s4"})
+  public String dataType;
+
+  @Param({"100"})
+  public int samplesPerTraceBuf;
+
+  private TraceBufCodec codec;
+  private List<byte[]> traceBufs;
+  private List<byte[]> stored;
+  private long rawBytes;
+  private long storedBytes;
+
+  @Setup
+  public void setup() throws IOException {
+    codec = TraceBufCodec.forName(codecName);
+    traceBufs = traceBufs(readSac(new File(SAC_FILE)), dataType, samplesPerTraceBuf);
+    stored = new ArrayList<byte[]>(traceBufs.size());
+    rawBytes = 0;
+    storedBytes = 0;
+    for (final byte[] bytes : traceBufs) {
+      final byte[] s = codec.encode(bytes, bytes.length);
+      stored.add(s);
+      rawBytes += bytes.length;
+      storedBytes += s.length;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void printRatio() {
+    System.out.printf("%s %s: %d bytes in %d tracebufs stored in %d, ratio %.2f%n", codecName,
+        dataType, rawBytes, traceBufs.size(), storedBytes, (double) rawBytes / storedBytes);
+  }
+
+  @Benchmark
+  public long encode() {
+    long length = 0;
+    for (final byte[] bytes : traceBufs) {
+      length += codec.encode(bytes, bytes.length).length;
+    }
+    return length;
+  }
+
+  @Benchmark
+  public long decode() throws IOException {
+    long length = 0;
+    for (final byte[] s : stored) {
+      length += TraceBufCodec.decode(s).length;
+    }
+    return length;
+  }
+
+  /**
+   * Read the samples of a big-endian SAC file holding integer counts, dropping the samples that
+   * fill its gap, which Earthworm would never have sent.
+   */
+  private static int[] readSac(final File file) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+    final int npts = buffer.getInt(316);
+    final int[] samples = new int[npts];
+    int count = 0;
+    for (int i = 0; i < npts; i++) {
+      final int sample = Math.round(buffer.getFloat(SAC_HEADER_SIZE + i * 4));
+      if (sample != Integer.MIN_VALUE) {
+        samples[count++] = sample;
+      }
+    }
+    return Arrays.copyOf(samples, count);
+  }
+
+  /**
+   * Cut samples into TRACEBUF2 messages, each with the trailing byte sent by Earthworm.
+   */
+  private static List<byte[]> traceBufs(final int[] samples, final String type,
+      final int perTraceBuf) {
+    final List<byte[]> traceBufs = new ArrayList<byte[]>();
+    final double rate = 50;
+    for (int first = 0; first < samples.length; first += perTraceBuf) {
+      final int count = Math.min(perTraceBuf, samples.length - first);
+      final ByteBuffer buffer = ByteBuffer.allocate(TRACEBUF_HEADER_SIZE + count * 4 + 1);
+      buffer.order(type.charAt(0) == 's' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+      final double st = 5.51977e8 + first / rate;
+      buffer.putInt(1);
+      buffer.putInt(count);
+      buffer.putDouble(st);
+      buffer.putDouble(st + (count - 1) / rate);
+      buffer.putDouble(rate);
+      buffer.put("SPCP".getBytes());
+      buffer.position(39);
+      buffer.put("AV".getBytes());
+      buffer.position(48);
+      buffer.put("BHZ".getBytes());
+      buffer.position(52);
+      buffer.put("--".getBytes());
+      buffer.position(57);
+      buffer.put(type.getBytes());
+      buffer.position(TRACEBUF_HEADER_SIZE);
+      for (int i = 0; i < count; i++) {
+        buffer.putInt(samples[first + i]);
+      }
+      traceBufs.add(buffer.array());
+    }
+    return traceBufs;
+  }
+}
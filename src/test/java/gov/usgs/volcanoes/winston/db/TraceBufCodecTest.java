@@ -0,0 +1,197 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.Zip;
+
+public class TraceBufCodecTest {
+
+  private static final TraceBufCodec[] CODECS =
+      {TraceBufCodec.ZLIB, TraceBufCodec.DELTA, TraceBufCodec.LZ4};
+
+  @Test
+  public void codecs_round_trip() throws IOException {
+    for (final String type : new String[] {"i4", "s4", "i2", "s2", "f4"}) {
+      final byte[] bytes = traceBuf(type, 400);
+      for (final TraceBufCodec codec : CODECS) {
+        final byte[] stored = codec.encode(bytes, bytes.length - 1);
+        assertArrayEquals(Arrays.copyOf(bytes, bytes.length - 1), TraceBufCodec.decode(stored));
+      }
+    }
+  }
+
+  @Test
+  public void codecs_handle_short_input() throws IOException {
+    for (final int length : new int[] {0, 1, 12, 13, 63}) {
+      final byte[] bytes = new byte[length];
+      Arrays.fill(bytes, (byte) 7);
+      for (final TraceBufCodec codec : CODECS) {
+        assertArrayEquals(bytes, TraceBufCodec.decode(codec.encode(bytes, length)));
+      }
+    }
+  }
+
+  @Test
+  public void lengths_are_found_without_decoding() throws IOException {
+    for (final String type : new String[] {"i4", "s4", "i2", "s2", "f4"}) {
+      final byte[] bytes = traceBuf(type, 400);
+      for (final TraceBufCodec codec : CODECS) {
+        final byte[] stored = codec.encode(bytes, bytes.length - 1);
+        assertEquals(bytes.length - 1, TraceBufCodec.decodedLength(stored));
+      }
+    }
+
+    for (final int length : new int[] {0, 1, 63}) {
+      final byte[] bytes = new byte[length];
+      for (final TraceBufCodec codec : CODECS) {
+        assertEquals(length, TraceBufCodec.decodedLength(codec.encode(bytes, length)));
+      }
+    }
+  }
+
+  @Test
+  public void legacy_rows_are_read() throws IOException {
+    final byte[] bytes = traceBuf("i4", 200);
+    assertArrayEquals(bytes, TraceBufCodec.decode(Zip.compress(bytes)));
+  }
+
+  @Test
+  public void rows_are_tagged() {
+    final byte[] bytes = traceBuf("s4", 200);
+    assertEquals(TraceBufCodec.DELTA_TAG, TraceBufCodec.DELTA.encode(bytes, bytes.length)[0]);
+    assertEquals(TraceBufCodec.LZ4_TAG, TraceBufCodec.LZ4.encode(bytes, bytes.length)[0]);
+  }
+
+  @Test
+  public void delta_beats_zlib_on_integer_samples() {
+    final byte[] bytes = traceBuf("i4", 1000);
+    assertTrue(TraceBufCodec.DELTA.encode(bytes, bytes.length).length < TraceBufCodec.ZLIB
+        .encode(bytes, bytes.length).length);
+  }
+
+  @Test
+  public void lz4_compresses_repeats() throws IOException {
+    final byte[] bytes = new byte[5000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i % 7);
+    }
+    final byte[] stored = TraceBufCodec.LZ4.encode(bytes, bytes.length);
+    assertTrue(stored.length < 100);
+    assertArrayEquals(bytes, TraceBufCodec.decode(stored));
+  }
+
+  @Test(expected = IOException.class)
+  public void unknown_tag_is_rejected() throws IOException {
+    TraceBufCodec.decode(new byte[] {0x7f, 1, 2, 3});
+  }
+
+  @Test(expected = IOException.class)
+  public void truncated_row_is_rejected() throws IOException {
+    final byte[] bytes = traceBuf("i4", 200);
+    final byte[] stored = TraceBufCodec.DELTA.encode(bytes, bytes.length);
+    TraceBufCodec.decode(Arrays.copyOf(stored, stored.length / 2));
+  }
+
+  @Test
+  public void buffers_are_reused() throws IOException {
+    final byte[] bytes = traceBuf("i4", 400);
+    TraceBufCodec.decode(TraceBufCodec.ZLIB.encode(bytes, bytes.length));
+    final long allocated = CodecBuffers.getBuffersAllocated();
+    final long reuses = CodecBuffers.getReuses();
+
+    for (int i = 0; i < 10; i++) {
+      for (final TraceBufCodec codec : CODECS) {
+        assertArrayEquals(bytes, TraceBufCodec.decode(codec.encode(bytes, bytes.length)));
+      }
+    }
+    assertEquals(allocated, CodecBuffers.getBuffersAllocated());
+    assertTrue(CodecBuffers.getReuses() > reuses);
+  }
+
+  @Test
+  public void new_compressors_are_not_counted_as_reuses() {
+    final long created = CodecBuffers.getDeflatersCreated() + CodecBuffers.getInflatersCreated();
+    final long reuses = CodecBuffers.getReuses();
+
+    final Deflater deflater = CodecBuffers.deflater();
+    final Inflater inflater = CodecBuffers.inflater();
+    CodecBuffers.release(deflater);
+    CodecBuffers.release(inflater);
+
+    assertEquals(2, CodecBuffers.getDeflatersCreated() + CodecBuffers.getInflatersCreated()
+        - created + CodecBuffers.getReuses() - reuses);
+  }
+
+  @Test
+  public void lz4_ignores_earlier_tracebufs() throws IOException {
+    final byte[] repeats = new byte[5000];
+    for (int i = 0; i < repeats.length; i++) {
+      repeats[i] = (byte) (i % 7);
+    }
+    final byte[] bytes = traceBuf("i4", 400);
+    for (int i = 0; i < 3; i++) {
+      TraceBufCodec.LZ4.encode(repeats, repeats.length);
+      assertArrayEquals(bytes,
+          TraceBufCodec.decode(TraceBufCodec.LZ4.encode(bytes, bytes.length)));
+    }
+  }
+
+  @Test
+  public void zlib_grows_buffer_for_large_tracebufs() throws IOException {
+    final byte[] bytes = new byte[100000];
+    assertArrayEquals(bytes, TraceBufCodec.decode(TraceBufCodec.ZLIB.encode(bytes, bytes.length)));
+  }
+
+  @Test
+  public void codecs_are_found_by_name() {
+    assertSame(TraceBufCodec.DELTA, TraceBufCodec.forName("Delta"));
+    assertSame(TraceBufCodec.LZ4, TraceBufCodec.forName("lz4"));
+    assertNull(TraceBufCodec.forName("steim1"));
+  }
+
+  /**
+   * Build a tracebuf holding a random walk, with a trailing byte as sent by Earthworm.
+   */
+  private static byte[] traceBuf(final String type, final int samples) {
+    final int size = type.charAt(1) - '0';
+    final ByteBuffer buffer = ByteBuffer.allocate(64 + samples * size + 1);
+    buffer.order(type.charAt(0) == 's' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(1);
+    buffer.putInt(samples);
+    buffer.putDouble(1.5e9);
+    buffer.putDouble(1.5e9 + samples / 100.0);
+    buffer.putDouble(100);
+    buffer.put("STA".getBytes());
+    buffer.position(57);
+    buffer.put(type.getBytes());
+    buffer.position(64);
+
+    final Random random = new Random(42);
+    int value = 0;
+    for (int i = 0; i < samples; i++) {
+      value += random.nextInt(201) - 100;
+      if (type.charAt(0) == 'f') {
+        buffer.putFloat(value);
+      } else if (size == 2) {
+        buffer.putShort((short) value);
+      } else {
+        buffer.putInt(value);
+      }
+    }
+    return buffer.array();
+  }
+}
@@ -0,0 +1,41 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TraceBufIntervalsTest {
+
+  @Test
+  public void intervals_are_kept_in_order() {
+    final TraceBufIntervals intervals = new TraceBufIntervals();
+    for (int i = 99; i >= 0; i--) {
+      assertTrue(intervals.add(i * 10, i * 10 + 9));
+    }
+    assertFalse(intervals.add(500, 501));
+
+    assertEquals(100, intervals.size());
+    assertEquals(990, intervals.lastStart(), 0);
+    assertEquals(490, intervals.lowerStart(500), 0);
+    assertEquals(500, intervals.lowerStart(500.5), 0);
+    assertTrue(Double.isNaN(intervals.lowerStart(0)));
+  }
+
+  @Test
+  public void between_includes_overlapping_intervals() {
+    final TraceBufIntervals intervals = new TraceBufIntervals();
+    intervals.add(0, 10);
+    intervals.add(10, 20);
+    intervals.add(30, 40);
+
+    final List<double[]> found = intervals.between(15, 30);
+    assertEquals(2, found.size());
+    assertEquals(10, found.get(0)[0], 0);
+    assertEquals(30, found.get(1)[0], 0);
+    assertEquals(0, intervals.between(21, 29).size());
+  }
+}
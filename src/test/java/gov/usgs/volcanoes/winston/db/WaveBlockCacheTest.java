@@ -0,0 +1,134 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.data.Wave;
+
+public class WaveBlockCacheTest {
+
+  private static final String CODE = "SPCP$BHZ$AV$--";
+
+  /** 2017-06-30 00:00:00 UTC */
+  private static final double DAY = 552052800;
+  private static final long FIRST_BLOCK = (long) DAY / WaveBlockCache.BLOCK_SIZE;
+
+  /** counts reads of the wave tables and answers them with one sample per second */
+  private static class CountingData extends Data {
+    private final List<double[]> reads = new ArrayList<double[]>();
+
+    private CountingData(final WinstonDatabase winston) {
+      super(winston);
+    }
+
+    @Override
+    Wave getWaveUncached(final String code, final double t1, final double t2, final int maxrows) {
+      reads.add(new double[] {t1, t2});
+      final int[] samples = new int[(int) (t2 - t1)];
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = (int) (t1 + i - DAY);
+      }
+      return new Wave(samples, t1, 1);
+    }
+  }
+
+  private static double blockStart(final long offset) {
+    return (FIRST_BLOCK + offset) * WaveBlockCache.BLOCK_SIZE;
+  }
+
+  private static RecordingDriver.Recording recording() {
+    return RecordingDriver.newRecording().result("information_schema.TABLES",
+        CODE + "$$2017_06_30");
+  }
+
+  @Test
+  public void missing_blocks_are_read_together() throws Exception {
+    final RecordingDriver.Recording recording = recording();
+    for (long offset = 2; offset <= 4; offset++) {
+      recording.result("FLOOR(st", FIRST_BLOCK + offset, 1, blockStart(offset));
+    }
+    final WinstonDatabase winston = recording.connect(null);
+    final CountingData data = new CountingData(winston);
+    final WaveBlockCache cache = new WaveBlockCache(1 << 20);
+
+    final Wave wave = cache.getWave(data, winston, CODE, blockStart(2), blockStart(5) - 1);
+
+    assertEquals(1, data.reads.size());
+    assertTrue(Arrays.equals(new double[] {blockStart(2), blockStart(5)}, data.reads.get(0)));
+    assertEquals(3, cache.getMisses());
+    assertEquals(blockStart(2), wave.getStartTime(), 0);
+    assertEquals((int) (blockStart(2) - DAY), wave.buffer[0]);
+    assertEquals(3 * WaveBlockCache.BLOCK_SIZE - 1, wave.numSamples());
+
+    cache.getWave(data, winston, CODE, blockStart(2), blockStart(5) - 1);
+    assertEquals(1, data.reads.size());
+    assertEquals(3, cache.getHits());
+  }
+
+  @Test
+  public void runs_of_missing_blocks_are_read_separately() throws Exception {
+    final RecordingDriver.Recording recording = recording();
+    for (long offset = 1; offset <= 5; offset++) {
+      recording.result("FLOOR(st", FIRST_BLOCK + offset, 1, blockStart(offset));
+    }
+    final WinstonDatabase winston = recording.connect(null);
+    final CountingData data = new CountingData(winston);
+    final WaveBlockCache cache = new WaveBlockCache(1 << 20);
+
+    cache.getWave(data, winston, CODE, blockStart(2), blockStart(3) - 1);
+    final Wave wave = cache.getWave(data, winston, CODE, blockStart(1), blockStart(4) - 1);
+
+    assertEquals(3, data.reads.size());
+    assertTrue(Arrays.equals(new double[] {blockStart(1), blockStart(2)}, data.reads.get(1)));
+    assertTrue(Arrays.equals(new double[] {blockStart(3), blockStart(4)}, data.reads.get(2)));
+    assertEquals(3 * WaveBlockCache.BLOCK_SIZE - 1, wave.numSamples());
+    assertEquals((int) (blockStart(2) - DAY), wave.buffer[WaveBlockCache.BLOCK_SIZE]);
+  }
+
+  @Test
+  public void blocks_in_a_gap_are_empty() throws Exception {
+    final RecordingDriver.Recording recording = recording();
+    recording.result("FLOOR(st", FIRST_BLOCK + 2, 1, blockStart(2));
+    recording.result("FLOOR(st", FIRST_BLOCK + 5, 1, blockStart(5));
+    final WinstonDatabase winston = recording.connect(null);
+    final CountingData data = new CountingData(winston);
+    final WaveBlockCache cache = new WaveBlockCache(1 << 20);
+
+    cache.getWave(data, winston, CODE, blockStart(2), blockStart(6) - 1);
+
+    // block 3 may hold the end of a tracebuf starting in block 2, block 4 cannot
+    assertNotNull(cache.getWave(data, winston, CODE, blockStart(3), blockStart(4) - 1));
+    assertNull(cache.getWave(data, winston, CODE, blockStart(4), blockStart(5) - 1));
+    assertEquals(1, data.reads.size());
+  }
+
+  @Test
+  public void stamps_are_taken_from_the_index() throws Exception {
+    final RecordingDriver.Recording recording = recording()
+        .result("SELECT sid", 1)
+        .result("SELECT written", 3L);
+    for (long offset = 2; offset <= 4; offset++) {
+      recording.result("SELECT st, et", blockStart(offset), blockStart(offset) + 30);
+    }
+    final WinstonDatabase winston = recording.connect(null);
+    winston.setTraceBufIndex(new TraceBufIndex(1 << 20));
+    final CountingData data = new CountingData(winston);
+    final WaveBlockCache cache = new WaveBlockCache(1 << 20);
+
+    cache.getWave(data, winston, CODE, blockStart(2), blockStart(5) - 1);
+    cache.getWave(data, winston, CODE, blockStart(2), blockStart(5) - 1);
+
+    assertTrue(recording.find("FLOOR(st").isEmpty());
+    assertEquals(1, recording.find("SELECT st, et").size());
+    assertEquals(1, data.reads.size());
+    assertEquals(3, cache.getHits());
+  }
+}
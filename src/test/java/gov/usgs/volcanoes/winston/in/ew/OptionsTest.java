@@ -0,0 +1,81 @@
+package gov.usgs.volcanoes.winston.in.ew;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.time.J2kSec;
+
+public class OptionsTest {
+
+  private static final double DELTA = 0;
+
+  private Options options;
+
+  @Before
+  public void setUp() {
+    options = new Options();
+    options.timeThreshold = 60;
+    options.bufThreshold = 60;
+    options.maxBacklog = 200;
+  }
+
+  @Test
+  public void old_tracebufs_exceed_time_threshold() {
+    assertTrue(options.thresholdExceeded(J2kSec.now() - 90, 1));
+    assertFalse(options.thresholdExceeded(J2kSec.now() - 30, 1));
+  }
+
+  @Test
+  public void time_threshold_is_stretched() {
+    assertFalse(options.thresholdExceeded(J2kSec.now() - 90, 1, 2));
+    assertTrue(options.thresholdExceeded(J2kSec.now() - 150, 1, 2));
+  }
+
+  @Test
+  public void time_stretch_is_capped() {
+    assertTrue(options.thresholdExceeded(J2kSec.now() - 150, 1, 8));
+  }
+
+  @Test
+  public void negative_time_threshold_is_ignored() {
+    options.timeThreshold = -1;
+    assertFalse(options.thresholdExceeded(J2kSec.now() - 1e6, 1, 1));
+  }
+
+  @Test
+  public void count_threshold_is_stretched() {
+    assertTrue(options.thresholdExceeded(J2kSec.now(), 61, 1));
+    assertFalse(options.thresholdExceeded(J2kSec.now(), 61, 1.5));
+    assertTrue(options.thresholdExceeded(J2kSec.now(), 91, 1.5));
+  }
+
+  @Test
+  public void count_stretch_stays_below_half_backlog() {
+    assertFalse(options.thresholdExceeded(J2kSec.now(), 100, 8));
+    assertTrue(options.thresholdExceeded(J2kSec.now(), 101, 8));
+  }
+
+  @Test
+  public void count_threshold_is_never_lowered_by_small_backlog() {
+    options.maxBacklog = 50;
+    assertFalse(options.thresholdExceeded(J2kSec.now(), 60, 8));
+    assertTrue(options.thresholdExceeded(J2kSec.now(), 61, 8));
+  }
+
+  @Test
+  public void deadline_follows_stretched_time_threshold() {
+    assertEquals(1060, options.getDeadline(1000, 1), DELTA);
+    assertEquals(1090, options.getDeadline(1000, 1.5), DELTA);
+    assertEquals(1120, options.getDeadline(1000, 8), DELTA);
+  }
+
+  @Test
+  public void no_deadline_without_time_threshold() {
+    options.timeThreshold = -1;
+    assertTrue(Double.isNaN(options.getDeadline(1000, 1)));
+  }
+}
@@ -0,0 +1,151 @@
+package gov.usgs.volcanoes.winston.in.ew;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TraceBufSpoolTest {
+
+  private static final int SEGMENT_SIZE = 1024;
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("spool", "");
+    directory.delete();
+  }
+
+  @After
+  public void tearDown() {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void records_are_read_in_order() throws IOException {
+    final TraceBufSpool spool = new TraceBufSpool(directory, SEGMENT_SIZE);
+    for (int i = 0; i < 100; i++) {
+      spool.append(record(i));
+    }
+
+    for (int i = 0; i < 100; i++) {
+      assertArrayEquals(record(i), spool.poll().getBytes());
+    }
+    assertNull(spool.poll());
+  }
+
+  @Test
+  public void released_segments_are_deleted() throws IOException {
+    final TraceBufSpool spool = new TraceBufSpool(directory, SEGMENT_SIZE);
+    final List<TraceBufSpool.Record> records = new ArrayList<TraceBufSpool.Record>();
+    for (int i = 0; i < 100; i++) {
+      spool.append(record(i));
+      records.add(spool.poll());
+    }
+    assertTrue(spool.getSegmentCount() > 1);
+
+    for (final TraceBufSpool.Record record : records) {
+      spool.release(record);
+    }
+    assertEquals(1, spool.getSegmentCount());
+    assertEquals(1, directory.listFiles().length);
+    assertEquals(100, spool.getReleased());
+  }
+
+  @Test
+  public void unreleased_records_are_replayed() throws IOException {
+    TraceBufSpool spool = new TraceBufSpool(directory, SEGMENT_SIZE);
+    for (int i = 0; i < 50; i++) {
+      spool.append(record(i));
+    }
+    for (int i = 0; i < 20; i++) {
+      spool.poll();
+    }
+    spool.close();
+
+    spool = new TraceBufSpool(directory, SEGMENT_SIZE);
+    spool.append(record(50));
+    for (int i = 0; i <= 50; i++) {
+      assertArrayEquals(record(i), spool.poll().getBytes());
+    }
+    assertNull(spool.poll());
+  }
+
+  @Test
+  public void released_records_are_not_replayed() throws IOException {
+    TraceBufSpool spool = new TraceBufSpool(directory, SEGMENT_SIZE);
+    for (int i = 0; i < 50; i++) {
+      spool.append(record(i));
+    }
+    final List<TraceBufSpool.Record> records = new ArrayList<TraceBufSpool.Record>();
+    for (int i = 0; i < 30; i++) {
+      records.add(spool.poll());
+    }
+    for (int i = 0; i < 20; i++) {
+      spool.release(records.get(i));
+    }
+    // released after an outstanding record, so read again
+    spool.release(records.get(25));
+    spool.close();
+
+    spool = new TraceBufSpool(directory, SEGMENT_SIZE);
+    for (int i = 20; i < 50; i++) {
+      assertArrayEquals(record(i), spool.poll().getBytes());
+    }
+    assertNull(spool.poll());
+  }
+
+  @Test
+  public void requeued_records_are_read_last() throws IOException {
+    final TraceBufSpool spool = new TraceBufSpool(directory, SEGMENT_SIZE);
+    spool.append(record(1));
+    spool.append(record(2));
+
+    final TraceBufSpool.Record first = spool.poll();
+    spool.requeue(first);
+    spool.release(first);
+    assertEquals(1, spool.getReleased());
+
+    assertArrayEquals(record(2), spool.poll().getBytes());
+    assertArrayEquals(record(1), spool.poll().getBytes());
+    assertNull(spool.poll());
+  }
+
+  @Test
+  public void large_records_get_their_own_segment() throws IOException {
+    final TraceBufSpool spool = new TraceBufSpool(directory, SEGMENT_SIZE);
+    final byte[] large = new byte[SEGMENT_SIZE * 3];
+    large[large.length - 1] = 9;
+    spool.append(record(1));
+    spool.append(large);
+    spool.append(record(2));
+
+    assertArrayEquals(record(1), spool.poll().getBytes());
+    assertArrayEquals(large, spool.poll().getBytes());
+    assertArrayEquals(record(2), spool.poll().getBytes());
+  }
+
+  private static byte[] record(final int i) {
+    final byte[] bytes = new byte[64 + i % 7];
+    for (int j = 0; j < bytes.length; j++) {
+      bytes[j] = (byte) (i + j);
+    }
+    return bytes;
+  }
+}